@@ -14,6 +14,10 @@ import ij.plugin.*;
 import ij.process.*;
 import ij.plugin.filter.*;
 
+import fft.FFT;
+import fft.RealFFT3D;
+import fft.Spectrum;
+
 public class Two_Point_Correlation implements PlugInFilter {
 	ImagePlus image;
 	byte[] pixels;
@@ -70,31 +74,28 @@ public class Two_Point_Correlation implements PlugInFilter {
 			}
 	}
 
+	/*
+	 * The autocorrelation via the Fourier transform, padded so
+	 * that it does not wrap around; the lag (x, y) ends up at
+	 * (x mod width, y mod height).
+	 */
 	void getConvolved() {
-		int n, nroot;
-		for (nroot = 2; nroot < w || nroot < h; nroot *= 2);
-		nroot *= 2;
-		n = nroot * nroot;
-		double[][] data = new double[n][2];
-		double[][] data2 = new double[n][2];
-		for (int j = 0; j < h; j++)
-			for (int i = 0; i < w; i++) {
-				int index = i + w * j;
-				data[index + w * j][0] = pixels[index];
-				data2[w - i - 1 + 2 * w * (h - j - 1)][0] =
-					pixels[index];
-			}
+		int width = FFT.nextFastLength(2 * w - 1);
+		int height = FFT.nextFastLength(2 * h - 1);
+		RealFFT3D fft = new RealFFT3D(width, height, 1);
 		IJ.showProgress(0.0);
-		double[][] inv = FFT.fft(data);
-		IJ.showProgress(0.3);
-		double[][] inv2 = FFT.fft(data2);
-		IJ.showProgress(0.6);
-		double[][] iconv = FFT.multiply(inv, inv2);
-		IJ.showProgress(0.7);
-		double[][] conv = FFT.ifft(iconv);
+		Spectrum spectrum = fft.forward(new Object[] { pixels }, w, h);
+		IJ.showProgress(0.4);
+		spectrum.multiplyConjugate(spectrum);
+		IJ.showProgress(0.5);
+		float[] correlation = fft.inverse(spectrum, width, height, 1)[0];
 		IJ.showProgress(0.9);
-		for (int i = 0; i < convolved.length; i++)
-			convolved[i] = (float)conv[i][0] / 255.0f / 255.0f;
+		for (int y = -h + 1; y < h; y++)
+			for (int x = -w + 1; x < w; x++)
+				convolved[w - 1 + x + (h - 1 + y) * 2 * w] =
+					correlation[(x + width) % width
+						+ ((y + height) % height) * width]
+					/ 255.0f / 255.0f;
 		IJ.showProgress(1.0);
 	}
 
@@ -178,107 +179,3 @@ public class Two_Point_Correlation implements PlugInFilter {
 		return DOES_8G | NO_CHANGES;
 	}
 }
-
-class FFT {
-	/*
-	 * Thankfully borrowed from
-	 * http://www.cs.princeton.edu/introcs/97data/FFT.java
-	 * compute the FFT of x[], x.length must be a power of 2!
-	 */
-	public static double[][] fft(double[][] x) {
-		int n = x.length;
-
-		if (n == 1)
-			return new double[][] { x[0] };
-
-		// Cooley-Tukey FFT
-		if ((n & 1) != 0)
-			throw new RuntimeException("n is not a power of 2");
-
-		// fft of even terms
-		double[][] even = new double[n/2][];
-		for (int k = 0; k < n/2; k++)
-			even[k] = x[2*k];
-		double[][] q = fft(even);
-
-		// fft of odd terms
-		double[][] odd  = even;  // reuse the array
-		for (int k = 0; k < n/2; k++)
-			odd[k] = x[2*k + 1];
-		double[][] r = fft(odd);
-
-		// combine
-		double[][] y = new double[n][2];
-		for (int k = 0; k < n/2; k++) {
-			double kth = -2 * k * Math.PI / n;
-			double c = Math.cos(kth), s = Math.sin(kth);
-			double kr0 = c * r[k][0] - s * r[k][1];
-			double kr1 = c * r[k][1] + s * r[k][0];
-			y[k][0] = q[k][0] + kr0;
-			y[k][1] = q[k][1] + kr1;
-			y[k + n/2][0] = q[k][0] - kr0;
-			y[k + n/2][1] = q[k][1] - kr1;
-		}
-		return y;
-	}
-
-	public static double[][] conjugate(double[][] x) {
-		double[][] result = new double[x.length][2];
-		for (int i = 0; i < x.length; i++) {
-			result[i][0] = x[i][0];
-			result[i][1] = -x[i][1];
-		}
-		return result;
-	}
-
-	public static double[][] divide(double[][] x, double factor) {
-		double[][] result = new double[x.length][2];
-		for (int i = 0; i < x.length; i++) {
-			result[i][0] = x[i][0] / factor;
-			result[i][1] = x[i][1] / factor;
-		}
-		return result;
-	}
-
-	// compute the inverse FFT of x[]
-	public static double[][] ifft(double[][] x) {
-		return divide(conjugate(fft(conjugate(x))), x.length);
-	}
-
-	public static void print(double[][] values) {
-		for (int i = 0; i < values.length; i++)
-			System.out.print(" " + values[i][0] + ";"
-					+ values[i][1]);
-		System.out.println("");
-	}
-
-	public static double[][] multiply(double[][] x, double[][] y) {
-		double[][] r = new double[x.length][2];
-		for (int i = 0; i < x.length; i++) {
-			r[i][0] = x[i][0] * y[i][0] - x[i][1] * y[i][1];
-			r[i][1] = x[i][1] * y[i][0] + x[i][0] * y[i][1];
-		}
-		return r;
-	}
-
-	public static void main(String[] args) {
-		double[][] values = {{1, 2}, {3, 4}, {5, 6}, {0, 1},
-			{0, 0}, {0, 0}, {0, 0}, {0, 0}};
-		double[][] f = {{0, 0}, {0, 0}, {0, 0}, {0, 0},
-			{0, 1}, {5, 6}, {3, 4}, {1, 2}};
-		double[][] f2 = {{1, 0}, {0, 0}, {0, 0}, {0, 0}, {0, 0},
-			{0, 0}, {0, 0}, {0, 0}};
-		double[][] inv = fft(values);
-		double[][] finv = fft(f);
-		double[][] invinv = ifft(inv);
-		double[][] imul = multiply(inv, finv);
-		double[][] mul = ifft(imul);
-		print(values);
-		print(inv);
-		print(invinv);
-		print(finv);
-		print(imul);
-		print(mul);
-	}
-}
-
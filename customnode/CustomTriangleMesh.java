@@ -1,5 +1,6 @@
 package customnode;
 
+import isosurface.IndexedTriangleMesh;
 import isosurface.MeshProperties;
 
 import java.util.List;
@@ -7,6 +8,7 @@ import java.util.Arrays;
 
 import javax.media.j3d.Geometry;
 import javax.media.j3d.GeometryArray;
+import javax.media.j3d.IndexedTriangleArray;
 import javax.media.j3d.TriangleArray;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3d;
@@ -20,10 +22,41 @@ public class CustomTriangleMesh extends CustomMesh {
 
 	private double volume = 0.0;
 
+	/*
+	 * If not null, the mesh is displayed from this and the list
+	 * of points in 'mesh' is null. It is converted to a list
+	 * (see toTriangleList()) when it is edited or the list is
+	 * asked for.
+	 */
+	private IndexedTriangleMesh indexed;
+
+	/* For each vertex of 'indexed', the positions in its index array
+	 * which refer to it; created by vertexIndicesOfPoint(). */
+	private int[] cornerStart, corners;
+
 	public CustomTriangleMesh(List<Point3f> mesh) {
 		this(mesh, DEFAULT_COLOR, 0);
 	}
 
+	public CustomTriangleMesh(IndexedTriangleMesh mesh, Color3f col,
+			float trans) {
+		super();
+		this.indexed = mesh;
+		if(col != null)
+			this.color = col;
+		this.transparency = trans;
+		this.setCapability(ALLOW_GEOMETRY_READ);
+		this.setCapability(ALLOW_GEOMETRY_WRITE);
+		this.setCapability(ALLOW_APPEARANCE_READ);
+		this.setCapability(ALLOW_APPEARANCE_WRITE);
+		this.update();
+		if(mesh != null) {
+			Point3d center = new Point3d();
+			double[][] inertia = new double[3][3];
+			volume = MeshProperties.compute(mesh, center, inertia);
+		}
+	}
+
 	public CustomTriangleMesh(List<Point3f> mesh, Color3f col, float trans) {
 		super(mesh, col, trans);
 		if(mesh != null) {
@@ -34,10 +67,152 @@ public class CustomTriangleMesh extends CustomMesh {
 	}
 
 	public void setMesh(List<Point3f> mesh) {
+		this.indexed = null;
 		this.mesh = mesh;
 		update();
 	}
 
+	public void setMesh(IndexedTriangleMesh mesh) {
+		this.indexed = mesh;
+		this.mesh = null;
+		cornerStart = corners = null;
+		update();
+	}
+
+	/**
+	 * Returns the indexed mesh this was created with, or null if
+	 * it is (or has been converted to) a list of points.
+	 */
+	public IndexedTriangleMesh getIndexedMesh() {
+		return indexed;
+	}
+
+	/*
+	 * Converts an indexed mesh to a list of points, so that it
+	 * can be edited like any other.
+	 */
+	private void toTriangleList() {
+		if(indexed == null)
+			return;
+		mesh = indexed.toTriangleList();
+		indexed = null;
+		cornerStart = corners = null;
+		update();
+	}
+
+	@Override
+	public List getMesh() {
+		toTriangleList();
+		return mesh;
+	}
+
+	@Override
+	public void calculateMinMaxCenterPoint(Point3f min,
+				Point3f max, Point3f center) {
+		if(indexed == null) {
+			super.calculateMinMaxCenterPoint(min, max, center);
+			return;
+		}
+		float[] v = indexed.getVertices();
+		min.x = min.y = min.z = Float.MAX_VALUE;
+		max.x = max.y = max.z = Float.MIN_VALUE;
+		for(int i = 0; i < 3 * indexed.getVertexCount(); i += 3) {
+			if(v[i]   < min.x) min.x = v[i];
+			if(v[i+1] < min.y) min.y = v[i+1];
+			if(v[i+2] < min.z) min.z = v[i+2];
+			if(v[i]   > max.x) max.x = v[i];
+			if(v[i+1] > max.y) max.y = v[i+1];
+			if(v[i+2] > max.z) max.z = v[i+2];
+		}
+		center.x = (max.x + min.x) / 2;
+		center.y = (max.y + min.y) / 2;
+		center.z = (max.z + min.z) / 2;
+	}
+
+	/*
+	 * For an indexed mesh, the returned indices are still positions
+	 * in the list of triangle corners, as for a list of points, so
+	 * that they can be passed to setCoordinate(s).  Since equal
+	 * points are merged, only the vertices need to be compared.
+	 */
+	@Override
+	public int[] vertexIndicesOfPoint(Point3f p) {
+		if(indexed == null)
+			return super.vertexIndicesOfPoint(p);
+		if(corners == null)
+			createCornerIndex();
+		float[] v = indexed.getVertices();
+		int n = 0;
+		int[] tmp = new int[16];
+		for(int i = 0; i < indexed.getVertexCount(); i++) {
+			if(v[3*i] != p.x || v[3*i+1] != p.y || v[3*i+2] != p.z)
+				continue;
+			for(int c = cornerStart[i]; c < cornerStart[i + 1]; c++) {
+				if(n == tmp.length) {
+					int[] t = new int[2 * n];
+					System.arraycopy(tmp, 0, t, 0, n);
+					tmp = t;
+				}
+				tmp[n++] = corners[c];
+			}
+		}
+		int[] ret = new int[n];
+		System.arraycopy(tmp, 0, ret, 0, n);
+		Arrays.sort(ret);
+		return ret;
+	}
+
+	private void createCornerIndex() {
+		int nv = indexed.getVertexCount();
+		int ni = 3 * indexed.getTriangleCount();
+		int[] idx = indexed.getIndices();
+		cornerStart = new int[nv + 1];
+		for(int i = 0; i < ni; i++)
+			cornerStart[idx[i] + 1]++;
+		for(int i = 0; i < nv; i++)
+			cornerStart[i + 1] += cornerStart[i];
+		corners = new int[ni];
+		int[] fill = new int[nv];
+		for(int i = 0; i < ni; i++)
+			corners[cornerStart[idx[i]] + fill[idx[i]]++] = i;
+	}
+
+	@Override
+	public void setCoordinate(int i, Point3f p) {
+		if(indexed == null) {
+			super.setCoordinate(i, p);
+			return;
+		}
+		int vi = indexed.getIndices()[i];
+		float[] v = indexed.getVertices();
+		v[3 * vi] = p.x;
+		v[3 * vi + 1] = p.y;
+		v[3 * vi + 2] = p.z;
+		((GeometryArray)getGeometry()).setCoordinate(vi, p);
+	}
+
+	@Override
+	public void setCoordinates(int[] indices, Point3f p) {
+		if(indexed == null) {
+			super.setCoordinates(indices, p);
+			return;
+		}
+		for(int i = 0; i < indices.length; i++)
+			setCoordinate(indices[i], p);
+	}
+
+	@Override
+	protected void addVertices(Point3f[] v) {
+		toTriangleList();
+		super.addVertices(v);
+	}
+
+	@Override
+	protected void removeVertices(int[] indices) {
+		toTriangleList();
+		super.removeVertices(indices);
+	}
+
 	public void addTriangles(Point3f[] v) {
 		if(v.length % 3 != 0)
 			throw new IllegalArgumentException(
@@ -77,6 +252,8 @@ public class CustomTriangleMesh extends CustomMesh {
 
 	@Override
 	protected GeometryArray createGeometry() {
+		if(indexed != null)
+			return createIndexedGeometry();
 		if(mesh == null || mesh.size() < 3)
 			return null;
 		List<Point3f> tri = mesh;
@@ -118,6 +295,72 @@ public class CustomTriangleMesh extends CustomMesh {
 		return result;
 	}
 
+	/*
+	 * The normal of each vertex is the sum of the normals of
+	 * the triangles around it, weighted by their area.
+	 */
+	private GeometryArray createIndexedGeometry() {
+		int nv = indexed.getVertexCount();
+		int ni = 3 * indexed.getTriangleCount();
+		if(ni < 3)
+			return null;
+		indexed.trim();
+		float[] v = indexed.getVertices();
+		int[] idx = indexed.getIndices();
+
+		float[] normals = new float[3 * nv];
+		for(int t = 0; t < ni; t += 3) {
+			int i0 = 3 * idx[t], i1 = 3 * idx[t+1], i2 = 3 * idx[t+2];
+			float ax = v[i1] - v[i0], ay = v[i1+1] - v[i0+1];
+			float az = v[i1+2] - v[i0+2];
+			float bx = v[i2] - v[i0], by = v[i2+1] - v[i0+1];
+			float bz = v[i2+2] - v[i0+2];
+			float nx = ay * bz - az * by;
+			float ny = az * bx - ax * bz;
+			float nz = ax * by - ay * bx;
+			normals[i0] += nx; normals[i0+1] += ny; normals[i0+2] += nz;
+			normals[i1] += nx; normals[i1+1] += ny; normals[i1+2] += nz;
+			normals[i2] += nx; normals[i2+1] += ny; normals[i2+2] += nz;
+		}
+		for(int i = 0; i < 3 * nv; i += 3) {
+			float l = (float)Math.sqrt(normals[i] * normals[i] +
+				normals[i+1] * normals[i+1] +
+				normals[i+2] * normals[i+2]);
+			if(l > 0) {
+				normals[i] /= l;
+				normals[i+1] /= l;
+				normals[i+2] /= l;
+			}
+		}
+
+		float[] colors = new float[3 * nv];
+		for(int i = 0; i < 3 * nv; i += 3) {
+			colors[i] = color.x;
+			colors[i+1] = color.y;
+			colors[i+2] = color.z;
+		}
+
+		IndexedTriangleArray ta = new IndexedTriangleArray(nv,
+					GeometryArray.COORDINATES |
+					GeometryArray.COLOR_3 |
+					GeometryArray.NORMALS |
+					GeometryArray.USE_COORD_INDEX_ONLY,
+					ni);
+		ta.setCoordinates(0, v);
+		ta.setNormals(0, normals);
+		ta.setColors(0, colors);
+		ta.setCoordinateIndices(0, idx);
+
+		ta.setCapability(GeometryArray.ALLOW_NORMAL_WRITE);
+		ta.setCapability(GeometryArray.ALLOW_COLOR_WRITE);
+		ta.setCapability(GeometryArray.ALLOW_COORDINATE_WRITE);
+		ta.setCapability(GeometryArray.ALLOW_COUNT_WRITE);
+		ta.setCapability(GeometryArray.ALLOW_COUNT_READ);
+		ta.setCapability(GeometryArray.ALLOW_FORMAT_READ);
+		ta.setCapability(GeometryArray.ALLOW_INTERSECT);
+		return ta;
+	}
+
 	@Override
 	public float getVolume() {
 		return (float)volume;
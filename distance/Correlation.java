@@ -2,7 +2,7 @@
 
 package distance;
 
-public class Correlation implements PixelPairs {
+public class Correlation implements MergeablePixelPairs {
 
 	private float sumX, sumY, sumXY,
 		sumXSquared, sumYSquared;
@@ -26,6 +26,22 @@ public class Correlation implements PixelPairs {
 		count++;
 	}
 
+	public MergeablePixelPairs newEmpty() {
+		Correlation result = new Correlation();
+		result.reset();
+		return result;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		Correlation c = (Correlation)other;
+		sumX += c.sumX;
+		sumY += c.sumY;
+		sumXY += c.sumXY;
+		sumXSquared += c.sumXSquared;
+		sumYSquared += c.sumYSquared;
+		count += c.count;
+	}
+
 	public float correlation() {
 
 		float result = 0;
@@ -2,7 +2,7 @@
 
 package distance;
 
-public class Euclidean implements PixelPairs {
+public class Euclidean implements MergeablePixelPairs {
 
 	private float sum;
 	private long count;
@@ -21,6 +21,18 @@ public class Euclidean implements PixelPairs {
 		count++;
 	}
 
+	public MergeablePixelPairs newEmpty() {
+		Euclidean result = new Euclidean();
+		result.reset();
+		return result;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		Euclidean e = (Euclidean)other;
+		sum += e.sum;
+		count += e.count;
+	}
+
 	public float distance() {
 		if (verbose) {
 			System.err.println("calculated sum: " + Math.sqrt(sum/count));
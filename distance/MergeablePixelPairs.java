@@ -0,0 +1,16 @@
+package distance;
+
+/*
+ * A PixelPairs measure whose state can be split up: pairs can be added
+ * to several empty copies (e.g. one per thread) and the copies merged
+ * back into one, which then gives the same distance() as if all the
+ * pairs had been added to it directly (up to floating point rounding
+ * for measures that keep floating point sums).
+ */
+public interface MergeablePixelPairs extends PixelPairs {
+	// a new, reset measure with the same parameters as this one
+	public MergeablePixelPairs newEmpty();
+
+	// add all the pairs that have been added to other
+	public void merge(MergeablePixelPairs other);
+}
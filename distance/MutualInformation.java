@@ -31,7 +31,7 @@ package distance;
 
 */
 
-public class MutualInformation implements PixelPairs {
+public class MutualInformation implements MergeablePixelPairs {
         private float minimum;
         private float maximum;
 	private float width;
@@ -79,6 +79,20 @@ public class MutualInformation implements PixelPairs {
 		count++;
 	}
 
+	public MergeablePixelPairs newEmpty() {
+		MutualInformation result =
+			new MutualInformation(minimum, maximum, bins);
+		result.reset();
+		return result;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		MutualInformation m = (MutualInformation)other;
+		for (int i = 0; i < joint.length; i++)
+			joint[i] += m.joint[i];
+		count += m.count;
+	}
+
 	public float getEntropy1() {
 		return h1;
 	}
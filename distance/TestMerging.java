@@ -0,0 +1,37 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that merging MergeablePixelPairs gives the same distance as
+   adding all the pairs to one measure */
+
+package distance;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class TestMerging extends BaseOfTests {
+
+	void checkMerging(MergeablePixelPairs measure) {
+		measure.reset();
+		addMacKayExample(measure);
+		addMacKayExample(measure);
+		float expected = measure.distance();
+
+		MergeablePixelPairs first = measure.newEmpty();
+		MergeablePixelPairs second = measure.newEmpty();
+		addMacKayExample(first);
+		addMacKayExample(second);
+		measure.reset();
+		measure.merge(first);
+		measure.merge(second);
+		assertEquals(expected, measure.distance(), 0.0000001);
+	}
+
+	@Test
+	public void testMerging() {
+		checkMerging(new MutualInformation(1, 4, 4));
+		checkMerging(new Euclidean());
+		checkMerging(new Correlation());
+		checkMerging(new Thresholded(2));
+		checkMerging(new TwoValues(1, 3));
+	}
+}
@@ -3,7 +3,7 @@ package distance;
 /*
  * Treat pixels as different when one is below threshold, and the other above.
  */
-public class Thresholded implements PixelPairs {
+public class Thresholded implements MergeablePixelPairs {
 	private float threshold;
 	private long count, total;
 
@@ -24,6 +24,19 @@ public class Thresholded implements PixelPairs {
 			count++;
 	}
 
+	public MergeablePixelPairs newEmpty() {
+		Thresholded result = new Thresholded(0);
+		result.threshold = threshold;
+		result.reset();
+		return result;
+	}
+
+	public void merge(MergeablePixelPairs other) {
+		Thresholded t = (Thresholded)other;
+		count += t.count;
+		total += t.total;
+	}
+
 	public float distance() {
 		return count * 255 / (float)total;
 	}
@@ -78,6 +78,11 @@ import ij.process.FloatProcessor;
 
 import ij.measure.Calibration;
 
+import java.io.IOException;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import math3d.Eigensystem3x3Float;
 import math3d.Eigensystem3x3Double;
 import math3d.Eigensystem2x2Float;
@@ -85,6 +90,8 @@ import math3d.Eigensystem2x2Double;
 import math3d.JacobiDouble;
 import math3d.JacobiFloat;
 
+import util.Threads;
+
 public class ComputeCurvatures implements Runnable
 {
     static class TrivialProgressDisplayer implements GaussianGenerationCallback {
@@ -355,7 +362,7 @@ public class ComputeCurvatures implements Runnable
 
     }
 
-    private boolean cancelGeneration = false;
+    private volatile boolean cancelGeneration = false;
 
     public void cancelGaussianGeneration( ) {
         cancelGeneration = true;
@@ -1225,6 +1232,40 @@ public class ComputeCurvatures implements Runnable
         return gaussianKernel;
     }
 
+    /* The Gaussian is computed with one thread per processor by
+       default; setNumberOfThreads( 1 ) makes it single-threaded. */
+
+    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+    public void setNumberOfThreads( int numberOfThreads ) {
+        this.numberOfThreads = Math.max( 1, numberOfThreads );
+    }
+
+    /* If this is set, the Gaussian is approximated with the
+       recursive filter of Young and van Vliet ("Recursive
+       implementation of the Gaussian filter", Signal Processing 44,
+       1995) instead of being convolved with a sampled kernel, so
+       that the time taken doesn't grow with sigma.  The
+       approximation is worse for small sigma, so sigmas (in pixels)
+       below 1 still use the kernel. */
+
+    private boolean recursiveGaussian = false;
+
+    public void setUseRecursiveGaussian( boolean recursiveGaussian ) {
+        this.recursiveGaussian = recursiveGaussian;
+    }
+
+    /* The (approximate) maximum size in bytes of the buffer that
+       computeGaussianFastMirror( FloatVolume, ... ) reads part of
+       the volume into.  Each thread also needs a line buffer about
+       as large as a slice for the y axis. */
+
+    private long maximumBufferBytes = 256L << 20;
+
+    public void setMaximumBufferBytes( long maximumBufferBytes ) {
+        this.maximumBufferBytes = maximumBufferBytes;
+    }
+
     /**
      * This method does the gaussian filtering of an image. On the edges of
      * the image it does mirror the pixels. It also uses the seperability of
@@ -1240,84 +1281,22 @@ public class ComputeCurvatures implements Runnable
     {
         FloatArray2D output = new FloatArray2D(input.width, input.height);
 
-        float avg;
-        float kernelsumX = 0, kernelsumY = 0, kernelsumZ = 0;
-
-        float pixelWidth = 1, pixelHeight = 1, pixelDepth = 1;
+        float pixelWidth = 1, pixelHeight = 1;
 
         if (calibration != null) {
             pixelWidth = (float)calibration.pixelWidth;
             pixelHeight = (float)calibration.pixelHeight;
-            pixelDepth = (float)calibration.pixelDepth;
         }
 
-        float[] kernelX = createGaussianKernel1D(sigma / pixelWidth, true);
-        float[] kernelY = createGaussianKernel1D(sigma / pixelHeight, true);
-        int filterSizeX = kernelX.length;
-        int filterSizeY = kernelY.length;
-
-        // get kernel sums
-        for (int i = 0; i < kernelX.length; i++)
-            kernelsumX += kernelX[i];
-        for (int i = 0; i < kernelY.length; i++)
-            kernelsumY += kernelY[i];
-
-        double totalPoints = input.width * input.height * 2;
-        long pointsDone = 0;
+        GaussianProgress progress = new GaussianProgress( callback, 2L * input.width * input.height );
 
         // fold in x
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int y = 0; y < input.height; y++)
-                {
-                    avg = 0;
-
-                    if (x -filterSizeX / 2 >= 0 && x + filterSizeX / 2 < input.width)
-                        for (int f = -filterSizeX / 2; f <= filterSizeX / 2; f++)
-                            avg += input.get(x + f, y) * kernelX[f + filterSizeX / 2];
-                    else
-                        for (int f = -filterSizeX / 2; f <= filterSizeX / 2; f++)
-                            avg += input.getMirror(x + f, y) * kernelX[f + filterSizeX / 2];
-
-                    output.set(avg / kernelsumX, x, y);
-
-                }
-            pointsDone += input.height;
-            if(callback != null)
-                callback.proportionDone( pointsDone / totalPoints );
-        }
+        if( ! smoothAlongAxis( input.data, output.data, input.width, input.height, 1, 0, sigma / pixelWidth, progress ) )
+            return null;
 
         // fold in y
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            {
-                float[] temp = new float[input.height];
-
-                for (int y = 0; y < input.height; y++)
-                {
-                    avg = 0;
-
-                    if (y -filterSizeY / 2 >= 0 && y + filterSizeY / 2 < input.height)
-                        for (int f = -filterSizeY / 2; f <= filterSizeY / 2; f++)
-                            avg += output.get(x, y + f) * kernelY[f + filterSizeY / 2];
-                     else
-                        for (int f = -filterSizeY / 2; f <= filterSizeY / 2; f++)
-                            avg += output.getMirror(x, y + f) * kernelY[f + filterSizeY / 2];
-
-                    temp[y] = avg / kernelsumY;
-                }
-
-                for (int y = 0; y < input.height; y++)
-                    output.set(temp[y], x, y);
-
-                pointsDone += input.height;
-                if(callback != null)
-                    callback.proportionDone( pointsDone / totalPoints );
-
-            }
-        }
+        if( ! smoothAlongAxis( output.data, output.data, input.width, input.height, 1, 1, sigma / pixelHeight, progress ) )
+            return null;
 
         if( callback != null )
             callback.proportionDone(1.0);
@@ -1341,9 +1320,6 @@ public class ComputeCurvatures implements Runnable
     {
         FloatArray3D output = new FloatArray3D(input.width, input.height, input.depth);
 
-        float avg;
-        float kernelsumX = 0, kernelsumY = 0, kernelsumZ = 0;
-
         float pixelWidth = 1, pixelHeight = 1, pixelDepth = 1;
 
         if (calibration != null) {
@@ -1352,115 +1328,288 @@ public class ComputeCurvatures implements Runnable
             pixelDepth = (float)calibration.pixelDepth;
         }
 
-        float[] kernelX = createGaussianKernel1D(sigma / pixelWidth, true);
-        float[] kernelY = createGaussianKernel1D(sigma / pixelHeight, true);
-        float[] kernelZ = createGaussianKernel1D(sigma / pixelDepth, true);
-        int filterSizeX = kernelX.length;
-        int filterSizeY = kernelY.length;
-        int filterSizeZ = kernelZ.length;
+        GaussianProgress progress = new GaussianProgress( callback, 3L * input.width * input.height * input.depth );
 
-        // get kernel sums
-        for (int i = 0; i < kernelX.length; i++)
-            kernelsumX += kernelX[i];
-        for (int i = 0; i < kernelY.length; i++)
-            kernelsumY += kernelY[i];
-        for (int i = 0; i < kernelZ.length; i++)
-            kernelsumZ += kernelZ[i];
+        // fold in x
+        if( ! smoothAlongAxis( input.data, output.data, input.width, input.height, input.depth, 0, sigma / pixelWidth, progress ) )
+            return null;
 
-        double totalPoints = input.width * input.height * input.depth * 3;
-        long pointsDone = 0;
+        // fold in y
+        if( ! smoothAlongAxis( output.data, output.data, input.width, input.height, input.depth, 1, sigma / pixelHeight, progress ) )
+            return null;
 
-        // fold in x
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int y = 0; y < input.height; y++)
-                for (int z = 0; z < input.depth; z++)
-                {
-                    avg = 0;
+        // fold in z
+        if( ! smoothAlongAxis( output.data, output.data, input.width, input.height, input.depth, 2, sigma / pixelDepth, progress ) )
+            return null;
 
-                    if (x -filterSizeX / 2 >= 0 && x + filterSizeX / 2 < input.width)
-                        for (int f = -filterSizeX / 2; f <= filterSizeX / 2; f++)
-                            avg += input.get(x + f, y, z) * kernelX[f + filterSizeX / 2];
-                    else
-                        for (int f = -filterSizeX / 2; f <= filterSizeX / 2; f++)
-                            avg += input.getMirror(x + f, y, z) * kernelX[f + filterSizeX / 2];
+        if( callback != null )
+            callback.proportionDone( 1.0 );
 
-                    output.set(avg / kernelsumX, x, y, z);
+        return output;
+    }
 
-                }
-            pointsDone += input.height * input.depth;
-            if(callback != null)
-                callback.proportionDone( pointsDone / totalPoints );
-        }
+    /**
+     * This method does the same gaussian filtering as the FloatArray3D
+     * version, but for a volume kept in a file, which may be larger than
+     * the heap (or than 2^31 voxels).  The volume is smoothed in x and
+     * y a group of slices at a time, then in z a group of rows (through
+     * all the slices) at a time, so only about maximumBufferBytes of it
+     * is held in memory at once.
+     *
+     * @param input The volume to smooth
+     * @param output The volume to write the result to, which may be input
+     * @param sigma Standard Derivation of the gaussian function
+     * @param calibration Calibration data for the image, or null if we assume separation in all three dimensions is 1
+     * @return boolean false if the generation was cancelled
+     */
+    public boolean computeGaussianFastMirror(FloatVolume input, FloatVolume output, float sigma, GaussianGenerationCallback callback, Calibration calibration)
+    {
+        int width = input.width, height = input.height, depth = input.depth;
+        if( output.width != width || output.height != height || output.depth != depth )
+            throw new IllegalArgumentException( "The output volume must be the same size as the input volume" );
 
-        // fold in y
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int z = 0; z < input.depth; z++)
-            {
-                float[] temp = new float[input.height];
+        float pixelWidth = 1, pixelHeight = 1, pixelDepth = 1;
 
-                for (int y = 0; y < input.height; y++)
-                {
-                    avg = 0;
+        if (calibration != null) {
+            pixelWidth = (float)calibration.pixelWidth;
+            pixelHeight = (float)calibration.pixelHeight;
+            pixelDepth = (float)calibration.pixelDepth;
+        }
 
-                    if (y -filterSizeY / 2 >= 0 && y + filterSizeY / 2 < input.height)
-                        for (int f = -filterSizeY / 2; f <= filterSizeY / 2; f++)
-                            avg += output.get(x, y + f, z) * kernelY[f + filterSizeY / 2];
-                    else
-                       for (int f = -filterSizeY / 2; f <= filterSizeY / 2; f++)
-                           avg += output.getMirror(x, y + f, z) * kernelY[f + filterSizeY / 2];
+        GaussianProgress progress = new GaussianProgress( callback, 3L * input.getVoxelCount() );
+
+        // fold in x and y, a group of slices at a time
+        int sliceSize = width * height;
+        int slices = (int)Math.min( depth, Math.max( 1, maximumBufferBytes / (4L * sliceSize) ) );
+        float [] buffer = new float[slices * sliceSize];
+        for( int z0 = 0; z0 < depth; z0 += slices ) {
+            int n = Math.min( slices, depth - z0 );
+            for( int i = 0; i < n; ++i )
+                input.readRows( z0 + i, 0, height, buffer, i * sliceSize );
+            if( ! smoothAlongAxis( buffer, buffer, width, height, n, 0, sigma / pixelWidth, progress ) )
+                return false;
+            if( ! smoothAlongAxis( buffer, buffer, width, height, n, 1, sigma / pixelHeight, progress ) )
+                return false;
+            for( int i = 0; i < n; ++i )
+                output.writeRows( z0 + i, 0, height, buffer, i * sliceSize );
+        }
+
+        // fold in z, a group of rows at a time
+        int rows = (int)Math.min( height, Math.max( 1, maximumBufferBytes / (4L * width * depth) ) );
+        if( rows * width * depth != buffer.length )
+            buffer = new float[rows * width * depth];
+        for( int y0 = 0; y0 < height; y0 += rows ) {
+            int n = Math.min( rows, height - y0 );
+            for( int z = 0; z < depth; ++z )
+                output.readRows( z, y0, n, buffer, z * n * width );
+            if( ! smoothAlongAxis( buffer, buffer, width, n, depth, 2, sigma / pixelDepth, progress ) )
+                return false;
+            for( int z = 0; z < depth; ++z )
+                output.writeRows( z, y0, n, buffer, z * n * width );
+        }
 
-                    temp[y] = avg / kernelsumY;
-                }
+        if( callback != null )
+            callback.proportionDone( 1.0 );
 
-                for (int y = 0; y < input.height; y++)
-                    output.set(temp[y], x, y, z);
-            }
-            pointsDone += input.depth * input.height;
-            if(callback != null)
-                callback.proportionDone( pointsDone / totalPoints );
+        return true;
+    }
 
-        }
+    /* Reports the proportion of the Gaussian that has been
+       calculated to the callback, which may be called from any of
+       the worker threads, but only once each percent and never by
+       two threads at the same time. */
 
-        // fold in z
-        for (int x = 0; x < input.width; x++) {
-            if( cancelGeneration )
-                return null;
-            for (int y = 0; y < input.height; y++)
-            {
-                float[] temp = new float[input.depth];
+    static class GaussianProgress {
 
-                for (int z = 0; z < input.depth; z++)
-                {
-                    avg = 0;
+        GaussianGenerationCallback callback;
+        long total;
+        AtomicLong done = new AtomicLong( 0 );
 
-                    if (z -filterSizeZ / 2 >= 0 && z + filterSizeZ / 2 < input.depth)
-                        for (int f = -filterSizeZ / 2; f <= filterSizeZ / 2; f++)
-                            avg += output.get(x, y, z + f) * kernelZ[f + filterSizeZ / 2];
-                    else
-                       for (int f = -filterSizeZ / 2; f <= filterSizeZ / 2; f++)
-                           avg += output.getMirror(x, y, z + f) * kernelZ[f + filterSizeZ / 2];
+        GaussianProgress( GaussianGenerationCallback callback, long total ) {
+            this.callback = callback;
+            this.total = Math.max( 1, total );
+        }
 
-                    temp[z] = avg / kernelsumZ;
+        void add( long points ) {
+            if( callback == null )
+                return;
+            long after = done.addAndGet( points );
+            long before = after - points;
+            if( (after * 100) / total != (before * 100) / total )
+                synchronized( this ) {
+                    callback.proportionDone( after / (double)total );
                 }
+        }
+    }
 
-                for (int z = 0; z < input.depth; z++)
-                    output.set(temp[z], x, y, z);
+    /* The index that position i (which may be outside 0 ... n - 1)
+       is mirrored to, with the edge pixels not repeated; this is
+       what getMirror( ... ) does in each dimension. */
+
+    static int mirror( int i, int n ) {
+        if( n == 1 )
+            return 0;
+        int period = 2 * (n - 1);
+        i %= period;
+        if( i < 0 )
+            i += period;
+        return i < n ? i : period - i;
+    }
 
+    /* Smooths the width x height x depth image in source along one
+       axis (0 for x, 1 for y, 2 for z) with a Gaussian of the given
+       sigma in pixels, writing the result to destination, which may
+       be the same array as source.
+
+       The image is split up into independent units which are shared
+       out between the threads: rows for the x axis, slices for the
+       y axis and xz-planes for the z axis.  Each unit consists of n
+       positions along the axis, each with m neighbouring values that
+       are contiguous in memory (m is 1 for the x axis and the width
+       otherwise), so the unit is copied into a line buffer (with
+       the mirrored border on either side) and filtered there a
+       whole row at a time.
+
+       Returns false if the generation was cancelled. */
+
+    private boolean smoothAlongAxis( final float [] source,
+                                     final float [] destination,
+                                     int width,
+                                     int height,
+                                     int depth,
+                                     int axis,
+                                     float sigma,
+                                     final GaussianProgress progress ) {
+
+        final int units, n, m, unitStride, stepStride;
+        if( axis == 0 ) {
+            units = height * depth; n = width; m = 1; unitStride = width; stepStride = 1;
+        } else if( axis == 1 ) {
+            units = depth; n = height; m = width; unitStride = width * height; stepStride = width;
+        } else {
+            units = height; n = depth; m = width; unitStride = width; stepStride = width * height;
+        }
+
+        final boolean recursive = recursiveGaussian && sigma >= 1;
+        final float [] kernel = createGaussianKernel1D( sigma, true );
+        final float [] coefficients = recursive ? recursiveGaussianCoefficients( sigma ) : null;
+        /* The recursive filter needs enough of a border that the
+           mirrored image around it has been taken into account
+           (but no more than a few times the image, since the image
+           is smoothed almost flat by then): */
+        final int border = recursive ? Math.min( (int)Math.ceil( 4 * sigma ), 3 * n ) : kernel.length / 2;
+
+        final AtomicInteger nextUnit = new AtomicInteger( 0 );
+        Runnable smoothUnits = new Runnable() {
+            public void run() {
+                float [] line = new float[ (n + 2 * border) * m ];
+                float [] result = recursive ? null : new float[ n * m ];
+                for( int u = nextUnit.getAndIncrement(); u < units; u = nextUnit.getAndIncrement() ) {
+                    if( cancelGeneration )
+                        return;
+                    int base = u * unitStride;
+                    for( int i = 0; i < n + 2 * border; ++i )
+                        System.arraycopy( source, base + mirror( i - border, n ) * stepStride, line, i * m, m );
+                    if( recursive ) {
+                        recursiveGaussian( line, n + 2 * border, m, coefficients );
+                        for( int i = 0; i < n; ++i )
+                            System.arraycopy( line, (i + border) * m, destination, base + i * stepStride, m );
+                    } else {
+                        convolveLine( line, result, n, m, kernel );
+                        for( int i = 0; i < n; ++i )
+                            System.arraycopy( result, i * m, destination, base + i * stepStride, m );
+                    }
+                    progress.add( (long)n * m );
+                }
             }
-            pointsDone += input.height * input.depth;
-            if(callback != null)
-                callback.proportionDone( pointsDone / totalPoints );
+        };
+
+        Threads.run( smoothUnits, Math.min( numberOfThreads, units ) );
+
+        return ! cancelGeneration;
+    }
 
+    /* Convolves the n rows of m values in line (which has the
+       border of kernel.length / 2 rows on either side) with kernel,
+       writing the n rows of the result to result (starting at
+       offset, if given). */
+
+    static void convolveLine( float [] line, float [] result, int n, int m, float [] kernel ) {
+        convolveLine( line, result, n, m, kernel, 0 );
+    }
+
+    static void convolveLine( float [] line, float [] result, int n, int m, float [] kernel, int offset ) {
+        if( m == 1 ) {
+            for( int i = 0; i < n; ++i ) {
+                float sum = 0;
+                for( int f = 0; f < kernel.length; ++f )
+                    sum += line[i + f] * kernel[f];
+                result[offset + i] = sum;
+            }
+            return;
+        }
+        for( int i = 0; i < n; ++i ) {
+            int out = offset + i * m;
+            float k = kernel[0];
+            int in = i * m;
+            for( int j = 0; j < m; ++j )
+                result[out + j] = k * line[in + j];
+            for( int f = 1; f < kernel.length; ++f ) {
+                k = kernel[f];
+                in = (i + f) * m;
+                for( int j = 0; j < m; ++j )
+                    result[out + j] += k * line[in + j];
+            }
         }
+    }
 
-        if( callback != null )
-            callback.proportionDone( 1.0 );
+    /* The coefficients { B, b1 / b0, b2 / b0, b3 / b0 } of Young and
+       van Vliet's recursive Gaussian filter for sigma >= 0.5 */
 
-        return output;
+    static float [] recursiveGaussianCoefficients( double sigma ) {
+        double q;
+        if( sigma >= 2.5 )
+            q = 0.98711 * sigma - 0.96330;
+        else
+            q = 3.97156 - 4.14554 * Math.sqrt( 1 - 0.26891 * sigma );
+        double q2 = q * q, q3 = q2 * q;
+        double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+        double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+        double b2 = -( 1.4281 * q2 + 1.26661 * q3 );
+        double b3 = 0.422205 * q3;
+        return new float[] {
+            (float)( 1 - (b1 + b2 + b3) / b0 ),
+            (float)( b1 / b0 ),
+            (float)( b2 / b0 ),
+            (float)( b3 / b0 )
+        };
+    }
+
+    /* Applies the recursive Gaussian in place to the n rows of m
+       values in line: a causal pass forwards and then an
+       anti-causal pass backwards, each starting as if the first row
+       were repeated indefinitely (which leaves that row unchanged).
+       Each step combines whole rows so that memory is accessed
+       contiguously. */
+
+    static void recursiveGaussian( float [] line, int n, int m, float [] c ) {
+        float B = c[0], b1 = c[1], b2 = c[2], b3 = c[3];
+        for( int i = 1; i < n; ++i ) {
+            int r0 = i * m;
+            int r1 = (i - 1) * m;
+            int r2 = Math.max( i - 2, 0 ) * m;
+            int r3 = Math.max( i - 3, 0 ) * m;
+            for( int j = 0; j < m; ++j )
+                line[r0 + j] = B * line[r0 + j] + b1 * line[r1 + j] + b2 * line[r2 + j] + b3 * line[r3 + j];
+        }
+        for( int i = n - 2; i >= 0; --i ) {
+            int r0 = i * m;
+            int r1 = (i + 1) * m;
+            int r2 = Math.min( i + 2, n - 1 ) * m;
+            int r3 = Math.min( i + 3, n - 1 ) * m;
+            for( int j = 0; j < m; ++j )
+                line[r0 + j] = B * line[r0 + j] + b1 * line[r1 + j] + b2 * line[r2 + j] + b3 * line[r3 + j];
+        }
     }
 
     /**
@@ -1531,6 +1680,60 @@ public class ComputeCurvatures implements Runnable
         return pixels;
     }
 
+    /**
+     * This method converts an ImageJ image stack to a FloatVolume in a
+     * temporary file, one slice at a time, so the stack can be a
+     * virtual stack which is larger than the heap.
+     *
+     * @param stack ImageJ image stack
+     * @return FloatVolume The image, or null if the stack is empty or RGB
+     */
+    public FloatVolume StackToFloatVolume(ImageStack stack) throws IOException
+    {
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        int nstacks = stack.getSize();
+
+        if (nstacks == 0)
+        {
+            IJ.error("Image Stack is empty.");
+            return null;
+        }
+
+        if (stack.getPixels(1) instanceof int[])
+        {
+            IJ.error("RGB images not supported at the moment.");
+            return null;
+        }
+
+        FloatVolume volume = new FloatVolume(width, height, nstacks);
+        float[] slice = new float[width * height];
+
+        for (int countSlice = 0; countSlice < nstacks; countSlice++)
+        {
+            Object pixelTmp = stack.getPixels(countSlice + 1);
+
+            if (pixelTmp instanceof byte[])
+            {
+                byte[] bytes = (byte[])pixelTmp;
+                for (int i = 0; i < slice.length; i++)
+                    slice[i] = bytes[i] & 0xff;
+            }
+            else if (pixelTmp instanceof short[])
+            {
+                short[] shorts = (short[])pixelTmp;
+                for (int i = 0; i < slice.length; i++)
+                    slice[i] = shorts[i] & 0xffff;
+            }
+            else // instance of float[]
+                System.arraycopy(pixelTmp, 0, slice, 0, slice.length);
+
+            volume.writeSlice(countSlice, slice);
+        }
+
+        return volume;
+    }
+
     /**
      * This method convertes an ImageJ ImageProcessor to my FloatArray2D,
      * which is a one dimensional structure with methods for 2D access
@@ -0,0 +1,169 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* A width x height x depth volume of floats that is kept in a file
+   rather than on the Java heap.  It can therefore have more than the
+   2^31 elements a float[] can hold, and it can be larger than the
+   heap.  The file is memory-mapped in slabs of whole slices, each
+   at most SLAB_BYTES long, as the slabs are first used; only a single
+   slice has to fit in an int, i.e. width * height < 2^29.
+
+   The floats are stored slice after slice (and row after row within
+   each slice) in the platform's byte order.  All the methods can be
+   called from several threads at once, although writes to the same
+   voxels from different threads aren't synchronized, of course.
+
+   The mapped memory is released by the garbage collector rather than
+   by close(), so a temporary file may not be deleted until the JVM
+   exits on some platforms. */
+
+public class FloatVolume {
+
+	static final long SLAB_BYTES = 1L << 30;
+
+	public final int width, height, depth;
+
+	final int sliceSize;
+	final int slicesPerSlab;
+	final AtomicReferenceArray< FloatBuffer > slabs;
+
+	File file;
+	boolean temporary;
+	RandomAccessFile randomAccessFile;
+	FileChannel channel;
+
+	/* A volume in a temporary file, initially all zeros: */
+
+	public FloatVolume( int width, int height, int depth ) throws IOException {
+		this( File.createTempFile( "volume", ".raw" ), width, height, depth );
+		temporary = true;
+		file.deleteOnExit();
+	}
+
+	/* A volume in file, which is extended if it is too short for the
+	   volume (but not truncated if it is longer): */
+
+	public FloatVolume( File file, int width, int height, int depth ) throws IOException {
+		if( width < 1 || height < 1 || depth < 1 )
+			throw new IllegalArgumentException( "A volume must have at least one voxel in each dimension" );
+		if( 4L * width * height > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Each slice must be less than 2GB, but "+width+"x"+height+" floats isn't" );
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.file = file;
+		sliceSize = width * height;
+		slicesPerSlab = (int)Math.min( depth, Math.max( 1, SLAB_BYTES / (4L * sliceSize) ) );
+		slabs = new AtomicReferenceArray< FloatBuffer >( (depth + slicesPerSlab - 1) / slicesPerSlab );
+
+		randomAccessFile = new RandomAccessFile( file, "rw" );
+		long bytes = 4L * sliceSize * depth;
+		if( randomAccessFile.length() < bytes )
+			randomAccessFile.setLength( bytes );
+		channel = randomAccessFile.getChannel();
+	}
+
+	public long getVoxelCount( ) {
+		return (long)sliceSize * depth;
+	}
+
+	public File getFile( ) {
+		return file;
+	}
+
+	/* The slab containing slice z, which is mapped if it hasn't
+	   been used before: */
+
+	FloatBuffer getSlab( int z ) {
+		int s = z / slicesPerSlab;
+		FloatBuffer slab = slabs.get( s );
+		if( slab != null )
+			return slab;
+		synchronized( this ) {
+			if( slabs.get( s ) == null ) {
+				if( channel == null )
+					throw new IllegalStateException( "The volume has been closed" );
+				int slices = Math.min( slicesPerSlab, depth - s * slicesPerSlab );
+				try {
+					MappedByteBuffer mapped = channel.map( FileChannel.MapMode.READ_WRITE,
+									       4L * sliceSize * s * slicesPerSlab,
+									       4L * sliceSize * slices );
+					mapped.order( ByteOrder.nativeOrder() );
+					slabs.set( s, mapped.asFloatBuffer() );
+				} catch( IOException e ) {
+					throw new RuntimeException( "Couldn't map slices "+(s * slicesPerSlab)+" to "+(s * slicesPerSlab + slices - 1)+" of "+file, e );
+				}
+			}
+			return slabs.get( s );
+		}
+	}
+
+	/* A buffer (of sliceSize floats, starting at position 0) that
+	   shares its contents with the slice; each call returns a new
+	   buffer, so its position can be changed freely by the caller: */
+
+	public FloatBuffer getSlice( int z ) {
+		FloatBuffer slab = getSlab( z ).duplicate();
+		int start = (z % slicesPerSlab) * sliceSize;
+		slab.limit( start + sliceSize );
+		slab.position( start );
+		return slab.slice();
+	}
+
+	public float get( int x, int y, int z ) {
+		return getSlab( z ).get( (z % slicesPerSlab) * sliceSize + y * width + x );
+	}
+
+	public void set( int x, int y, int z, float value ) {
+		getSlab( z ).put( (z % slicesPerSlab) * sliceSize + y * width + x, value );
+	}
+
+	/* Copies rows y0 ... y0 + rows - 1 of slice z to or from
+	   pixels, starting at offset: */
+
+	public void readRows( int z, int y0, int rows, float [] pixels, int offset ) {
+		FloatBuffer slice = getSlice( z );
+		slice.position( y0 * width );
+		slice.get( pixels, offset, rows * width );
+	}
+
+	public void writeRows( int z, int y0, int rows, float [] pixels, int offset ) {
+		FloatBuffer slice = getSlice( z );
+		slice.position( y0 * width );
+		slice.put( pixels, offset, rows * width );
+	}
+
+	public void readSlice( int z, float [] pixels ) {
+		readRows( z, 0, height, pixels, 0 );
+	}
+
+	public void writeSlice( int z, float [] pixels ) {
+		writeRows( z, 0, height, pixels, 0 );
+	}
+
+	/* Unmaps the volume (as far as Java allows) and closes the file,
+	   which is deleted if it was a temporary one: */
+
+	public synchronized void close( ) throws IOException {
+		if( channel == null )
+			return;
+		for( int s = 0; s < slabs.length(); ++s )
+			slabs.set( s, null );
+		channel.close();
+		randomAccessFile.close();
+		channel = null;
+		randomAccessFile = null;
+		if( temporary )
+			file.delete();
+	}
+}
@@ -9,6 +9,46 @@ import ij.ImageStack;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 import ij.process.FloatProcessor;
+import ij.process.ByteProcessor;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Threads;
+
+/* generateImage() calculates the measure for every voxel of the
+   image in a single pass through it.  Each thread takes a contiguous
+   range of slices and goes through it slice by slice: each slice is
+   smoothed in x and y as it is read, and as soon as there are enough
+   of those for the Gaussian in z, the next smoothed slice is made,
+   and the slice below it measured, by taking the second differences
+   at each voxel and finding the eigenvalues of the resulting Hessian
+   matrix in closed form.  So each slice is only smoothed once (apart
+   from the border in z at either end of a thread's range), and only
+   the few slices the kernel in z and the differences need are kept.
+   This gives the same results as the Gaussian from ComputeCurvatures
+   followed by hessianEigenvaluesAtPoint3D( ... ) at each voxel, but
+   the memory used apart from the result doesn't depend on the depth
+   of the image, and nothing is allocated per voxel.
+
+   generateImages() and generateMultiScale() do the same for several
+   values of sigma in one pass.  Each slice is smoothed with the
+   smallest sigma first, and then the result of each sigma is
+   smoothed further to get the next one, by the Gaussian that makes
+   up the difference in variance, rather than starting again from
+   the original image.  Each sigma has its own slices in the
+   pipeline.
+
+   The slices of the image are only fetched as they are needed, so
+   the image can be a virtual stack, or a FloatVolume, and the result
+   can be written to a FloatVolume rather than kept in memory; then
+   images that don't fit in memory (or in an array) can be
+   processed.
+
+   measureFromEvalues2D / measureFromEvalues3D are called from
+   several threads at the same time. */
 
 public abstract class HessianEvalueProcessor implements GaussianGenerationCallback {
 
@@ -27,9 +67,261 @@ public abstract class HessianEvalueProcessor implements GaussianGenerationCallba
 		sigma = newSigma;
 	}
 
+	protected int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	public void setNumberOfThreads( int numberOfThreads ) {
+		this.numberOfThreads = Math.max( 1, numberOfThreads );
+	}
+
+	/* The maximum memory in bytes for the buffers of all the
+	   threads together.  Each thread needs, for each sigma,
+	   4 + 2 * (the border of the kernel in z) slices, whatever the
+	   depth of the image; fewer threads are used if that many don't
+	   fit, and if even one doesn't, generating the image throws an
+	   IllegalArgumentException.  By default there is no limit. */
+
+	protected long maximumBufferBytes = Long.MAX_VALUE;
+
+	public void setMaximumBufferBytes( long maximumBufferBytes ) {
+		this.maximumBufferBytes = maximumBufferBytes;
+	}
+
+	protected double voxelsPerSecond;
+
+	/* The throughput of the last call to generateImage(),
+	   generateImages() or generateMultiScale(), counting each voxel
+	   once per sigma: */
+
+	public double getVoxelsPerSecond( ) {
+		return voxelsPerSecond;
+	}
+
 	public ImagePlus generateImage(ImagePlus original) {
+		ImagePlus [] results = generateImages( original, new double[] { sigma } );
+		return results == null ? null : results[0];
+	}
+
+	/* Returns one image of the measure for each of the values of
+	   sigma, or null if the image type isn't supported: */
+
+	public ImagePlus [] generateImages( ImagePlus original, double [] sigmas ) {
+
+		int width = original.getWidth();
+		int height = original.getHeight();
+		int depth = original.getStackSize();
+
+		final float [][][] resultSlices = new float[sigmas.length][depth][];
+
+		float [][] minMax = run( original, sigmas, new ScaleSink() {
+			public void add( int scale, int z, float [] values ) {
+				resultSlices[scale][z] = values.clone();
+			}
+		} );
+		if( minMax == null )
+			return null;
+
+		ImagePlus [] results = new ImagePlus[sigmas.length];
+		for( int s = 0; s < sigmas.length; ++s ) {
+			ImageStack stack = new ImageStack(width, height);
+			for( int z = 0; z < depth; ++z ) {
+				FloatProcessor fp = new FloatProcessor(width, height);
+				fp.setPixels(resultSlices[s][z]);
+				stack.addSlice(null, fp);
+			}
+
+			ImagePlus result=new ImagePlus("processed " + original.getTitle(), stack);
+			result.setCalibration(original.getCalibration());
+
+
+			result.getProcessor().setMinAndMax(minMax[s][0],minMax[s][1]);
+			result.updateAndDraw();
+			results[s] = result;
+		}
+		return results;
+	}
+
+	/* The maximum of the measure over several values of sigma at
+	   each voxel, and the index (into sigmas) of the sigma which gave
+	   that maximum.  (Where the measure is the same for several
+	   sigmas, such as the zeros at the edges, it's the index of the
+	   smallest of them.)  response has one array per slice, so it can
+	   be used directly as the tubeness array in TracerThread. */
+
+	public static class MultiScaleResult {
+
+		public double [] sigmas;
+		public int width, height, depth;
+		public float [][] response;
+		public byte [][] scaleIndices;
+		public float minimum, maximum;
+		Calibration calibration;
+
+		public ImagePlus getResponseImage( String title ) {
+			ImageStack stack = new ImageStack( width, height );
+			for( int z = 0; z < depth; ++z )
+				stack.addSlice( null, new FloatProcessor( width, height, response[z], null ) );
+			ImagePlus result = new ImagePlus( title, stack );
+			result.setCalibration( calibration );
+			result.getProcessor().setMinAndMax( minimum, maximum );
+			return result;
+		}
+
+		public ImagePlus getScaleImage( String title ) {
+			ImageStack stack = new ImageStack( width, height );
+			for( int z = 0; z < depth; ++z )
+				stack.addSlice( null, new ByteProcessor( width, height, scaleIndices[z], null ) );
+			ImagePlus result = new ImagePlus( title, stack );
+			result.setCalibration( calibration );
+			result.getProcessor().setMinAndMax( 0, sigmas.length - 1 );
+			return result;
+		}
+	}
+
+	/* Only the running maximum and its index are kept for each
+	   voxel, rather than an image for each sigma.  There can be at
+	   most 256 values of sigma.  Returns null if the image type isn't
+	   supported. */
+
+	public MultiScaleResult generateMultiScale( ImagePlus original, double [] sigmas ) {
+
+		if( sigmas.length > 256 )
+			throw new IllegalArgumentException( "At most 256 values of sigma can be combined" );
+
+		final MultiScaleResult result = new MultiScaleResult();
+		result.sigmas = sigmas.clone();
+		result.width = original.getWidth();
+		result.height = original.getHeight();
+		result.depth = original.getStackSize();
+		result.response = new float[result.depth][];
+		result.scaleIndices = new byte[result.depth][];
+		result.calibration = original.getCalibration();
+
+		/* All the sigmas for a slice are passed to the sink by
+		   the same thread, starting with the smallest: */
+		float [][] minMax = run( original, sigmas, new ScaleSink() {
+			public void add( int scale, int z, float [] values ) {
+				float [] maximum = result.response[z];
+				if( maximum == null ) {
+					result.response[z] = values.clone();
+					result.scaleIndices[z] = new byte[values.length];
+					if( scale != 0 )
+						Arrays.fill( result.scaleIndices[z], (byte)scale );
+					return;
+				}
+				byte [] indices = result.scaleIndices[z];
+				for( int i = 0; i < values.length; ++i )
+					if( values[i] > maximum[i] ) {
+						maximum[i] = values[i];
+						indices[i] = (byte)scale;
+					}
+			}
+		} );
+		if( minMax == null )
+			return null;
+
+		result.minimum = Float.MAX_VALUE;
+		result.maximum = Float.MIN_VALUE;
+		for( int s = 0; s < sigmas.length; ++s ) {
+			result.minimum = Math.min( result.minimum, minMax[s][0] );
+			result.maximum = Math.max( result.maximum, minMax[s][1] );
+		}
+		return result;
+	}
+
+	/* The same as generateImage(), but the image is read from input
+	   a slice at a time and the result is written to output (which
+	   must be the same size, but not the same volume) as it is
+	   calculated, so neither has to fit in memory.  Returns the
+	   minimum and maximum of the result. */
+
+	public float [] generateImage( final FloatVolume input, Calibration calibration, final FloatVolume output ) {
+		checkOutput( input.width, input.height, input.depth, output );
+		float [][] minMax = run( new SliceSource() {
+			public Object getPixels( int z ) {
+				return input.getSlice( z );
+			}
+		}, input.width, input.height, input.depth, calibration, new double[] { sigma }, new ScaleSink() {
+			public void add( int scale, int z, float [] values ) {
+				output.writeSlice( z, values );
+			}
+		} );
+		return minMax == null ? null : minMax[0];
+	}
+
+	/* The same for an image (which can be a virtual stack) that
+	   only the result is too large for; returns null if the image
+	   type isn't supported. */
+
+	public float [] generateImage( ImagePlus original, final FloatVolume output ) {
+		checkOutput( original.getWidth(), original.getHeight(), original.getStackSize(), output );
+		float [][] minMax = run( original, new double[] { sigma }, new ScaleSink() {
+			public void add( int scale, int z, float [] values ) {
+				output.writeSlice( z, values );
+			}
+		} );
+		return minMax == null ? null : minMax[0];
+	}
+
+	static void checkOutput( int width, int height, int depth, FloatVolume output ) {
+		if( output.width != width || output.height != height || output.depth != depth )
+			throw new IllegalArgumentException( "The output volume must be the same size as the image" );
+	}
+
+	/* The pixels of each slice of the image (a byte[], short[],
+	   float[] or FloatBuffer), which may be asked for several times
+	   and from several threads: */
+
+	interface SliceSource {
+		Object getPixels( int z );
+	}
+
+	/* Receives each slice of the measure for each sigma; values is
+	   only valid for the duration of the call.  This is called from
+	   several threads, but only ever by one for a particular slice. */
+
+	interface ScaleSink {
+		void add( int scale, int z, float [] values );
+	}
+
+	/* One step of the Gaussian pyramid: the kernels that smooth the
+	   image from the previous step to this step's sigma, and the
+	   index of that sigma in the array passed in. */
+
+	static class Stage {
+		int scale;
+		double sigma;
+		float [] kernelX, kernelY, kernelZ;
+		int borderZ;
+		// The border in z still needed before this step:
+		int halo;
+	}
+
+	/* Runs the pipeline, passing each slice for each sigma to sink.
+	   Returns the minimum and maximum of the measure (not counting
+	   the edges) for each sigma, or null if the image type isn't
+	   supported. */
 
-		Calibration calibration=original.getCalibration();
+	float [][] run( ImagePlus original, double [] sigmas, final ScaleSink sink ) {
+
+		final ImageStack originalStack = original.getStack();
+		if( originalStack.getPixels( 1 ) instanceof int [] ) {
+			IJ.error("RGB images not supported at the moment.");
+			return null;
+		}
+		// Slices of virtual stacks are read from disk when asked for:
+		SliceSource source = new SliceSource() {
+			public Object getPixels( int z ) {
+				synchronized( originalStack ) {
+					return originalStack.getPixels( z + 1 );
+				}
+			}
+		};
+		return run( source, original.getWidth(), original.getHeight(), original.getStackSize(),
+			    original.getCalibration(), sigmas, sink );
+	}
+
+	float [][] run( final SliceSource slices, final int width, final int height, final int depth,
+			Calibration calibration, double [] sigmas, final ScaleSink sink ) {
 
 		float sepX = 1, sepY = 1, sepZ = 1;
 		if( useCalibration && (calibration!=null) ) {
@@ -41,102 +333,447 @@ public abstract class HessianEvalueProcessor implements GaussianGenerationCallba
 		double minimumSeparation = Math.min(sepX,
 						    Math.min(sepY,sepX));
 
-		ComputeCurvatures c = new ComputeCurvatures(original, sigma, this, useCalibration);
-		IJ.showStatus("Convolving with Gaussian \u03C3="+sigma+" (min. pixel separation: "+minimumSeparation+")...");
-		c.run();
-
-		int width = original.getWidth();
-		int height = original.getHeight();
-		int depth = original.getStackSize();
-
-		ImageStack stack = new ImageStack(width, height);
+		// The steps of the pyramid, in increasing order of sigma:
+		Integer [] order = new Integer[sigmas.length];
+		for( int s = 0; s < sigmas.length; ++s )
+			order[s] = s;
+		final double [] sortBy = sigmas;
+		Arrays.sort( order, new Comparator< Integer >() {
+			public int compare( Integer a, Integer b ) {
+				return Double.compare( sortBy[a], sortBy[b] );
+			}
+		} );
+		final Stage [] stages = new Stage[sigmas.length];
+		double [] smoothedVariance = new double[3];
+		for( int k = 0; k < stages.length; ++k ) {
+			Stage stage = stages[k] = new Stage();
+			stage.scale = order[k];
+			stage.sigma = sigmas[stage.scale];
+			stage.kernelX = incrementalKernel( smoothedVariance, 0, (float)stage.sigma / sepX );
+			stage.kernelY = incrementalKernel( smoothedVariance, 1, (float)stage.sigma / sepY );
+			stage.kernelZ = incrementalKernel( smoothedVariance, 2, (float)stage.sigma / sepZ );
+			stage.borderZ = depth == 1 ? 0 : stage.kernelZ.length / 2;
+		}
+		int halo = 0;
+		for( int k = stages.length - 1; k >= 0; --k ) {
+			halo += stages[k].borderZ;
+			stages[k].halo = halo;
+		}
 
-		float[] evalues = new float[3];
+		/* Each thread takes a contiguous range of slices, so that
+		   only the border in z at either end of the range is
+		   smoothed by two threads.  A range of fewer than halo + 1
+		   slices would mean more of that than useful work: */
+		int threads = Math.min( numberOfThreads, Math.max( 1, depth / (halo + 1) ) );
+		long threadBytes = Buffers.bytesNeeded( width, height, stages );
+		if( threadBytes > maximumBufferBytes )
+			throw new IllegalArgumentException( "Calculating the Hessian eigenvalues of "+width+"x"+height+
+							    " slices needs "+threadBytes+" bytes of buffers, but at most "+
+							    maximumBufferBytes+" are allowed" );
+		threads = (int)Math.min( threads, maximumBufferBytes / threadBytes );
+		final int finalThreads = threads;
+
+		final float [][] minMax = new float[sigmas.length][];
+		for( int s = 0; s < sigmas.length; ++s )
+			minMax[s] = new float[] { Float.MAX_VALUE, Float.MIN_VALUE };
+		final AtomicInteger nextRange = new AtomicInteger( 0 );
+		final AtomicInteger slicesDone = new AtomicInteger( 0 );
+
+		if( sigmas.length == 1 )
+			IJ.showStatus("Calculating Hessian eigenvalues with Gaussian \u03C3="+sigmas[0]+" (min. pixel separation: "+minimumSeparation+")...");
+		else
+			IJ.showStatus("Calculating Hessian eigenvalues for "+sigmas.length+" values of \u03C3 (min. pixel separation: "+minimumSeparation+")...");
+		long startTime = System.currentTimeMillis();
+
+		final Runnable processRanges = new Runnable() {
+			public void run() {
+				Buffers buffers = new Buffers( width, height, stages );
+				float [][] localMinMax = new float[stages.length][];
+				for( int s = 0; s < stages.length; ++s )
+					localMinMax[s] = new float[] { Float.MAX_VALUE, Float.MIN_VALUE };
+				int r = nextRange.getAndIncrement();
+				int z0 = (int)((long)depth * r / finalThreads);
+				int z1 = (int)((long)depth * (r + 1) / finalThreads);
+				processRange( slices, width, height, depth, z0, z1, stages, buffers, sink, localMinMax, slicesDone );
+				synchronized( minMax ) {
+					for( int s = 0; s < stages.length; ++s ) {
+						minMax[s][0] = Math.min( minMax[s][0], localMinMax[s][0] );
+						minMax[s][1] = Math.max( minMax[s][1], localMinMax[s][1] );
+					}
+				}
+			}
+		};
 
-		IJ.showStatus("Calculating Hessian eigenvalues at each point...");
+		Threads.run( processRanges, threads );
 
-		float minResult = Float.MAX_VALUE;
-		float maxResult = Float.MIN_VALUE;
+		long elapsed = Math.max( 1, System.currentTimeMillis() - startTime );
+		voxelsPerSecond = (1000.0 * width * height * depth * sigmas.length) / elapsed;
 
-		if( depth == 1 ) {
+		IJ.showProgress(1.0);
+		IJ.showStatus("Calculated Hessian eigenvalues at "+(long)voxelsPerSecond+" voxels/second");
 
-			float[] slice = new float[width * height];
+		return minMax;
+	}
 
-			for (int y = 1; y < height - 1; ++y) {
-				for (int x = 1; x < width - 1; ++x) {
+	/* The kernel which smooths an image that has already been
+	   smoothed along one axis with kernels of total variance
+	   smoothedVariance[axis] to one as if smoothed with the kernel
+	   for sigma (in pixels).  The sampled kernels have noticeably
+	   less variance than sigma^2 for small sigma, so the variances
+	   of the actual kernels are matched rather than just using the
+	   difference of the squared sigmas.  smoothedVariance[axis] is
+	   updated. */
+
+	static float [] incrementalKernel( double [] smoothedVariance, int axis, float sigma ) {
+		float [] kernel = ComputeCurvatures.createGaussianKernel1D( sigma, true );
+		double needed = kernelVariance( kernel ) - smoothedVariance[axis];
+		if( smoothedVariance[axis] == 0 )
+			; // Smoothing the original, so use the direct kernel
+		else if( needed <= 1e-6 )
+			kernel = ComputeCurvatures.createGaussianKernel1D( 0, true );
+		else {
+			// The variance of the kernel increases with its sigma:
+			double low = 0, high = Math.sqrt( needed ) + 1;
+			for( int i = 0; i < 40; ++i ) {
+				double middle = (low + high) / 2;
+				if( kernelVariance( ComputeCurvatures.createGaussianKernel1D( (float)middle, true ) ) < needed )
+					low = middle;
+				else
+					high = middle;
+			}
+			kernel = ComputeCurvatures.createGaussianKernel1D( (float)((low + high) / 2), true );
+		}
+		smoothedVariance[axis] += kernelVariance( kernel );
+		return kernel;
+	}
 
-					boolean real = c.hessianEigenvaluesAtPoint2D(x, y,
-										     true, // order absolute
-										     evalues,
-										     normalize,
-										     false,
-										     sepX,
-										     sepY);
-					int index = y * width + x;
-					float value = 0;
-					if( real )
-						value = measureFromEvalues2D(evalues);
-					slice[index] = value;
-					if( value < minResult )
-						minResult = value;
-					if( value > maxResult )
-						maxResult = value;
+	static double kernelVariance( float [] kernel ) {
+		int middle = kernel.length / 2;
+		double variance = 0;
+		for( int i = 0; i < kernel.length; ++i )
+			variance += kernel[i] * (double)(i - middle) * (i - middle);
+		return variance;
+	}
 
-				}
-				IJ.showProgress(1 / (double) height);
+	/* The buffers each thread uses for its range of slices.  For
+	   each step of the pyramid there is a ring of the 2 * borderZ + 1
+	   most recent slices smoothed in x and y, which is all that the
+	   kernel in z needs, and a ring of the 3 most recent slices
+	   smoothed in x, y and z, which is all that the second
+	   differences need.  Neither depends on the number of slices. */
+
+	static class Buffers {
+		float [] row, rowResult;	// one row with its border in x
+		float [] plane;			// one slice with its border in y
+		float [][][] smoothedXY;	// per step, slices smoothed in x and y
+		float [][][] smoothed;		// per step, slices smoothed in x, y and z
+		float [] response;		// one slice of the measure
+		float [] evalues = new float[3];
+
+		Buffers( int width, int height, Stage [] stages ) {
+			int borderX = 0, borderY = 0;
+			for( Stage stage : stages ) {
+				borderX = Math.max( borderX, stage.kernelX.length / 2 );
+				borderY = Math.max( borderY, stage.kernelY.length / 2 );
+			}
+			row = new float[width + 2 * borderX];
+			rowResult = new float[width];
+			plane = new float[(height + 2 * borderY) * width];
+			smoothedXY = new float[stages.length][][];
+			smoothed = new float[stages.length][][];
+			for( int k = 0; k < stages.length; ++k ) {
+				smoothedXY[k] = new float[2 * stages[k].borderZ + 1][width * height];
+				smoothed[k] = new float[3][width * height];
 			}
+			response = new float[width * height];
+		}
 
-			FloatProcessor fp = new FloatProcessor(width, height);
-			fp.setPixels(slice);
-			stack.addSlice(null, fp);
+		static long bytesNeeded( int width, int height, Stage [] stages ) {
+			int borderX = 0, borderY = 0;
+			long slices = 1;
+			for( Stage stage : stages ) {
+				borderX = Math.max( borderX, stage.kernelX.length / 2 );
+				borderY = Math.max( borderY, stage.kernelY.length / 2 );
+				slices += 2 * stage.borderZ + 1 + 3;
+			}
+			return 4 * (slices * width * height + (height + 2 * borderY) * (long)width + 2 * width + 2 * borderX);
+		}
+	}
 
-		} else {
+	static int slot( int z, int n ) {
+		int i = z % n;
+		return i < 0 ? i + n : i;
+	}
 
-			for (int z = 0; z < depth; ++z) {
-
-				float[] slice = new float[width * height];
-
-				if ((z >= 1) && (z < depth - 1)) {
-					for (int y = 1; y < height - 1; ++y) {
-						for (int x = 1; x < width - 1; ++x) {
-
-							boolean real = c.hessianEigenvaluesAtPoint3D(x, y, z,
-												     true, // order absolute
-												     evalues,
-												     normalize,
-												     false,
-												     sepX,
-												     sepY,
-												     sepZ);
-							int index = y * width + x;
-							float value = 0;
-							if( real )
-								value = measureFromEvalues3D(evalues);
-							slice[index] = value;
-							if( value < minResult )
-								minResult = value;
-							if( value > maxResult )
-								maxResult = value;
-						}
+	/* Calculates the result slices z0 ... z1 - 1 for each sigma,
+	   reading each slice that they need once and passing it down
+	   the pyramid: each step smooths the slices from the step before
+	   in x and y as they arrive, and once it has enough of them,
+	   smooths in z to get its next slice, whose neighbour below can
+	   then be measured.  As before, the voxels at the edge of the
+	   image are left as zero. */
+
+	void processRange( SliceSource slices, int width, int height, int depth, int z0, int z1,
+			   Stage [] stages, Buffers b, ScaleSink sink, float [][] minMax, AtomicInteger slicesDone ) {
+
+		if( z0 >= z1 )
+			return;
+		int wh = width * height;
+
+		// The smoothed slices needed, clamped to the image:
+		int g0 = Math.max( 0, z0 - 1 );
+		int g1 = Math.min( depth - 1, z1 );
+
+		// The slices at the edges of a 3D image are just zero:
+		Arrays.fill( b.response, 0 );
+		if( depth > 1 && z0 == 0 )
+			addEdge( stages, 0, depth, b, sink, slicesDone );
+
+		/* Each step needs its own border in z on either side of
+		   the slices the next step needs; the image is mirrored
+		   beyond its edges, which commutes with the smoothing. */
+		for( int i = g0 - stages[0].halo; i <= g1 + stages[0].halo; ++i ) {
+			Stage first = stages[0];
+			smoothSlice( slices.getPixels( ComputeCurvatures.mirror( i, depth ) ), 0, width, height, first.kernelX, first.kernelY, b,
+				     b.smoothedXY[0][slot( i, b.smoothedXY[0].length )] );
+
+			// The newest slice smoothed in x and y for step k:
+			int newest = i;
+			for( int k = 0; k < stages.length; ++k ) {
+				Stage stage = stages[k];
+				float [][] ring = b.smoothedXY[k];
+				// The first slice this step smooths in x and y:
+				int from = g0 - stage.halo;
+				if( newest - from < 2 * stage.borderZ )
+					break;
+				int centre = newest - stage.borderZ;
+				float [] g = b.smoothed[k][slot( centre, 3 )];
+				if( stage.borderZ == 0 )
+					System.arraycopy( ring[slot( centre, ring.length )], 0, g, 0, wh );
+				else
+					convolveZ( ring, centre - stage.borderZ, stage.kernelZ, g );
+
+				boolean measured = false;
+				if( depth == 1 ) {
+					measureSlice2D( g, width, height, stage.sigma, b, minMax[stage.scale] );
+					sink.add( stage.scale, 0, b.response );
+					measured = true;
+				} else {
+					int z = centre - 1;
+					if( z >= Math.max( 1, z0 ) && z < Math.min( depth - 1, z1 ) ) {
+						float [][] three = b.smoothed[k];
+						measureSlice3D( three[slot( z - 1, 3 )], three[slot( z, 3 )], g,
+								width, height, stage.sigma, b, minMax[stage.scale] );
+						sink.add( stage.scale, z, b.response );
+						measured = true;
 					}
 				}
+				if( measured && k == stages.length - 1 )
+					IJ.showProgress( slicesDone.incrementAndGet(), depth );
 
-				FloatProcessor fp = new FloatProcessor(width, height);
-				fp.setPixels(slice);
-				stack.addSlice(null, fp);
-				IJ.showProgress(z / (double) depth);
+				if( k + 1 < stages.length ) {
+					Stage next = stages[k + 1];
+					smoothSlice( g, 0, width, height, next.kernelX, next.kernelY, b,
+						     b.smoothedXY[k + 1][slot( centre, b.smoothedXY[k + 1].length )] );
+				}
+				newest = centre;
 			}
 		}
 
-		IJ.showProgress(1.0);
+		if( depth > 1 && z1 == depth ) {
+			Arrays.fill( b.response, 0 );
+			addEdge( stages, depth - 1, depth, b, sink, slicesDone );
+		}
+	}
 
-		ImagePlus result=new ImagePlus("processed " + original.getTitle(), stack);
-		result.setCalibration(calibration);
+	static void addEdge( Stage [] stages, int z, int depth, Buffers b, ScaleSink sink, AtomicInteger slicesDone ) {
+		for( int k = 0; k < stages.length; ++k )
+			sink.add( stages[k].scale, z, b.response );
+		IJ.showProgress( slicesDone.incrementAndGet(), depth );
+	}
 
+	/* Smooths the slices first ... first + kernel.length - 1 of
+	   ring in z into result, adding up in the same order as
+	   ComputeCurvatures.convolveLine: */
+
+	static void convolveZ( float [][] ring, int first, float [] kernel, float [] result ) {
+		float [] in = ring[slot( first, ring.length )];
+		float k = kernel[0];
+		for( int j = 0; j < result.length; ++j )
+			result[j] = k * in[j];
+		for( int f = 1; f < kernel.length; ++f ) {
+			in = ring[slot( first + f, ring.length )];
+			k = kernel[f];
+			for( int j = 0; j < result.length; ++j )
+				result[j] += k * in[j];
+		}
+	}
 
-		result.getProcessor().setMinAndMax(minResult,maxResult);
-		result.updateAndDraw();
+	void measureSlice2D( float [] g, int width, int height, double sigma, Buffers b, float [] minMax ) {
+		float s2 = (float)(sigma * sigma);
+		float [] evalues = b.evalues;
+		float [] result = b.response;
+		for( int y = 1; y < height - 1; ++y )
+			for( int x = 1; x < width - 1; ++x ) {
+				int i = y * width + x;
+				float c2 = 2 * g[i];
+				float xx = (g[i + 1] - c2 + g[i - 1]) * s2;
+				float yy = (g[i + width] - c2 + g[i - width]) * s2;
+				float xy = (((g[i + width + 1] - g[i + width - 1]) / 2 -
+					     (g[i - width + 1] - g[i - width - 1]) / 2) / 2) * s2;
+				symmetricEigenvalues2x2( xx, xy, yy, evalues );
+				if( normalize ) {
+					float divideBy = Math.abs( evalues[1] );
+					evalues[0] /= divideBy;
+					evalues[1] /= divideBy;
+				}
+				float value = measureFromEvalues2D( evalues );
+				result[i] = value;
+				if( value < minMax[0] )
+					minMax[0] = value;
+				if( value > minMax[1] )
+					minMax[1] = value;
+			}
+	}
 
-		return result;
+	/* Measures the smoothed slice g with the smoothed slices below
+	   and above it: */
+
+	void measureSlice3D( float [] below, float [] g, float [] above, int width, int height, double sigma, Buffers b, float [] minMax ) {
+		float s2 = (float)(sigma * sigma);
+		float [] evalues = b.evalues;
+		float [] result = b.response;
+		for( int y = 1; y < height - 1; ++y )
+			for( int x = 1; x < width - 1; ++x ) {
+				int i = y * width + x;
+				float c2 = 2 * g[i];
+				float xx = (g[i + 1] - c2 + g[i - 1]) * s2;
+				float yy = (g[i + width] - c2 + g[i - width]) * s2;
+				float zz = (above[i] - c2 + below[i]) * s2;
+				float xy = (((g[i + width + 1] - g[i + width - 1]) / 2 -
+					     (g[i - width + 1] - g[i - width - 1]) / 2) / 2) * s2;
+				float xz = (((above[i + 1] - above[i - 1]) / 2 -
+					     (below[i + 1] - below[i - 1]) / 2) / 2) * s2;
+				float yz = (((above[i + width] - above[i - width]) / 2 -
+					     (below[i + width] - below[i - width]) / 2) / 2) * s2;
+				symmetricEigenvalues3x3( xx, xy, xz, yy, yz, zz, evalues );
+				if( normalize ) {
+					float divideBy = Math.abs( evalues[2] );
+					evalues[0] /= divideBy;
+					evalues[1] /= divideBy;
+					evalues[2] /= divideBy;
+				}
+				float value = measureFromEvalues3D( evalues );
+				result[i] = value;
+				if( value < minMax[0] )
+					minMax[0] = value;
+				if( value > minMax[1] )
+					minMax[1] = value;
+			}
+	}
+
+	/* Smooths one slice (starting at sourceOffset in pixels) in x
+	   and then y, with the edges mirrored, into result: */
+
+	static void smoothSlice( Object pixels, int sourceOffset, int width, int height,
+				 float [] kernelX, float [] kernelY, Buffers b, float [] result ) {
+		int borderX = kernelX.length / 2, borderY = kernelY.length / 2;
+		float [] row = b.row;
+		for( int y = 0; y < height; ++y ) {
+			int rowStart = sourceOffset + y * width;
+			for( int i = 0; i < width + 2 * borderX; ++i )
+				row[i] = getValue( pixels, rowStart + ComputeCurvatures.mirror( i - borderX, width ) );
+			ComputeCurvatures.convolveLine( row, b.rowResult, width, 1, kernelX );
+			System.arraycopy( b.rowResult, 0, b.plane, (y + borderY) * width, width );
+		}
+		for( int i = 0; i < borderY; ++i ) {
+			System.arraycopy( b.plane, (ComputeCurvatures.mirror( i - borderY, height ) + borderY) * width, b.plane, i * width, width );
+			System.arraycopy( b.plane, (ComputeCurvatures.mirror( height + i, height ) + borderY) * width, b.plane, (height + borderY + i) * width, width );
+		}
+		ComputeCurvatures.convolveLine( b.plane, result, height, width, kernelY );
+	}
+
+	static float getValue( Object pixels, int i ) {
+		if( pixels instanceof byte [] )
+			return ((byte [])pixels)[i] & 0xff;
+		else if( pixels instanceof short [] )
+			return ((short [])pixels)[i] & 0xffff;
+		else if( pixels instanceof float [] )
+			return ((float [])pixels)[i];
+		else
+			return ((FloatBuffer)pixels).get( i );
+	}
+
+	/* The eigenvalues of the symmetric matrix [[a, b], [b, c]],
+	   ordered by absolute value: */
+
+	static void symmetricEigenvalues2x2( float a, float b, float c, float [] result ) {
+		double mean = (a + c) / 2.0;
+		double halfDifference = (a - c) / 2.0;
+		double r = Math.sqrt( halfDifference * halfDifference + (double)b * b );
+		float e0 = (float)(mean - r);
+		float e1 = (float)(mean + r);
+		if( Math.abs( e0 ) <= Math.abs( e1 ) ) {
+			result[0] = e0;
+			result[1] = e1;
+		} else {
+			result[0] = e1;
+			result[1] = e0;
+		}
+	}
+
+	/* The eigenvalues of the symmetric matrix
+
+	     [ a  b  c ]
+	     [ b  d  e ]
+	     [ c  e  f ]
+
+	   ordered by absolute value.  The largest is found with the
+	   trigonometric solution of the characteristic cubic (Smith,
+	   "Eigenvalues of a symmetric 3 x 3 matrix", CACM 4(4), 1961)
+	   and the other two from the quadratic given by the trace and
+	   the sum of the principal 2 x 2 minors, which only needs a
+	   square root rather than two more cosines: */
+
+	static void symmetricEigenvalues3x3( float a, float b, float c, float d, float e, float f, float [] result ) {
+		double bb = (double)b * b, cc = (double)c * c, ee = (double)e * e;
+		double q = ((double)a + d + f) / 3;
+		double aq = a - q, dq = d - q, fq = f - q;
+		double p2 = (aq * aq + dq * dq + fq * fq + 2 * (bb + cc + ee)) / 6;
+		double e0, e1, e2;
+		if( p2 <= 0 ) {
+			e0 = e1 = e2 = q;
+		} else {
+			double p = Math.sqrt( p2 );
+			// The determinant of A - qI:
+			double determinant = aq * (dq * fq - ee)
+				- b * ((double)b * fq - (double)e * c)
+				+ c * ((double)b * e - dq * c);
+			double r = determinant / (2 * p2 * p);
+			double phi;
+			if( r <= -1 )
+				phi = Math.PI / 3;
+			else if( r >= 1 )
+				phi = 0;
+			else
+				// acos( r ), but Math.acos is several times slower than this:
+				phi = (Math.PI / 2 - Math.atan( r / Math.sqrt( 1 - r * r ) )) / 3;
+			e0 = q + 2 * p * Math.cos( phi );
+			double sum = 3 * q - e0;
+			double minors = (double)a * d + (double)a * f + (double)d * f - bb - cc - ee;
+			double product = minors - e0 * sum;
+			double discriminant = sum * sum - 4 * product;
+			double root = discriminant > 0 ? Math.sqrt( discriminant ) : 0;
+			e1 = (sum + root) / 2;
+			e2 = (sum - root) / 2;
+		}
+		// Sort by absolute value:
+		double t;
+		if( Math.abs( e0 ) > Math.abs( e1 ) ) { t = e0; e0 = e1; e1 = t; }
+		if( Math.abs( e1 ) > Math.abs( e2 ) ) { t = e1; e1 = e2; e2 = t; }
+		if( Math.abs( e0 ) > Math.abs( e1 ) ) { t = e0; e0 = e1; e1 = t; }
+		result[0] = (float)e0;
+		result[1] = (float)e1;
+		result[2] = (float)e2;
 	}
 }
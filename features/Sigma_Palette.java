@@ -346,8 +346,14 @@ public class Sigma_Palette extends Thread implements PlugIn {
 			int offsetX = sigmaX * (croppedWidth + 1) + 1;
 			int offsetY = sigmaY * (croppedHeight + 1) + 1;
 			double sigma = sigmaValues[sigmaIndex];
+			/* Each sigma is calculated on its own, rather than
+			   with generateImages(), so that the palette shows
+			   exactly what the direct Gaussian for the sigma
+			   picked will give, not the cascaded approximation: */
 			hep.setSigma(sigma);
 			ImagePlus processed = hep.generateImage(cropped);
+			if( processed == null )
+				return;
 			if( ! paletteWindow.manuallyChangedAlready ) {
 				float [] limits = Limits.getStackLimits( processed );
 				int suggestedMax = (int)limits[1];
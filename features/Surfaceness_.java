@@ -50,6 +50,8 @@ public class Surfaceness_ implements PlugIn {
 		SurfacenessProcessor sp = new SurfacenessProcessor(sigma,useCalibration);
 
 		ImagePlus result = sp.generateImage(original);
+		if( result == null )
+			return;
 		result.setTitle("surfaceness of " + original.getTitle());
 
 		result.show();
@@ -0,0 +1,122 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/* Checks that a FloatVolume with more than 2^31 voxels can be run
+   through HessianEvalueProcessor.generateImage( FloatVolume,
+   Calibration, FloatVolume ).  The input is a 3000x3000x256 volume
+   (2.3G voxels, a 9.2GB file) of zeros, which is left sparse on
+   file systems that support that, with the same small blob written
+   at the start of the volume and across the voxel with index 2^31.
+   The tubeness around each blob must be exactly the same as for the
+   blob in a small in-memory stack (apart from that stack's edges,
+   which are left as zero).
+
+   The output volume is written in full, so this needs about 10GB of
+   free space in the temporary directory (java.io.tmpdir), and is
+   skipped if there is less than twice that.  It needs about 600MB
+   of heap, with at most as many threads as fit in the buffer limit
+   set below, so run it with at least -Xmx1g, but with a heap smaller
+   than the volume (so that it can only pass out of core).  It takes
+   a few minutes per core, so it is only run if the system property
+   features.testLargeVolume is set to true, e.g. with
+
+     java -Xmx1g -Dfeatures.testLargeVolume=true ... \
+       org.junit.runner.JUnitCore features.TestFloatVolume */
+
+public class TestFloatVolume {
+
+	static final int WIDTH = 3000, HEIGHT = 3000, DEPTH = 256;
+
+	// The blob's half-size and the border that its tubeness reaches:
+	static final int RADIUS = 3, BORDER = 8;
+	static final int SIZE = 2 * (RADIUS + BORDER) + 1;
+
+	static float blob( int x, int y, int z ) {
+		int dx = x - RADIUS - BORDER, dy = y - RADIUS - BORDER, dz = z - RADIUS - BORDER;
+		if( Math.abs( dx ) > RADIUS || Math.abs( dy ) > RADIUS || Math.abs( dz ) > RADIUS )
+			return 0;
+		// A short tube along x:
+		return 100f - 10f * (dy * dy + dz * dz);
+	}
+
+	static void writeBlob( FloatVolume volume, int x0, int y0, int z0 ) {
+		for( int z = 0; z < SIZE; ++z )
+			for( int y = 0; y < SIZE; ++y )
+				for( int x = 0; x < SIZE; ++x )
+					volume.set( x0 + x, y0 + y, z0 + z, blob( x, y, z ) );
+	}
+
+	static void assertBlob( float [][] expected, FloatVolume volume, int x0, int y0, int z0 ) {
+		for( int z = 1; z < SIZE - 1; ++z )
+			for( int y = 1; y < SIZE - 1; ++y )
+				for( int x = 1; x < SIZE - 1; ++x )
+					assertEquals( "voxel "+(x0 + x)+", "+(y0 + y)+", "+(z0 + z),
+						      Float.floatToIntBits( expected[z][y * SIZE + x] ),
+						      Float.floatToIntBits( volume.get( x0 + x, y0 + y, z0 + z ) ) );
+	}
+
+	@Test
+	public void testMoreThan2To31Voxels() throws IOException {
+		assumeTrue( Boolean.getBoolean( "features.testLargeVolume" ) );
+
+		long voxels = (long)WIDTH * HEIGHT * DEPTH;
+		assertTrue( voxels > (1L << 31) );
+		assertTrue( "The heap must be smaller than the volume ("+(4 * voxels)+" bytes)",
+			    Runtime.getRuntime().maxMemory() < 4 * voxels );
+
+		File directory = new File( System.getProperty( "java.io.tmpdir" ) );
+		assumeTrue( directory.getUsableSpace() > 2 * 4 * voxels );
+
+		// The tubeness of the blob on its own:
+		ImageStack stack = new ImageStack( SIZE, SIZE );
+		for( int z = 0; z < SIZE; ++z ) {
+			float [] pixels = new float[SIZE * SIZE];
+			for( int y = 0; y < SIZE; ++y )
+				for( int x = 0; x < SIZE; ++x )
+					pixels[y * SIZE + x] = blob( x, y, z );
+			stack.addSlice( "", new FloatProcessor( SIZE, SIZE, pixels, null ) );
+		}
+		TubenessProcessor tp = new TubenessProcessor( 1.0, false );
+		ImagePlus small = tp.generateImage( new ImagePlus( "blob", stack ) );
+		float [][] expected = new float[SIZE][];
+		for( int z = 0; z < SIZE; ++z )
+			expected[z] = (float [])small.getStack().getPixels( z + 1 );
+
+		// The blob is centred on the voxel with index 2^31:
+		long middle = 1L << 31;
+		int x2 = (int)(middle % WIDTH) - SIZE / 2;
+		int y2 = (int)(middle % (WIDTH * HEIGHT)) / WIDTH - SIZE / 2;
+		int z2 = (int)(middle / (WIDTH * HEIGHT)) - SIZE / 2;
+
+		FloatVolume input = new FloatVolume( WIDTH, HEIGHT, DEPTH );
+		FloatVolume output = new FloatVolume( WIDTH, HEIGHT, DEPTH );
+		try {
+			writeBlob( input, 1, 1, 1 );
+			writeBlob( input, x2, y2, z2 );
+
+			tp.setMaximumBufferBytes( 600L << 20 );
+			float [] minMax = tp.generateImage( input, new Calibration(), output );
+
+			assertBlob( expected, output, 1, 1, 1 );
+			assertBlob( expected, output, x2, y2, z2 );
+			assertTrue( minMax[1] > 0 );
+		} finally {
+			input.close();
+			output.close();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/* Checks that the out-of-core Gaussian of a FloatVolume gives exactly
+   the same values as the in-memory one of a FloatArray3D, also when
+   the buffer limit makes it work on a few slices or rows at a time,
+   and that StackToFloatVolume() converts like StackToFloatArray(). */
+
+public class TestGaussianFloatVolume {
+
+	static final int WIDTH = 37, HEIGHT = 29, DEPTH = 17;
+
+	static ImageStack createStack( int bitDepth, long seed ) {
+		Random random = new Random( seed );
+		ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for( int z = 0; z < DEPTH; ++z ) {
+			int n = WIDTH * HEIGHT;
+			if( bitDepth == 8 ) {
+				byte [] pixels = new byte[n];
+				random.nextBytes( pixels );
+				stack.addSlice( "", new ByteProcessor( WIDTH, HEIGHT, pixels, null ) );
+			} else if( bitDepth == 16 ) {
+				short [] pixels = new short[n];
+				for( int i = 0; i < n; ++i )
+					pixels[i] = (short)random.nextInt( 65536 );
+				stack.addSlice( "", new ShortProcessor( WIDTH, HEIGHT, pixels, null ) );
+			} else {
+				float [] pixels = new float[n];
+				for( int i = 0; i < n; ++i )
+					pixels[i] = (float)random.nextGaussian();
+				stack.addSlice( "", new FloatProcessor( WIDTH, HEIGHT, pixels, null ) );
+			}
+		}
+		return stack;
+	}
+
+	static void assertSame( String what, ComputeCurvatures.FloatArray3D expected, FloatVolume volume ) {
+		for( int z = 0; z < DEPTH; ++z )
+			for( int y = 0; y < HEIGHT; ++y )
+				for( int x = 0; x < WIDTH; ++x )
+					assertEquals( what + ", voxel " + x + ", " + y + ", " + z,
+						      Float.floatToIntBits( expected.get( x, y, z ) ),
+						      Float.floatToIntBits( volume.get( x, y, z ) ) );
+	}
+
+	@Test
+	public void testAgainstInMemory() throws IOException {
+		Calibration calibration = new Calibration();
+		calibration.pixelWidth = 0.5;
+		calibration.pixelHeight = 0.5;
+		calibration.pixelDepth = 1.5;
+		int [] bitDepths = { 8, 16, 32 };
+		// no limit, a few slices (or rows) and a single one at a time:
+		long [] bufferBytes = { Long.MAX_VALUE, 4L * WIDTH * HEIGHT * 3, 1 };
+		for( int b = 0; b < bitDepths.length; ++b ) {
+			ImageStack stack = createStack( bitDepths[b], b );
+			ComputeCurvatures c = new ComputeCurvatures();
+			ComputeCurvatures.FloatArray3D array = c.StackToFloatArray( stack );
+			ComputeCurvatures.FloatArray3D expected = c.computeGaussianFastMirror( array, 2.0f, null, calibration );
+
+			FloatVolume input = c.StackToFloatVolume( stack );
+			FloatVolume output = new FloatVolume( WIDTH, HEIGHT, DEPTH );
+			try {
+				assertSame( bitDepths[b] + "-bit conversion", array, input );
+				for( int l = 0; l < bufferBytes.length; ++l ) {
+					c.setMaximumBufferBytes( bufferBytes[l] );
+					assertTrue( c.computeGaussianFastMirror( input, output, 2.0f, null, calibration ) );
+					assertSame( bitDepths[b] + "-bit, at most " + bufferBytes[l] + " bytes", expected, output );
+				}
+				// in place:
+				assertTrue( c.computeGaussianFastMirror( input, input, 2.0f, null, calibration ) );
+				assertSame( bitDepths[b] + "-bit, in place", expected, input );
+			} finally {
+				input.close();
+				output.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,248 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import math3d.JacobiDouble;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestHessianEvalueProcessor {
+
+	static final int WIDTH = 40, HEIGHT = 36, DEPTH = 24;
+
+	/* A few bright tubes of different radii (along x, along z and
+	   diagonally) in some noise. */
+	static ImagePlus createTubes( long seed ) {
+		Random random = new Random( seed );
+		double [][] tubes = {
+			// a point on the axis, its direction and the radius
+			{ 0, 10, 8, 1, 0, 0, 1.2 },
+			{ 28, 26, 0, 0, 0, 1, 3.5 },
+			{ 0, 0, 4, 1, 1, 0.5, 2.2 }
+		};
+		ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+		for( int z = 0; z < DEPTH; ++z ) {
+			float [] pixels = new float[WIDTH * HEIGHT];
+			for( int y = 0; y < HEIGHT; ++y )
+				for( int x = 0; x < WIDTH; ++x ) {
+					double value = 5 * random.nextDouble();
+					for( double [] t : tubes ) {
+						double length = Math.sqrt( t[3] * t[3] + t[4] * t[4] + t[5] * t[5] );
+						double dx = x - t[0], dy = y - t[1], dz = z - t[2];
+						double along = ( dx * t[3] + dy * t[4] + dz * t[5] ) / length;
+						double distance2 = dx * dx + dy * dy + dz * dz - along * along;
+						value += 100 * Math.exp( - distance2 / ( 2 * t[6] * t[6] ) );
+					}
+					pixels[y * WIDTH + x] = (float)value;
+				}
+			stack.addSlice( null, new FloatProcessor( WIDTH, HEIGHT, pixels, null ) );
+		}
+		return new ImagePlus( "tubes", stack );
+	}
+
+	static float [] pixels( ImagePlus image, int z ) {
+		return (float [])image.getStack().getPixels( z + 1 );
+	}
+
+	/* The slice by slice pipeline gives the same measure as the
+	   Gaussian of the whole image from ComputeCurvatures followed by
+	   hessianEigenvaluesAtPoint3D() at each voxel (up to rounding,
+	   since the eigenvalues are found in closed form); the voxels at
+	   the edges are zero. */
+
+	@Test
+	public void testSingleSigmaAgainstComputeCurvatures() {
+		ImagePlus image = createTubes( 3 );
+		double [] sigmas = { 1.0, 2.5 };
+		float [] evalues = new float[3];
+		for( int s = 0; s < sigmas.length; ++s ) {
+			ComputeCurvatures c = new ComputeCurvatures( image, sigmas[s], null, false );
+			c.run();
+			TubenessProcessor tubeness = new TubenessProcessor( sigmas[s], false );
+			float [][] expected = new float[DEPTH][WIDTH * HEIGHT];
+			float maximum = 0;
+			for( int z = 1; z < DEPTH - 1; ++z )
+				for( int y = 1; y < HEIGHT - 1; ++y )
+					for( int x = 1; x < WIDTH - 1; ++x )
+						if( c.hessianEigenvaluesAtPoint3D( x, y, z, true, evalues, false, false, 1, 1, 1 ) ) {
+							float value = tubeness.measureFromEvalues3D( evalues );
+							expected[z][y * WIDTH + x] = value;
+							maximum = Math.max( maximum, value );
+						}
+			assertTrue( "sigma " + sigmas[s] + " finds no tubes", maximum > 0 );
+
+			for( int threads = 1; threads <= 3; threads += 2 ) {
+				tubeness.setNumberOfThreads( threads );
+				ImagePlus result = tubeness.generateImage( image );
+				for( int z = 0; z < DEPTH; ++z ) {
+					float [] actual = pixels( result, z );
+					for( int i = 0; i < actual.length; ++i )
+						assertEquals( "sigma " + sigmas[s] + ", " + threads + " threads, voxel " + i + " of slice " + z,
+							      expected[z][i], actual[i], 1e-4 * maximum );
+				}
+			}
+		}
+	}
+
+	/* The closed form eigenvalues against Jacobi rotations, also
+	   for matrices with repeated eigenvalues. */
+
+	@Test
+	public void testSymmetricEigenvalues() {
+		Random random = new Random( 4 );
+		float [] result = new float[3];
+		for( int n = 0; n < 2000; ++n ) {
+			float [] m = new float[6];
+			for( int i = 0; i < m.length; ++i )
+				m[i] = (float)( 100 * random.nextGaussian() );
+			if( n % 4 == 1 ) // a multiple of the identity
+				m[1] = m[2] = m[4] = 0;
+			if( n % 4 == 1 || n % 4 == 2 ) // a repeated eigenvalue
+				m[3] = m[0];
+			if( n % 4 == 1 )
+				m[5] = m[0];
+			if( n % 4 == 2 )
+				m[2] = m[4] = 0;
+			double [][] matrix = {
+				{ m[0], m[1], m[2] },
+				{ m[1], m[3], m[4] },
+				{ m[2], m[4], m[5] }
+			};
+			double [] expected = new JacobiDouble( matrix, 50 ).getEigenValues().clone();
+			double [] order = new double[3];
+			for( int i = 0; i < 3; ++i )
+				order[i] = Math.abs( expected[i] );
+			Arrays.sort( order );
+			HessianEvalueProcessor.symmetricEigenvalues3x3( m[0], m[1], m[2], m[3], m[4], m[5], result );
+			double scale = Math.max( 1, order[2] );
+			for( int i = 0; i < 3; ++i ) {
+				assertEquals( "matrix " + n + ", size of eigenvalue " + i, order[i], Math.abs( result[i] ), 1e-4 * scale );
+				double closest = Double.MAX_VALUE;
+				for( double e : expected )
+					closest = Math.min( closest, Math.abs( e - result[i] ) );
+				assertEquals( "matrix " + n + ", eigenvalue " + i, 0, closest, 1e-4 * scale );
+			}
+		}
+	}
+
+	/* Smoothing the result of each sigma further, rather than the
+	   original again, differs only slightly from smoothing the
+	   original with each sigma.  (The smallest sigma is smoothed
+	   from the original, so it is the same.) */
+
+	@Test
+	public void testSeveralSigmasAgainstOneByOne() {
+		ImagePlus image = createTubes( 1 );
+		double [] sigmas = { 2.0, 1.0, 3.5 };
+
+		TubenessProcessor tubeness = new TubenessProcessor( false );
+		ImagePlus [] together = tubeness.generateImages( image, sigmas );
+
+		for( int s = 0; s < sigmas.length; ++s ) {
+			TubenessProcessor single = new TubenessProcessor( sigmas[s], false );
+			ImagePlus alone = single.generateImage( image );
+
+			float maximum = 0;
+			for( int z = 0; z < DEPTH; ++z )
+				for( float v : pixels( alone, z ) )
+					maximum = Math.max( maximum, v );
+			assertTrue( "sigma " + sigmas[s] + " finds no tubes", maximum > 0 );
+
+			int differing = 0;
+			for( int z = 0; z < DEPTH; ++z ) {
+				float [] expected = pixels( alone, z );
+				float [] actual = pixels( together[s], z );
+				for( int i = 0; i < expected.length; ++i ) {
+					if( sigmas[s] == 1.0 )
+						assertEquals( "sigma 1, voxel " + i + " of slice " + z,
+							      expected[i], actual[i], 0 );
+					if( Math.abs( expected[i] - actual[i] ) > 0.02 * maximum )
+						++ differing;
+				}
+			}
+			assertTrue( "sigma " + sigmas[s] + ": " + differing + " voxels differ by more than 2%",
+				    differing <= 0.015 * WIDTH * HEIGHT * DEPTH );
+		}
+	}
+
+	/* The multi-scale response is the maximum over the sigmas, and
+	   the scale image the index of the sigma which gave it (the
+	   smallest sigma where several give the same value). */
+
+	@Test
+	public void testScaleIsArgmax() {
+		ImagePlus image = createTubes( 2 );
+		double [] sigmas = { 2.0, 1.0, 3.5 };
+		int [] bySize = { 1, 0, 2 };
+
+		TubenessProcessor tubeness = new TubenessProcessor( false );
+		tubeness.setNumberOfThreads( 3 );
+		ImagePlus [] each = tubeness.generateImages( image, sigmas );
+		HessianEvalueProcessor.MultiScaleResult result = tubeness.generateMultiScale( image, sigmas );
+		ImagePlus scales = result.getScaleImage( "scales" );
+		ImagePlus response = result.getResponseImage( "response" );
+
+		int [] counts = new int[sigmas.length];
+		for( int z = 0; z < DEPTH; ++z ) {
+			byte [] indices = (byte [])scales.getStack().getPixels( z + 1 );
+			float [] maxima = pixels( response, z );
+			for( int i = 0; i < WIDTH * HEIGHT; ++i ) {
+				int best = bySize[0];
+				for( int k = 1; k < bySize.length; ++k )
+					if( pixels( each[bySize[k]], z )[i] > pixels( each[best], z )[i] )
+						best = bySize[k];
+				assertEquals( "scale of voxel " + i + " of slice " + z, best, indices[i] );
+				assertEquals( "response of voxel " + i + " of slice " + z,
+					      pixels( each[best], z )[i], maxima[i], 0 );
+				if( maxima[i] > 0 )
+					++ counts[best];
+			}
+		}
+		// the tubes have different radii, so each sigma wins somewhere:
+		for( int s = 0; s < sigmas.length; ++s )
+			assertTrue( "sigma " + sigmas[s] + " is never the best", counts[s] > 0 );
+	}
+
+	/* Each kernel of the cascade adds the variance missing to the
+	   next sigma, so the kernels convolved together are close to
+	   the kernel for that sigma. */
+
+	@Test
+	public void testIncrementalKernels() {
+		double [] sigmas = { 0.8, 1.0, 1.6, 2.5, 4.0, 6.5 };
+		double [] smoothedVariance = new double[3];
+		float [] cascade = { 1 };
+		for( int s = 0; s < sigmas.length; ++s ) {
+			float [] kernel = HessianEvalueProcessor.incrementalKernel( smoothedVariance, 0, (float)sigmas[s] );
+			cascade = convolve( cascade, kernel );
+			float [] direct = ComputeCurvatures.createGaussianKernel1D( (float)sigmas[s], true );
+			assertEquals( "variance up to sigma " + sigmas[s],
+				      HessianEvalueProcessor.kernelVariance( direct ), smoothedVariance[0], 0.01 );
+			assertEquals( "variance of the convolved kernels up to sigma " + sigmas[s],
+				      smoothedVariance[0], HessianEvalueProcessor.kernelVariance( cascade ), 1e-3 );
+			int offset = ( cascade.length - direct.length ) / 2;
+			for( int i = 0; i < cascade.length; ++i ) {
+				int j = i - offset;
+				float expected = j >= 0 && j < direct.length ? direct[j] : 0;
+				assertEquals( "sigma " + sigmas[s] + ", entry " + i, expected, cascade[i], 0.01 );
+			}
+		}
+	}
+
+	static float [] convolve( float [] a, float [] b ) {
+		float [] result = new float[a.length + b.length - 1];
+		for( int i = 0; i < a.length; ++i )
+			for( int j = 0; j < b.length; ++j )
+				result[i + j] += a[i] * b[j];
+		return result;
+	}
+}
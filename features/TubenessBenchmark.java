@@ -0,0 +1,67 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package features;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+/* Times the tubeness measure on a stack of random 8-bit slices, by
+   default a few large (2048x2048) ones, where the buffers of smoothed
+   slices rather than the depth dominate, for a single small and a
+   single large sigma and for three sigmas at once.  The throughput
+   is reported as HessianEvalueProcessor.getVoxelsPerSecond() does,
+   counting each voxel once per sigma.  The first round only warms
+   up the JIT.  Run it with:
+
+     java -cp ... features.TubenessBenchmark [width height depth [threads]]
+*/
+
+public class TubenessBenchmark {
+
+	public static void main( String [] args ) {
+		int width = 2048, height = 2048, depth = 24;
+		int threads = Runtime.getRuntime().availableProcessors();
+		if( args.length >= 3 ) {
+			width = Integer.parseInt( args[0] );
+			height = Integer.parseInt( args[1] );
+			depth = Integer.parseInt( args[2] );
+		}
+		if( args.length >= 4 )
+			threads = Integer.parseInt( args[3] );
+
+		Random random = new Random( 1 );
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			byte [] pixels = new byte[width * height];
+			random.nextBytes( pixels );
+			stack.addSlice( "", new ByteProcessor( width, height, pixels, null ) );
+		}
+		ImagePlus image = new ImagePlus( "random", stack );
+
+		System.out.println( "A stack of "+width+"x"+height+"x"+depth+", "+threads+" thread(s):" );
+		double [][] sigmaSets = { { 1.0 }, { 3.0 }, { 1.0, 2.0, 3.0 } };
+		for( int round = 0; round < 2; ++round )
+			for( int s = 0; s < sigmaSets.length; ++s ) {
+				double [] sigmas = sigmaSets[s];
+				TubenessProcessor tp = new TubenessProcessor( false );
+				tp.setNumberOfThreads( threads );
+				long start = System.currentTimeMillis();
+				if( sigmas.length == 1 ) {
+					tp.setSigma( sigmas[0] );
+					tp.generateImage( image );
+				} else
+					tp.generateMultiScale( image, sigmas );
+				long elapsed = System.currentTimeMillis() - start;
+				if( round == 0 )
+					continue;
+				String what = "sigma " + sigmas[0];
+				for( int i = 1; i < sigmas.length; ++i )
+					what += ", " + sigmas[i];
+				System.out.println( "  " + what + ": " + elapsed + "ms, " +
+						    (long)tp.getVoxelsPerSecond() + " voxels/second" );
+			}
+	}
+}
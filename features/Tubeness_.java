@@ -10,7 +10,7 @@ import ij.gui.GenericDialog;
 
 public class Tubeness_ implements PlugIn {
 
-	static final String PLUGIN_VERSION = "1.2";
+	static final String PLUGIN_VERSION = "1.3";
 
 	public void run(String ignored) {
 
@@ -32,6 +32,9 @@ public class Tubeness_ implements PlugIn {
 		gd.addNumericField("Sigma: ", (calibration==null) ? 1f : minimumSeparation, 4);
 		gd.addMessage("(The default value for sigma is the minimum voxel separation.)");
 		gd.addCheckbox("Use calibration information", calibration!=null);
+		gd.addCheckbox("Multi-scale (maximum over several sigmas)", false);
+		gd.addNumericField("Largest sigma (multi-scale only): ", 4 * ((calibration==null) ? 1f : minimumSeparation), 4);
+		gd.addNumericField("Number of scales (multi-scale only): ", 4, 0);
 
 		gd.showDialog();
 		if( gd.wasCanceled() )
@@ -43,10 +46,38 @@ public class Tubeness_ implements PlugIn {
 			return;
 		}
 		boolean useCalibration = gd.getNextBoolean();
+		boolean multiScale = gd.getNextBoolean();
+		double largestSigma = gd.getNextNumber();
+		int scales = (int)gd.getNextNumber();
 
 		TubenessProcessor tp = new TubenessProcessor(sigma,useCalibration);
 
+		if( multiScale ) {
+			if( largestSigma < sigma ) {
+				IJ.error("The largest sigma must be at least as large as sigma");
+				return;
+			}
+			if( scales < 1 || scales > 256 ) {
+				IJ.error("The number of scales must be between 1 and 256");
+				return;
+			}
+			// Spaced evenly on a log scale from sigma to largestSigma:
+			double [] sigmas = new double[scales];
+			for( int i = 0; i < scales; ++i )
+				sigmas[i] = (scales == 1) ? sigma :
+					sigma * Math.pow(largestSigma / sigma, i / (double)(scales - 1));
+			HessianEvalueProcessor.MultiScaleResult multiScaleResult =
+				tp.generateMultiScale(original, sigmas);
+			if( multiScaleResult == null )
+				return;
+			multiScaleResult.getResponseImage("multi-scale tubeness of " + original.getTitle()).show();
+			multiScaleResult.getScaleImage("tubeness scale of " + original.getTitle()).show();
+			return;
+		}
+
 		ImagePlus result = tp.generateImage(original);
+		if( result == null )
+			return;
 		result.setTitle("tubeness of " + original.getTitle());
 
 		result.show();
@@ -0,0 +1,400 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package fft;
+
+/* A plan for discrete Fourier transforms of n complex numbers, for
+   any n.  n is factored into radices 4, 2, 3 and 5 (and other small
+   primes, which are handled by a generic butterfly); the transform
+   is the usual recursive decimation in time, as in KISS FFT.  If n
+   has a large prime factor, the transform is instead done as a
+   convolution with a chirp (Bluestein's algorithm), using a
+   transform whose length is a power of two, so the time is
+   O(n log n) for any n.
+
+   The plan only holds the twiddle factors, so it can be shared by
+   several threads; each thread needs its own Workspace, which
+   holds the data being transformed and the scratch space, so that
+   nothing is allocated per transform.  The forward transform uses
+   exp(-2 pi i jk / n) and isn't scaled, the inverse uses
+   exp(2 pi i jk / n) and is scaled by 1 / n. */
+
+public class FFT {
+
+	/* Bluestein's algorithm is used if n has a prime factor larger
+	   than this, since the generic butterfly takes O(p) per value
+	   for the prime p. */
+	static final int LARGEST_DIRECT_PRIME = 31;
+
+	final int n;
+
+	// pairs of (radix, remaining length) for each level of the recursion
+	final int [] factors;
+	final int largestRadix;
+	final double [] twiddleRe, twiddleIm;
+
+	// for Bluestein's algorithm:
+	final FFT convolution;
+	final double [] chirpRe, chirpIm;
+	final double [] filterRe, filterIm;
+
+	public FFT( int n ) {
+		if( n < 1 )
+			throw new IllegalArgumentException( "The length of a Fourier transform must be positive" );
+		this.n = n;
+
+		if( largestPrimeFactor( n ) <= LARGEST_DIRECT_PRIME ) {
+			factors = factor( n );
+			int largest = 0;
+			for( int i = 0; i < factors.length; i += 2 )
+				largest = Math.max( largest, factors[i] );
+			largestRadix = largest;
+			twiddleRe = new double[n];
+			twiddleIm = new double[n];
+			for( int k = 0; k < n; ++k ) {
+				double angle = -2 * Math.PI * k / n;
+				twiddleRe[k] = Math.cos( angle );
+				twiddleIm[k] = Math.sin( angle );
+			}
+			convolution = null;
+			chirpRe = chirpIm = filterRe = filterIm = null;
+			return;
+		}
+
+		factors = null;
+		largestRadix = 0;
+		twiddleRe = twiddleIm = null;
+
+		int m = 1;
+		while( m < 2 * n - 1 )
+			m *= 2;
+		convolution = new FFT( m );
+
+		// chirp[k] = exp(-pi i k^2 / n), with k^2 reduced mod 2n to keep the angle accurate
+		chirpRe = new double[n];
+		chirpIm = new double[n];
+		for( int k = 0; k < n; ++k ) {
+			double angle = -Math.PI * (((long)k * k) % (2L * n)) / n;
+			chirpRe[k] = Math.cos( angle );
+			chirpIm[k] = Math.sin( angle );
+		}
+
+		// The transform of the conjugate chirp, scaled for the inverse transform:
+		Workspace filter = convolution.newWorkspace();
+		for( int k = 0; k < n; ++k ) {
+			filter.re[k] = chirpRe[k];
+			filter.im[k] = -chirpIm[k];
+			if( k > 0 ) {
+				filter.re[m - k] = chirpRe[k];
+				filter.im[m - k] = -chirpIm[k];
+			}
+		}
+		convolution.transform( filter, false );
+		filterRe = filter.re;
+		filterIm = filter.im;
+		for( int k = 0; k < m; ++k ) {
+			filterRe[k] /= m;
+			filterIm[k] /= m;
+		}
+	}
+
+	public int getLength( ) {
+		return n;
+	}
+
+	/* The smallest length >= n with no prime factors other than 2,
+	   3 and 5; padding to such a length makes the transforms fast. */
+
+	public static int nextFastLength( int n ) {
+		for( int length = Math.max( 1, n ); ; ++length ) {
+			int rest = length;
+			while( rest % 2 == 0 )
+				rest /= 2;
+			while( rest % 3 == 0 )
+				rest /= 3;
+			while( rest % 5 == 0 )
+				rest /= 5;
+			if( rest == 1 )
+				return length;
+		}
+	}
+
+	static int largestPrimeFactor( int n ) {
+		int largest = 1;
+		for( int p = 2; p * p <= n; ++p )
+			while( n % p == 0 ) {
+				largest = p;
+				n /= p;
+			}
+		return Math.max( largest, n );
+	}
+
+	/* Radix 4 first, then 2, 3, 5, 7, ...: */
+
+	static int [] factor( int n ) {
+		int [] result = new int[64];
+		int count = 0;
+		int p = 4;
+		do {
+			while( n % p != 0 ) {
+				if( p == 4 )
+					p = 2;
+				else if( p == 2 )
+					p = 3;
+				else
+					p += 2;
+				if( p * p > n )
+					p = n;
+			}
+			n /= p;
+			result[count++] = p;
+			result[count++] = n;
+		} while( n > 1 );
+		int [] factors = new int[count];
+		System.arraycopy( result, 0, factors, 0, count );
+		return factors;
+	}
+
+	/* The data to transform (re and im, of length n) and the
+	   scratch space for one thread: */
+
+	public class Workspace {
+		public final double [] re, im;
+		final double [] outRe, outIm;
+		final double [] scratchRe, scratchIm;
+		final Workspace convolutionWorkspace;
+
+		Workspace( ) {
+			re = new double[n];
+			im = new double[n];
+			if( convolution == null ) {
+				outRe = new double[n];
+				outIm = new double[n];
+				scratchRe = new double[largestRadix];
+				scratchIm = new double[largestRadix];
+				convolutionWorkspace = null;
+			} else {
+				outRe = outIm = scratchRe = scratchIm = null;
+				convolutionWorkspace = convolution.newWorkspace();
+			}
+		}
+	}
+
+	public Workspace newWorkspace( ) {
+		return new Workspace();
+	}
+
+	/* Transforms workspace.re and workspace.im in place: */
+
+	public void transform( Workspace workspace, boolean inverse ) {
+		double [] re = workspace.re, im = workspace.im;
+		// The inverse is the conjugate of the forward transform of the conjugate
+		if( inverse )
+			for( int k = 0; k < n; ++k )
+				im[k] = -im[k];
+
+		if( convolution == null ) {
+			work( workspace, 0, 0, 1, 0 );
+			System.arraycopy( workspace.outRe, 0, re, 0, n );
+			System.arraycopy( workspace.outIm, 0, im, 0, n );
+		} else
+			bluestein( workspace );
+
+		if( inverse ) {
+			double scale = 1.0 / n;
+			for( int k = 0; k < n; ++k ) {
+				re[k] *= scale;
+				im[k] *= -scale;
+			}
+		}
+	}
+
+	/* Transforms re and im (of length n), which may be the arrays
+	   of the workspace: */
+
+	public void transform( double [] re, double [] im, boolean inverse, Workspace workspace ) {
+		if( re != workspace.re ) {
+			System.arraycopy( re, 0, workspace.re, 0, n );
+			System.arraycopy( im, 0, workspace.im, 0, n );
+		}
+		transform( workspace, inverse );
+		if( re != workspace.re ) {
+			System.arraycopy( workspace.re, 0, re, 0, n );
+			System.arraycopy( workspace.im, 0, im, 0, n );
+		}
+	}
+
+	void bluestein( Workspace workspace ) {
+		double [] re = workspace.re, im = workspace.im;
+		Workspace c = workspace.convolutionWorkspace;
+		int m = convolution.n;
+		for( int k = 0; k < n; ++k ) {
+			c.re[k] = re[k] * chirpRe[k] - im[k] * chirpIm[k];
+			c.im[k] = re[k] * chirpIm[k] + im[k] * chirpRe[k];
+		}
+		for( int k = n; k < m; ++k )
+			c.re[k] = c.im[k] = 0;
+		convolution.transform( c, false );
+		// multiply with the filter and transform back via the conjugate
+		for( int k = 0; k < m; ++k ) {
+			double r = c.re[k] * filterRe[k] - c.im[k] * filterIm[k];
+			double i = c.re[k] * filterIm[k] + c.im[k] * filterRe[k];
+			c.re[k] = r;
+			c.im[k] = -i;
+		}
+		convolution.transform( c, false );
+		for( int k = 0; k < n; ++k ) {
+			double r = c.re[k], i = -c.im[k];
+			re[k] = r * chirpRe[k] - i * chirpIm[k];
+			im[k] = r * chirpIm[k] + i * chirpRe[k];
+		}
+	}
+
+	/* Transforms the values of workspace.re / im at in, in + stride,
+	   ... into workspace.outRe / outIm at out, with the factors from
+	   factorIndex on. */
+
+	void work( Workspace workspace, int out, int in, int stride, int factorIndex ) {
+		int p = factors[factorIndex], m = factors[factorIndex + 1];
+		int end = out + p * m;
+		if( m == 1 ) {
+			double [] re = workspace.re, im = workspace.im;
+			double [] outRe = workspace.outRe, outIm = workspace.outIm;
+			for( int o = out; o < end; ++o, in += stride ) {
+				outRe[o] = re[in];
+				outIm[o] = im[in];
+			}
+		} else
+			for( int o = out; o < end; o += m, in += stride )
+				work( workspace, o, in, stride * p, factorIndex + 2 );
+
+		switch( p ) {
+		case 2: butterfly2( workspace.outRe, workspace.outIm, out, stride, m ); break;
+		case 3: butterfly3( workspace.outRe, workspace.outIm, out, stride, m ); break;
+		case 4: butterfly4( workspace.outRe, workspace.outIm, out, stride, m ); break;
+		case 5: butterfly5( workspace.outRe, workspace.outIm, out, stride, m ); break;
+		default: butterfly( workspace, out, stride, m, p );
+		}
+	}
+
+	void butterfly2( double [] re, double [] im, int out, int stride, int m ) {
+		for( int k = 0; k < m; ++k ) {
+			int a = out + k, b = a + m, t = k * stride;
+			double tr = re[b] * twiddleRe[t] - im[b] * twiddleIm[t];
+			double ti = re[b] * twiddleIm[t] + im[b] * twiddleRe[t];
+			re[b] = re[a] - tr;
+			im[b] = im[a] - ti;
+			re[a] += tr;
+			im[a] += ti;
+		}
+	}
+
+	void butterfly3( double [] re, double [] im, int out, int stride, int m ) {
+		double sinThird = twiddleIm[stride * m];
+		for( int k = 0; k < m; ++k ) {
+			int a = out + k, b = a + m, c = b + m;
+			int t1 = k * stride, t2 = 2 * t1;
+			double s1r = re[b] * twiddleRe[t1] - im[b] * twiddleIm[t1];
+			double s1i = re[b] * twiddleIm[t1] + im[b] * twiddleRe[t1];
+			double s2r = re[c] * twiddleRe[t2] - im[c] * twiddleIm[t2];
+			double s2i = re[c] * twiddleIm[t2] + im[c] * twiddleRe[t2];
+			double s3r = s1r + s2r, s3i = s1i + s2i;
+			double s0r = (s1r - s2r) * sinThird, s0i = (s1i - s2i) * sinThird;
+			double br = re[a] - s3r / 2, bi = im[a] - s3i / 2;
+			re[a] += s3r;
+			im[a] += s3i;
+			re[c] = br + s0i;
+			im[c] = bi - s0r;
+			re[b] = br - s0i;
+			im[b] = bi + s0r;
+		}
+	}
+
+	void butterfly4( double [] re, double [] im, int out, int stride, int m ) {
+		for( int k = 0; k < m; ++k ) {
+			int a = out + k, b = a + m, c = b + m, d = c + m;
+			int t1 = k * stride, t2 = 2 * t1, t3 = 3 * t1;
+			double s0r = re[b] * twiddleRe[t1] - im[b] * twiddleIm[t1];
+			double s0i = re[b] * twiddleIm[t1] + im[b] * twiddleRe[t1];
+			double s1r = re[c] * twiddleRe[t2] - im[c] * twiddleIm[t2];
+			double s1i = re[c] * twiddleIm[t2] + im[c] * twiddleRe[t2];
+			double s2r = re[d] * twiddleRe[t3] - im[d] * twiddleIm[t3];
+			double s2i = re[d] * twiddleIm[t3] + im[d] * twiddleRe[t3];
+			double s5r = re[a] - s1r, s5i = im[a] - s1i;
+			double ar = re[a] + s1r, ai = im[a] + s1i;
+			double s3r = s0r + s2r, s3i = s0i + s2i;
+			double s4r = s0r - s2r, s4i = s0i - s2i;
+			re[c] = ar - s3r;
+			im[c] = ai - s3i;
+			re[a] = ar + s3r;
+			im[a] = ai + s3i;
+			re[b] = s5r + s4i;
+			im[b] = s5i - s4r;
+			re[d] = s5r - s4i;
+			im[d] = s5i + s4r;
+		}
+	}
+
+	void butterfly5( double [] re, double [] im, int out, int stride, int m ) {
+		double yar = twiddleRe[stride * m], yai = twiddleIm[stride * m];
+		double ybr = twiddleRe[2 * stride * m], ybi = twiddleIm[2 * stride * m];
+		for( int k = 0; k < m; ++k ) {
+			int a = out + k, b = a + m, c = b + m, d = c + m, e = d + m;
+			int t1 = k * stride, t2 = 2 * t1, t3 = 3 * t1, t4 = 4 * t1;
+			double s0r = re[a], s0i = im[a];
+			double s1r = re[b] * twiddleRe[t1] - im[b] * twiddleIm[t1];
+			double s1i = re[b] * twiddleIm[t1] + im[b] * twiddleRe[t1];
+			double s2r = re[c] * twiddleRe[t2] - im[c] * twiddleIm[t2];
+			double s2i = re[c] * twiddleIm[t2] + im[c] * twiddleRe[t2];
+			double s3r = re[d] * twiddleRe[t3] - im[d] * twiddleIm[t3];
+			double s3i = re[d] * twiddleIm[t3] + im[d] * twiddleRe[t3];
+			double s4r = re[e] * twiddleRe[t4] - im[e] * twiddleIm[t4];
+			double s4i = re[e] * twiddleIm[t4] + im[e] * twiddleRe[t4];
+			double s7r = s1r + s4r, s7i = s1i + s4i;
+			double s10r = s1r - s4r, s10i = s1i - s4i;
+			double s8r = s2r + s3r, s8i = s2i + s3i;
+			double s9r = s2r - s3r, s9i = s2i - s3i;
+			re[a] = s0r + s7r + s8r;
+			im[a] = s0i + s7i + s8i;
+			double s5r = s0r + s7r * yar + s8r * ybr;
+			double s5i = s0i + s7i * yar + s8i * ybr;
+			double s6r = s10i * yai + s9i * ybi;
+			double s6i = -s10r * yai - s9r * ybi;
+			re[b] = s5r - s6r;
+			im[b] = s5i - s6i;
+			re[e] = s5r + s6r;
+			im[e] = s5i + s6i;
+			double s11r = s0r + s7r * ybr + s8r * yar;
+			double s11i = s0i + s7i * ybr + s8i * yar;
+			double s12r = -s10i * ybi + s9i * yai;
+			double s12i = s10r * ybi - s9r * yai;
+			re[c] = s11r + s12r;
+			im[c] = s11i + s12i;
+			re[d] = s11r - s12r;
+			im[d] = s11i - s12i;
+		}
+	}
+
+	void butterfly( Workspace workspace, int out, int stride, int m, int p ) {
+		double [] re = workspace.outRe, im = workspace.outIm;
+		double [] scratchRe = workspace.scratchRe, scratchIm = workspace.scratchIm;
+		for( int u = 0; u < m; ++u ) {
+			for( int q = 0, k = out + u; q < p; ++q, k += m ) {
+				scratchRe[q] = re[k];
+				scratchIm[q] = im[k];
+			}
+			for( int q = 0, k = u; q < p; ++q, k += m ) {
+				double sumRe = scratchRe[0], sumIm = scratchIm[0];
+				int t = 0;
+				for( int j = 1; j < p; ++j ) {
+					t += stride * k;
+					if( t >= n )
+						t -= n;
+					sumRe += scratchRe[j] * twiddleRe[t] - scratchIm[j] * twiddleIm[t];
+					sumIm += scratchRe[j] * twiddleIm[t] + scratchIm[j] * twiddleRe[t];
+				}
+				re[out + k] = sumRe;
+				im[out + k] = sumIm;
+			}
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package fft;
+
+/* A plan for discrete Fourier transforms of n real numbers.  The
+   spectrum of real data is conjugate symmetric, so only its first
+   n / 2 + 1 values are calculated.  For even n the data is packed
+   into n / 2 complex numbers (even and odd values as the real and
+   imaginary parts), transformed with a complex FFT of half the
+   length and the two interleaved spectra are separated afterwards;
+   for odd n a complex FFT of length n is used. */
+
+public class RealFFT {
+
+	final int n, spectrumLength;
+	final FFT complex;
+	// exp(-2 pi i k / n) for k <= n / 2, for separating the spectra
+	final double [] twiddleRe, twiddleIm;
+
+	public RealFFT( int n ) {
+		if( n < 1 )
+			throw new IllegalArgumentException( "The length of a Fourier transform must be positive" );
+		this.n = n;
+		spectrumLength = n / 2 + 1;
+		if( n % 2 == 0 ) {
+			complex = new FFT( n / 2 );
+			twiddleRe = new double[spectrumLength];
+			twiddleIm = new double[spectrumLength];
+			for( int k = 0; k < spectrumLength; ++k ) {
+				double angle = -2 * Math.PI * k / n;
+				twiddleRe[k] = Math.cos( angle );
+				twiddleIm[k] = Math.sin( angle );
+			}
+		} else {
+			complex = new FFT( n );
+			twiddleRe = twiddleIm = null;
+		}
+	}
+
+	public int getLength( ) {
+		return n;
+	}
+
+	public int getSpectrumLength( ) {
+		return spectrumLength;
+	}
+
+	/* The data (real, of length n), its spectrum (re and im, of
+	   length n / 2 + 1) and the scratch space for one thread: */
+
+	public class Workspace {
+		public final double [] real;
+		public final double [] re, im;
+		final FFT.Workspace complexWorkspace;
+
+		Workspace( ) {
+			real = new double[n];
+			re = new double[spectrumLength];
+			im = new double[spectrumLength];
+			complexWorkspace = complex.newWorkspace();
+		}
+	}
+
+	public Workspace newWorkspace( ) {
+		return new Workspace();
+	}
+
+	/* Transforms workspace.real into workspace.re and workspace.im: */
+
+	public void forward( Workspace workspace ) {
+		double [] real = workspace.real, re = workspace.re, im = workspace.im;
+		FFT.Workspace c = workspace.complexWorkspace;
+		if( twiddleRe == null ) {
+			System.arraycopy( real, 0, c.re, 0, n );
+			for( int k = 0; k < n; ++k )
+				c.im[k] = 0;
+			complex.transform( c, false );
+			System.arraycopy( c.re, 0, re, 0, spectrumLength );
+			System.arraycopy( c.im, 0, im, 0, spectrumLength );
+			return;
+		}
+
+		int half = n / 2;
+		for( int k = 0; k < half; ++k ) {
+			c.re[k] = real[2 * k];
+			c.im[k] = real[2 * k + 1];
+		}
+		complex.transform( c, false );
+		for( int k = 0; k <= half; ++k ) {
+			int j = k == half ? 0 : k, l = k == 0 ? 0 : half - k;
+			// the spectra of the even and the odd values
+			double evenRe = (c.re[j] + c.re[l]) / 2, evenIm = (c.im[j] - c.im[l]) / 2;
+			double oddRe = (c.im[j] + c.im[l]) / 2, oddIm = -(c.re[j] - c.re[l]) / 2;
+			re[k] = evenRe + oddRe * twiddleRe[k] - oddIm * twiddleIm[k];
+			im[k] = evenIm + oddRe * twiddleIm[k] + oddIm * twiddleRe[k];
+		}
+	}
+
+	/* Transforms the spectrum in workspace.re and workspace.im back
+	   into workspace.real (scaled by 1 / n).  The imaginary parts of
+	   the values which have to be real (the first, and for even n
+	   the last) are ignored. */
+
+	public void inverse( Workspace workspace ) {
+		double [] real = workspace.real, re = workspace.re, im = workspace.im;
+		FFT.Workspace c = workspace.complexWorkspace;
+		if( twiddleRe == null ) {
+			c.re[0] = re[0];
+			c.im[0] = 0;
+			for( int k = 1; k < spectrumLength; ++k ) {
+				c.re[k] = c.re[n - k] = re[k];
+				c.im[k] = im[k];
+				c.im[n - k] = -im[k];
+			}
+			complex.transform( c, true );
+			System.arraycopy( c.re, 0, real, 0, n );
+			return;
+		}
+
+		int half = n / 2;
+		double firstIm = im[0], lastIm = im[half];
+		im[0] = im[half] = 0;
+		for( int k = 0; k < half; ++k ) {
+			int l = half - k;
+			double evenRe = (re[k] + re[l]) / 2, evenIm = (im[k] - im[l]) / 2;
+			// the odd spectrum is (X[k] - conj(X[half - k])) / 2 * exp(2 pi i k / n)
+			double dr = (re[k] - re[l]) / 2, di = (im[k] + im[l]) / 2;
+			double oddRe = dr * twiddleRe[k] + di * twiddleIm[k];
+			double oddIm = di * twiddleRe[k] - dr * twiddleIm[k];
+			c.re[k] = evenRe - oddIm;
+			c.im[k] = evenIm + oddRe;
+		}
+		im[0] = firstIm;
+		im[half] = lastIm;
+		complex.transform( c, true );
+		for( int k = 0; k < half; ++k ) {
+			real[2 * k] = c.re[k];
+			real[2 * k + 1] = c.im[k];
+		}
+	}
+}
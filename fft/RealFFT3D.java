@@ -0,0 +1,267 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package fft;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Threads;
+
+/* Fourier transforms of real width x height x depth images (2D
+   images have a depth of 1 and 1D signals a height of 1, too),
+   which are given as one pixel array per slice, like the ones of an
+   ImageStack.  The image is transformed along x one row at a time,
+   with a RealFFT, and then along y and z in place in the Spectrum.
+   The lines along y and z are transformed a few neighbouring columns
+   at a time, so that every value of the cache lines read is used.
+
+   The rows (or groups of columns) are shared out between the
+   threads, each of which has its own workspaces. */
+
+public class RealFFT3D {
+
+	// the number of columns transformed together along y and z
+	static final int COLUMNS = 8;
+
+	final int width, height, depth, spectrumWidth;
+	final RealFFT rowTransform;
+	final FFT columnTransform, sliceTransform;
+
+	private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+	public RealFFT3D( int width, int height, int depth ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		spectrumWidth = width / 2 + 1;
+		rowTransform = new RealFFT( width );
+		columnTransform = height > 1 ? new FFT( height ) : null;
+		sliceTransform = depth > 1 ? new FFT( depth ) : null;
+	}
+
+	public void setNumberOfThreads( int numberOfThreads ) {
+		this.numberOfThreads = Math.max( 1, numberOfThreads );
+	}
+
+	/* Transforms the image, whose slices may be byte[] (unsigned),
+	   short[] (unsigned) or float[] arrays of width * height values: */
+
+	public Spectrum forward( Object [] slices ) {
+		if( slices.length != depth )
+			throw new IllegalArgumentException( "Expected "+depth+" slices, but got "+slices.length );
+		return forward( slices, width, height );
+	}
+
+	/* Transforms a smaller image (of imageWidth x imageHeight x
+	   slices.length), padded with zeros to the size of the
+	   transform; the rows which are all zero aren't transformed. */
+
+	public Spectrum forward( final Object [] slices, final int imageWidth, final int imageHeight ) {
+		if( imageWidth > width || imageHeight > height || slices.length > depth )
+			throw new IllegalArgumentException( "The image is larger than the transform" );
+		final Spectrum spectrum = new Spectrum( width, height, depth );
+
+		parallel( imageHeight * slices.length, new Task() {
+			RealFFT.Workspace workspace;
+			public void start() {
+				workspace = rowTransform.newWorkspace();
+			}
+			public void run( int row ) {
+				int z = row / imageHeight, y = row % imageHeight;
+				getRow( slices[z], y * imageWidth, imageWidth, workspace.real );
+				rowTransform.forward( workspace );
+				int offset = y * spectrumWidth;
+				float [] re = spectrum.re[z], im = spectrum.im[z];
+				for( int u = 0; u < spectrumWidth; ++u ) {
+					re[offset + u] = (float)workspace.re[u];
+					im[offset + u] = (float)workspace.im[u];
+				}
+			}
+		} );
+		transformColumns( spectrum, false );
+		return spectrum;
+	}
+
+	/* Transforms spectrum back into an image (with one float[] per
+	   slice); the spectrum is overwritten. */
+
+	public float [][] inverse( Spectrum spectrum ) {
+		return inverse( spectrum, width, height, depth );
+	}
+
+	/* The same, but only the first imageWidth x imageHeight x
+	   imageDepth values of the image are calculated: */
+
+	public float [][] inverse( final Spectrum spectrum, final int imageWidth, final int imageHeight, int imageDepth ) {
+		if( spectrum.width != width || spectrum.height != height || spectrum.depth != depth )
+			throw new IllegalArgumentException( "The spectrum has the wrong size" );
+		if( imageWidth > width || imageHeight > height || imageDepth > depth )
+			throw new IllegalArgumentException( "The image is larger than the transform" );
+		transformColumns( spectrum, true );
+		final float [][] result = new float[imageDepth][imageWidth * imageHeight];
+
+		parallel( imageHeight * imageDepth, new Task() {
+			RealFFT.Workspace workspace;
+			public void start() {
+				workspace = rowTransform.newWorkspace();
+			}
+			public void run( int row ) {
+				int z = row / imageHeight, y = row % imageHeight;
+				int offset = y * spectrumWidth;
+				float [] re = spectrum.re[z], im = spectrum.im[z];
+				for( int u = 0; u < spectrumWidth; ++u ) {
+					workspace.re[u] = re[offset + u];
+					workspace.im[u] = im[offset + u];
+				}
+				rowTransform.inverse( workspace );
+				float [] slice = result[z];
+				offset = y * imageWidth;
+				for( int x = 0; x < imageWidth; ++x )
+					slice[offset + x] = (float)workspace.real[x];
+			}
+		} );
+		return result;
+	}
+
+	/* The transforms along y and z; for the inverse, z comes first
+	   (although the order doesn't matter, apart from rounding): */
+
+	void transformColumns( Spectrum spectrum, boolean inverse ) {
+		if( inverse ) {
+			transformAlongZ( spectrum, true );
+			transformAlongY( spectrum, true );
+		} else {
+			transformAlongY( spectrum, false );
+			transformAlongZ( spectrum, false );
+		}
+	}
+
+	void transformAlongY( final Spectrum spectrum, final boolean inverse ) {
+		if( columnTransform == null )
+			return;
+		final int groups = (spectrumWidth + COLUMNS - 1) / COLUMNS;
+		parallel( groups * depth, new Task() {
+			FFT.Workspace [] workspaces;
+			public void start() {
+				workspaces = newWorkspaces( columnTransform );
+			}
+			public void run( int unit ) {
+				int z = unit / groups, u0 = (unit % groups) * COLUMNS;
+				int columns = Math.min( COLUMNS, spectrumWidth - u0 );
+				float [] re = spectrum.re[z], im = spectrum.im[z];
+				for( int y = 0; y < height; ++y ) {
+					int offset = y * spectrumWidth + u0;
+					for( int j = 0; j < columns; ++j ) {
+						workspaces[j].re[y] = re[offset + j];
+						workspaces[j].im[y] = im[offset + j];
+					}
+				}
+				for( int j = 0; j < columns; ++j )
+					columnTransform.transform( workspaces[j], inverse );
+				for( int y = 0; y < height; ++y ) {
+					int offset = y * spectrumWidth + u0;
+					for( int j = 0; j < columns; ++j ) {
+						re[offset + j] = (float)workspaces[j].re[y];
+						im[offset + j] = (float)workspaces[j].im[y];
+					}
+				}
+			}
+		} );
+	}
+
+	void transformAlongZ( final Spectrum spectrum, final boolean inverse ) {
+		if( sliceTransform == null )
+			return;
+		final int groups = (spectrumWidth + COLUMNS - 1) / COLUMNS;
+		parallel( groups * height, new Task() {
+			FFT.Workspace [] workspaces;
+			public void start() {
+				workspaces = newWorkspaces( sliceTransform );
+			}
+			public void run( int unit ) {
+				int y = unit / groups, u0 = (unit % groups) * COLUMNS;
+				int columns = Math.min( COLUMNS, spectrumWidth - u0 );
+				int offset = y * spectrumWidth + u0;
+				for( int z = 0; z < depth; ++z ) {
+					float [] re = spectrum.re[z], im = spectrum.im[z];
+					for( int j = 0; j < columns; ++j ) {
+						workspaces[j].re[z] = re[offset + j];
+						workspaces[j].im[z] = im[offset + j];
+					}
+				}
+				for( int j = 0; j < columns; ++j )
+					sliceTransform.transform( workspaces[j], inverse );
+				for( int z = 0; z < depth; ++z ) {
+					float [] re = spectrum.re[z], im = spectrum.im[z];
+					for( int j = 0; j < columns; ++j ) {
+						re[offset + j] = (float)workspaces[j].re[z];
+						im[offset + j] = (float)workspaces[j].im[z];
+					}
+				}
+			}
+		} );
+	}
+
+	static FFT.Workspace [] newWorkspaces( FFT transform ) {
+		FFT.Workspace [] workspaces = new FFT.Workspace[COLUMNS];
+		for( int j = 0; j < COLUMNS; ++j )
+			workspaces[j] = transform.newWorkspace();
+		return workspaces;
+	}
+
+	/* Copies n values of pixels from offset to row, followed by
+	   zeros: */
+
+	static void getRow( Object pixels, int offset, int n, double [] row ) {
+		if( pixels instanceof byte [] ) {
+			byte [] p = (byte [])pixels;
+			for( int x = 0; x < n; ++x )
+				row[x] = p[offset + x] & 0xff;
+		} else if( pixels instanceof short [] ) {
+			short [] p = (short [])pixels;
+			for( int x = 0; x < n; ++x )
+				row[x] = p[offset + x] & 0xffff;
+		} else if( pixels instanceof float [] ) {
+			float [] p = (float [])pixels;
+			for( int x = 0; x < n; ++x )
+				row[x] = p[offset + x];
+		} else
+			throw new IllegalArgumentException( "Byte, short or float slices expected" );
+		for( int x = n; x < row.length; ++x )
+			row[x] = 0;
+	}
+
+	/* Something done for each of n units (rows or groups of
+	   columns).  Each thread works with its own (shallow) copy of
+	   the task, and calls start() on it to allocate its workspaces
+	   before running any of the units. */
+
+	abstract static class Task implements Cloneable {
+		// called once by each thread, before any run( i )
+		public abstract void start();
+		public abstract void run( int unit );
+
+		Task copy( ) {
+			try {
+				return (Task)clone();
+			} catch( CloneNotSupportedException e ) {
+				throw new RuntimeException( e );
+			}
+		}
+	}
+
+	/* Calls run( i ) for i = 0 ... n - 1 on the threads (each with
+	   its own copy of task) and waits until all are done; whatever
+	   one of them throws is rethrown here. */
+
+	void parallel( final int n, final Task task ) {
+		final AtomicInteger next = new AtomicInteger( 0 );
+		Threads.run( new Runnable() {
+			public void run() {
+				Task copy = task.copy();
+				copy.start();
+				for( int i = next.getAndIncrement(); i < n; i = next.getAndIncrement() )
+					copy.run( i );
+			}
+		}, Math.min( numberOfThreads, n ) );
+	}
+}
@@ -0,0 +1,81 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package fft;
+
+/* The Fourier transform of a real width x height x depth image, as
+   calculated by RealFFT3D.  Since it is conjugate symmetric, only
+   the first width / 2 + 1 columns (the non-negative frequencies in
+   x) are kept, for all the frequencies in y and z.  The frequencies
+   are in the usual order, i.e. 0, 1, ..., followed by the negative
+   ones.  The values are stored slice by slice, like an ImageStack,
+   so there can be more than 2^31 of them. */
+
+public class Spectrum {
+
+	// the dimensions of the real image
+	public final int width, height, depth;
+	// the number of columns stored
+	public final int spectrumWidth;
+	public final float [][] re, im;
+
+	public Spectrum( int width, int height, int depth ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		spectrumWidth = width / 2 + 1;
+		re = new float[depth][spectrumWidth * height];
+		im = new float[depth][spectrumWidth * height];
+	}
+
+	void checkSize( Spectrum other ) {
+		if( other.width != width || other.height != height || other.depth != depth )
+			throw new IllegalArgumentException( "The spectra have different sizes" );
+	}
+
+	/* Multiplies this spectrum with other, which convolves the
+	   images (cyclically): */
+
+	public void multiply( Spectrum other ) {
+		checkSize( other );
+		for( int z = 0; z < depth; ++z ) {
+			float [] r1 = re[z], i1 = im[z], r2 = other.re[z], i2 = other.im[z];
+			for( int i = 0; i < r1.length; ++i ) {
+				float r = r1[i] * r2[i] - i1[i] * i2[i];
+				i1[i] = r1[i] * i2[i] + i1[i] * r2[i];
+				r1[i] = r;
+			}
+		}
+	}
+
+	/* Multiplies this spectrum with the complex conjugate of other
+	   (which may be this spectrum), which correlates the images
+	   (cyclically): */
+
+	public void multiplyConjugate( Spectrum other ) {
+		checkSize( other );
+		for( int z = 0; z < depth; ++z ) {
+			float [] r1 = re[z], i1 = im[z], r2 = other.re[z], i2 = other.im[z];
+			for( int i = 0; i < r1.length; ++i ) {
+				float r = r1[i] * r2[i] + i1[i] * i2[i];
+				i1[i] = i1[i] * r2[i] - r1[i] * i2[i];
+				r1[i] = r;
+			}
+		}
+	}
+
+	/* The value at the frequencies (u, v, w), each of which may be
+	   any value from 0 to the dimension - 1, using the symmetry for
+	   the columns which aren't stored: */
+
+	public float getRe( int u, int v, int w ) {
+		if( u < spectrumWidth )
+			return re[w][v * spectrumWidth + u];
+		return re[(depth - w) % depth][((height - v) % height) * spectrumWidth + width - u];
+	}
+
+	public float getIm( int u, int v, int w ) {
+		if( u < spectrumWidth )
+			return im[w][v * spectrumWidth + u];
+		return -im[(depth - w) % depth][((height - v) % height) * spectrumWidth + width - u];
+	}
+}
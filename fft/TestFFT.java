@@ -0,0 +1,171 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package fft;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/* Compares the transforms with the discrete Fourier transform
+   evaluated directly from its definition. */
+
+public class TestFFT {
+
+	/* The forward transform, sum_j x_j exp(-2 pi i jk / n), of re
+	   and im into resultRe and resultIm: */
+
+	static void naiveDFT( double [] re, double [] im, double [] resultRe, double [] resultIm ) {
+		int n = re.length;
+		for( int k = 0; k < n; ++k ) {
+			double sumRe = 0, sumIm = 0;
+			for( int j = 0; j < n; ++j ) {
+				// (j * k) % n keeps the angle exact for large n
+				double angle = -2 * Math.PI * (((long)j * k) % n) / n;
+				double c = Math.cos( angle ), s = Math.sin( angle );
+				sumRe += re[j] * c - im[j] * s;
+				sumIm += re[j] * s + im[j] * c;
+			}
+			resultRe[k] = sumRe;
+			resultIm[k] = sumIm;
+		}
+	}
+
+	static double [] random( int n, Random random ) {
+		double [] result = new double[n];
+		for( int i = 0; i < n; ++i )
+			result[i] = random.nextDouble() * 2 - 1;
+		return result;
+	}
+
+	void checkComplex( int n, Random random ) {
+		double [] re = random( n, random ), im = random( n, random );
+		double [] expectRe = new double[n], expectIm = new double[n];
+		naiveDFT( re, im, expectRe, expectIm );
+
+		FFT fft = new FFT( n );
+		FFT.Workspace workspace = fft.newWorkspace();
+		System.arraycopy( re, 0, workspace.re, 0, n );
+		System.arraycopy( im, 0, workspace.im, 0, n );
+		fft.transform( workspace, false );
+		double tolerance = 1e-9 * n;
+		for( int k = 0; k < n; ++k ) {
+			assertEquals( "re[" + k + "] for n = " + n, expectRe[k], workspace.re[k], tolerance );
+			assertEquals( "im[" + k + "] for n = " + n, expectIm[k], workspace.im[k], tolerance );
+		}
+
+		// The inverse is scaled by 1 / n:
+		fft.transform( workspace, true );
+		for( int j = 0; j < n; ++j ) {
+			assertEquals( "inverse re[" + j + "] for n = " + n, re[j], workspace.re[j], 1e-12 * n );
+			assertEquals( "inverse im[" + j + "] for n = " + n, im[j], workspace.im[j], 1e-12 * n );
+		}
+	}
+
+	@Test
+	public void testComplex() {
+		Random random = new Random( 1 );
+		for( int n = 1; n <= 200; ++n )
+			checkComplex( n, random );
+		// Large primes (and a multiple of one), done with Bluestein's algorithm:
+		int [] large = { 257, 1009, 2 * 1013, 4099 };
+		for( int i = 0; i < large.length; ++i )
+			checkComplex( large[i], random );
+	}
+
+	void checkReal( int n, Random random ) {
+		double [] real = random( n, random );
+		double [] expectRe = new double[n], expectIm = new double[n];
+		naiveDFT( real, new double[n], expectRe, expectIm );
+
+		RealFFT fft = new RealFFT( n );
+		assertEquals( n / 2 + 1, fft.getSpectrumLength() );
+		RealFFT.Workspace workspace = fft.newWorkspace();
+		System.arraycopy( real, 0, workspace.real, 0, n );
+		fft.forward( workspace );
+		double tolerance = 1e-9 * n;
+		for( int k = 0; k <= n / 2; ++k ) {
+			assertEquals( "re[" + k + "] for n = " + n, expectRe[k], workspace.re[k], tolerance );
+			assertEquals( "im[" + k + "] for n = " + n, expectIm[k], workspace.im[k], tolerance );
+		}
+
+		Arrays.fill( workspace.real, 0 );
+		fft.inverse( workspace );
+		for( int j = 0; j < n; ++j )
+			assertEquals( "inverse [" + j + "] for n = " + n, real[j], workspace.real[j], 1e-12 * n );
+	}
+
+	@Test
+	public void testReal() {
+		Random random = new Random( 2 );
+		// Both odd and even lengths:
+		for( int n = 1; n <= 200; ++n )
+			checkReal( n, random );
+		int [] large = { 257, 1024, 2 * 1009, 4099 };
+		for( int i = 0; i < large.length; ++i )
+			checkReal( large[i], random );
+	}
+
+	/* The image is w x h x d, of which the slices hold the first
+	   imageWidth x imageHeight voxels and the rest is zero: */
+
+	void checkReal3D( int w, int h, int d, int imageWidth, int imageHeight, int threads, Random random ) {
+		String size = w + "x" + h + "x" + d + " (" + imageWidth + "x" + imageHeight + "), " + threads + " thread(s)";
+		float [][] slices = new float[d][imageWidth * imageHeight];
+		double [][][] image = new double[d][h][w];
+		for( int z = 0; z < d; ++z )
+			for( int y = 0; y < imageHeight; ++y )
+				for( int x = 0; x < imageWidth; ++x )
+					image[z][y][x] = slices[z][y * imageWidth + x] = random.nextFloat() * 2 - 1;
+
+		RealFFT3D fft = new RealFFT3D( w, h, d );
+		fft.setNumberOfThreads( threads );
+		Spectrum spectrum = fft.forward( slices, imageWidth, imageHeight );
+
+		// The values are floats, so the tolerance is relative to the sum of their magnitudes:
+		double tolerance = 1e-5 * w * h * d;
+		for( int k = 0; k < d; ++k )
+			for( int v = 0; v < h; ++v )
+				for( int u = 0; u < w; ++u ) {
+					double sumRe = 0, sumIm = 0;
+					for( int z = 0; z < d; ++z )
+						for( int y = 0; y < h; ++y )
+							for( int x = 0; x < w; ++x ) {
+								double angle = -2 * Math.PI * ((double)x * u / w + (double)y * v / h + (double)z * k / d);
+								sumRe += image[z][y][x] * Math.cos( angle );
+								sumIm += image[z][y][x] * Math.sin( angle );
+							}
+					assertEquals( "re(" + u + ", " + v + ", " + k + ") for " + size, sumRe, spectrum.getRe( u, v, k ), tolerance );
+					assertEquals( "im(" + u + ", " + v + ", " + k + ") for " + size, sumIm, spectrum.getIm( u, v, k ), tolerance );
+				}
+
+		float [][] inverse = fft.inverse( spectrum );
+		assertEquals( d, inverse.length );
+		for( int z = 0; z < d; ++z )
+			for( int y = 0; y < h; ++y )
+				for( int x = 0; x < w; ++x )
+					assertEquals( "inverse (" + x + ", " + y + ", " + z + ") for " + size,
+						      image[z][y][x], inverse[z][y * w + x], 1e-5 );
+	}
+
+	@Test
+	public void testReal3D() {
+		Random random = new Random( 3 );
+		int [][] sizes = {
+			{ 1, 1, 1, 1, 1 },
+			{ 7, 1, 1, 7, 1 },
+			{ 8, 6, 1, 8, 6 },
+			{ 5, 4, 3, 5, 4 },
+			{ 6, 5, 4, 6, 5 },
+			{ 9, 12, 7, 9, 12 },
+			// padded with zeros:
+			{ 10, 9, 6, 7, 5 },
+			// a prime along y, done with Bluestein's algorithm:
+			{ 4, 37, 2, 3, 37 }
+		};
+		for( int s = 0; s < sizes.length; ++s )
+			for( int threads = 1; threads <= 3; threads += 2 )
+				checkReal3D( sizes[s][0], sizes[s][1], sizes[s][2], sizes[s][3], sizes[s][4], threads, random );
+	}
+}
@@ -28,7 +28,7 @@ import javax.media.j3d.*;
 import javax.vecmath.*;
 
 import java.io.File;
-import octree.FilePreparer;
+import octree.OctreeBuilder;
 import octree.VolumeOctree;
 
 import java.util.concurrent.Future;
@@ -429,24 +429,27 @@ public class Image3DUniverse extends DefaultAnimatableUniverse {
 	 * plugin.
 	 */
 	/*
-	 * Requires an empty directory.
-	 */
-// 	public VolumeOctree createAndAddOctree(
-// 			String imagePath, String dir, String name) {
-// 		File outdir = new File(dir);
-// 		if(!outdir.exists())
-// 			outdir.mkdir();
-// 		if(!outdir.isDirectory()) {
-// 			throw new RuntimeException("Not a directory");
-// 		}
-// 		try {
-// 			new FilePreparer(imagePath, VolumeOctree.SIZE, dir).createFiles();
-// 			return addOctree(dir, name);
-// 		} catch(Exception e) {
-// 			e.printStackTrace();
-// 			throw new RuntimeException(e);
-// 		}
-// 	}
+	 * Requires an empty directory. rawPath is an uncompressed 8-bit
+	 * volume of the given dimensions and voxel size.
+	 */
+	public VolumeOctree createAndAddOctree(String rawPath,
+			int w, int h, int d, double pw, double ph, double pd,
+			String dir, String name) {
+		File outdir = new File(dir);
+		if(!outdir.exists())
+			outdir.mkdir();
+		if(!outdir.isDirectory()) {
+			throw new RuntimeException("Not a directory");
+		}
+		try {
+			OctreeBuilder.createFiles(rawPath, VolumeOctree.SIZE,
+				dir, w, h, d, pw, ph, pd);
+			return addOctree(dir, name);
+		} catch(Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
 	 * @deprecated The octree methods will be outsourced into a different
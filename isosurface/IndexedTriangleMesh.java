@@ -0,0 +1,133 @@
+package isosurface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * A triangle mesh stored as an array of vertex coordinates and an array
+ * of vertex indices, three per triangle. Vertices which are shared by
+ * several triangles are only stored once.
+ */
+public class IndexedTriangleMesh {
+
+	private float[] vertices;
+	private int[] indices;
+	private int nVertices;
+	private int nIndices;
+
+	public IndexedTriangleMesh() {
+		this(1024, 1024);
+	}
+
+	public IndexedTriangleMesh(int vertexCapacity, int triangleCapacity) {
+		vertices = new float[3 * Math.max(1, vertexCapacity)];
+		indices = new int[3 * Math.max(1, triangleCapacity)];
+	}
+
+	/**
+	 * Creates a mesh from the given arrays, which are used directly.
+	 */
+	public IndexedTriangleMesh(float[] vertices, int[] indices) {
+		this.vertices = vertices;
+		this.indices = indices;
+		this.nVertices = vertices.length / 3;
+		this.nIndices = indices.length;
+	}
+
+	/**
+	 * Adds a vertex and returns its index.
+	 */
+	public int addVertex(float x, float y, float z) {
+		if(3 * nVertices + 3 > vertices.length) {
+			float[] tmp = new float[2 * vertices.length];
+			System.arraycopy(vertices, 0, tmp, 0, 3 * nVertices);
+			vertices = tmp;
+		}
+		int offs = 3 * nVertices;
+		vertices[offs] = x;
+		vertices[offs + 1] = y;
+		vertices[offs + 2] = z;
+		return nVertices++;
+	}
+
+	public void addTriangle(int i0, int i1, int i2) {
+		if(nIndices + 3 > indices.length) {
+			int[] tmp = new int[2 * indices.length];
+			System.arraycopy(indices, 0, tmp, 0, nIndices);
+			indices = tmp;
+		}
+		indices[nIndices++] = i0;
+		indices[nIndices++] = i1;
+		indices[nIndices++] = i2;
+	}
+
+	public int getVertexCount() {
+		return nVertices;
+	}
+
+	public int getTriangleCount() {
+		return nIndices / 3;
+	}
+
+	/**
+	 * Returns the vertex coordinates, x, y and z for each vertex.
+	 * The array may be longer than 3 * getVertexCount().
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Returns the vertex indices, three for each triangle.
+	 * The array may be longer than 3 * getTriangleCount().
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Shrinks the arrays to the number of vertices and indices
+	 * actually used.
+	 */
+	public void trim() {
+		if(vertices.length != 3 * nVertices) {
+			float[] tmp = new float[3 * nVertices];
+			System.arraycopy(vertices, 0, tmp, 0, tmp.length);
+			vertices = tmp;
+		}
+		if(indices.length != nIndices) {
+			int[] tmp = new int[nIndices];
+			System.arraycopy(indices, 0, tmp, 0, nIndices);
+			indices = tmp;
+		}
+	}
+
+	/**
+	 * Transforms the vertices by x' = x * sx + tx etc.
+	 */
+	public void scaleAndTranslate(double sx, double sy, double sz,
+			double tx, double ty, double tz) {
+		for(int i = 0; i < 3 * nVertices; i += 3) {
+			vertices[i]     = (float)(vertices[i]     * sx + tx);
+			vertices[i + 1] = (float)(vertices[i + 1] * sy + ty);
+			vertices[i + 2] = (float)(vertices[i + 2] * sz + tz);
+		}
+	}
+
+	/**
+	 * Returns the triangles in the form the Triangulator interface
+	 * uses: a list of points, three subsequent ones specifying
+	 * a triangle. Each entry is a new Point3f.
+	 */
+	public List<Point3f> toTriangleList() {
+		List<Point3f> ret = new ArrayList<Point3f>(nIndices);
+		for(int i = 0; i < nIndices; i++) {
+			int offs = 3 * indices[i];
+			ret.add(new Point3f(vertices[offs],
+				vertices[offs + 1], vertices[offs + 2]));
+		}
+		return ret;
+	}
+}
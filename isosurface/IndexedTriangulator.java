@@ -0,0 +1,17 @@
+package isosurface;
+
+import ij.ImagePlus;
+
+/**
+ * A Triangulator which can also return its result as an indexed mesh,
+ * which needs much less memory than a list of Point3f.
+ */
+public interface IndexedTriangulator extends Triangulator {
+	/**
+	 * Returns the same triangles as getTriangles(), but with the
+	 * vertices which are shared between triangles stored only once.
+	 * @see Triangulator#getTriangles
+	 */
+	public IndexedTriangleMesh getIndexedTriangles(ImagePlus image,
+			int threshold, boolean[] channels, int resamplingF);
+}
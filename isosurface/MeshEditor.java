@@ -8,6 +8,7 @@ import javax.vecmath.Point3f;
 import customnode.CustomTriangleMesh;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -20,6 +21,12 @@ public class MeshEditor {
 	 * fraction K (0, 1). 
 	 */
 	static public void smooth(final CustomTriangleMesh c, final float K) {
+		// getMesh() would convert an indexed mesh to a list of points
+		final IndexedTriangleMesh indexed = c.getIndexedMesh();
+		if (null != indexed) {
+			smooth(indexed, K);
+			return;
+		}
 		final List triangles = c.getMesh();
 		if (0 != triangles.size() % 3) {
 			System.out.println("MeshEditor.smooth: need a list of points multiple of 3.");
@@ -54,6 +61,58 @@ public class MeshEditor {
 		// done!
 	}
 
+	/**
+	 * Smooth an indexed mesh by the fraction K (0, 1): each vertex is
+	 * moved towards the mean of the vertices it shares an edge with.
+	 * Equal points are a single vertex here, so unlike in the list
+	 * of points all vertices are moved from their old positions.
+	 */
+	static public void smooth(final IndexedTriangleMesh m, final float K) {
+		final int nv = m.getVertexCount();
+		final int ni = 3 * m.getTriangleCount();
+		final int[] index = m.getIndices();
+		final float[] v = m.getVertices();
+		// for each vertex, the other two corners of each triangle it is part of
+		final int[] start = new int[nv + 1];
+		for (int i=0; i<ni; i++) start[index[i] + 1] += 2;
+		for (int i=0; i<nv; i++) start[i + 1] += start[i];
+		final int[] neighbours = new int[2 * ni];
+		final int[] fill = new int[nv];
+		for (int t=0; t<ni; t+=3) {
+			for (int c=0; c<3; c++) {
+				int a = index[t + c];
+				neighbours[start[a] + fill[a]++] = index[t + (c + 1) % 3];
+				neighbours[start[a] + fill[a]++] = index[t + (c + 2) % 3];
+			}
+		}
+		final float[] smoothed = new float[3 * nv];
+		for (int i=0; i<nv; i++) {
+			// count each neighbour once
+			Arrays.sort(neighbours, start[i], start[i + 1]);
+			float vx = 0, vy = 0, vz = 0;
+			int size = 0;
+			for (int e=start[i]; e<start[i + 1]; e++) {
+				if (e > start[i] && neighbours[e] == neighbours[e - 1]) continue;
+				int o = 3 * neighbours[e];
+				vx += v[o];
+				vy += v[o + 1];
+				vz += v[o + 2];
+				size++;
+			}
+			int o = 3 * i;
+			if (0 == size) {
+				smoothed[o] = v[o];
+				smoothed[o + 1] = v[o + 1];
+				smoothed[o + 2] = v[o + 2];
+				continue;
+			}
+			smoothed[o] = v[o] + (vx/size - v[o]) * K;
+			smoothed[o + 1] = v[o + 1] + (vy/size - v[o + 1]) * K;
+			smoothed[o + 2] = v[o + 2] + (vz/size - v[o + 2]) * K;
+		}
+		System.arraycopy(smoothed, 0, v, 0, 3 * nv);
+	}
+
 	/** Represents one point in 3D space that appears in multiple instances within the triangles list. */
 	static private class PointGroup {
 		Point3f first;
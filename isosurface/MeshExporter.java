@@ -5,6 +5,7 @@ import ij3d.Content;
 import ij3d.ContentNode;
 import customnode.CustomMeshNode;
 import customnode.CustomMesh;
+import customnode.CustomTriangleMesh;
 
 import ij.IJ;
 import ij.io.SaveDialog;
@@ -148,11 +149,12 @@ public class MeshExporter {
 			} else
 				continue;
 
-			final List triangles = cmesh.getMesh();
-
 			String title = ob.getName().replaceAll(" ", "_").replaceAll("#", "--");
 			Mtl mat = new Mtl(1 - ob.getTransparency(), cmesh.getColor());
-			writeTrianglesDXF(w, triangles, title, "" + mat.getAsSingle());
+			// getMesh() would convert an indexed mesh to a list of points
+			IndexedTriangleMesh indexed = getIndexedMesh(cmesh);
+			if (null != indexed) writeTrianglesDXF(w, indexed, title, "" + mat.getAsSingle());
+			else writeTrianglesDXF(w, cmesh.getMesh(), title, "" + mat.getAsSingle());
 		}
 		w.append("0\nENDSEC\n0\nEOF\n");         //TRAILER of the file
 	}
@@ -179,11 +181,7 @@ public class MeshExporter {
 
 	static private void writeTrianglesDXF(final Writer w, final List triangles, final String the_group, final String the_color) throws IOException {
 
-		final char L = '\n';
-		final String s10 = "10\n"; final String s11 = "11\n"; final String s12 = "12\n"; final String s13 = "13\n";
-		final String s20 = "20\n"; final String s21 = "21\n"; final String s22 = "22\n"; final String s23 = "23\n";
-		final String s30 = "30\n"; final String s31 = "31\n"; final String s32 = "32\n"; final String s33 = "33\n";
-		final String triangle_header = "0\n3DFACE\n8\n" + the_group + "\n6\nCONTINUOUS\n62\n" + the_color + L;
+		final String triangle_header = "0\n3DFACE\n8\n" + the_group + "\n6\nCONTINUOUS\n62\n" + the_color + '\n';
 
 		final int len = triangles.size();
 		final Point3f[] vert = new Point3f[len];
@@ -192,31 +190,72 @@ public class MeshExporter {
 		final StringBuffer sb = new StringBuffer(150);
 
 		for (int i=0; i<len; i+=3) {
+			writeTriangleDXF(w, sb, triangle_header,
+					 vert[i].x, vert[i].y, vert[i].z,
+					 vert[i+1].x, vert[i+1].y, vert[i+1].z,
+					 vert[i+2].x, vert[i+2].y, vert[i+2].z);
+		}
+	}
 
-			w.write(triangle_header);
-
-			sb
-			.append(s10).append(vert[i].x).append(L)
-			.append(s20).append(vert[i].y).append(L)
-			.append(s30).append(vert[i].z).append(L)
+	static private void writeTrianglesDXF(final Writer w, final IndexedTriangleMesh mesh, final String the_group, final String the_color) throws IOException {
 
-			.append(s11).append(vert[i+1].x).append(L)
-			.append(s21).append(vert[i+1].y).append(L)
-			.append(s31).append(vert[i+1].z).append(L)
+		final String triangle_header = "0\n3DFACE\n8\n" + the_group + "\n6\nCONTINUOUS\n62\n" + the_color + '\n';
 
-			.append(s12).append(vert[i+2].x).append(L)
-			.append(s22).append(vert[i+2].y).append(L)
-			.append(s32).append(vert[i+2].z).append(L)
+		final float[] v = mesh.getVertices();
+		final int[] index = mesh.getIndices();
+		final int len = 3 * mesh.getTriangleCount();
 
-			.append(s13).append(vert[i+2].x).append(L) // repeated point
-			.append(s23).append(vert[i+2].y).append(L)
-			.append(s33).append(vert[i+2].z).append(L);
+		final StringBuffer sb = new StringBuffer(150);
 
-			w.write(sb.toString());
-			sb.setLength(0);
+		for (int i=0; i<len; i+=3) {
+			final int i0 = 3 * index[i], i1 = 3 * index[i+1], i2 = 3 * index[i+2];
+			writeTriangleDXF(w, sb, triangle_header,
+					 v[i0], v[i0+1], v[i0+2],
+					 v[i1], v[i1+1], v[i1+2],
+					 v[i2], v[i2+1], v[i2+2]);
 		}
 	}
 
+	static private void writeTriangleDXF(final Writer w, final StringBuffer sb, final String triangle_header,
+					     final float x0, final float y0, final float z0,
+					     final float x1, final float y1, final float z1,
+					     final float x2, final float y2, final float z2) throws IOException {
+
+		final char L = '\n';
+		final String s10 = "10\n"; final String s11 = "11\n"; final String s12 = "12\n"; final String s13 = "13\n";
+		final String s20 = "20\n"; final String s21 = "21\n"; final String s22 = "22\n"; final String s23 = "23\n";
+		final String s30 = "30\n"; final String s31 = "31\n"; final String s32 = "32\n"; final String s33 = "33\n";
+
+		w.write(triangle_header);
+
+		sb
+		.append(s10).append(x0).append(L)
+		.append(s20).append(y0).append(L)
+		.append(s30).append(z0).append(L)
+
+		.append(s11).append(x1).append(L)
+		.append(s21).append(y1).append(L)
+		.append(s31).append(z1).append(L)
+
+		.append(s12).append(x2).append(L)
+		.append(s22).append(y2).append(L)
+		.append(s32).append(z2).append(L)
+
+		.append(s13).append(x2).append(L) // repeated point
+		.append(s23).append(y2).append(L)
+		.append(s33).append(z2).append(L);
+
+		w.write(sb.toString());
+		sb.setLength(0);
+	}
+
+	/** Returns the indexed mesh of a CustomTriangleMesh, or null if it is a list of points. */
+	static private IndexedTriangleMesh getIndexedMesh(final CustomMesh cmesh) {
+		if (cmesh instanceof CustomTriangleMesh)
+			return ((CustomTriangleMesh)cmesh).getIndexedMesh();
+		return null;
+	}
+
 	/**
 	 * Expects a collection of MeshGroup objects, and the material file name to point to.
 	 * Returns two String objects:
@@ -265,7 +304,6 @@ public class MeshExporter {
 			} else
 				continue;
 
-			final List triangles = cmesh.getMesh();
 			// make material, and see whether it exists already
 			Mtl mat = new Mtl(1 - mob.getTransparency(), cmesh.getColor());
 			Object mat2 = ht_mat.get(mat);
@@ -273,6 +311,13 @@ public class MeshExporter {
 			else ht_mat.put(mat, mat); // !@#$% Can't get the object in a HashSet easily
 			// make list of vertices
 			String title = mob.getName().replaceAll(" ", "_").replaceAll("#", "--");
+			IndexedTriangleMesh indexed = getIndexedMesh(cmesh);
+			if (null != indexed) {
+				// the vertices are already unique, so they can be written as they are
+				j = writeAsWaveFront(indexed, title, mat, j, w_obj);
+				continue;
+			}
+			final List triangles = cmesh.getMesh();
 			Hashtable ht_points = new Hashtable(); // because we like inefficiency
 			w_obj.write("g ");
 			w_obj.write(title);
@@ -333,6 +378,38 @@ public class MeshExporter {
 		}
 	}
 
+	/** Writes one indexed mesh as a group, and returns the index of the next vertex. */
+	static private int writeAsWaveFront(final IndexedTriangleMesh mesh, final String title, final Mtl mat, int j, final Writer w_obj) throws IOException {
+		final StringBuffer tmp = new StringBuffer(100);
+		w_obj.write("g ");
+		w_obj.write(title);
+		w_obj.write('\n');
+		final float[] v = mesh.getVertices();
+		final int nv = mesh.getVertexCount();
+		for (int i=0; i<3*nv; i+=3) {
+			tmp.append('v').append(' ')
+			   .append(v[i]).append(' ')
+			   .append(v[i+1]).append(' ')
+			   .append(v[i+2]).append('\n');
+			w_obj.write(tmp.toString());
+			tmp.setLength(0);
+		}
+		w_obj.write("usemtl "); w_obj.write(mat.name); w_obj.write('\n');
+		w_obj.write("s 1\n");
+		final int[] index = mesh.getIndices();
+		final int len = 3 * mesh.getTriangleCount();
+		for (int i=0; i<len; i+=3) {
+			tmp.append('f').append(' ')
+			   .append(index[i] + j).append(' ')
+			   .append(index[i+1] + j).append(' ')
+			   .append(index[i+2] + j).append('\n');
+			w_obj.write(tmp.toString());
+			tmp.setLength(0);
+		}
+		w_obj.write('\n');
+		return j + nv;
+	}
+
 	/** A Material, but avoiding name colisions. Not thread-safe. */
 	static private int mat_index = 1;
 	static private class Mtl {
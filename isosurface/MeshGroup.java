@@ -26,15 +26,25 @@ public class MeshGroup extends ContentNode {
 		super();
 		this.c = c;
 		Color3f color = c.getColor();
-		List tri = triangulator.getTriangles(c.getImage(),
-			c.getThreshold(), c.getChannels(),
-			c.getResamplingFactor());
 		if(color == null) {
 			int value = c.getImage().getProcessor().
 				getColorModel().getRGB(c.getThreshold());
 			color = new Color3f(new Color(value));
 		}
-		mesh = new CustomTriangleMesh(tri, color, c.getTransparency());
+		if(triangulator instanceof IndexedTriangulator) {
+			IndexedTriangleMesh tri = ((IndexedTriangulator)
+				triangulator).getIndexedTriangles(c.getImage(),
+				c.getThreshold(), c.getChannels(),
+				c.getResamplingFactor());
+			mesh = new CustomTriangleMesh(tri, color,
+				c.getTransparency());
+		} else {
+			List tri = triangulator.getTriangles(c.getImage(),
+				c.getThreshold(), c.getChannels(),
+				c.getResamplingFactor());
+			mesh = new CustomTriangleMesh(tri, color,
+				c.getTransparency());
+		}
 		calculateMinMaxCenterPoint();
 		addChild(mesh);
 	}
@@ -65,10 +75,7 @@ public class MeshGroup extends ContentNode {
 				"image. Can't change threshold");
 			return;
 		}
-		List tri = triangulator.getTriangles(c.getImage(),
-				c.getThreshold(), c.getChannels(),
-				c.getResamplingFactor());
-		mesh.setMesh(tri);
+		updateMesh();
 	}
 
 	public void channelsUpdated() {
@@ -77,6 +84,17 @@ public class MeshGroup extends ContentNode {
 				"image. Can't change channels");
 			return;
 		}
+		updateMesh();
+	}
+
+	private void updateMesh() {
+		if(triangulator instanceof IndexedTriangulator) {
+			mesh.setMesh(((IndexedTriangulator)triangulator).
+				getIndexedTriangles(c.getImage(),
+				c.getThreshold(), c.getChannels(),
+				c.getResamplingFactor()));
+			return;
+		}
 		List tri = triangulator.getTriangles(c.getImage(),
 			c.getThreshold(), c.getChannels(),
 			c.getResamplingFactor());
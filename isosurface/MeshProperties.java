@@ -24,8 +24,6 @@ public class MeshProperties {
 	public static double compute(List p, Point3d cm, double[][] inertia) {
 
 		int tmax = p.size() / 3;
-		final double[] mult = {1d/6, 1d/24, 1d/24,1d/24, 1d/60, 1d/60,
-						1d/60, 1d/120, 1d/120, 1d/120};
 		// order: 1, x, y, z, x^2, y^2, z^2, xy, yz, zx
 		double[] intg = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0}; 
 
@@ -45,37 +43,83 @@ public class MeshProperties {
 			double y2 = ((Point3f)p.get(i2)).y;
 			double z2 = ((Point3f)p.get(i2)).z;
 
-			// get edges and cross product of edges
-			double a1 = x1 - x0, b1 = y1 - y0, c1 = z1 - z0;
-			double a2 = x2 - x0, b2 = y2 - y0, c2 = z2 - z0;
-			double d0 = b1 * c2 - b2 * c1;
-			double d1 = a2 * c1 - a1 * c2;
-			double d2 = a1 * b2 - a2 * b1;
-
-			// compute integral terms
-			subexpr(x0, x1, x2, fg);
-			double f1x = fg[0], f2x = fg[1], f3x = fg[2];
-			double g0x = fg[3], g1x = fg[4], g2x = fg[5];
-			subexpr(y0, y1, y2, fg);
-			double f1y = fg[0], f2y = fg[1], f3y = fg[2];
-			double g0y = fg[3], g1y = fg[4], g2y = fg[5];
-			subexpr(z0, z1, z2, fg);
-			double f1z = fg[0], f2z = fg[1], f3z = fg[2];
-			double g0z = fg[3], g1z = fg[4], g2z = fg[5];
-
-			// update integrals
-			intg[0] += d0 * f1x;
-			intg[1] += d0 * f2x;
-			intg[2] += d1 * f2y;
-			intg[3] += d2 * f2z;
-			intg[4] += d0 * f3x;
-			intg[5] += d1 * f3y;
-			intg[6] += d2 * f3z;
-			intg[7] += d0*(y0 * g0x + y1 * g1x + y2 * g2x);
-			intg[8] += d1*(z0 * g0y + z1 * g1y + z2 * g2y);
-			intg[9] += d2*(x0 * g0z + x1 * g1z + x2 * g2z);
+			addTriangle(x0, y0, z0, x1, y1, z1, x2, y2, z2,
+				intg, fg);
+		}
+
+		return finish(intg, cm, inertia);
+	}
+
+	/**
+	 * Returns the mass.
+	 * @param mesh an indexed triangle mesh.
+	 * @param cm contains the center of gravity after the calculation
+	 * @param inertia contains the inertia matrix after the calculation.
+	 */
+	public static double compute(IndexedTriangleMesh mesh, Point3d cm,
+			double[][] inertia) {
+
+		int tmax = mesh.getTriangleCount();
+		float[] v = mesh.getVertices();
+		int[] idx = mesh.getIndices();
+		double[] intg = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+		double[] fg = new double[6];
+
+		for(int t = 0; t < tmax; t++) {
+			int i0 = 3 * idx[3 * t];
+			int i1 = 3 * idx[3 * t + 1];
+			int i2 = 3 * idx[3 * t + 2];
+			addTriangle(v[i0], v[i0 + 1], v[i0 + 2],
+				v[i1], v[i1 + 1], v[i1 + 2],
+				v[i2], v[i2 + 1], v[i2 + 2],
+				intg, fg);
 		}
 
+		return finish(intg, cm, inertia);
+	}
+
+	private static void addTriangle(
+			double x0, double y0, double z0,
+			double x1, double y1, double z1,
+			double x2, double y2, double z2,
+			double[] intg, double[] fg) {
+
+		// get edges and cross product of edges
+		double a1 = x1 - x0, b1 = y1 - y0, c1 = z1 - z0;
+		double a2 = x2 - x0, b2 = y2 - y0, c2 = z2 - z0;
+		double d0 = b1 * c2 - b2 * c1;
+		double d1 = a2 * c1 - a1 * c2;
+		double d2 = a1 * b2 - a2 * b1;
+
+		// compute integral terms
+		subexpr(x0, x1, x2, fg);
+		double f1x = fg[0], f2x = fg[1], f3x = fg[2];
+		double g0x = fg[3], g1x = fg[4], g2x = fg[5];
+		subexpr(y0, y1, y2, fg);
+		double f1y = fg[0], f2y = fg[1], f3y = fg[2];
+		double g0y = fg[3], g1y = fg[4], g2y = fg[5];
+		subexpr(z0, z1, z2, fg);
+		double f1z = fg[0], f2z = fg[1], f3z = fg[2];
+		double g0z = fg[3], g1z = fg[4], g2z = fg[5];
+
+		// update integrals
+		intg[0] += d0 * f1x;
+		intg[1] += d0 * f2x;
+		intg[2] += d1 * f2y;
+		intg[3] += d2 * f2z;
+		intg[4] += d0 * f3x;
+		intg[5] += d1 * f3y;
+		intg[6] += d2 * f3z;
+		intg[7] += d0*(y0 * g0x + y1 * g1x + y2 * g2x);
+		intg[8] += d1*(z0 * g0y + z1 * g1y + z2 * g2y);
+		intg[9] += d2*(x0 * g0z + x1 * g1z + x2 * g2z);
+	}
+
+	private static double finish(double[] intg, Point3d cm,
+			double[][] inertia) {
+		final double[] mult = {1d/6, 1d/24, 1d/24,1d/24, 1d/60, 1d/60,
+						1d/60, 1d/120, 1d/120, 1d/120};
+
 		for (int i = 0; i < 10; i++)
 			intg[i] *= mult[i];
 
@@ -15,15 +15,13 @@ import ij.io.SaveDialog;
 import ij.io.FileInfo;
 import ij.plugin.PlugIn;
 import ij.measure.Calibration;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Iterator;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.PrintStream;
 import java.io.IOException;
 import ij3d.ColorTable;
-import javax.vecmath.Point3f;
+import isosurface.IndexedTriangleMesh;
 import javax.vecmath.Vector3f;
 
 public class ExportMesh_ implements PlugIn {
@@ -32,64 +30,47 @@ public class ExportMesh_ implements PlugIn {
 
 		MCTriangulator triangulator = new MCTriangulator();
 		
-		List mesh = triangulator.getTriangles(
+		IndexedTriangleMesh mesh = triangulator.getIndexedTriangles(
 			imagePlus, minimumValue, channels, resamplingFactor);
 
-		if( (mesh.size() % 3) != 0 ) {
-			IJ.error("There weren't a multiple of 3 entries in the mesh List");
-			return;
-		}
+		exportToMesh( mesh, outputFilename );
+	}
 
-		Hashtable pointToIndex = new Hashtable();
-		ArrayList<Point3f> uniquePoints = new ArrayList<Point3f>();
-		
-		int i = 0;
-		for( Iterator iter = mesh.iterator(); iter.hasNext(); ) {
-			
-			Point3f p = (Point3f)iter.next();
+	/* The vertices of an indexed mesh are already unique, in the
+	 * order in which they first appear in the triangles, so they can
+	 * be written out directly. */
 
-			Integer i_in_table = (Integer)pointToIndex.get(p);
-			
-			if( null == i_in_table ) {
-				pointToIndex.put(p,new Integer(i));
-				uniquePoints.add(p);
-				++ i;
-			}
-		}
+	public void exportToMesh( IndexedTriangleMesh mesh, String outputFilename ) {
 
 		try {
 			
-			PrintStream ps = new PrintStream(outputFilename);
+			PrintStream ps = new PrintStream(
+				new BufferedOutputStream(
+					new FileOutputStream(outputFilename)));
 
 			ps.println("# Almost the simplest possible Wavefront .obj file.");
 			ps.println("# Generated by the ExportMesh_ plugin in ImageJ.");
 
 			// First dump the vertices:
 
-			for( Iterator iterator = uniquePoints.iterator();
-			     iterator.hasNext(); ) {
-				Point3f p = (Point3f)iterator.next();
-				ps.println("v "+p.x+" "+p.y+" "+p.z);
-			}			     
+			float [] vertices = mesh.getVertices();
+			for( int i = 0; i < mesh.getVertexCount(); ++i ) {
+				ps.println("v "+vertices[3*i]+" "+vertices[3*i+1]+" "+vertices[3*i+2]);
+			}
 
 			ps.println("s 1");
 
 			// Now dump the triangles:
 
-			for( Iterator iter = mesh.iterator(); iter.hasNext(); ) {
-			
-				Point3f p1 = (Point3f)iter.next();
-				Point3f p2 = (Point3f)iter.next();
-				Point3f p3 = (Point3f)iter.next();
-				
-				int i_in_table_1 = ((Integer)pointToIndex.get(p1)).intValue()+1;
-				int i_in_table_2 = ((Integer)pointToIndex.get(p2)).intValue()+1;
-				int i_in_table_3 = ((Integer)pointToIndex.get(p3)).intValue()+1;
-				
-				ps.println("f "+i_in_table_1+" "+i_in_table_2+" "+i_in_table_3);
-
+			int [] indices = mesh.getIndices();
+			for( int i = 0; i < 3 * mesh.getTriangleCount(); i += 3 ) {
+				ps.println("f "+(indices[i]+1)+" "+(indices[i+1]+1)+" "+(indices[i+2]+1));
 			}
 
+			ps.close();
+			if( ps.checkError() )
+				throw new IOException("write error");
+
 		} catch( IOException e ) {
 			IJ.error("Saving to '"+outputFilename+"' failed: "+e);
 			return;
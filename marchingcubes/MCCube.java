@@ -2,9 +2,21 @@ package marchingcubes;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.vecmath.Point3f;
 import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
 import ij3d.Volume;
+import isosurface.IndexedTriangleMesh;
 
 public final class MCCube {
 	// default size of the cubes
@@ -16,6 +28,9 @@ public final class MCCube {
 	// interpolated values
 	private Point3f[] e;
 
+	// the grid position of the cube, as given to init()
+	private int x, y, z;
+
 	private MCCube() {
 		this.v = new Point3f[8];
 		for(int i = 0; i < 8; i++)
@@ -35,6 +50,9 @@ public final class MCCube {
 	 *       v7    v6
 	 */
 	public void init(int x, int y, int z){
+		this.x = x;
+		this.y = y;
+		this.z = z;
 		v[0].set(x,     y,     z);
 		v[1].set(x+SIZE,y,     z);
 		v[2].set(x+SIZE,y-SIZE,z);
@@ -130,30 +148,195 @@ public final class MCCube {
 		}
 	}
 
+	/**
+	 * Like getTriangles(List, Carrier), but adds the triangles to an
+	 * indexed mesh. The point on each edge is only calculated and
+	 * added once; cubes sharing the edge look it up in the cache.
+	 */
+	private void getTriangles(IndexedTriangleMesh mesh, EdgeCache cache,
+				final Carrier car) {
+		int cn = caseNumber(car);
+		boolean directTable = !(isAmbigous(cn));
+
+		// address in the table
+		int offset = directTable ? cn*15 : (255-cn)*15;
+		for(int index = 0; index < 5; index++){
+			// if there's a triangle
+			if (faces[offset] != -1) {
+				mesh.addTriangle(
+					vertexOnEdge(faces[offset+0], mesh, cache, car),
+					vertexOnEdge(faces[offset+1], mesh, cache, car),
+					vertexOnEdge(faces[offset+2], mesh, cache, car));
+			}
+			offset += 3;
+		}
+	}
+
+	private int vertexOnEdge(int edge, IndexedTriangleMesh mesh,
+				EdgeCache cache, final Carrier car) {
+		int ex = x + edgeOrigin[edge][0];
+		int ey = y + edgeOrigin[edge][1];
+		int ez = z + edgeOrigin[edge][2];
+		int axis = edgeOrigin[edge][3];
+		int i = cache.get(ex, ey, ez, axis);
+		if(i >= 0)
+			return i;
+		Point3f p = e[edge];
+		computeEdge(v[edgeVertices[edge][0]], v[edgeVertices[edge][1]],
+			p, car);
+		i = mesh.addVertex(p.x, p.y, p.z);
+		cache.put(ex, ey, ez, axis, i);
+		return i;
+	}
+
+	/**
+	 * Remembers the index of the mesh vertex on each edge of the
+	 * grid. Only the edges starting in the two planes z and z + 1
+	 * are needed while the cubes between these planes are processed,
+	 * so there are two layers which are used alternately.
+	 */
+	private static abstract class EdgeCache {
+		// the grid starts at x = -1, y = -2 (see getTriangles())
+		final int w, h;
+
+		EdgeCache(int w, int h) {
+			this.w = w + 4;
+			this.h = h + 4;
+		}
+
+		/**
+		 * Called before the cubes between z and z + 1 are
+		 * processed; the layer for z + 1 will be filled anew.
+		 */
+		abstract void startSlab(int z, int nVertices);
+
+		abstract int get(int x, int y, int z, int axis);
+
+		abstract void put(int x, int y, int z, int axis, int i);
+
+		/**
+		 * Puts the vertices on the x and y edges starting in plane
+		 * z into the map, using key() of the edge.
+		 */
+		abstract void collect(int z, Map<Long, Integer> map);
+
+		final int index(int x, int y, int axis) {
+			return 3 * ((y + 2) * w + x + 2) + axis;
+		}
+
+		/**
+		 * A number identifying the edge in the whole grid; the
+		 * axis is key % 3.
+		 */
+		final long key(int z, int index) {
+			return (long)(z + 2) * 3 * w * h + index;
+		}
+	}
+
+	/**
+	 * An EdgeCache with an array entry for each edge. Instead of
+	 * clearing a layer when it is reused, it records the first
+	 * vertex index which may be valid in it; anything lower is left
+	 * over from two planes before.
+	 */
+	private static final class ArrayEdgeCache extends EdgeCache {
+		private final int[][] layers = new int[2][];
+		private final int[] validFrom = new int[2];
+
+		ArrayEdgeCache(int w, int h) {
+			super(w, h);
+			for(int i = 0; i < 2; i++) {
+				layers[i] = new int[3 * this.w * this.h];
+				Arrays.fill(layers[i], -1);
+			}
+		}
+
+		void startSlab(int z, int nVertices) {
+			validFrom[(z + 1) & 1] = nVertices;
+		}
+
+		int get(int x, int y, int z, int axis) {
+			int l = z & 1;
+			int i = layers[l][index(x, y, axis)];
+			return i >= validFrom[l] ? i : -1;
+		}
+
+		void put(int x, int y, int z, int axis, int i) {
+			layers[z & 1][index(x, y, axis)] = i;
+		}
+
+		void collect(int z, Map<Long, Integer> map) {
+			int l = z & 1;
+			int[] layer = layers[l];
+			for(int index = 0; index < layer.length; index++)
+				if(index % 3 != 2 && layer[index] >= validFrom[l])
+					map.put(key(z, index), layer[index]);
+		}
+	}
+
+	/**
+	 * An EdgeCache which only stores the edges which have a vertex,
+	 * for surfaces which are small compared to the grid, like the
+	 * ones of single labels.
+	 */
+	private static final class MapEdgeCache extends EdgeCache {
+		private final HashMap<Long, Integer> even =
+				new HashMap<Long, Integer>();
+		private final HashMap<Long, Integer> odd =
+				new HashMap<Long, Integer>();
+
+		MapEdgeCache(int w, int h) {
+			super(w, h);
+		}
+
+		private HashMap<Long, Integer> layer(int z) {
+			return (z & 1) == 0 ? even : odd;
+		}
+
+		void startSlab(int z, int nVertices) {
+			layer(z + 1).clear();
+		}
+
+		int get(int x, int y, int z, int axis) {
+			Integer i = layer(z).get(key(z, index(x, y, axis)));
+			return i == null ? -1 : i;
+		}
+
+		void put(int x, int y, int z, int axis, int i) {
+			layer(z).put(key(z, index(x, y, axis)), i);
+		}
+
+		void collect(int z, Map<Long, Integer> map) {
+			for(Map.Entry<Long, Integer> e : layer(z).entrySet())
+				if(e.getKey() % 3 != 2)
+					map.put(e.getKey(), e.getValue());
+		}
+	}
+
 	/**
 	 * computes the case number of the cube
 	 * @return the number of the case corresponding to the cube
 	 */
 	private int caseNumber(final Carrier car) {
 		int caseNumber = 0;
-		for (int index = -1; 
-			++index < v.length; 
-			caseNumber += 
-				(car.intensity(v[index]) - car.threshold > 0) 
+		for (int index = -1;
+			++index < v.length;
+			caseNumber +=
+				(car.intensity(v[index]) - car.threshold > 0)
 					? 1 << index
 					: 0);
 		return caseNumber;
 	}
 
-	/** 
+	/**
 	 * An encapsulating class to avoid thread collisions on static fields.
 	 */
-	private static final class Carrier {
+	private static class Carrier {
 		int w, h, d;
 		Volume volume;
 		int threshold;
 
-		final int intensity(final Point3f p) {
+		int intensity(final Point3f p) {
 			if(p.x < 0 || p.y < 0 || p.z < 0
 				|| p.x >= w || p.y >= h || p.z >= d)
 				return 0;
@@ -162,44 +345,496 @@ public final class MCCube {
 	}
 
 	/**
-	 * Create a list of triangles from the specified image data and the
-	 * given isovalue.
-	 * @param volume
-	 * @param thresh
-	 * @return
+	 * A Carrier for a label field, which gives the intensities of the
+	 * binary image of one label (255 inside, 0 outside) after it was
+	 * downsampled by averaging blocks of f x f x f voxels the way
+	 * Resample_ does, without creating that image. The blocks of the
+	 * two planes z and z + 1 are kept, each with the labels occurring
+	 * in it and their number of voxels.
 	 */
-	public static final List<Point3f> getTriangles(Volume volume, int thresh){
-		List<Point3f> tri = new ArrayList<Point3f>();
+	private static final class LabelCarrier extends Carrier {
+		final ImageStack stack;
+		final int f, srcW, srcD;
+		final int maxEntries;
+		private final int[] planeZ = {-1, -1};
+		private final int[] blockSize = new int[2];
+		private final int[][] nEntries = new int[2][];
+		private final byte[][] labels = new byte[2][];
+		private final short[][] counts = new short[2][];
+
+		// the label whose intensities are returned
+		int label;
+
+		LabelCarrier(ImagePlus imp, int f, int threshold) {
+			this.stack = imp.getStack();
+			this.f = f;
+			this.threshold = threshold;
+			srcW = imp.getWidth();
+			srcD = stack.getSize();
+			// only full blocks in x and y, as in Resample_
+			w = srcW / f;
+			h = imp.getHeight() / f;
+			d = (srcD + f - 1) / f;
+			maxEntries = Math.min(256, f * f * f);
+			for(int i = 0; i < 2; i++) {
+				nEntries[i] = new int[w * h];
+				labels[i] = new byte[w * h * maxEntries];
+				counts[i] = new short[w * h * maxEntries];
+			}
+		}
+
+		/**
+		 * Makes sure the blocks of plane z are available.
+		 */
+		void loadPlane(int z) {
+			int l = z & 1;
+			if(z < 0 || z >= d || planeZ[l] == z)
+				return;
+			planeZ[l] = z;
+			int kf = Math.min(f, srcD - z * f);
+			blockSize[l] = f * f * kf;
+			byte[][] slices = new byte[kf][];
+			for(int k = 0; k < kf; k++)
+				slices[k] = (byte[])stack.getPixels(z * f + k + 1);
+			byte[] lab = labels[l];
+			short[] cnt = counts[l];
+			for(int y = 0; y < h; y++) {
+				for(int x = 0; x < w; x++) {
+					int offs = (y * w + x) * maxEntries;
+					int n = 0;
+					for(int k = 0; k < kf; k++) {
+						for(int j = 0; j < f; j++) {
+							int i = (y * f + j) * srcW + x * f;
+							for(int end = i + f; i < end; i++) {
+								byte v = slices[k][i];
+								int e = 0;
+								while(e < n && lab[offs + e] != v)
+									e++;
+								if(e == n) {
+									lab[offs + n] = v;
+									cnt[offs + n] = 0;
+									n++;
+								}
+								cnt[offs + e]++;
+							}
+						}
+					}
+					nEntries[l][y * w + x] = n;
+				}
+			}
+		}
+
+		int intensity(final Point3f p) {
+			if(p.x < 0 || p.y < 0 || p.z < 0
+				|| p.x >= w || p.y >= h || p.z >= d)
+				return 0;
+			int l = (int)p.z & 1;
+			int v = (int)p.y * w + (int)p.x;
+			int offs = v * maxEntries;
+			for(int e = 0; e < nEntries[l][v]; e++)
+				if((labels[l][offs + e] & 0xff) == label)
+					return 255 * counts[l][offs + e]
+						/ blockSize[l];
+			return 0;
+		}
+
+		/**
+		 * Stores the labels other than 0 which occur in the blocks
+		 * at the corners of the cube at x, y, z in ret, and returns
+		 * their number.
+		 */
+		int labelsAround(int x, int y, int z, int[] ret) {
+			int n = 0;
+			for(int cz = z; cz <= z + 1; cz++) {
+				if(cz < 0 || cz >= d)
+					continue;
+				int l = cz & 1;
+				for(int cy = y - 1; cy <= y; cy++) {
+					if(cy < 0 || cy >= h)
+						continue;
+					for(int cx = x; cx <= x + 1; cx++) {
+						if(cx < 0 || cx >= w)
+							continue;
+						int v = cy * w + cx;
+						int offs = v * maxEntries;
+						for(int e = 0; e < nEntries[l][v]; e++) {
+							int lab = labels[l][offs + e] & 0xff;
+							if(lab == 0)
+								continue;
+							int i = 0;
+							while(i < n && ret[i] != lab)
+								i++;
+							if(i == n)
+								ret[n++] = lab;
+						}
+					}
+				}
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * The triangles of the cubes between two planes, with the vertices
+	 * on the x and y edges of the first and the last plane, by their
+	 * EdgeCache.key(), so that the slabs can be stitched together.
+	 */
+	private static final class Slab {
+		final IndexedTriangleMesh mesh;
+		final HashMap<Long, Integer> first = new HashMap<Long, Integer>();
+		final HashMap<Long, Integer> last = new HashMap<Long, Integer>();
+
+		Slab(IndexedTriangleMesh mesh) {
+			this.mesh = mesh;
+		}
+	}
+
+	/**
+	 * Something to be done for the cubes between the planes zStart
+	 * and zEnd.
+	 */
+	private static interface SlabTask<T> {
+		T run(int zStart, int zEnd);
+	}
+
+	/**
+	 * Cuts the planes from zFrom to zTo into slabs, runs the task for
+	 * each of them on nThreads threads and returns the results in
+	 * z order.
+	 */
+	private static <T> List<T> runSlabs(int zFrom, int zTo, int nThreads,
+						final SlabTask<T> task) {
+		int layers = zTo - zFrom;
+		int nSlabs = Math.max(1, Math.min(layers,
+				Math.max(16, 4 * nThreads)));
+		List<T> ret = new ArrayList<T>(nSlabs);
+		if(nThreads <= 1) {
+			for(int i = 0; i < nSlabs; i++) {
+				ret.add(task.run(zFrom + i * layers / nSlabs,
+					zFrom + (i + 1) * layers / nSlabs));
+				IJ.showProgress(i + 1, nSlabs);
+			}
+			return ret;
+		}
+		ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for(int i = 0; i < nSlabs; i++) {
+				final int zStart = zFrom + i * layers / nSlabs;
+				final int zEnd = zFrom + (i + 1) * layers / nSlabs;
+				futures.add(exec.submit(new Callable<T>() {
+					public T call() {
+						return task.run(zStart, zEnd);
+					}
+				}));
+			}
+			for(int i = 0; i < nSlabs; i++) {
+				ret.add(futures.get(i).get());
+				IJ.showProgress(i + 1, nSlabs);
+			}
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RuntimeException)
+				throw (RuntimeException)e.getCause();
+			if(e.getCause() instanceof Error)
+				throw (Error)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			exec.shutdownNow();
+		}
+		return ret;
+	}
+
+	/**
+	 * Joins the meshes of consecutive slabs (null for slabs without
+	 * triangles) into one, merging the vertices on the planes between
+	 * them. The vertices are numbered as if the cubes had been
+	 * processed in a single pass.
+	 */
+	private static IndexedTriangleMesh stitch(List<Slab> slabs) {
+		int nv = 0, nt = 0;
+		for(Slab s : slabs) {
+			if(s != null) {
+				nv += s.mesh.getVertexCount();
+				nt += s.mesh.getTriangleCount();
+			}
+		}
+		IndexedTriangleMesh mesh = new IndexedTriangleMesh(nv, nt);
+		// the vertices on the last plane of the previous slab
+		HashMap<Long, Integer> previous = new HashMap<Long, Integer>();
+		for(Slab s : slabs) {
+			if(s == null) {
+				previous.clear();
+				continue;
+			}
+			int n = s.mesh.getVertexCount();
+			int[] map = new int[n];
+			Arrays.fill(map, -1);
+			for(Map.Entry<Long, Integer> e : s.first.entrySet()) {
+				Integer i = previous.get(e.getKey());
+				if(i != null)
+					map[e.getValue()] = i;
+			}
+			float[] v = s.mesh.getVertices();
+			for(int i = 0; i < n; i++)
+				if(map[i] < 0)
+					map[i] = mesh.addVertex(v[3 * i],
+						v[3 * i + 1], v[3 * i + 2]);
+			int[] indices = s.mesh.getIndices();
+			int ni = 3 * s.mesh.getTriangleCount();
+			for(int i = 0; i < ni; i += 3)
+				mesh.addTriangle(map[indices[i]],
+					map[indices[i + 1]], map[indices[i + 2]]);
+			previous.clear();
+			for(Map.Entry<Long, Integer> e : s.last.entrySet())
+				previous.put(e.getKey(), map[e.getValue()]);
+		}
+		mesh.trim();
+		return mesh;
+	}
+
+	private static Carrier createCarrier(Volume volume, int thresh) {
 		final Carrier car = new Carrier();
 		car.w = volume.xDim;
 		car.h = volume.yDim;
 		car.d = volume.zDim;
 		car.threshold = thresh;
 		car.volume = volume;
-		int SIZE = 1;
-		MCCube.SIZE = SIZE;
-		MCCube cube = new MCCube();
-		for(int z = -1; z < car.d+1; z+=SIZE){
-			for(int x = -1; x < car.w+1; x+=SIZE){
-				for(int y = -SIZE; y < car.h+2; y+=SIZE){
-					cube.init(x, y, z);
-					cube.computeEdges(car);
-					cube.getTriangles(tri, car);
+		MCCube.SIZE = 1;
+		return car;
+	}
+
+	/**
+	 * Create a list of triangles from the specified image data and the
+	 * given isovalue.
+	 * @param volume
+	 * @param thresh
+	 * @return
+	 */
+	public static final List<Point3f> getTriangles(Volume volume, int thresh){
+		return getTriangles(volume, thresh, 1);
+	}
+
+	/**
+	 * Like getTriangles(Volume, int), but processes slabs of cubes
+	 * on nThreads threads at the same time. The result is the same
+	 * as with a single thread.
+	 */
+	public static final List<Point3f> getTriangles(Volume volume,
+				int thresh, int nThreads) {
+		final Carrier car = createCarrier(volume, thresh);
+		List<List<Point3f>> slabs = runSlabs(-1, car.d + 1, nThreads,
+				new SlabTask<List<Point3f>>() {
+			public List<Point3f> run(int zStart, int zEnd) {
+				List<Point3f> tri = new ArrayList<Point3f>();
+				MCCube cube = new MCCube();
+				for(int z = zStart; z < zEnd; z++) {
+					for(int x = -1; x < car.w+1; x++) {
+						for(int y = -1; y < car.h+2; y++) {
+							cube.init(x, y, z);
+							cube.computeEdges(car);
+							cube.getTriangles(tri, car);
+						}
+					}
 				}
+				return tri;
 			}
-			IJ.showProgress(z, car.d-2);
-		}
+		});
+		int n = 0;
+		for(List<Point3f> slab : slabs)
+			n += slab.size();
+		List<Point3f> tri = new ArrayList<Point3f>(n);
+		for(List<Point3f> slab : slabs)
+			tri.addAll(slab);
 
-		// convert pixel coordinates 
+		// convert pixel coordinates
 		for(int i = 0; i < tri.size(); i++) {
 			Point3f p = (Point3f)tri.get(i);
 			p.x = (float) (p.x * volume.pw + volume.minCoord.x);
 			p.y = (float) (p.y * volume.ph + volume.minCoord.y);
 			p.z = (float) (p.z * volume.pd + volume.minCoord.z);
-		}	
+		}
 		return tri;
 	}
 
+	/**
+	 * Like getTriangles(), but returns an indexed mesh in which
+	 * triangles of neighbouring cubes share their vertices.
+	 * The vertices have exactly the same coordinates as the points
+	 * returned by getTriangles().
+	 * @param volume
+	 * @param thresh
+	 * @return
+	 */
+	public static final IndexedTriangleMesh getIndexedTriangles(
+					Volume volume, int thresh) {
+		return getIndexedTriangles(volume, thresh, 1);
+	}
+
+	/**
+	 * Like getIndexedTriangles(Volume, int), but processes slabs of
+	 * cubes on nThreads threads at the same time. The meshes of the
+	 * slabs are stitched together so that the result is the same as
+	 * with a single thread.
+	 */
+	public static final IndexedTriangleMesh getIndexedTriangles(
+				Volume volume, int thresh, int nThreads) {
+		final Carrier car = createCarrier(volume, thresh);
+		List<Slab> slabs = runSlabs(-1, car.d + 1, nThreads,
+				new SlabTask<Slab>() {
+			public Slab run(int zStart, int zEnd) {
+				MCCube cube = new MCCube();
+				Slab slab = new Slab(new IndexedTriangleMesh());
+				IndexedTriangleMesh mesh = slab.mesh;
+				EdgeCache cache = new ArrayEdgeCache(car.w, car.h);
+				for(int z = zStart; z < zEnd; z++) {
+					cache.startSlab(z, mesh.getVertexCount());
+					for(int x = -1; x < car.w+1; x++) {
+						for(int y = -1; y < car.h+2; y++) {
+							cube.init(x, y, z);
+							cube.getTriangles(mesh,
+								cache, car);
+						}
+					}
+					if(z == zStart)
+						cache.collect(z, slab.first);
+				}
+				cache.collect(zEnd, slab.last);
+				return slab;
+			}
+		});
+		IndexedTriangleMesh mesh = stitch(slabs);
+
+		// convert pixel coordinates
+		mesh.scaleAndTranslate(volume.pw, volume.ph, volume.pd,
+			volume.minCoord.x, volume.minCoord.y, volume.minCoord.z);
+		return mesh;
+	}
+
+	/**
+	 * Creates the surfaces of all labels of an 8-bit label field in a
+	 * single pass over the image. The surface of label m is the one
+	 * which MCTriangulator creates for a binary image which is 255
+	 * where the label field is m and 0 elsewhere, with the given
+	 * threshold and resampling factor. Each cube is only
+	 * triangulated for the labels which occur at its corners.
+	 * @return an array with the mesh of each label, null for labels
+	 * which do not occur (and for label 0).
+	 */
+	public static final IndexedTriangleMesh[] getLabelTriangles(
+			final ImagePlus labels, final int thresh,
+			final int resamplingF, int nThreads) {
+		int type = labels.getType();
+		if(type != ImagePlus.GRAY8 && type != ImagePlus.COLOR_256)
+			throw new IllegalArgumentException(
+				"Label fields must be 8-bit images");
+		MCCube.SIZE = 1;
+		int w = labels.getWidth(), h = labels.getHeight();
+		int d = labels.getStackSize();
+		int f = resamplingF;
+		List<Slab[]> slabs = runSlabs(-1, (d + f - 1) / f + 1, nThreads,
+				new SlabTask<Slab[]>() {
+			public Slab[] run(int zStart, int zEnd) {
+				LabelCarrier car = new LabelCarrier(labels,
+						resamplingF, thresh);
+				return getLabelSlab(car, zStart, zEnd);
+			}
+		});
+
+		Calibration cal = labels.getCalibration();
+		double pw = cal.pixelWidth, ph = cal.pixelHeight;
+		double pd = cal.pixelDepth;
+		if(resamplingF != 1) {
+			// as in Resample_
+			pw *= w / (double)(w / f);
+			ph *= h / (double)(h / f);
+			pd *= d / (double)((d + f - 1) / f);
+		}
+
+		IndexedTriangleMesh[] meshes = new IndexedTriangleMesh[256];
+		List<Slab> ofLabel = new ArrayList<Slab>(slabs.size());
+		for(int m = 1; m < 256; m++) {
+			ofLabel.clear();
+			boolean found = false;
+			for(Slab[] s : slabs) {
+				ofLabel.add(s[m]);
+				found |= s[m] != null;
+			}
+			if(!found)
+				continue;
+			meshes[m] = stitch(ofLabel);
+			meshes[m].scaleAndTranslate(pw, ph, pd,
+				(float)cal.xOrigin, (float)cal.yOrigin,
+				(float)cal.zOrigin);
+		}
+		return meshes;
+	}
+
+	private static Slab[] getLabelSlab(LabelCarrier car,
+						int zStart, int zEnd) {
+		Slab[] slabs = new Slab[256];
+		EdgeCache[] caches = new EdgeCache[256];
+		int[] present = new int[256];
+		MCCube cube = new MCCube();
+		for(int z = zStart; z < zEnd; z++) {
+			for(int m = 0; m < 256; m++)
+				if(caches[m] != null)
+					caches[m].startSlab(z,
+						slabs[m].mesh.getVertexCount());
+			car.loadPlane(z);
+			car.loadPlane(z + 1);
+			for(int x = -1; x < car.w+1; x++) {
+				for(int y = -1; y < car.h+2; y++) {
+					int n = car.labelsAround(x, y, z, present);
+					if(n == 0)
+						continue;
+					cube.init(x, y, z);
+					for(int i = 0; i < n; i++) {
+						int m = present[i];
+						if(slabs[m] == null) {
+							slabs[m] = new Slab(
+								new IndexedTriangleMesh(64, 64));
+							caches[m] = new MapEdgeCache(
+								car.w, car.h);
+						}
+						car.label = m;
+						cube.getTriangles(slabs[m].mesh,
+							caches[m], car);
+					}
+				}
+			}
+			if(z == zStart)
+				for(int m = 0; m < 256; m++)
+					if(caches[m] != null)
+						caches[m].collect(z, slabs[m].first);
+		}
+		for(int m = 0; m < 256; m++)
+			if(caches[m] != null)
+				caches[m].collect(zEnd, slabs[m].last);
+		return slabs;
+	}
+
+	/**
+	 * For each edge (numbered as in computeEdges()), the offset of
+	 * the grid point where it starts, relative to the cube's position,
+	 * and the axis along which it goes.
+	 */
+	private static final int[][] edgeOrigin = {
+		{0,  0, 0, 0}, {1, -1, 0, 1}, {0, -1, 0, 0}, {0, -1, 0, 1},
+		{0,  0, 1, 0}, {1, -1, 1, 1}, {0, -1, 1, 0}, {0, -1, 1, 1},
+		{0,  0, 0, 2}, {1,  0, 0, 2}, {0, -1, 0, 2}, {1, -1, 0, 2}
+	};
+
+	/**
+	 * The cube vertices at the ends of each edge, as in computeEdges().
+	 */
+	private static final int[][] edgeVertices = {
+		{0, 1}, {1, 2}, {2, 3}, {3, 0},
+		{4, 5}, {5, 6}, {6, 7}, {7, 4},
+		{0, 4}, {1, 5}, {3, 7}, {2, 6}
+	};
+
 	protected static final int ambigous[] = {
 		250,
 		245,
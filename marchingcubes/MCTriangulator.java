@@ -12,13 +12,57 @@ import vib.Resample_;
 
 import ij3d.Volume;
 
-import isosurface.Triangulator;
+import isosurface.IndexedTriangleMesh;
+import isosurface.IndexedTriangulator;
 
-public class MCTriangulator implements Triangulator {
+public class MCTriangulator implements IndexedTriangulator {
+
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Sets the number of threads which triangulate slabs of the
+	 * volume at the same time; the result does not depend on it.
+	 */
+	public void setNumberOfThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	public int getNumberOfThreads() {
+		return nThreads;
+	}
 
 	public List getTriangles(ImagePlus image, int threshold, 
 					boolean[] channels, int resamplingF) {
 
+		Volume volume = createVolume(image, channels, resamplingF);
+
+		// get triangles
+		List l = MCCube.getTriangles(volume, threshold, nThreads);
+		return l;
+	}
+
+	public IndexedTriangleMesh getIndexedTriangles(ImagePlus image,
+			int threshold, boolean[] channels, int resamplingF) {
+
+		Volume volume = createVolume(image, channels, resamplingF);
+		return MCCube.getIndexedTriangles(volume, threshold, nThreads);
+	}
+
+	/**
+	 * Returns the surface of each label of an 8-bit label field,
+	 * indexed by label; null for labels which do not occur.
+	 * The surface of label m is the same as the one getIndexedTriangles()
+	 * returns for a binary image which is 255 where the label field is m,
+	 * but all labels are done in a single pass over the image.
+	 */
+	public IndexedTriangleMesh[] getLabelTriangles(ImagePlus labels,
+			int threshold, int resamplingF) {
+		return MCCube.getLabelTriangles(labels, threshold,
+			resamplingF, nThreads);
+	}
+
+	private static Volume createVolume(ImagePlus image,
+				boolean[] channels, int resamplingF) {
 		if(resamplingF != 1)
 			image = Resample_.resample(image, resamplingF);
 		// There is no need to zero pad any more. MCCube automatically
@@ -28,10 +72,7 @@ public class MCTriangulator implements Triangulator {
 		// create Volume
 		Volume volume = new Volume(image, channels);
 		volume.setAverage(true);
-
-		// get triangles
-		List l = MCCube.getTriangles(volume, threshold);
-		return l;
+		return volume;
 	}
 
 	static public void zeroPad(final ImagePlus imp) {
@@ -0,0 +1,138 @@
+package marchingcubes;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import ij3d.Volume;
+import isosurface.IndexedTriangleMesh;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestMCCube {
+
+	/* Two overlapping noisy blobs, touching the border of the image */
+	static ImagePlus createImage() {
+		int w = 40, h = 30, d = 20;
+		Random random = new Random(17);
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++) {
+			byte[] pixels = new byte[w * h];
+			for(int y = 0; y < h; y++) {
+				for(int x = 0; x < w; x++) {
+					double r1 = Math.sqrt((x - 12) * (x - 12) +
+						(y - 15) * (y - 15) + (z - 10) * (z - 10));
+					double r2 = Math.sqrt((x - 35) * (x - 35) +
+						(y - 5) * (y - 5) + (z - 2) * (z - 2));
+					double v = 255 - 20 * Math.min(r1, r2) +
+						random.nextInt(40);
+					pixels[y * w + x] = (byte)Math.max(0,
+						Math.min(255, (int)v));
+				}
+			}
+			stack.addSlice("", new ByteProcessor(w, h, pixels, null));
+		}
+		ImagePlus imp = new ImagePlus("blobs", stack);
+		imp.getCalibration().pixelWidth = 0.5;
+		imp.getCalibration().pixelDepth = 2;
+		return imp;
+	}
+
+	@Test
+	public void testIndexedTriangles() {
+		Volume volume = new Volume(createImage(), new boolean[] {true, true, true});
+		for(int threshold : new int[] {50, 128, 200}) {
+			List<Point3f> tri = MCCube.getTriangles(volume, threshold);
+			IndexedTriangleMesh mesh = MCCube.getIndexedTriangles(volume, threshold);
+
+			// the same triangles in the same order ...
+			assertEquals(tri, mesh.toTriangleList());
+			assertTrue(mesh.getTriangleCount() > 0);
+
+			// ... with every point stored only once
+			HashSet<Point3f> distinct = new HashSet<Point3f>(tri);
+			assertEquals(distinct.size(), mesh.getVertexCount());
+		}
+	}
+
+	@Test
+	public void testParallelTriangles() {
+		Volume volume = new Volume(createImage(), new boolean[] {true, true, true});
+		List<Point3f> tri = MCCube.getTriangles(volume, 128, 1);
+		IndexedTriangleMesh mesh = MCCube.getIndexedTriangles(volume, 128, 1);
+		for(int nThreads : new int[] {2, 3, 8}) {
+			assertEquals(tri, MCCube.getTriangles(volume, 128, nThreads));
+			IndexedTriangleMesh m = MCCube.getIndexedTriangles(volume, 128, nThreads);
+			assertTrue(Arrays.equals(mesh.getVertices(), m.getVertices()));
+			assertTrue(Arrays.equals(mesh.getIndices(), m.getIndices()));
+		}
+	}
+
+	/* Labels 1 to 3 in random boxes, with sizes which are no multiples
+	   of the resampling factor; label 4 does not occur */
+	static ImagePlus createLabels() {
+		int w = 41, h = 31, d = 21;
+		Random random = new Random(5);
+		byte[][] pixels = new byte[d][w * h];
+		for(int i = 0; i < 30; i++) {
+			int label = 1 + random.nextInt(3);
+			int x0 = random.nextInt(w), y0 = random.nextInt(h);
+			int z0 = random.nextInt(d);
+			int x1 = Math.min(w, x0 + 2 + random.nextInt(12));
+			int y1 = Math.min(h, y0 + 2 + random.nextInt(12));
+			int z1 = Math.min(d, z0 + 2 + random.nextInt(12));
+			for(int z = z0; z < z1; z++)
+				for(int y = y0; y < y1; y++)
+					for(int x = x0; x < x1; x++)
+						pixels[z][y * w + x] = (byte)label;
+		}
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++)
+			stack.addSlice("", new ByteProcessor(w, h, pixels[z], null));
+		ImagePlus imp = new ImagePlus("labels", stack);
+		imp.getCalibration().pixelWidth = 0.5;
+		imp.getCalibration().pixelDepth = 2;
+		imp.getCalibration().xOrigin = 3;
+		return imp;
+	}
+
+	@Test
+	public void testLabelTriangles() {
+		ImagePlus labels = createLabels();
+		ImageStack stack = labels.getStack();
+		int w = labels.getWidth(), h = labels.getHeight();
+		MCTriangulator triangulator = new MCTriangulator();
+		for(int f : new int[] {1, 2, 3}) {
+			IndexedTriangleMesh[] meshes = MCCube.getLabelTriangles(labels, 128, f, 3);
+			assertNull(meshes[0]);
+			assertNull(meshes[4]);
+			for(int m = 1; m <= 3; m++) {
+				ImageStack binary = new ImageStack(w, h);
+				for(int z = 0; z < stack.getSize(); z++) {
+					byte[] p = (byte[])stack.getPixels(z + 1);
+					byte[] b = new byte[w * h];
+					for(int i = 0; i < b.length; i++)
+						if(p[i] == m)
+							b[i] = (byte)255;
+					binary.addSlice("", new ByteProcessor(w, h, b, null));
+				}
+				ImagePlus imp = new ImagePlus("", binary);
+				imp.setCalibration(labels.getCalibration());
+				IndexedTriangleMesh expected = triangulator.getIndexedTriangles(
+					imp, 128, new boolean[] {true, true, true}, f);
+				assertTrue(expected.getTriangleCount() > 0);
+				assertEquals(expected.toTriangleList(), meshes[m].toTriangleList());
+			}
+		}
+	}
+}
@@ -1,7 +1,5 @@
 package octree;
 
-import java.io.File;
-
 import java.util.Arrays;
 import java.util.List;
 import javax.media.j3d.Canvas3D;
@@ -34,6 +32,9 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 	final VolumeOctree octree;
 	private double distSqFromEye;
 
+	/* the length of the longest diagonal on the canvas, in pixels */
+	private double screenSize;
+
 	public Cube(VolumeOctree oct, String dir, int x, int y, int z, int l) {
 		this.dir = dir + "/";
 		this.octree = oct;
@@ -42,7 +43,7 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		this.z = z;
 		this.level = l;
 		this.name = x + "_" + y + "_" + z + "_" + l;
-		if(new File(this.dir + name + ".info").exists()) {
+		if(octree.hasCube(this.dir, name)) {
 			this.cdata = new CubeData(this);
 
 			corners = new Point3d[8];
@@ -78,7 +79,7 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 	public Cube createCube(VolumeOctree oct,
 			String dir, int x, int y, int z, int l) {
 		String name = x + "_" + y + "_" + z + "_" + l;
-		if(new File(dir, name + ".info").exists())
+		if(oct.hasCube(dir, name))
 			return new Cube(oct, dir, x, y, z, l);
 		return null;
 	}
@@ -170,6 +171,40 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		}
 	}
 
+	/*
+	 * Requests the data of the cubes which update() is going to
+	 * show, and of their children, from the loader, so that it is
+	 * read in the background.
+	 */
+	public void prefetch(Canvas3D canvas, Transform3D volToIP,
+			Point3d eyePosInLocal) {
+		if(octree.stopUpdating)
+			return;
+		int i = checkResolution(canvas, volToIP);
+		if (i == OUTSIDE_CANVAS)
+			return;
+		calcDistSqFromEye(eyePosInLocal);
+		if ((i == RESOLUTION_UNSUFFICIENT) && (this.children != null)) {
+			for (Cube localCube : this.children)
+				if (localCube != null)
+					localCube.prefetch(canvas, volToIP, eyePosInLocal);
+			return;
+		}
+		octree.loader.prefetch(this, cdata.axis, screenSize, distSqFromEye, true);
+		if (this.children == null)
+			return;
+		// needed when zooming in
+		for (Cube localCube : this.children) {
+			if (localCube != null && localCube.checkResolution(
+					canvas, volToIP) != OUTSIDE_CANVAS) {
+				localCube.calcDistSqFromEye(eyePosInLocal);
+				octree.loader.prefetch(localCube, cdata.axis,
+					localCube.screenSize,
+					localCube.distSqFromEye, false);
+			}
+		}
+	}
+
 	public int checkResolution(Canvas3D canvas, Transform3D volToIP) {
 		for (int i = 0; i < this.corners.length; ++i)
 			volumePointInCanvas(canvas, volToIP, this.corners[i], this.cornersInCanvas[i]);
@@ -180,6 +215,7 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		double d1 = this.cornersInCanvas[1].distance(this.cornersInCanvas[6]); if (d1 > d2) d2 = d1;
 		d1 = this.cornersInCanvas[2].distance(this.cornersInCanvas[5]); if (d1 > d2) d2 = d1;
 		d1 = this.cornersInCanvas[3].distance(this.cornersInCanvas[4]); if (d1 > d2) d2 = d1;
+		screenSize = d2;
 
 		return ((d2 <= RES_THRESHOLD) ? RESOLUTION_SUFFICIENT : RESOLUTION_UNSUFFICIENT);
 	}
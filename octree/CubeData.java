@@ -1,7 +1,14 @@
 package octree;
 
-import java.awt.image.DataBufferByte;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 
 import java.io.IOException;
 import java.io.File;
@@ -17,7 +24,9 @@ import ij3d.AxisConstants;
 public class CubeData implements AxisConstants {
 
 	private static final int SIZE = VolumeOctree.SIZE;
-	private static final int B_IMG_TYPE = BufferedImage.TYPE_BYTE_GRAY;
+	private static final ColorModel GRAY = new ComponentColorModel(
+		ColorSpace.getInstance(ColorSpace.CS_GRAY), new int[] {8},
+		false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
 
 	final float[] cal = new float[3];
 	final float[] min = new float[3];
@@ -35,7 +44,10 @@ public class CubeData implements AxisConstants {
 
 	public CubeData(Cube c) {
 		this.cube = c;
-		readCalibration(c.dir + c.name + ".info", cal);
+		if(c.octree.container != null)
+			c.octree.container.readCalibration(c.name, cal);
+		else
+			readCalibration(c.dir + c.name + ".info", cal);
 
 		min[0] = (float)(c.x * c.octree.pw);
 		min[1] = (float)(c.y * c.octree.ph);
@@ -96,11 +108,20 @@ public class CubeData implements AxisConstants {
 	}
 
 	private void createData() throws IOException {
-		switch(axis) {
-			case X_AXIS: createImages(cube.dir + "/x/" + cube.name); break;
-			case Y_AXIS: createImages(cube.dir + "/y/" + cube.name); break;
-			case Z_AXIS: createImages(cube.dir + "/z/" + cube.name); break;
-		}
+		byte[][] planes = cube.octree.loader.get(cube, axis);
+		for(int i = 0; i < SIZE; i++)
+			images[i] = createImage(planes[i]);
+	}
+
+	/*
+	 * The image uses the given array directly, so that the cached
+	 * data is not copied.
+	 */
+	private static final BufferedImage createImage(byte[] pixels) {
+		WritableRaster raster = Raster.createInterleavedRaster(
+			new DataBufferByte(pixels, pixels.length),
+			SIZE, SIZE, SIZE, 1, new int[] {0}, null);
+		return new BufferedImage(GRAY, raster, false, null);
 	}
 
 	private void releaseData() {
@@ -128,15 +149,4 @@ public class CubeData implements AxisConstants {
 		}
 		return ret;
 	}
-
-	private void createImages(String path) throws IOException {
-		DataInputStream is = new DataInputStream(new FileInputStream(path));
-		for(int i = 0; i < SIZE; i++) {
-			images[i] = new BufferedImage(SIZE, SIZE, B_IMG_TYPE);
-			byte[] pixels = ((DataBufferByte) images[i].getRaster().getDataBuffer()).getData();
-			is.readFully(pixels);
-		}
-		is.close();
-	}
 }
-
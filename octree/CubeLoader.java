@@ -0,0 +1,271 @@
+package octree;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij3d.AxisConstants;
+
+/*
+ * Loads the data of the cubes in the background and keeps it in a
+ * bounded cache, so that cubes which were hidden can be shown again
+ * without reading them from disk.
+ *
+ * While the cube tree is updated, the cubes which are going to be
+ * shown (and the children of these, which are needed when zooming in)
+ * are requested with prefetch().  The requests are loaded by a pool of
+ * threads, cubes with the largest screen-space error first, and of
+ * these the ones closest to the eye.  When a new view transform
+ * arrives, cancelStale() drops all requests which were not started yet.
+ * get() returns the data from the cache, waits for a request which is
+ * being loaded, or loads the data itself.
+ */
+public class CubeLoader implements AxisConstants {
+
+	private static final int SIZE = VolumeOctree.SIZE;
+	private static final long CUBE_BYTES = (long)SIZE * SIZE * SIZE;
+
+	private final LinkedHashMap<String, byte[][]> cache;
+	private long maxBytes;
+
+	private final HashMap<String, Request> pending =
+			new HashMap<String, Request>();
+	private final PriorityBlockingQueue<Request> queue =
+			new PriorityBlockingQueue<Request>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong prefetched = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+
+	private final Thread[] workers;
+
+	public CubeLoader(long maxBytes, int nThreads) {
+		this.maxBytes = maxBytes;
+		cache = new LinkedHashMap<String, byte[][]>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(
+					Map.Entry<String, byte[][]> e) {
+				return size() * CUBE_BYTES > CubeLoader.this.maxBytes;
+			}
+		};
+
+		workers = new Thread[nThreads];
+		for(int i = 0; i < nThreads; i++) {
+			workers[i] = new Thread("CubeLoader-" + i) {
+				public void run() {
+					try {
+						while(true)
+							queue.take().run();
+					} catch(InterruptedException e) {
+						// disposed
+					}
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].setPriority(Thread.MIN_PRIORITY);
+			workers[i].start();
+		}
+	}
+
+	private static final String key(Cube c, int axis) {
+		return c.name + "/" + axis;
+	}
+
+	/*
+	 * Returns the planes of the given cube, sliced perpendicular
+	 * to axis.  The returned arrays must not be modified.
+	 */
+	public byte[][] get(Cube c, int axis) throws IOException {
+		String key = key(c, axis);
+		Request r;
+		synchronized(this) {
+			byte[][] data = cache.get(key);
+			if(data != null) {
+				hits.incrementAndGet();
+				return data;
+			}
+			misses.incrementAndGet();
+			r = pending.get(key);
+			if(r == null) {
+				r = new Request(c, axis, key, 0, 0, true);
+				pending.put(key, r);
+			}
+		}
+		// does nothing if a worker already started it
+		r.run();
+		try {
+			return r.get();
+		} catch(CancellationException e) {
+			// cancelled before anybody started it
+			return get(c, axis);
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/*
+	 * Requests the data of the cube to be loaded in the background.
+	 * screenSize is the length of the cube's diagonal on the canvas
+	 * in pixels, distSqFromEye the squared distance of its center
+	 * from the eye.  needed should be false for cubes which are
+	 * loaded only in case they are needed soon.
+	 */
+	public synchronized void prefetch(Cube c, int axis, double screenSize,
+			double distSqFromEye, boolean needed) {
+		String key = key(c, axis);
+		if(cache.containsKey(key) || pending.containsKey(key))
+			return;
+		// the size of one voxel of the cube on the canvas
+		double error = screenSize / (SIZE * Math.sqrt(3));
+		Request r = new Request(c, axis, key,
+			error, distSqFromEye, needed);
+		pending.put(key, r);
+		queue.add(r);
+	}
+
+	/*
+	 * Drops all requests which were not started yet.
+	 */
+	public synchronized void cancelStale() {
+		Request r;
+		while((r = queue.poll()) != null) {
+			if(r.cancel(false))
+				cancelled.incrementAndGet();
+			pending.remove(r.key);
+		}
+	}
+
+	private synchronized void loaded(Request r, byte[][] data) {
+		pending.remove(r.key);
+		cache.put(r.key, data);
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		while(cache.size() * CUBE_BYTES > maxBytes) {
+			String eldest = cache.keySet().iterator().next();
+			cache.remove(eldest);
+		}
+	}
+
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/* The number of requests loaded by the worker threads */
+	public long getPrefetched() {
+		return prefetched.get();
+	}
+
+	public long getCancelled() {
+		return cancelled.get();
+	}
+
+	public synchronized int getCachedCubes() {
+		return cache.size();
+	}
+
+	public void dispose() {
+		cancelStale();
+		for(Thread t : workers)
+			t.interrupt();
+		clear();
+	}
+
+	static final byte[][] read(Cube c, int axis) throws IOException {
+		byte[][] planes = new byte[SIZE][SIZE * SIZE];
+		if(c.octree.container != null) {
+			c.octree.container.readCube(c.name, axis, planes);
+			return planes;
+		}
+		String path = null;
+		switch(axis) {
+			case X_AXIS: path = c.dir + "/x/" + c.name; break;
+			case Y_AXIS: path = c.dir + "/y/" + c.name; break;
+			case Z_AXIS: path = c.dir + "/z/" + c.name; break;
+		}
+		DataInputStream is = new DataInputStream(
+				new FileInputStream(path));
+		try {
+			for(int i = 0; i < SIZE; i++)
+				is.readFully(planes[i]);
+		} finally {
+			is.close();
+		}
+		return planes;
+	}
+
+	private final class Request extends FutureTask<byte[][]>
+			implements Comparable<Request> {
+
+		final String key;
+		final double error, distSq;
+		final boolean needed;
+
+		Request(final Cube c, final int axis, String key,
+				double error, double distSq, boolean needed) {
+			super(new Callable<byte[][]>() {
+				public byte[][] call() throws IOException {
+					return read(c, axis);
+				}
+			});
+			this.key = key;
+			this.error = error;
+			this.distSq = distSq;
+			this.needed = needed;
+		}
+
+		protected void done() {
+			if(isCancelled())
+				return;
+			try {
+				loaded(this, get());
+				if(isWorker(Thread.currentThread()))
+					prefetched.incrementAndGet();
+			} catch(Exception e) {
+				synchronized(CubeLoader.this) {
+					pending.remove(key);
+				}
+			}
+		}
+
+		public int compareTo(Request o) {
+			if(needed != o.needed)
+				return needed ? -1 : +1;
+			if(error != o.error)
+				return error > o.error ? -1 : +1;
+			if(distSq != o.distSq)
+				return distSq < o.distSq ? -1 : +1;
+			return 0;
+		}
+	}
+
+	private final boolean isWorker(Thread t) {
+		for(Thread w : workers)
+			if(w == t)
+				return true;
+		return false;
+	}
+}
@@ -8,12 +8,9 @@ import java.io.DataOutputStream;
 
 import java.util.Arrays;
 import java.util.Properties;
-import vib.Resample_;
 
 public class FilePreparer {
 
-	private static final Resample_.Averager accu = new Resample_.Averager();
-
 	private static final class Volume {
 		private int w, h, d;
 		private double pw, ph, pd;
@@ -26,7 +23,7 @@ public class FilePreparer {
 			ra = new RandomAccessFile(file, "rw");
 			this.w = w; this.h = h; this.d = d;
 			this.pw = pw; this.ph = ph; this.pd = pd;
-			this.wh = w * h;
+			this.wh = (long)w * h;
 		}
 
 		final void close() throws IOException {
@@ -43,10 +40,10 @@ public class FilePreparer {
 
 		final void createBlock(int x, int y, int z, String dir, String file, int size) throws IOException {
 			byte[] blob = new byte[size * size * size];
-			int i = 0;
+			int n = Math.min(size, w - x);
 			for(int iz = 0; iz < size && z + iz < d; iz++) {
+				int i = iz * size * size;
 				for(int iy = 0; iy < size && y + iy < h; iy++, i += size) {
-					int n = Math.min(size, w - x);
 					long pos = (z + iz) * wh + (y + iy) * w + x;
 					ra.seek(pos);
 					ra.readFully(blob, i, n);
@@ -76,86 +73,70 @@ public class FilePreparer {
 			fos.close();
 		}
 
-		static final byte[] createYBlobFromZ(byte[] blob, int size) {
-			byte[] ret = new byte[blob.length];
-			int s2 = size * size;
-			for(int y = 0; y < size; y++) {
-				for(int z = 0; z < size; z++) {
-					System.arraycopy(blob,
-						z * s2 + y * size,
-						ret,
-						y * s2 + z * size,
-						size);
-				}
-			}
-			return ret;
-		}
-
-		static final byte[] createXBlobFromZ(byte[] blob, int size) {
-			byte[] ret = new byte[blob.length];
-			int s2 = size * size;
-			for(int z = 0; z < size; z++) {
-				for(int y = 0; y < size; y++) {
-					for(int x = 0; x < size; x++) {
-						ret[x * s2 + z * size + y] = blob[z * s2 + y * size + x];
-					}
-				}
-			}
-			return ret;
-		}
-
+		/*
+		 * Averages fx * fy * fz voxels for each voxel of the next
+		 * level, counting voxels outside the volume as zero.
+		 */
 		final void downsample(String file, int fx, int fy, int fz) throws IOException {
 			FileOutputStream out = new FileOutputStream(file);
 
-			int ws = nextPow2(w), hs = nextPow2(h), ds = nextPow2(d);
-			int wn = ws / fx, hn = hs / fy, dn = ds / fz;
+			int wn = nextPow2(w) / fx, hn = nextPow2(h) / fy, dn = nextPow2(d) / fz;
+			int count = fx * fy * fz;
 			byte[] bytes = new byte[wn];
-			byte[][] cache = new byte[fz * fy][ws];
-			for(int tmp = 0; tmp < fz*fy; tmp++)
-				Arrays.fill(cache[tmp], (byte)0);
-			int z = 0, y = 0;
-			for(z = 0; z < ds; z += fz) {
-				// update cache
-				System.arraycopy(cache, fy, cache, 0, (fz - 1) * fy);
-				for(int ytmp = 0; ytmp < fy; ytmp++) {
-					Arrays.fill(cache[(fz - 1) * fy], (byte)0);
-					if(y + ytmp < h) {
-						long pos = z * wh + (y + ytmp) * w;
-						ra.seek(pos);
-						ra.readFully(cache[(fz - 1) * fy]);
+			byte[] row = new byte[w];
+			long[] cumul = new long[wn];
+			for(int zn = 0; zn < dn; zn++) {
+				for(int yn = 0; yn < hn; yn++) {
+					Arrays.fill(cumul, 0);
+					for(int k = 0; k < fz; k++) {
+						int z = zn * fz + k;
+						if(z >= d)
+							break;
+						for(int j = 0; j < fy; j++) {
+							int y = yn * fy + j;
+							if(y >= h)
+								break;
+							ra.seek(z * wh + (long)y * w);
+							ra.readFully(row);
+							for(int x = 0; x < w; x++)
+								cumul[x / fx] += row[x] & 0xff;
+						}
 					}
+					for(int xn = 0; xn < wn; xn++)
+						bytes[xn] = (byte)(cumul[xn] / count);
+					out.write(bytes, 0, wn);
 				}
+			}
+			out.close();
+		}
+	}
 
-				for(y = 0; y < hs; y += fy) {
-					// update cache
-					for(int ztmp = 0; ztmp < fz; ztmp++) {
-						System.arraycopy(cache, ztmp * fy + 1, cache, ztmp * fy, fy - 1);
-						Arrays.fill(cache[ztmp + fy - 1], (byte)0);
-						if(z + ztmp < d) {
-							long pos = (z+ztmp) * wh + (y+fy-1) * w;
-							ra.seek(pos);
-							ra.readFully(cache[ztmp + fy - 1]);
-						}
-					}
+	static final byte[] createYBlobFromZ(byte[] blob, int size) {
+		byte[] ret = new byte[blob.length];
+		int s2 = size * size;
+		for(int y = 0; y < size; y++) {
+			for(int z = 0; z < size; z++) {
+				System.arraycopy(blob,
+					z * s2 + y * size,
+					ret,
+					y * s2 + z * size,
+					size);
+			}
+		}
+		return ret;
+	}
 
-					for(int x = 0; x < ws; x += fx) {
-						accu.reset();
-						for(int k = 0; k < fz; k++) {
-							int iz = z + k;
-							for(int j = 0; j < fy; j++) {
-								int iy = y + j;
-								for(int i = 0; i < fx; i++) {
-									int ix = x + i;
-									accu.add((int)(0xff & cache[k * fy + j][ix]));
-								}
-							}
-						}
-						bytes[x / fx] = (byte)accu.get();
-					}
-					out.write(bytes, 0, wn);
+	static final byte[] createXBlobFromZ(byte[] blob, int size) {
+		byte[] ret = new byte[blob.length];
+		int s2 = size * size;
+		for(int z = 0; z < size; z++) {
+			for(int y = 0; y < size; y++) {
+				for(int x = 0; x < size; x++) {
+					ret[x * s2 + z * size + y] = blob[z * s2 + y * size + x];
 				}
 			}
 		}
+		return ret;
 	}
 
 	public static final void createFiles(String path, int size, String dir,
@@ -209,6 +190,16 @@ public class FilePreparer {
 	private static final void writeProperties(int w, int h, int d,
 			double pw, double ph, double pd,
 			int l, String path) throws IOException {
+		writeProperties(w, h, d, pw, ph, pd, l, path, null);
+	}
+
+	/*
+	 * container is the name of the OctreeContainer file holding the
+	 * cubes, or null if they are stored in separate files.
+	 */
+	static final void writeProperties(int w, int h, int d,
+			double pw, double ph, double pd,
+			int l, String path, String container) throws IOException {
 
 		Properties props = new Properties();
 		props.setProperty("width", Integer.toString(w));
@@ -218,12 +209,15 @@ public class FilePreparer {
 		props.setProperty("pixelWidth", Float.toString((float)pw));
 		props.setProperty("pixelHeight", Float.toString((float)ph));
 		props.setProperty("pixelDepth", Float.toString((float)pd));
+		if(container != null)
+			props.setProperty("container", container);
 
 		FileOutputStream fw = new FileOutputStream(new File(path));
 		props.store(fw, "octree");
+		fw.close();
 	}
 
-	private static final int nextPow2(int n) {
+	static final int nextPow2(int n) {
 		int retval = 2;
 		while (retval < n) {
 			retval = retval << 1;
@@ -0,0 +1,293 @@
+package octree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Creates the same octree as FilePreparer.createFiles(), but reads the
+ * raw input only once: the z-planes of the input are memory-mapped and
+ * streamed through all levels of the pyramid at the same time.  Each
+ * level collects 'size' planes, cuts them into cubes and downsamples
+ * them into planes of the next level; cutting, transposing and writing
+ * the cubes happens on a pool of threads.  All cubes end up in a single
+ * OctreeContainer file in dir, which is referenced from props.txt.
+ *
+ * Only the input is mapped; the planes of the higher levels are kept
+ * in memory, which needs at most about size / 3 planes of the input.
+ */
+public class OctreeBuilder {
+
+	public static final String CONTAINER = "cubes.octree";
+
+	private final int size;
+	private final ExecutorService exec;
+	private final OctreeContainer.Writer writer;
+
+	private OctreeBuilder(int size, String dir) throws IOException {
+		this.size = size;
+		this.writer = new OctreeContainer.Writer(
+			new File(dir, CONTAINER), size);
+		this.exec = Executors.newFixedThreadPool(
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	public static final void createFiles(String path, int size, String dir,
+			int w, int h, int d,
+			double pw, double ph, double pd) throws IOException {
+
+		OctreeBuilder builder = new OctreeBuilder(size, dir);
+		RandomAccessFile ra = new RandomAccessFile(path, "r");
+		int l = 1;
+		boolean complete = false;
+		try {
+			Level first = builder.new Level(w, h, d,
+					(float)pw, (float)ph, (float)pd, 1);
+			FileChannel channel = ra.getChannel();
+			long wh = (long)w * h;
+			for(int z = 0; z < d; z++)
+				first.addPlane(channel.map(
+					FileChannel.MapMode.READ_ONLY,
+					z * wh, wh));
+			first.finish();
+
+			for(Level lev = first; lev != null; lev = lev.next)
+				l = lev.level;
+			complete = true;
+		} finally {
+			ra.close();
+			builder.finish(complete);
+		}
+		FilePreparer.writeProperties(w, h, d, pw, ph, pd, l,
+			dir + "/props.txt", CONTAINER);
+	}
+
+	/*
+	 * Stops the pool and waits for all writes to end before the
+	 * container is closed.  Only a complete octree gets an index;
+	 * otherwise the container is deleted, so that a half-built one
+	 * is never mistaken for a complete one.
+	 */
+	private final void finish(boolean complete) throws IOException {
+		if(complete)
+			exec.shutdown();
+		else
+			exec.shutdownNow();
+		try {
+			while(!exec.awaitTermination(1, TimeUnit.SECONDS))
+				; // keep waiting
+		} catch(InterruptedException e) {
+			writer.abort();
+			IOException ex = new IOException("Interrupted");
+			ex.initCause(e);
+			throw ex;
+		}
+		if(complete)
+			writer.close();
+		else
+			writer.abort();
+	}
+
+	private final class Level {
+		final int w, h, d, level;
+		final float pw, ph, pd;
+		final int fx, fy, fz;
+		final Level next;
+
+		final ByteBuffer[] planes;
+		int nPlanes = 0;
+		int zStart = 0;
+
+		// the cubes of the previous slab which are still written
+		final List<Future<Object>> pending =
+				new ArrayList<Future<Object>>();
+
+		Level(int w, int h, int d, float pw, float ph, float pd,
+				int level) {
+			this.w = w; this.h = h; this.d = d;
+			this.pw = pw; this.ph = ph; this.pd = pd;
+			this.level = level;
+			planes = new ByteBuffer[size];
+
+			fx = w > size ? 2 : 1;
+			fy = h > size ? 2 : 1;
+			fz = d > size ? 2 : 1;
+			if(fx == 1 && fy == 1 && fz == 1)
+				next = null;
+			else
+				next = new Level(
+					FilePreparer.nextPow2(w) / fx,
+					FilePreparer.nextPow2(h) / fy,
+					FilePreparer.nextPow2(d) / fz,
+					pw * fx, ph * fy, pd * fz,
+					level << 1);
+		}
+
+		/*
+		 * A null plane is a plane of zeros, used to pad the volume
+		 * for downsampling.
+		 */
+		final void addPlane(ByteBuffer plane) throws IOException {
+			planes[nPlanes++] = plane;
+			if(nPlanes == size)
+				processSlab();
+		}
+
+		final void finish() throws IOException {
+			if(next != null) {
+				int ds = FilePreparer.nextPow2(d);
+				while(zStart + nPlanes < ds)
+					addPlane(null);
+			}
+			if(nPlanes > 0)
+				processSlab();
+			waitFor(pending);
+			if(next != null)
+				next.finish();
+		}
+
+		private final void processSlab() throws IOException {
+			waitFor(pending);
+			pending.clear();
+
+			final ByteBuffer[] slab = planes.clone();
+			final int z0 = zStart;
+			final int n = nPlanes;
+			Arrays.fill(planes, null);
+			nPlanes = 0;
+			zStart += n;
+
+			if(z0 < d) {
+				for(int y = 0; y < h; y += size) {
+					for(int x = 0; x < w; x += size) {
+						final int bx = x, by = y;
+						pending.add(exec.submit(
+							new Callable<Object>() {
+							public Object call()
+								throws IOException {
+								writeBlock(slab, bx, by, z0);
+								return null;
+							}
+						}));
+					}
+				}
+			}
+
+			if(next == null)
+				return;
+
+			List<Future<byte[]>> downsampled =
+					new ArrayList<Future<byte[]>>();
+			for(int z = 0; z < n; z += fz) {
+				final int zi = z;
+				downsampled.add(exec.submit(
+					new Callable<byte[]>() {
+					public byte[] call() {
+						return downsample(slab, zi);
+					}
+				}));
+			}
+			for(Future<byte[]> f : downsampled)
+				next.addPlane(ByteBuffer.wrap(get(f)));
+		}
+
+		private final void writeBlock(ByteBuffer[] slab,
+				int x, int y, int z) throws IOException {
+			byte[] blob = new byte[size * size * size];
+			int n = Math.min(size, w - x);
+			for(int iz = 0; iz < size && z + iz < d; iz++) {
+				if(slab[iz] == null)
+					continue;
+				ByteBuffer plane = slab[iz].duplicate();
+				int i = iz * size * size;
+				for(int iy = 0; iy < size && y + iy < h;
+						iy++, i += size) {
+					plane.position((y + iy) * w + x);
+					plane.get(blob, i, n);
+				}
+			}
+			writer.writeCube(x * level, y * level, z * level,
+				level, pw, ph, pd, blob);
+		}
+
+		/*
+		 * Averages fx * fy * fz voxels for each voxel of the next
+		 * level, counting voxels outside the volume as zero,
+		 * like FilePreparer does.
+		 */
+		private final byte[] downsample(ByteBuffer[] slab, int z) {
+			int wn = next.w, hn = next.h;
+			byte[] ret = new byte[wn * hn];
+			byte[][] rows = new byte[fz * fy][w];
+			ByteBuffer[] src = new ByteBuffer[fz];
+			for(int k = 0; k < fz; k++)
+				if(slab[z + k] != null)
+					src[k] = slab[z + k].duplicate();
+			int count = fx * fy * fz;
+
+			for(int yn = 0; yn < hn; yn++) {
+				for(int k = 0; k < fz; k++) {
+					for(int j = 0; j < fy; j++) {
+						byte[] row = rows[k * fy + j];
+						int iy = yn * fy + j;
+						if(src[k] == null || iy >= h) {
+							Arrays.fill(row, (byte)0);
+						} else {
+							src[k].position(iy * w);
+							src[k].get(row);
+						}
+					}
+				}
+				int offs = yn * wn;
+				for(int xn = 0; xn < wn; xn++) {
+					long cumul = 0;
+					for(int r = 0; r < rows.length; r++) {
+						for(int i = 0; i < fx; i++) {
+							int ix = xn * fx + i;
+							if(ix < w)
+								cumul += rows[r][ix] & 0xff;
+						}
+					}
+					ret[offs + xn] = (byte)(cumul / count);
+				}
+			}
+			return ret;
+		}
+	}
+
+	private static final void waitFor(List<Future<Object>> futures)
+			throws IOException {
+		for(Future<Object> f : futures)
+			get(f);
+	}
+
+	private static final <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch(InterruptedException e) {
+			IOException ex = new IOException("Interrupted");
+			ex.initCause(e);
+			throw ex;
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			IOException ex = new IOException(
+				"Could not create octree");
+			ex.initCause(e.getCause());
+			throw ex;
+		}
+	}
+}
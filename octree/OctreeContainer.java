@@ -0,0 +1,235 @@
+package octree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import ij3d.AxisConstants;
+
+/*
+ * A single file holding all the cubes of an octree, as written by
+ * OctreeBuilder; this replaces the .info file and the three x/y/z blob
+ * files per cube that FilePreparer writes.
+ *
+ * The layout is:
+ *
+ *   header: magic, version, cube size, number of cubes, index offset
+ *   data:   for each cube the x, y and z blobs (size^3 bytes each),
+ *           in that order, so the blob for an axis is at
+ *           offset + axis * size^3
+ *   index:  for each cube x, y, z, level, pw, ph, pd and the offset
+ *           of its data
+ *
+ * Reading uses positional reads on a FileChannel, so several threads
+ * may read cubes at the same time.
+ */
+public class OctreeContainer implements AxisConstants {
+
+	static final int MAGIC = 0x4f435431; // "OCT1"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+	static final int ENTRY_SIZE = 4 * 4 + 3 * 4 + 8;
+
+	static final class Entry {
+		final int x, y, z, level;
+		final float pw, ph, pd;
+		final long offset;
+
+		Entry(int x, int y, int z, int level,
+				float pw, float ph, float pd, long offset) {
+			this.x = x; this.y = y; this.z = z;
+			this.level = level;
+			this.pw = pw; this.ph = ph; this.pd = pd;
+			this.offset = offset;
+		}
+
+		String name() {
+			return x + "_" + y + "_" + z + "_" + level;
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int size;
+	private final HashMap<String, Entry> entries =
+		new HashMap<String, Entry>();
+
+	private OctreeContainer(File f) throws IOException {
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(header, 0);
+		header.flip();
+		if(header.getInt() != MAGIC)
+			throw new IOException(f + " is not an octree container");
+		int version = header.getInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported octree container " +
+				"version " + version + " in " + f);
+		size = header.getInt();
+		int n = header.getInt();
+		long indexOffset = header.getLong();
+
+		ByteBuffer index = ByteBuffer.allocate(n * ENTRY_SIZE);
+		readFully(index, indexOffset);
+		index.flip();
+		for(int i = 0; i < n; i++) {
+			Entry e = new Entry(index.getInt(), index.getInt(),
+				index.getInt(), index.getInt(),
+				index.getFloat(), index.getFloat(),
+				index.getFloat(), index.getLong());
+			entries.put(e.name(), e);
+		}
+	}
+
+	public static OctreeContainer open(File f) throws IOException {
+		return new OctreeContainer(f);
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	public int getNumberOfCubes() {
+		return entries.size();
+	}
+
+	public float[] readCalibration(String name, float[] ret) {
+		Entry e = entries.get(name);
+		if(e == null)
+			return null;
+		if(ret == null)
+			ret = new float[3];
+		ret[0] = e.pw;
+		ret[1] = e.ph;
+		ret[2] = e.pd;
+		return ret;
+	}
+
+	/*
+	 * Fills planes (size arrays of size * size bytes) with the blob
+	 * of the given cube which is sliced perpendicular to axis.
+	 */
+	public void readCube(String name, int axis, byte[][] planes)
+			throws IOException {
+		Entry e = entries.get(name);
+		if(e == null)
+			throw new IOException("No cube " + name + " in container");
+		long pos = e.offset + (long)axis * size * size * size;
+		for(int i = 0; i < planes.length; i++) {
+			readFully(ByteBuffer.wrap(planes[i]), pos);
+			pos += planes[i].length;
+		}
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	private final void readFully(ByteBuffer buf, long pos)
+			throws IOException {
+		while(buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if(n < 0)
+				throw new IOException("Unexpected end of " +
+					"octree container");
+			pos += n;
+		}
+	}
+
+	/*
+	 * Writes a container.  writeCube() may be called from several
+	 * threads at once; the index is written by close().  A container
+	 * which is closed with abort() instead is deleted.
+	 */
+	public static class Writer {
+
+		private final File f;
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final int size;
+		private final List<Entry> entries = new ArrayList<Entry>();
+		private long nextOffset = HEADER_SIZE;
+
+		public Writer(File f, int size) throws IOException {
+			f.delete();
+			this.f = f;
+			file = new RandomAccessFile(f, "rw");
+			channel = file.getChannel();
+			this.size = size;
+		}
+
+		/*
+		 * zBlob holds the cube slice by slice in z (as the blobs
+		 * in the "z" directory of FilePreparer's output).
+		 */
+		public void writeCube(int x, int y, int z, int level,
+				float pw, float ph, float pd, byte[] zBlob)
+				throws IOException {
+			int s3 = size * size * size;
+			long offset;
+			synchronized(this) {
+				offset = nextOffset;
+				nextOffset += 3L * s3;
+				entries.add(new Entry(x, y, z, level,
+					pw, ph, pd, offset));
+			}
+			writeFully(ByteBuffer.wrap(FilePreparer.
+				createXBlobFromZ(zBlob, size)),
+				offset + X_AXIS * s3);
+			writeFully(ByteBuffer.wrap(FilePreparer.
+				createYBlobFromZ(zBlob, size)),
+				offset + Y_AXIS * s3);
+			writeFully(ByteBuffer.wrap(zBlob),
+				offset + Z_AXIS * s3);
+		}
+
+		public synchronized void close() throws IOException {
+			ByteBuffer index = ByteBuffer.allocate(
+				entries.size() * ENTRY_SIZE);
+			for(Entry e : entries) {
+				index.putInt(e.x).putInt(e.y).putInt(e.z);
+				index.putInt(e.level);
+				index.putFloat(e.pw).putFloat(e.ph);
+				index.putFloat(e.pd);
+				index.putLong(e.offset);
+			}
+			index.flip();
+			writeFully(index, nextOffset);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putInt(size);
+			header.putInt(entries.size()).putLong(nextOffset);
+			header.flip();
+			writeFully(header, 0);
+			file.close();
+		}
+
+		public synchronized void abort() {
+			try {
+				file.close();
+			} catch(IOException e) {
+				// it is deleted anyway
+			}
+			f.delete();
+		}
+
+		private final void writeFully(ByteBuffer buf, long pos)
+				throws IOException {
+			while(buf.hasRemaining())
+				pos += channel.write(buf, pos);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package octree;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.util.Properties;
+import java.util.Random;
+
+import ij3d.AxisConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Builds the octree of a small random volume with FilePreparer and with
+ * OctreeBuilder and checks that both give the same cubes.  The volume
+ * is not a multiple of the cube size, so that the cubes at the edges
+ * and the padding for the downsampled levels are compared as well.
+ */
+public class TestOctreeBuilder implements AxisConstants {
+
+	static final int SIZE = 16;
+	static final int W = 60, H = 37, D = 40;
+
+	File tmp, raw, filesDir, containerDir;
+
+	@Before
+	public void setUp() throws IOException {
+		tmp = File.createTempFile("octree", "");
+		tmp.delete();
+		tmp.mkdir();
+		raw = new File(tmp, "volume.raw");
+		filesDir = new File(tmp, "files");
+		filesDir.mkdir();
+		containerDir = new File(tmp, "container");
+		containerDir.mkdir();
+
+		byte[] voxels = new byte[W * H * D];
+		new Random(17).nextBytes(voxels);
+		FileOutputStream out = new FileOutputStream(raw);
+		out.write(voxels);
+		out.close();
+	}
+
+	@After
+	public void tearDown() {
+		delete(tmp);
+	}
+
+	static void delete(File f) {
+		File[] list = f.listFiles();
+		if(list != null)
+			for(File child : list)
+				delete(child);
+		f.delete();
+	}
+
+	static Properties readProperties(File dir) throws IOException {
+		Properties props = new Properties();
+		FileInputStream in = new FileInputStream(new File(dir, "props.txt"));
+		props.load(in);
+		in.close();
+		return props;
+	}
+
+	static byte[] readFile(File f) throws IOException {
+		byte[] ret = new byte[(int)f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		in.readFully(ret);
+		in.close();
+		return ret;
+	}
+
+	@Test
+	public void testSameAsFilePreparer() throws IOException {
+		FilePreparer.createFiles(raw.getPath(), SIZE, filesDir.getPath(),
+			W, H, D, 0.5, 0.5, 2);
+		OctreeBuilder.createFiles(raw.getPath(), SIZE, containerDir.getPath(),
+			W, H, D, 0.5, 0.5, 2);
+
+		Properties expected = readProperties(filesDir);
+		Properties actual = readProperties(containerDir);
+		assertEquals(OctreeBuilder.CONTAINER, actual.remove("container"));
+		assertEquals(expected, actual);
+
+		OctreeContainer container = OctreeContainer.open(
+			new File(containerDir, OctreeBuilder.CONTAINER));
+		try {
+			assertEquals(SIZE, container.getSize());
+			String[] names = new File(filesDir, "z").list();
+			assertTrue(names.length > 1);
+			assertEquals(names.length, container.getNumberOfCubes());
+
+			String[] axes = new String[3];
+			axes[X_AXIS] = "x";
+			axes[Y_AXIS] = "y";
+			axes[Z_AXIS] = "z";
+			byte[][] planes = new byte[SIZE][SIZE * SIZE];
+			for(String name : names) {
+				assertTrue(name, container.contains(name));
+
+				DataInputStream info = new DataInputStream(
+					new FileInputStream(new File(filesDir, name + ".info")));
+				float[] cal = container.readCalibration(name, null);
+				for(int i = 0; i < 3; i++)
+					assertEquals(name, info.readFloat(), cal[i], 0);
+				info.close();
+
+				for(int axis = 0; axis < 3; axis++) {
+					byte[] blob = readFile(new File(
+						new File(filesDir, axes[axis]), name));
+					container.readCube(name, axis, planes);
+					for(int i = 0; i < SIZE; i++) {
+						byte[] plane = new byte[SIZE * SIZE];
+						System.arraycopy(blob, i * plane.length,
+							plane, 0, plane.length);
+						assertArrayEquals(name + ", axis " + axes[axis]
+							+ ", plane " + i, plane, planes[i]);
+					}
+				}
+			}
+		} finally {
+			container.close();
+		}
+	}
+}
@@ -5,6 +5,7 @@ import ij3d.Content;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -41,6 +42,11 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 
 	private String imageDir;
 
+	/* null if the cubes are stored in separate files */
+	OctreeContainer container;
+
+	final CubeLoader loader;
+
 	private final Cube rootCube;
 	private final BranchGroup rootBranchGroup;
 	private final UpdaterThread updater;
@@ -82,6 +88,9 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		rootBranchGroup.setCapability(BranchGroup.ALLOW_DETACH);
 		rootBranchGroup.setCapability(BranchGroup.ALLOW_LOCAL_TO_VWORLD_READ);
 
+		loader = new CubeLoader(Runtime.getRuntime().maxMemory() / 4,
+			Runtime.getRuntime().availableProcessors());
+
 		Properties props = new Properties();
 
 		try {
@@ -96,6 +105,11 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 			ph = Float.parseFloat(props.getProperty("pixelHeight"));
 			pd = Float.parseFloat(props.getProperty("pixelDepth"));
 
+			String c = props.getProperty("container");
+			if(c != null)
+				container = OctreeContainer.open(
+					new File(imageDir, c));
+
 			rootCube = new Cube(this, imageDir, 0, 0, 0, maxLevel);
 			rootCube.createChildren();
 
@@ -121,6 +135,16 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		return rootBranchGroup;
 	}
 
+	final boolean hasCube(String dir, String name) {
+		if(container != null)
+			return container.contains(name);
+		return new File(dir, name + ".info").exists();
+	}
+
+	public CubeLoader getLoader() {
+		return loader;
+	}
+
 	public Cube getRootCube() {
 		return rootCube;
 	}
@@ -330,7 +354,17 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 	public void contentChanged(Content c){}
 	public void contentSelected(Content c){}
 	public void canvasResized(){}
-	public void universeClosed(){}
+	public void universeClosed() {
+		updater.cancel();
+		loader.dispose();
+		if(container != null) {
+			try {
+				container.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
 	private static Transform3D parentInv = new Transform3D();
 	private static Point3d viewPosition = new Point3d();
@@ -374,6 +408,9 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		/* This flag is set when a axis-change task was submitted */
 		private boolean axisChanged = false;
 
+		/* This flag is set when the universe was closed */
+		private boolean cancelled = false;
+
 		public UpdaterThread(Canvas3D canvas) {
 			this.canvas = canvas;
 		}
@@ -391,27 +428,52 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 			nextEyePosInLocal.set(eyePosInLocal);
 			available = true;
 			stopUpdating = true;
+			loader.cancelStale();
 			notify();
 		}
 
-		private synchronized void fetchNext() {
-			if(!available) {
+		private synchronized boolean fetchNext() {
+			if(!available && !cancelled) {
 				try {
 					wait();
 				} catch(InterruptedException e) {
 					e.printStackTrace();
 				}
 			}
+			if(cancelled)
+				return false;
 			runningT.set(nextT);
 			runningEyePosInLocal.set(nextEyePosInLocal);
 			available = false;
+			return true;
+		}
+
+		/*
+		 * Stops the thread (after the running update, which is
+		 * told to stop as well) and waits until it has finished.
+		 */
+		public void cancel() {
+			Thread running;
+			synchronized(this) {
+				cancelled = true;
+				stopUpdating = true;
+				notify();
+				running = thread;
+			}
+			// run() may never have been called
+			if(running == null)
+				return;
+			try {
+				running.join();
+			} catch(InterruptedException e) {
+				e.printStackTrace();
+			}
 		}
 
 		public void run() {
-			thread = new Thread() {
+			Thread t = new Thread() {
 				public void run() {
-					while(true) {
-						fetchNext();
+					while(fetchNext()) {
 						setWhichChild(axisIndex[curAxis][curDir]);
 						if(axisChanged) {
 							axisChanged = false;
@@ -420,17 +482,21 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 						}
 						System.out.println("updateCubes");
 						stopUpdating = false;
+						rootCube.prefetch(canvas, runningT, runningEyePosInLocal);
 						rootCube.update(canvas, runningT);
 						setWhichChild(DETAIL_AXIS);
-						System.out.println("updateCubes finished");
+						System.out.println("updateCubes finished (" +
+							loader.getHits() + " hits, " +
+							loader.getMisses() + " misses)");
 					}
 				}
 			};
-			thread.setPriority(Thread.MIN_PRIORITY);
-			thread.start();
+			t.setPriority(Thread.MIN_PRIORITY);
+			synchronized(this) {
+				thread = t;
+			}
+			t.start();
 		}
-
-		// TODO cancel thread
 	}
 }
 
@@ -0,0 +1,377 @@
+package process3d;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Labels the connected regions of the voxels with a value above a
+ * threshold, and collects the number of voxels, the bounding box, the
+ * centroid and the sum of the values of each region.
+ *
+ * The stack is scanned twice: the first pass gives each voxel the
+ * label of one of its neighbours which were already visited, and
+ * records in a union-find structure which labels belong together.
+ * The statistics are accumulated per set while scanning. The second
+ * pass replaces the labels by the number of their set. Regions are
+ * numbered from 1 in the order in which the scan reaches them; 0 is
+ * the background.
+ *
+ * 8-bit, 16-bit and 32-bit images are supported. If the regions must
+ * have the same value, neighbouring voxels with different values are
+ * not connected.
+ */
+public class ConnectedComponents3D {
+
+	private final int connectivity;
+	private boolean sameValue;
+
+	private int w, h, d;
+	private int[][] labels;
+	private int nRegions;
+
+	/* the union-find structure, and the statistics of each set */
+	private int[] parent;
+	private float[] value;
+	private int[] count;
+	private int[] minX, minY, minZ, maxX, maxY, maxZ;
+	private long[] sumX, sumY, sumZ;
+	private double[] sumValue;
+	private int nLabels;
+
+	/**
+	 * Creates a labeller for 6, 18 or 26 connectivity, i.e. voxels
+	 * are connected if they share a face, a face or an edge, or any
+	 * corner.
+	 */
+	public ConnectedComponents3D(int connectivity) {
+		if(connectivity != 6 && connectivity != 18 &&
+				connectivity != 26)
+			throw new IllegalArgumentException("Connectivity " +
+				"must be 6, 18 or 26, not " + connectivity);
+		this.connectivity = connectivity;
+	}
+
+	/**
+	 * If set, only voxels with the same value are connected.
+	 */
+	public void setSameValue(boolean sameValue) {
+		this.sameValue = sameValue;
+	}
+
+	/**
+	 * Labels the regions of the voxels whose value is greater than
+	 * threshold, and returns the number of regions.
+	 */
+	public int label(ImagePlus image, double threshold) {
+		w = image.getWidth();
+		h = image.getHeight();
+		d = image.getStackSize();
+		ImageStack stack = image.getStack();
+
+		// the neighbours which come before a voxel in the scan
+		int[] dx = new int[13], dy = new int[13], dz = new int[13];
+		int nNeighbours = 0;
+		for(int k = -1; k <= 0; k++)
+			for(int j = -1; j <= 1; j++)
+				for(int i = -1; i <= 1; i++) {
+					if(k == 0 && (j > 0 || (j == 0 && i >= 0)))
+						continue;
+					int dist = i * i + j * j + k * k;
+					if((connectivity == 6 && dist > 1) ||
+						(connectivity == 18 && dist > 2))
+						continue;
+					dx[nNeighbours] = i;
+					dy[nNeighbours] = j;
+					dz[nNeighbours] = k;
+					nNeighbours++;
+				}
+
+		nLabels = 0;
+		allocate(1024);
+		labels = new int[d][];
+		float[] values = new float[w * h];
+		for(int z = 0; z < d; z++) {
+			getValues(stack.getPixels(z + 1), values);
+			int[] current = labels[z] = new int[w * h];
+			for(int y = 0, i = 0; y < h; y++)
+				for(int x = 0; x < w; x++, i++) {
+					float v = values[i];
+					if(!(v > threshold))
+						continue;
+					int l = 0;
+					for(int n = 0; n < nNeighbours; n++) {
+						int x1 = x + dx[n], y1 = y + dy[n];
+						int z1 = z + dz[n];
+						if(x1 < 0 || x1 >= w || y1 < 0 ||
+								y1 >= h || z1 < 0)
+							continue;
+						int other = labels[z1][y1 * w + x1];
+						if(other == 0)
+							continue;
+						other = find(other);
+						if(sameValue && value[other] != v)
+							continue;
+						l = l == 0 ? other : union(l, other);
+					}
+					if(l == 0)
+						l = newLabel(v);
+					current[i] = l;
+					add(l, x, y, z, v);
+				}
+			IJ.showProgress(z + 1, 2 * d);
+		}
+
+		// number the sets in the order of their first voxel
+		int[] map = new int[nLabels + 1];
+		nRegions = 0;
+		for(int l = 1; l <= nLabels; l++) {
+			if(parent[l] == l) {
+				map[l] = ++nRegions;
+				move(l, nRegions);
+			} else
+				map[l] = map[find(l)];
+		}
+		for(int z = 0; z < d; z++) {
+			int[] current = labels[z];
+			for(int i = 0; i < w * h; i++)
+				current[i] = map[current[i]];
+			IJ.showProgress(d + z + 1, 2 * d);
+		}
+		parent = null;
+		return nRegions;
+	}
+
+	private static void getValues(Object pixels, float[] values) {
+		if(pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for(int i = 0; i < p.length; i++)
+				values[i] = p[i] & 0xff;
+		} else if(pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for(int i = 0; i < p.length; i++)
+				values[i] = p[i] & 0xffff;
+		} else if(pixels instanceof float[])
+			System.arraycopy(pixels, 0, values, 0, values.length);
+		else
+			throw new IllegalArgumentException("Byte, short or " +
+				"float image expected");
+	}
+
+	/* the entries are initialized in newLabel() */
+	private void allocate(int size) {
+		parent = grow(parent, size);
+		value = grow(value, size);
+		count = grow(count, size);
+		minX = grow(minX, size); maxX = grow(maxX, size);
+		minY = grow(minY, size); maxY = grow(maxY, size);
+		minZ = grow(minZ, size); maxZ = grow(maxZ, size);
+		sumX = grow(sumX, size);
+		sumY = grow(sumY, size);
+		sumZ = grow(sumZ, size);
+		sumValue = grow(sumValue, size);
+	}
+
+	private int newLabel(float v) {
+		int l = ++nLabels;
+		if(l >= parent.length)
+			allocate(2 * parent.length);
+		parent[l] = l;
+		value[l] = v;
+		count[l] = 0;
+		minX[l] = minY[l] = minZ[l] = Integer.MAX_VALUE;
+		maxX[l] = maxY[l] = maxZ[l] = -1;
+		sumX[l] = sumY[l] = sumZ[l] = 0;
+		sumValue[l] = 0;
+		return l;
+	}
+
+	private int find(int l) {
+		while(parent[l] != l) {
+			// path halving
+			parent[l] = parent[parent[l]];
+			l = parent[l];
+		}
+		return l;
+	}
+
+	/*
+	 * Joins the sets with the roots a and b. The smaller label
+	 * becomes the root, so that each root is the first label of
+	 * its set.
+	 */
+	private int union(int a, int b) {
+		if(a == b)
+			return a;
+		if(a > b) {
+			int tmp = a; a = b; b = tmp;
+		}
+		parent[b] = a;
+		count[a] += count[b];
+		minX[a] = Math.min(minX[a], minX[b]);
+		minY[a] = Math.min(minY[a], minY[b]);
+		minZ[a] = Math.min(minZ[a], minZ[b]);
+		maxX[a] = Math.max(maxX[a], maxX[b]);
+		maxY[a] = Math.max(maxY[a], maxY[b]);
+		maxZ[a] = Math.max(maxZ[a], maxZ[b]);
+		sumX[a] += sumX[b];
+		sumY[a] += sumY[b];
+		sumZ[a] += sumZ[b];
+		sumValue[a] += sumValue[b];
+		return a;
+	}
+
+	private void add(int l, int x, int y, int z, float v) {
+		count[l]++;
+		if(x < minX[l]) minX[l] = x;
+		if(x > maxX[l]) maxX[l] = x;
+		if(y < minY[l]) minY[l] = y;
+		if(y > maxY[l]) maxY[l] = y;
+		if(z < minZ[l]) minZ[l] = z;
+		if(z > maxZ[l]) maxZ[l] = z;
+		sumX[l] += x;
+		sumY[l] += y;
+		sumZ[l] += z;
+		sumValue[l] += v;
+	}
+
+	/* copies the statistics of the label from to the index to <= from */
+	private void move(int from, int to) {
+		value[to] = value[from];
+		count[to] = count[from];
+		minX[to] = minX[from]; maxX[to] = maxX[from];
+		minY[to] = minY[from]; maxY[to] = maxY[from];
+		minZ[to] = minZ[from]; maxZ[to] = maxZ[from];
+		sumX[to] = sumX[from];
+		sumY[to] = sumY[from];
+		sumZ[to] = sumZ[from];
+		sumValue[to] = sumValue[from];
+	}
+
+	public int getRegionCount() {
+		return nRegions;
+	}
+
+	/**
+	 * Returns the label of each voxel, one array per slice.
+	 */
+	public int[][] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * Returns the labels as a 16-bit stack, or as a 32-bit one if
+	 * there are more than 65535 regions.
+	 */
+	public ImagePlus getLabelImage(String title) {
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++) {
+			int[] l = labels[z];
+			if(nRegions < 65536) {
+				short[] p = new short[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = (short)l[i];
+				stack.addSlice("", new ShortProcessor(w, h, p, null));
+			} else {
+				float[] p = new float[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = l[i];
+				stack.addSlice("", new FloatProcessor(w, h, p, null));
+			}
+		}
+		ImagePlus result = new ImagePlus(title, stack);
+		result.setDisplayRange(0, nRegions);
+		return result;
+	}
+
+	/** The number of voxels of the region. */
+	public int getVoxelCount(int label) {
+		return count[label];
+	}
+
+	/**
+	 * The value of the first voxel of the region; all voxels have
+	 * this value if setSameValue(true) was called.
+	 */
+	public float getValue(int label) {
+		return value[label];
+	}
+
+	/** The sum of the values of the voxels of the region. */
+	public double getValueSum(int label) {
+		return sumValue[label];
+	}
+
+	/**
+	 * Returns the bounding box of the region in voxels, as
+	 * { minX, minY, minZ, maxX, maxY, maxZ }, inclusive.
+	 */
+	public int[] getBoundingBox(int label) {
+		return new int[] {
+			minX[label], minY[label], minZ[label],
+			maxX[label], maxY[label], maxZ[label]
+		};
+	}
+
+	/** Returns the centroid of the region in voxels. */
+	public double[] getCentroid(int label) {
+		return new double[] {
+			sumX[label] / (double)count[label],
+			sumY[label] / (double)count[label],
+			sumZ[label] / (double)count[label]
+		};
+	}
+
+	/**
+	 * Adds a row with the statistics of the region to the table.
+	 * The centroid is given in calibrated units.
+	 */
+	public void addRow(ResultsTable rt, int label, Calibration cal) {
+		double[] c = getCentroid(label);
+		rt.incrementCounter();
+		rt.addValue("Label", label);
+		rt.addValue("Value", value[label]);
+		rt.addValue("Points in Region", count[label]);
+		rt.addValue("X", cal.xOrigin + c[0] * cal.pixelWidth);
+		rt.addValue("Y", cal.yOrigin + c[1] * cal.pixelHeight);
+		rt.addValue("Z", cal.zOrigin + c[2] * cal.pixelDepth);
+		rt.addValue("BX", minX[label]);
+		rt.addValue("BY", minY[label]);
+		rt.addValue("BZ", minZ[label]);
+		rt.addValue("Width", maxX[label] - minX[label] + 1);
+		rt.addValue("Height", maxY[label] - minY[label] + 1);
+		rt.addValue("Depth", maxZ[label] - minZ[label] + 1);
+	}
+
+	private static int[] grow(int[] a, int size) {
+		int[] b = new int[size];
+		if(a != null)
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, size));
+		return b;
+	}
+
+	private static long[] grow(long[] a, int size) {
+		long[] b = new long[size];
+		if(a != null)
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, size));
+		return b;
+	}
+
+	private static float[] grow(float[] a, int size) {
+		float[] b = new float[size];
+		if(a != null)
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, size));
+		return b;
+	}
+
+	private static double[] grow(double[] a, int size) {
+		double[] b = new double[size];
+		if(a != null)
+			System.arraycopy(a, 0, b, 0, Math.min(a.length, size));
+		return b;
+	}
+}
@@ -3,13 +3,15 @@
 package process3d;
 
 import ij.process.FloatProcessor;
-import ij.process.ByteProcessor;
 
 import ij.ImagePlus;
 import ij.ImageStack;
-import ij.IJ;
 
-public class Convolve_3d {
+import fft.FFT;
+import fft.RealFFT3D;
+import fft.Spectrum;
+
+public class Convolve_3d extends Filter3D {
 
 	public static ImagePlus convolve(ImagePlus image, 
 					float[] H_x, float[] H_y, float[] H_z) {
@@ -42,96 +44,194 @@ public class Convolve_3d {
 		return convolve(image, H);
 	}
 
-	private static int w, h, d;
-	private static int r_x, r_y, r_z;
-	private static Object[] slices_in;
-	private static boolean isByte, isShort, isFloat;
-	private static float[][][] H;
-
+	/**
+	 * Convolves the image with the given kernel, which must have an
+	 * odd size in each dimension. Values outside the image are taken
+	 * to be 0. The result is a float image.
+	 * This always uses the spatial convolution, so that the results
+	 * are exactly the same as before; to let large kernels be done
+	 * via the Fourier transform, use an instance of Convolve_3d
+	 * (see setMethod()).
+	 */
 	public static ImagePlus convolve(ImagePlus image, float[][][] kernel) {
+		Convolve_3d convolve = new Convolve_3d(kernel);
+		convolve.setMethod(SPATIAL);
+		return convolve.filter(image);
+	}
+
+	private final float[][][] H;
+	private final int r_x, r_y, r_z;
+	private float[][] slices_out;
+
+	/** The ways the convolution can be calculated */
+	public static final int AUTOMATIC = 0, SPATIAL = 1, FOURIER = 2;
+
+	/*
+	 * The time for a Fourier transform of n values, divided by
+	 * n log2(n), relative to the time for one multiply-add of the
+	 * spatial convolution. Three transforms are needed (the image,
+	 * the kernel and the inverse).
+	 */
+	private static final double FOURIER_COST = 3 * 4.0;
+
+	private int method = AUTOMATIC;
+
+	/**
+	 * Chooses between the direct (spatial) convolution and the one
+	 * via the Fourier transform. The latter takes time proportional
+	 * to n log(n) for n voxels whatever the size of the kernel,
+	 * but the results differ by rounding errors (relative to the
+	 * largest values of the image), and it needs several times as
+	 * much memory. By default, the one which is expected to be
+	 * faster is used, unless the Fourier transforms would not fit
+	 * into the free memory.
+	 */
+	public void setMethod(int method) {
+		this.method = method;
+	}
+
+	public Convolve_3d(float[][][] kernel) {
 		H = kernel;
 		// Determine dimensions of the filter
 		r_z = H.length;
 		r_y = H[0].length;
 		r_x = H[0][0].length;
-		
-		// Determine dimensions of the image
-		w = image.getWidth(); h = image.getHeight();
-		d = image.getStackSize();
-		
-		// Adjust minimum and maximum indices (because of filter size)
-		int min_x = r_x/2, max_x = w - r_x/2;
-		int min_y = r_y/2, max_y = h - r_y/2;
-		int min_z = r_z/2, max_z = d - r_z/2;
-
-		// initialize slices_in and slices_out
-		slices_in = new Object[d];
-		float[][] slices_out = new float[d][];
-		for(int i = 0; i < d; i++) {
-			slices_in[i] = image.getStack().
-						getProcessor(i+1).getPixels();
-			slices_out[i] = new float[w*h];
-		}
+	}
 
-		// determine image type
-		isByte = slices_in[0] instanceof byte[];
-		isShort = slices_in[0] instanceof short[];
-		isFloat = slices_in[0] instanceof float[];
+	public ImagePlus filter(ImagePlus image) {
+		init(image);
+		if(!(slices[0] instanceof byte[] || slices[0] instanceof short[]
+				|| slices[0] instanceof float[]))
+			throw new IllegalArgumentException(
+				"Byte, short or float image expected");
 
-		// convolve
-// 		for(int z = min_z; z < max_z; z++) {
-// 			IJ.showProgress(z, max_z);
-// 			for(int y = min_y; y < max_y; y++) {
-// 				for(int x = min_x; x < max_x; x++) {
-		for(int z = 0; z < d; z++) {
-			IJ.showProgress(z, d);
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					slices_out[z][y*w+x] = 
-						convolvePoint(z,y,x);
-				}
-			}
+		// pad so that the cyclic convolution doesn't wrap around
+		int pw = FFT.nextFastLength(w + r_x - 1);
+		int ph = FFT.nextFastLength(h + r_y - 1);
+		int pd = FFT.nextFastLength(d + r_z - 1);
+		if(useFourier(pw, ph, pd))
+			filterFourier(pw, ph, pd);
+		else {
+			slices_out = new float[d][];
+			for(int i = 0; i < d; i++)
+				slices_out[i] = new float[w*h];
+
+			filterSlices();
 		}
-		
+
 		// create output image
 		ImageStack stack = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
 			stack.addSlice("", 
 				new FloatProcessor(w, h, slices_out[z], null));
 		}
+		slices_out = null;
+		slices = null;
 		ImagePlus result = new ImagePlus("", stack);
 		result.setCalibration(image.getCalibration());
 		return result;
 	}
 
-	private static float convolvePoint(int z, int y, int x) {
-		float sum = 0f; 
-		for(int k=-r_z/2; k<=+r_z/2; k++) {
-			for(int j=-r_y/2; j<=+r_y/2; j++) {
-				for(int i=-r_x/2; i<=+r_x/2; i++) {
-					sum += getValue(x+i, y+j, z+k) * 
-						H[k+r_z/2][j+r_y/2][i+r_x/2];
+	private boolean useFourier(int pw, int ph, int pd) {
+		if(method != AUTOMATIC)
+			return method == FOURIER;
+		double n = (double)pw * ph * pd;
+		double fourierCost = FOURIER_COST * n * Math.log(n) / Math.log(2);
+		double spatialCost = (double)w * h * d * r_x * r_y * r_z;
+		if(fourierCost >= spatialCost)
+			return false;
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory()
+			- (runtime.totalMemory() - runtime.freeMemory());
+		return fourierBytes(pw, ph, pd) < free;
+	}
+
+	/*
+	 * The most memory filterFourier() needs at the same time: two
+	 * spectra (the image's and the kernel's, or the image's and the
+	 * correlation) and the result.
+	 */
+	long fourierBytes(int pw, int ph, int pd) {
+		long spectrum = 2L * (pw / 2 + 1) * ph * pd;
+		return 4 * (2 * spectrum + (long)w * h * d);
+	}
+
+	/*
+	 * The image and the kernel are padded with zeros to pw x ph x pd
+	 * and transformed; multiplying the spectrum of the image with
+	 * the conjugate of the kernel's correlates the image with the
+	 * kernel (which is what filterSlice() does, too), but with the
+	 * result shifted by the centre of the kernel.
+	 */
+	private void filterFourier(int pw, int ph, int pd) {
+		RealFFT3D fft = new RealFFT3D(pw, ph, pd);
+		fft.setNumberOfThreads(getNumberOfThreads());
+		Spectrum spectrum = fft.forward(slices, w, h);
+
+		float[][] kernel = new float[r_z][r_x * r_y];
+		for(int k = 0; k < r_z; k++)
+			for(int j = 0; j < r_y; j++)
+				System.arraycopy(H[k][j], 0, kernel[k], j * r_x, r_x);
+		spectrum.multiplyConjugate(fft.forward(kernel, r_x, r_y));
+		float[][] correlation = fft.inverse(spectrum);
+
+		slices_out = new float[d][w*h];
+		for(int z = 0; z < d; z++) {
+			float[] in = correlation[(z - r_z/2 + pd) % pd];
+			float[] out = slices_out[z];
+			for(int y = 0; y < h; y++) {
+				int row = ((y - r_y/2 + ph) % ph) * pw;
+				for(int x = 0; x < w; x++)
+					out[y*w + x] = in[row + (x - r_x/2 + pw) % pw];
+			}
+		}
+	}
+
+	/*
+	 * Instead of summing up the neighbourhood of one voxel after the
+	 * other, each kernel entry is multiplied with a whole row and added
+	 * to the output row, clipping the rows at the border. For each
+	 * voxel, the products are added in the same order as before.
+	 */
+	protected void filterSlice(int z) {
+		float[] out = slices_out[z];
+		for(int k = 0; k < r_z; k++) {
+			int zz = z + k - r_z/2;
+			if(zz < 0 || zz >= d)
+				continue;
+			Object plane = slices[zz];
+			for(int y = 0; y < h; y++) {
+				for(int j = 0; j < r_y; j++) {
+					int yy = y + j - r_y/2;
+					if(yy < 0 || yy >= h)
+						continue;
+					for(int i = 0; i < r_x; i++) {
+						int dx = i - r_x/2;
+						int x0 = Math.max(0, -dx);
+						int x1 = Math.min(w, w - dx);
+						addRow(plane, yy*w + x0 + dx,
+							out, y*w + x0, x1 - x0,
+							H[k][j][i]);
+					}
 				}
 			}
 		}
-		return sum;
 	}
 
-	private static float getValue(int x, int y, int z) {
-		if(x < 0) return 0f;
-		if(x > w-1) return 0f;
-		if(y < 0) return 0f;
-		if(y > h-1) return 0f;
-		if(z < 0) return 0f;
-		if(z > d-1) return 0f;
-		int index = y * w + x;
-		if(isByte)
-			return ((byte[])slices_in[z])[index] & 0xff;
-		else if(isShort)
-			return ((short[])slices_in[z])[index];
-		else if(isFloat)
-			return ((float[])slices_in[z])[index];
-		IJ.error("Neither byte nor float image");
-		return -1f;
+	private static void addRow(Object plane, int from,
+			float[] out, int offs, int n, float factor) {
+		if(plane instanceof byte[]) {
+			byte[] p = (byte[])plane;
+			for(int x = 0; x < n; x++)
+				out[offs + x] += (p[from + x] & 0xff) * factor;
+		} else if(plane instanceof short[]) {
+			short[] p = (short[])plane;
+			for(int x = 0; x < n; x++)
+				out[offs + x] += (p[from + x] & 0xffff) * factor;
+		} else {
+			float[] p = (float[])plane;
+			for(int x = 0; x < n; x++)
+				out[offs + x] += p[from + x] * factor;
+		}
 	}
 }
@@ -23,20 +23,26 @@ import ij.IJ;
  * For complexity reasons, the implementation uses a 6-neighbour-
  * hood and not a 27-neighborhood.
  */
-public class Dilate_ implements PlugInFilter {
+public class Dilate_ extends Filter3D implements PlugInFilter {
 
-	private int w, h, d;
 	private ImagePlus image;
 	private byte[][] pixels_in;
 	private byte[][] pixels_out;
+	private int threshold;
 
 	public void run(ImageProcessor ip) {
 		GenericDialog gd = new GenericDialog("Dilate");
 		gd.addNumericField("Iso value", 255, 0);
+		gd.addNumericField("Radius (0 for one voxel)", 0, 2);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
-		dilate(image, (int)gd.getNextNumber(), false).show();
+		int threshold = (int)gd.getNextNumber();
+		double radius = gd.getNextNumber();
+		if(radius > 0)
+			dilate(image, threshold, radius).show();
+		else
+			dilate(image, threshold, false).show();
 	}
 
 	public int setup(String arg, ImagePlus imp) {
@@ -57,25 +63,8 @@ public class Dilate_ implements PlugInFilter {
 			pixels_out[z] = new byte[w*h];
 		}
 		
-		// iterate
-		for(int z = 0; z < d; z++) {
-			IJ.showProgress(z, d-1);
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					if(get(x, y, z) == threshold ||
-						get(x-1, y, z) == threshold ||
-						get(x+1, y, z) == threshold ||
-						get(x, y-1, z) == threshold ||
-						get(x, y+1, z) == threshold ||
-						get(x, y, z-1) == threshold ||
-						get(x, y, z+1) == threshold)
-
-						set(x, y, z, threshold);
-					else
-						set(x, y, z, get(x, y, z));
-				}
-			}
-		}
+		this.threshold = threshold;
+		filterSlices();
 
 		ColorModel cm = image.getStack().getColorModel();
 		
@@ -95,6 +84,65 @@ public class Dilate_ implements PlugInFilter {
 		return result;
 	}
 
+	/**
+	 * Dilates the voxels with the value threshold by a ball of the
+	 * given radius (in calibrated units), using the exact Euclidean
+	 * distance transform. Returns a new image.
+	 */
+	public ImagePlus dilate(ImagePlus image, int threshold, double radius) {
+		w = image.getWidth(); h = image.getHeight();
+		d = image.getStackSize();
+		float[][] dist = new Distance_Transform_3D()
+			.getDistances(image, threshold);
+
+		ColorModel cm = image.getStack().getColorModel();
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++) {
+			byte[] in = (byte[])image.getStack().getPixels(z+1);
+			byte[] out = new byte[w*h];
+			for(int i = 0; i < w*h; i++)
+				out[i] = dist[z][i] <= radius ?
+					(byte)threshold : in[i];
+			stack.addSlice("", new ByteProcessor(w, h, out, cm));
+		}
+		ImagePlus result = new ImagePlus(
+					image.getTitle() + "_dilated", stack);
+		result.setCalibration(image.getCalibration());
+		return result;
+	}
+
+	/*
+	 * Neighbours outside the stack are replaced by the nearest voxel
+	 * inside, as in get().
+	 */
+	protected void filterSlice(int z) {
+		byte[] in = pixels_in[z];
+		byte[] below = pixels_in[z > 0 ? z-1 : 0];
+		byte[] above = pixels_in[z < d-1 ? z+1 : d-1];
+		byte[] out = pixels_out[z];
+		int t = threshold;
+		for(int y = 0; y < h; y++) {
+			int row = y*w;
+			int up = (y > 0 ? y-1 : 0) * w;
+			int down = (y < h-1 ? y+1 : h-1) * w;
+			for(int x = 0; x < w; x++) {
+				int i = row + x;
+				int left = row + (x > 0 ? x-1 : 0);
+				int right = row + (x < w-1 ? x+1 : w-1);
+				if((in[i] & 0xff) == t ||
+						(in[left] & 0xff) == t ||
+						(in[right] & 0xff) == t ||
+						(in[up+x] & 0xff) == t ||
+						(in[down+x] & 0xff) == t ||
+						(below[i] & 0xff) == t ||
+						(above[i] & 0xff) == t)
+					out[i] = (byte)t;
+				else
+					out[i] = in[i];
+			}
+		}
+	}
+
 	public int get(int x, int y, int z) {
 		x = x < 0 ? 0 : x; x = x >= w ? w-1 : x;
 		y = y < 0 ? 0 : y; y = y >= h ? h-1 : y;
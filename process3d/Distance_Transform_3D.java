@@ -1,145 +1,239 @@
 package process3d;
 
-import ij.gui.GenericDialog;
-import java.awt.Scrollbar;
-import java.awt.event.AdjustmentListener;
-import java.awt.event.AdjustmentEvent;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ij.ImagePlus;
 import ij.IJ;
 import ij.ImageStack;
+import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.plugin.filter.PlugInFilter;
 
-// TODO take calibration into account
+import util.Threads;
 
+/**
+ * Calculates the exact Euclidean distance of each voxel to the nearest
+ * voxel with the value fg, taking the calibration into account.
+ *
+ * The transform is separable: the squared distances are computed
+ * along the rows first, then along the columns and finally along z,
+ * each time as the lower envelope of a set of parabolas (Felzenszwalb
+ * and Huttenlocher, "Distance Transforms of Sampled Functions"). This
+ * needs linear time, and the lines of each pass are independent, so
+ * they are distributed over several threads.
+ */
 public class Distance_Transform_3D implements PlugInFilter {
 
-	private static final float SQ1 = 1f;
-	private static final float SQ2 = (float)Math.sqrt(2);
-	private static final float SQ3 = (float)Math.sqrt(3);
-
-	private final float[] ML = {SQ3, SQ2, SQ3, SQ2, SQ1, SQ2, SQ3, SQ2, SQ3,
-		SQ2, SQ1, SQ2, SQ1};
-	private final float[] MR = {SQ1, SQ2, SQ1, SQ2,
-		SQ3, SQ2, SQ3, SQ2, SQ1, SQ2, SQ3, SQ2, SQ3};
-
 	private ImagePlus image;
 	private int w, h, d;
 	private float[][] dist;
-	private float maxVal;
-	private int fg = 255;
+	private int nThreads = Runtime.getRuntime().availableProcessors();
 
 	public void run(ImageProcessor ip) {
 		getTransformed(image, 255).show();
 	}
 
+	public void setNumberOfThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
 	public ImagePlus getTransformed(ImagePlus image, int fg) {
 		this.image = image;
-		this.fg = fg;
-		init();
-		forwardPass();
-		backwardPass();
-		return toFloat();
+		dist = getDistances(image, fg);
+		ImagePlus ret = toFloat();
+		ret.setCalibration(image.getCalibration());
+		return ret;
 	}
 
+	/**
+	 * Returns the distances calculated by the last call of
+	 * getTransformed() or getDistances(ImagePlus, int).
+	 */
 	public float[][] getDistances() {
 		return dist;
 	}
 
-	public void init(float[][]dist, int w, int h, int d) {
-		this.dist = dist;
-		this.w = w; this.h = h; this.d = d;
-		maxVal = (float)Math.sqrt(w*w + h*h + d*d);
-	}
+	/**
+	 * Returns the distance (in calibrated units) of each voxel to the
+	 * nearest voxel with the value fg. If there is no such voxel, all
+	 * distances are the length of the diagonal of the stack.
+	 */
+	public float[][] getDistances(ImagePlus image, int fg) {
+		init(image);
+		Calibration cal = image.getCalibration();
+		double pw = cal.pixelWidth, ph = cal.pixelHeight;
+		double pd = cal.pixelDepth;
+		float maxVal = (float)Math.sqrt(w * w * pw * pw +
+				h * h * ph * ph + d * d * pd * pd);
 
-	public void init() {
-		w = image.getWidth(); h = image.getHeight();
-		d = image.getStackSize();
-		maxVal = (float)Math.sqrt(w*w + h*h + d*d);
-		dist = new float[d][w*h];
+		final float[][] result = new float[d][];
 		for(int z = 0; z < d; z++) {
-			byte[] pixels = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-			for(int i = 0; i < w*h; i++) {
-				if((int)(pixels[i]&0xff) == fg)
-					dist[z][i] = 0;
-				else
-					dist[z][i] = maxVal;
+			byte[] pixels = (byte[])image.getStack().getPixels(z + 1);
+			float[] r = result[z] = new float[w * h];
+			for(int i = 0; i < w * h; i++)
+				r[i] = (pixels[i] & 0xff) == fg ?
+					0 : Float.POSITIVE_INFINITY;
+		}
+		transform(new Lines() {
+			double get(int z, int i) {
+				return result[z][i];
+			}
+			void set(int z, int i, double v) {
+				result[z][i] = (float)v;
 			}
+		}, pw * pw, ph * ph, pd * pd);
+
+		for(int z = 0; z < d; z++) {
+			float[] r = result[z];
+			for(int i = 0; i < w * h; i++)
+				r[i] = r[i] == Float.POSITIVE_INFINITY ?
+					maxVal : (float)Math.sqrt(r[i]);
 		}
+		dist = result;
+		return result;
 	}
 
-	private float dist(int x, int y, int z) {
-		if(x < 0 || x >= w || y < 0 || y >= h || z < 0 || z >= d) {
-			return  -maxVal;
-		} else {
-			return dist[z][y*w+x];
+	/**
+	 * Returns the squared distance of each voxel to the nearest voxel
+	 * with the value fg, in voxels, ignoring the calibration. This
+	 * needs no more memory than the result. If there is no voxel with
+	 * the value fg, all entries are Integer.MAX_VALUE.
+	 */
+	public int[][] getSquaredDistances(ImagePlus image, int fg) {
+		init(image);
+		final int[][] result = new int[d][];
+		for(int z = 0; z < d; z++) {
+			byte[] pixels = (byte[])image.getStack().getPixels(z + 1);
+			int[] r = result[z] = new int[w * h];
+			for(int i = 0; i < w * h; i++)
+				r[i] = (pixels[i] & 0xff) == fg ?
+					0 : Integer.MAX_VALUE;
 		}
+		transform(new Lines() {
+			double get(int z, int i) {
+				int v = result[z][i];
+				return v == Integer.MAX_VALUE ?
+					Double.POSITIVE_INFINITY : v;
+			}
+			void set(int z, int i, double v) {
+				result[z][i] = v == Double.POSITIVE_INFINITY ?
+					Integer.MAX_VALUE : (int)v;
+			}
+		}, 1, 1, 1);
+		return result;
 	}
 
-	public void forwardPass() {
-		float[] D = new float[13];
-		for(int z = 0; z < d; z++) {
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					if(dist[z][y*w+x] == 0) {
-						continue;
-					}
-					D[0]  = ML[0]  + dist(x-1, y-1, z-1);
-					D[1]  = ML[1]  + dist(x,   y-1, z-1);
-					D[2]  = ML[2]  + dist(x+1, y-1, z-1);
-					D[3]  = ML[3]  + dist(x-1, y,   z-1);
-					D[4]  = ML[4]  + dist(x,   y,   z-1);
-					D[5]  = ML[5]  + dist(x+1, y,   z-1);
-					D[6]  = ML[6]  + dist(x-1, y+1, z-1);
-					D[7]  = ML[7]  + dist(x,   y+1, z-1);
-					D[8]  = ML[8]  + dist(x+1, y+1, z-1);
-					D[9]  = ML[9]  + dist(x-1, y-1, z);
-					D[10] = ML[10] + dist(x,   y-1, z);
-					D[11] = ML[11] + dist(x+1, y-1, z);
-					D[12] = ML[12] + dist(x-1, y,   z);
-					dist[z][y*w+x] = min(D);
-				}
+	private void init(ImagePlus image) {
+		this.image = image;
+		w = image.getWidth(); h = image.getHeight();
+		d = image.getStackSize();
+	}
+
+	/**
+	 * Access to the squared distances while they are calculated;
+	 * infinity stands for "no foreground voxel yet".
+	 */
+	private static abstract class Lines {
+		abstract double get(int z, int i);
+		abstract void set(int z, int i, double v);
+	}
+
+	private void transform(final Lines lines,
+			final double sx, final double sy, final double sz) {
+		// rows and columns of each plane
+		parallel(d, new LineTask() {
+			public void run(int z, Line line) {
+				for(int y = 0; y < h; y++)
+					line.transform(lines, z, 0, y * w, 1, w, sx);
+				for(int x = 0; x < w; x++)
+					line.transform(lines, z, 0, x, w, h, sy);
 			}
-		}
+		});
+		IJ.showProgress(1, 2);
+		// along z, for each row of voxels
+		parallel(h, new LineTask() {
+			public void run(int y, Line line) {
+				for(int x = 0; x < w; x++)
+					line.transform(lines, 0, 1, y * w + x, 0,
+						d, sz);
+			}
+		});
+		IJ.showProgress(1, 1);
+	}
+
+	private interface LineTask {
+		void run(int index, Line line);
 	}
 
-	public void backwardPass() {
-		float[] D = new float[14];
-		for(int z = d-1; z >= 0; z--) {
-			for(int y = h-1; y >= 0; y--) {
-				for(int x = w-1; x >= 0; x--) {
-					if(dist[z][y*w+x] == 0)
-						continue;
-					D[0]  = MR[0]  + dist(x+1, y,   z);
-					D[1]  = MR[1]  + dist(x-1, y+1, z);
-					D[2]  = MR[2]  + dist(x,   y+1, z);
-					D[3]  = MR[3]  + dist(x+1, y+1, z);
-					D[4]  = MR[4]  + dist(x-1, y-1, z+1);
-					D[5]  = MR[5]  + dist(x,   y-1, z+1);
-					D[6]  = MR[6]  + dist(x+1, y-1, z+1);
-					D[7]  = MR[7]  + dist(x-1, y,   z+1);
-					D[8]  = MR[8]  + dist(x,   y,   z+1);
-					D[9]  = MR[9]  + dist(x+1, y,   z+1);
-					D[10] = MR[10] + dist(x-1, y+1, z+1);
-					D[11] = MR[11] + dist(x,   y+1, z+1);
-					D[12] = MR[12] + dist(x+1, y+1, z+1);
-					D[13] = dist[z][y*w+x];
-					dist[z][y*w+x] = min(D);
+	/**
+	 * The buffers to transform one line after the other; each thread
+	 * has its own.
+	 */
+	private final class Line {
+		final int size = Math.max(w, Math.max(h, d));
+		final double[] f = new double[size];
+		final double[] envelope = new double[size + 1];
+		final int[] vertices = new int[size];
+
+		/**
+		 * Replaces the n squared distances at (z0 + k * zStep,
+		 * i0 + k * iStep) with the lower envelope of the parabolas
+		 * s2 * (k - q)^2 + f(q) through them. The envelope consists
+		 * of the parabolas of the vertices between the boundaries
+		 * in envelope.
+		 */
+		void transform(Lines lines, int z0, int zStep,
+				int i0, int iStep, int n, double s2) {
+			int k = -1;
+			for(int q = 0; q < n; q++) {
+				f[q] = lines.get(z0 + q * zStep, i0 + q * iStep);
+				if(f[q] == Double.POSITIVE_INFINITY)
+					continue;
+				double s = Double.NEGATIVE_INFINITY;
+				while(k >= 0) {
+					int v = vertices[k];
+					s = ((f[q] + s2 * q * q) -
+						(f[v] + s2 * v * v)) /
+						(2 * s2 * (q - v));
+					if(s > envelope[k])
+						break;
+					k--;
+					s = Double.NEGATIVE_INFINITY;
 				}
+				k++;
+				vertices[k] = q;
+				envelope[k] = s;
+				envelope[k + 1] = Double.POSITIVE_INFINITY;
+			}
+			if(k < 0)
+				return;
+			k = 0;
+			for(int q = 0; q < n; q++) {
+				while(envelope[k + 1] < q)
+					k++;
+				int v = vertices[k];
+				lines.set(z0 + q * zStep, i0 + q * iStep,
+					s2 * (q - v) * (q - v) + f[v]);
 			}
 		}
 	}
 
-	public float min(float[] data) {
-		float min = maxVal;
-		for(int i = 0; i < data.length; i++) {
-			if(data[i] < min && data[i] >= 0)
-				min = data[i];
-		}
-		return min;
+	/**
+	 * Runs the task for the indices 0, ..., n - 1 on nThreads threads;
+	 * whatever one of them throws is rethrown here.
+	 */
+	private void parallel(final int n, final LineTask task) {
+		final AtomicInteger next = new AtomicInteger(0);
+		Threads.run(new Runnable() {
+			public void run() {
+				Line line = new Line();
+				int i;
+				while((i = next.getAndIncrement()) < n)
+					task.run(i, line);
+			}
+		}, Math.min(nThreads, n));
 	}
 
 	public ImagePlus toFloat() {
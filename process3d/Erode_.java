@@ -23,12 +23,12 @@ import ij.IJ;
  * For complexity reasons, the implementation uses a 6-neighbour-
  * hood and not a 27-neighborhood.
  */
-public class Erode_ implements PlugInFilter {
+public class Erode_ extends Filter3D implements PlugInFilter {
 
-	private int w, h, d;
 	private ImagePlus image;
 	private byte[][] pixels_in;
 	private byte[][] pixels_out;
+	private int threshold;
 
 	public void run(ImageProcessor ip) {
 		GenericDialog gd = new GenericDialog("Erode");
@@ -57,27 +57,8 @@ public class Erode_ implements PlugInFilter {
 			pixels_out[z] = new byte[w*h];
 		}
 		
-		// iterate
-		for(int z = 0; z < d; z++) {
-			IJ.showProgress(z, d-1);
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					if(get(x, y, z) != threshold) 
-						set(x, y, z, get(x, y, z));
-					else if(get(x-1, y, z) == threshold &&
-						get(x+1, y, z) == threshold &&
-						get(x, y-1, z) == threshold &&
-						get(x, y+1, z) == threshold &&
-						get(x, y, z-1) == threshold &&
-						get(x, y, z+1) == threshold)
-
-						set(x, y, z, threshold);
-					else
-						set(x, y, z, 0);
-
-				}
-			}
-		}
+		this.threshold = threshold;
+		filterSlices();
 
 		ColorModel cm = image.getStack().getColorModel();
 		
@@ -97,6 +78,39 @@ public class Erode_ implements PlugInFilter {
 		return result;
 	}
 
+	/*
+	 * Neighbours outside the stack are replaced by the nearest voxel
+	 * inside, as in get().
+	 */
+	protected void filterSlice(int z) {
+		byte[] in = pixels_in[z];
+		byte[] below = pixels_in[z > 0 ? z-1 : 0];
+		byte[] above = pixels_in[z < d-1 ? z+1 : d-1];
+		byte[] out = pixels_out[z];
+		int t = threshold;
+		for(int y = 0; y < h; y++) {
+			int row = y*w;
+			int up = (y > 0 ? y-1 : 0) * w;
+			int down = (y < h-1 ? y+1 : h-1) * w;
+			for(int x = 0; x < w; x++) {
+				int i = row + x;
+				int left = row + (x > 0 ? x-1 : 0);
+				int right = row + (x < w-1 ? x+1 : w-1);
+				if((in[i] & 0xff) != t)
+					out[i] = in[i];
+				else if((in[left] & 0xff) == t &&
+						(in[right] & 0xff) == t &&
+						(in[up+x] & 0xff) == t &&
+						(in[down+x] & 0xff) == t &&
+						(below[i] & 0xff) == t &&
+						(above[i] & 0xff) == t)
+					out[i] = (byte)t;
+				else
+					out[i] = 0;
+			}
+		}
+	}
+
 	public int get(int x, int y, int z) {
 		x = x < 0 ? 0 : x; x = x >= w ? w-1 : x;
 		y = y < 0 ? 0 : y; y = y >= h ? h-1 : y;
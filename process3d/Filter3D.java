@@ -0,0 +1,79 @@
+package process3d;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import util.Threads;
+
+/**
+ * Base class for filters which compute each output slice from a few
+ * neighbouring input slices. All the state of a filter run is kept in
+ * the instance, so that several filters can be used at the same time.
+ *
+ * filterSlices() calls filterSlice() for all slices on several
+ * threads; each thread takes the next slice which is not done yet.
+ * Filters working in several passes can use parallel() for passes
+ * over other units, like rows.
+ * Subclasses look at the type of the pixel arrays once per slice and
+ * use a loop written for that type.
+ */
+public abstract class Filter3D {
+
+	/** The dimensions of the input image */
+	protected int w, h, d;
+
+	/** The pixel arrays of the input image */
+	protected Object[] slices;
+
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	public void setNumberOfThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	public int getNumberOfThreads() {
+		return nThreads;
+	}
+
+	protected void init(ImagePlus image) {
+		w = image.getWidth();
+		h = image.getHeight();
+		d = image.getStackSize();
+		slices = new Object[d];
+		for(int z = 0; z < d; z++)
+			slices[z] = image.getStack().getPixels(z + 1);
+	}
+
+	/**
+	 * Computes the output slice z. This is called from several threads
+	 * at the same time, for different slices.
+	 */
+	protected abstract void filterSlice(int z);
+
+	/**
+	 * Calls filterSlice() for each slice and waits until all are done.
+	 */
+	protected void filterSlices() {
+		parallel(d, new Threads.Task() {
+			public void run(int z) {
+				filterSlice(z);
+			}
+		});
+	}
+
+	/**
+	 * Calls task.run(i) for i = 0, ..., n - 1 on several threads,
+	 * showing the progress, and waits until all are done.
+	 */
+	protected void parallel(final int n, final Threads.Task task) {
+		final AtomicInteger done = new AtomicInteger(0);
+		Threads.forEachIndex(n, nThreads, new Threads.Task() {
+			public void run(int i) {
+				task.run(i);
+				IJ.showProgress(done.incrementAndGet(), n);
+			}
+		});
+	}
+}
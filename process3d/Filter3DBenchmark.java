@@ -0,0 +1,274 @@
+package process3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Times the Filter3D-based filters against the per-voxel
+ * implementations they replaced, on random stacks of each pixel type.
+ * The per-voxel versions below do the same arithmetic as the old code
+ * (TestFilter3D checks that the results are identical), but without
+ * its static fields and boxed values, so the speedups shown are, if
+ * anything, too small.  Run it with:
+ *
+ *   java -cp ... process3d.Filter3DBenchmark [width height depth [threads]]
+ */
+public class Filter3DBenchmark {
+
+	static ImagePlus createImage(int w, int h, int d, int type,
+			int maxValue, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++) {
+			if(type == 8) {
+				byte[] p = new byte[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = (byte)random.nextInt(maxValue + 1);
+				stack.addSlice("", new ByteProcessor(w, h, p, null));
+			} else if(type == 16) {
+				short[] p = new short[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = (short)random.nextInt(maxValue + 1);
+				stack.addSlice("", new ShortProcessor(w, h, p, null));
+			} else {
+				float[] p = new float[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = random.nextFloat() * maxValue;
+				stack.addSlice("", new FloatProcessor(w, h, p, null));
+			}
+		}
+		return new ImagePlus("random", stack);
+	}
+
+	static float getValue(Object[] slices, int w, int h,
+			int x, int y, int z) {
+		if(x < 0 || x >= w || y < 0 || y >= h ||
+				z < 0 || z >= slices.length)
+			return 0f;
+		int index = y * w + x;
+		Object p = slices[z];
+		if(p instanceof byte[])
+			return ((byte[])p)[index] & 0xff;
+		if(p instanceof short[])
+			return ((short[])p)[index] & 0xffff;
+		return ((float[])p)[index];
+	}
+
+	static Object[] getSlices(ImagePlus image) {
+		Object[] slices = new Object[image.getStackSize()];
+		for(int z = 0; z < slices.length; z++)
+			slices[z] = image.getStack().getPixels(z + 1);
+		return slices;
+	}
+
+	/*
+	 * The old Convolve_3d: sum up the neighbourhood of each voxel
+	 * (but reading 16-bit values as unsigned, as Convolve_3d does
+	 * now).
+	 */
+	static float[][] convolvePerVoxel(ImagePlus image, float[][][] H) {
+		int w = image.getWidth(), h = image.getHeight();
+		int d = image.getStackSize();
+		int r_z = H.length, r_y = H[0].length, r_x = H[0][0].length;
+		Object[] slices = getSlices(image);
+		float[][] out = new float[d][w * h];
+		for(int z = 0; z < d; z++)
+			for(int y = 0; y < h; y++)
+				for(int x = 0; x < w; x++) {
+					float sum = 0f;
+					for(int k = -r_z/2; k <= r_z/2; k++)
+						for(int j = -r_y/2; j <= r_y/2; j++)
+							for(int i = -r_x/2; i <= r_x/2; i++)
+								sum += getValue(slices, w, h,
+									x + i, y + j, z + k) *
+									H[k + r_z/2][j + r_y/2][i + r_x/2];
+					out[z][y * w + x] = sum;
+				}
+		return out;
+	}
+
+	static int get(byte[][] p, int w, int h, int x, int y, int z) {
+		x = x < 0 ? 0 : x; x = x >= w ? w-1 : x;
+		y = y < 0 ? 0 : y; y = y >= h ? h-1 : y;
+		z = z < 0 ? 0 : z; z = z >= p.length ? p.length-1 : z;
+		return p[z][y*w + x] & 0xff;
+	}
+
+	static byte[][] getBytes(ImagePlus image) {
+		byte[][] p = new byte[image.getStackSize()][];
+		for(int z = 0; z < p.length; z++)
+			p[z] = (byte[])image.getStack().getPixels(z + 1);
+		return p;
+	}
+
+	/* The old Dilate_ and Erode_, with the 6-neighbourhood */
+	static byte[][] dilatePerVoxel(ImagePlus image, int t) {
+		int w = image.getWidth(), h = image.getHeight();
+		byte[][] in = getBytes(image);
+		byte[][] out = new byte[in.length][w * h];
+		for(int z = 0; z < in.length; z++)
+			for(int y = 0; y < h; y++)
+				for(int x = 0; x < w; x++) {
+					if(get(in, w, h, x, y, z) == t ||
+							get(in, w, h, x-1, y, z) == t ||
+							get(in, w, h, x+1, y, z) == t ||
+							get(in, w, h, x, y-1, z) == t ||
+							get(in, w, h, x, y+1, z) == t ||
+							get(in, w, h, x, y, z-1) == t ||
+							get(in, w, h, x, y, z+1) == t)
+						out[z][y*w + x] = (byte)t;
+					else
+						out[z][y*w + x] = in[z][y*w + x];
+				}
+		return out;
+	}
+
+	static byte[][] erodePerVoxel(ImagePlus image, int t) {
+		int w = image.getWidth(), h = image.getHeight();
+		byte[][] in = getBytes(image);
+		byte[][] out = new byte[in.length][w * h];
+		for(int z = 0; z < in.length; z++)
+			for(int y = 0; y < h; y++)
+				for(int x = 0; x < w; x++) {
+					if(get(in, w, h, x, y, z) != t)
+						out[z][y*w + x] = in[z][y*w + x];
+					else if(get(in, w, h, x-1, y, z) == t &&
+							get(in, w, h, x+1, y, z) == t &&
+							get(in, w, h, x, y-1, z) == t &&
+							get(in, w, h, x, y+1, z) == t &&
+							get(in, w, h, x, y, z-1) == t &&
+							get(in, w, h, x, y, z+1) == t)
+						out[z][y*w + x] = (byte)t;
+					else
+						out[z][y*w + x] = 0;
+				}
+		return out;
+	}
+
+	/*
+	 * The old MinMaxMedian: sort the 3x3x3 neighbourhood of each
+	 * voxel which is not at the border (the border stays 0).
+	 */
+	static float[][] rankPerVoxel(ImagePlus image, int method) {
+		int w = image.getWidth(), h = image.getHeight();
+		int d = image.getStackSize();
+		Object[] slices = getSlices(image);
+		float[][] out = new float[d][w * h];
+		float[] values = new float[27];
+		for(int z = 1; z < d - 1; z++)
+			for(int y = 1; y < h - 1; y++)
+				for(int x = 1; x < w - 1; x++) {
+					int n = 0;
+					for(int k = -1; k <= 1; k++)
+						for(int j = -1; j <= 1; j++)
+							for(int i = -1; i <= 1; i++)
+								values[n++] = getValue(slices,
+									w, h, x + i, y + j, z + k);
+					Arrays.sort(values);
+					out[z][y * w + x] = values[
+						method == MinMaxMedian.MINIMUM ? 0 :
+						method == MinMaxMedian.MAXIMUM ? 26 : 13];
+				}
+		return out;
+	}
+
+	static float[][][] randomKernel(int rx, int ry, int rz, long seed) {
+		Random random = new Random(seed);
+		float[][][] H = new float[rz][ry][rx];
+		for(int k = 0; k < rz; k++)
+			for(int j = 0; j < ry; j++)
+				for(int i = 0; i < rx; i++)
+					H[k][j][i] = random.nextFloat() - 0.3f;
+		return H;
+	}
+
+	static boolean verbose;
+
+	static void report(String what, long perVoxel, long filter) {
+		if(verbose)
+			System.out.println("  " + what + ": " + perVoxel
+				+ "ms per voxel, " + filter + "ms with Filter3D"
+				+ (filter > 0 ? String.format(" (%.1fx)",
+					(double)perVoxel / filter) : ""));
+	}
+
+	public static void main(String[] args) {
+		int w = 128, h = 128, d = 64;
+		int threads = Runtime.getRuntime().availableProcessors();
+		if(args.length >= 3) {
+			w = Integer.parseInt(args[0]);
+			h = Integer.parseInt(args[1]);
+			d = Integer.parseInt(args[2]);
+		}
+		if(args.length >= 4)
+			threads = Integer.parseInt(args[3]);
+		System.out.println("Stacks of " + w + "x" + h + "x" + d
+			+ ", " + threads + " thread(s):");
+		// the first round only warms up the JIT
+		run(w, h, d, threads);
+		verbose = true;
+		run(w, h, d, threads);
+	}
+
+	static void run(int w, int h, int d, int threads) {
+		int[] types = { 8, 16, 32 };
+		for(int t = 0; t < types.length; t++) {
+			ImagePlus image = createImage(w, h, d, types[t],
+				types[t] == 8 ? 255 : 1000, t);
+			float[][][] H = randomKernel(3, 5, 3, t);
+			long start = System.currentTimeMillis();
+			convolvePerVoxel(image, H);
+			long perVoxel = System.currentTimeMillis() - start;
+			Convolve_3d convolve = new Convolve_3d(H);
+			convolve.setMethod(Convolve_3d.SPATIAL);
+			convolve.setNumberOfThreads(threads);
+			start = System.currentTimeMillis();
+			convolve.filter(image);
+			report(types[t] + "-bit convolution 3x5x3", perVoxel,
+				System.currentTimeMillis() - start);
+
+			String[] names = { "minimum", "maximum", "median" };
+			for(int m = 0; m < 3; m++) {
+				start = System.currentTimeMillis();
+				rankPerVoxel(image, m);
+				perVoxel = System.currentTimeMillis() - start;
+				MinMaxMedian filter = new MinMaxMedian(m);
+				filter.setNumberOfThreads(threads);
+				start = System.currentTimeMillis();
+				filter.filter(image);
+				report(types[t] + "-bit " + names[m], perVoxel,
+					System.currentTimeMillis() - start);
+			}
+		}
+
+		ImagePlus binary = createImage(w, h, d, 8, 1, 0);
+		for(int z = 0; z < d; z++) {
+			byte[] p = (byte[])binary.getStack().getPixels(z + 1);
+			for(int i = 0; i < p.length; i++)
+				p[i] = p[i] != 0 ? (byte)255 : 0;
+		}
+		long start = System.currentTimeMillis();
+		dilatePerVoxel(binary, 255);
+		long perVoxel = System.currentTimeMillis() - start;
+		Dilate_ dilate = new Dilate_();
+		dilate.setNumberOfThreads(threads);
+		start = System.currentTimeMillis();
+		dilate.dilate(binary, 255, true);
+		report("dilate", perVoxel, System.currentTimeMillis() - start);
+
+		start = System.currentTimeMillis();
+		erodePerVoxel(binary, 255);
+		perVoxel = System.currentTimeMillis() - start;
+		Erode_ erode = new Erode_();
+		erode.setNumberOfThreads(threads);
+		start = System.currentTimeMillis();
+		erode.erode(binary, 255, true);
+		report("erode", perVoxel, System.currentTimeMillis() - start);
+	}
+}
@@ -23,6 +23,7 @@ import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
 import ij.plugin.filter.PlugInFilter;
 
 import ij.text.TextWindow;
@@ -34,11 +35,14 @@ public class IFT_ implements PlugInFilter {
 	
 	private ImagePlus image;
 	private int w, h, wh, d;
-	private PriorityQueue queue;
+	private Queue queue;
 	private byte[][] data;
+	private short[][] data16;
+	private int maxCost;
 	private int[][] result;
 	private int[] C;
-	private boolean[] flag;
+	private int[] visited;
+	private boolean bucketQueue = true;
 
 
 	public IFT_(ImagePlus image) {
@@ -47,6 +51,16 @@ public class IFT_ implements PlugInFilter {
 
 	public IFT_() {}
 
+	/**
+	 * Chooses between the bucket queue with lazy deletion (the
+	 * default) and the old queue, which removes a voxel from its
+	 * bucket when its cost decreases. Both give the same result;
+	 * this has to be set before one of the init methods is called.
+	 */
+	public void setBucketQueue(boolean bucketQueue) {
+		this.bucketQueue = bucketQueue;
+	}
+
 	public void run(ImageProcessor ip) {
 		int[] wIDs = WindowManager.getIDList();
 		if(wIDs == null){
@@ -64,11 +78,21 @@ public class IFT_ implements PlugInFilter {
 		gd.addCheckbox("Show class indices", true);
 		gd.addCheckbox("Show mean intensities", true);
 		gd.addCheckbox("Show results table", true);
+		gd.addCheckbox("Use bucket queue", bucketQueue);
 		gd.showDialog();
 		if(gd.wasCanceled())
 			return;
 
 		int seed = gd.getNextChoiceIndex();
+		boolean showResult = gd.getNextBoolean();
+		boolean showMeans = gd.getNextBoolean();
+		boolean showTable = gd.getNextBoolean();
+		bucketQueue = gd.getNextBoolean();
+		if(seed == titles.length - 2 &&
+				image.getType() != ImagePlus.GRAY8) {
+			IJ.error("Local minima can only be used with 8-bit images");
+			return;
+		}
 		if(seed == titles.length - 1)
 			initFromPointList();
 		else if(seed == titles.length - 2)
@@ -77,34 +101,64 @@ public class IFT_ implements PlugInFilter {
 			initFromImage(WindowManager.getImage(titles[seed]));
 		propagate();
 
-		if(gd.getNextBoolean())
+		if(showResult)
 			createResult().show();
-		if(gd.getNextBoolean())
+		if(showMeans)
 			createMeans().show();
-		if(gd.getNextBoolean())
+		if(showTable)
 			new TextWindow("Classes",
 				"min\tmax\tmean\tvol\tcogx\tcogy\tcogz\tox\toy\toz",
 				createSummaryString(), 400, 500);
 	}
 
-	Cls[] classes;
-	public void initFromImage(ImagePlus seeds) {
-		List<Cls> classlist = new ArrayList<Cls>();
+	/*
+	 * The costs are limited to the range of the image type: voxels
+	 * which can only be reached with a cost of 255 (65535 for 16-bit
+	 * images) or more stay unassigned.
+	 */
+	private void init() {
 		w = image.getWidth();
 		h = image.getHeight();
 		wh = w * h;
 		d = image.getStackSize();
-		data = new byte[d][];
-		for(int z = 0; z < d; z++) {
-			data[z] = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
+		data = null;
+		data16 = null;
+		if(image.getType() == ImagePlus.GRAY16) {
+			data16 = new short[d][];
+			for(int z = 0; z < d; z++)
+				data16[z] = (short[])image.getStack()
+						.getPixels(z+1);
+			maxCost = 65535;
+		} else {
+			data = new byte[d][];
+			for(int z = 0; z < d; z++)
+				data[z] = (byte[])image.getStack()
+						.getPixels(z+1);
+			maxCost = 255;
 		}
 		C = new int[w*h*d];
-		flag = new boolean[w*h*d];
+		visited = new int[(w*h*d + 31) / 32];
 		result = new int[d][w*h];
 		for(int i = 0; i < C.length; i++)
-			C[i] = 255;
-		queue = new PriorityQueue();
+			C[i] = maxCost;
+		if(bucketQueue)
+			queue = new BucketQueue(maxCost + 1);
+		else
+			queue = new PriorityQueue(maxCost + 1);
+	}
+
+	private final int value(int z, int i) {
+		return data != null ? data[z][i] & 0xff : data16[z][i] & 0xffff;
+	}
+
+	private final boolean isVisited(int index) {
+		return (visited[index >> 5] & (1 << (index & 31))) != 0;
+	}
+
+	Cls[] classes;
+	public void initFromImage(ImagePlus seeds) {
+		List<Cls> classlist = new ArrayList<Cls>();
+		init();
 		for(int z = 0; z < seeds.getStackSize(); z++) {
 			byte[] b = (byte[])seeds.getStack().getPixels(z+1);
 			for(int y = 0; y < h; y++) {
@@ -128,24 +182,10 @@ public class IFT_ implements PlugInFilter {
 	public void initFromMinima() {
 		IJ.showStatus("Find minima");
 		List<Cls> classlist = new ArrayList<Cls>();
-		w = image.getWidth();
-		h = image.getHeight();
-		wh = w * h;
-		d = image.getStackSize();
-		data = new byte[d][];
-		for(int z = 0; z < d; z++) {
-			data[z] = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-		}
-		C = new int[w*h*d];
-		flag = new boolean[w*h*d];
-		result = new int[d][w*h];
-		for(int i = 0; i < C.length; i++)
-			C[i] = 255;
+		init();
 
 		ImagePlus minima = new Find_Minima(image).classify();
 
-		queue = new PriorityQueue();
 		int counter = 0;
 		for(int z = 0; z < minima.getStackSize(); z++) {
 			byte[] b = (byte[])minima.getStack().getPixels(z+1);
@@ -160,7 +200,7 @@ public class IFT_ implements PlugInFilter {
 					result[z][i] = counter++;
 					queue.add(index, cost);
 					addClass(classlist, x, y, z,
-							data[z][y * w + x]);
+							value(z, y * w + x));
 					Flood_Fill.fill(minima, x, y, z, (byte)0);
 				}
 			}
@@ -173,6 +213,11 @@ System.out.println(counter + " classes");
 
 	protected static void addClass(List<Cls> classlist,
 			int x, int y, int z, byte value) {
+		addClass(classlist, x, y, z, value & 0xff);
+	}
+
+	protected static void addClass(List<Cls> classlist,
+			int x, int y, int z, int value) {
 		Cls cls = new Cls();
 		cls.add(x, y, z, value);
 		cls.originx = x;
@@ -183,22 +228,8 @@ System.out.println(counter + " classes");
 
 	public void initFromPointList() {
 		List<Cls> classlist = new ArrayList<Cls>();
-		w = image.getWidth();
-		h = image.getHeight();
-		wh = w * h;
-		d = image.getStackSize();
+		init();
 		PointList markers = PointList.load(image);
-		data = new byte[d][];
-		for(int z = 0; z < d; z++) {
-			data[z] = (byte[])image.getStack()
-					.getProcessor(z+1).getPixels();
-		}
-		C = new int[w*h*d];
-		flag = new boolean[w*h*d];
-		result = new int[d][w*h];
-		for(int i = 0; i < C.length; i++)
-			C[i] = 255;
-		queue = new PriorityQueue();
 		int m = 1;
 		for(Iterator it = markers.iterator(); it.hasNext();) {
 			BenesNamedPoint p = (BenesNamedPoint)it.next();
@@ -225,7 +256,10 @@ System.out.println("Propagate");
 		int whd = wh * d;
 		while(!queue.isEmpty()) {
 			int v = queue.poll();
-			flag[v] = true;
+			// the bucket queue keeps outdated entries
+			if(isVisited(v))
+				continue;
+			visited[v >> 5] |= 1 << (v & 31);
 			getNeighbours(v);
 			for(int i = 0; i < neighbors.length; i++) {
 				int p = neighbors[i];
@@ -238,10 +272,9 @@ System.out.println("Propagate");
 					int pz = p / wh, pi = p % wh;
 					int vz = v / wh, vi = v % wh;
 					result[pz][pi] = result[vz][vi];
-					classes[result[vz][vi]].add(pi % w, pi / w, pz, data[pz][pi]);
+					classes[result[vz][vi]].add(pi % w, pi / w, pz, value(pz, pi));
 					counter++;
-					queue.removeFromBucket(p, pCost);
-					queue.add(p, C[p]);
+					queue.decrease(p, pCost, m);
 				}
 			}
 			if(counter % 1000 == 0)
@@ -266,6 +299,14 @@ System.out.println("Propagate");
 	public ImagePlus createMeans() {
 		ImageStack stack = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
+			if(data16 != null) {
+				short[] means = new short[wh];
+				for(int i = 0; i < wh; i++)
+					means[i] = (short)classes[result[z][i]].mean;
+				stack.addSlice("", 
+					new ShortProcessor(w, h, means, null));
+				continue;
+			}
 			byte[] means = new byte[wh];
 			for(int i = 0; i < wh; i++)
 				means[i] = (byte)classes[result[z][i]].mean;
@@ -294,13 +335,12 @@ System.out.println("Propagate");
 		int z1 = n1 / wh; int i1 = n1 % wh;
 		int z2 = n2 / wh; int i2 = n2 % wh;
 
-		return (int)Math.abs((int)(data[z1][i1] & 0xff) - 
-			(int)(data[z2][i2] & 0xff));
+		return Math.abs(value(z1, i1) - value(z2, i2));
 	}
 
 	public int setup(String arg, ImagePlus image) {
 		this.image = image;
-		return DOES_8G;
+		return DOES_8G | DOES_16;
 	}
 
 	public void getNeighbours(int index) {
@@ -310,17 +350,17 @@ System.out.println("Propagate");
 		for(int i = 0; i < neighbors.length; i++)
 			neighbors[i] = -1;
 
-		if(x > 1 && !flag[z * wh + s-1])
+		if(x > 1 && !isVisited(z * wh + s-1))
 			neighbors[0] = (z * wh + s-1);
-		if(x < w-1 && !flag[z * wh + s+1])
+		if(x < w-1 && !isVisited(z * wh + s+1))
 			neighbors[1] = (z * wh + s+1);
-		if(y > 1 && !flag[z * wh + (y-1)*w+x])
+		if(y > 1 && !isVisited(z * wh + (y-1)*w+x))
 			neighbors[2] = (z * wh + (y-1)*w+x);
-		if(y < h-1 && !flag[z * wh + (y+1)*w+x])
+		if(y < h-1 && !isVisited(z * wh + (y+1)*w+x))
 			neighbors[3] = (z * wh + (y+1)*w+x);
-		if(z > 1 && !flag[(z-1) * wh + s])
+		if(z > 1 && !isVisited((z-1) * wh + s))
 			neighbors[4] = (z-1) * wh + s;
-		if(z < d-1 && !flag[(z+1) * wh + s])
+		if(z < d-1 && !isVisited((z+1) * wh + s))
 			neighbors[5] = (z+1) * wh + s;
 	}
 
@@ -349,7 +389,7 @@ System.out.println("Propagate");
 
 
 	public static final class Cls {
-		public int min = 255;
+		public int min = Integer.MAX_VALUE;
 		public int max = 0;
 		public int mean = 0;
 		public int vol = 0;
@@ -360,8 +400,7 @@ System.out.println("Propagate");
 		public int originy = 0;
 		public int originz = 0;
 
-		private final void add(int x, int y, int z, byte pixel) {
-			int value = (int)(pixel & 0xff);
+		private final void add(int x, int y, int z, int value) {
 			if(value < min) min = value;
 			if(value > max) max = value;
 			mean += value;
@@ -421,11 +460,72 @@ System.out.println("Propagate");
 	}
 
 
-	private static final class PriorityQueue {
-		private IntArray[] arr = new IntArray[256];
+	private interface Queue {
+		void add(int value, int cost);
+		boolean isEmpty();
+		int poll();
+		/* value, which is queued with oldCost, now has newCost */
+		void decrease(int value, int oldCost, int newCost);
+	}
+
+	/*
+	 * One stack of voxel indices per cost. When the cost of a voxel
+	 * decreases, it is pushed again and the old entry stays where it
+	 * is; it is skipped when it comes out, because the voxel was
+	 * visited by then. The costs of the popped voxels never decrease,
+	 * so the search for the next non-empty bucket continues where the
+	 * last one stopped.
+	 */
+	private static final class BucketQueue implements Queue {
+		private int[][] buckets;
+		private int[] sizes;
+		private int current = 0;
+		private int size = 0;
+
+		public BucketQueue(int nCosts) {
+			buckets = new int[nCosts][];
+			sizes = new int[nCosts];
+		}
+
+		public final void add(int value, int cost) {
+			int[] bucket = buckets[cost];
+			if(bucket == null)
+				bucket = buckets[cost] = new int[1024];
+			else if(sizes[cost] == bucket.length) {
+				bucket = new int[2 * bucket.length];
+				System.arraycopy(buckets[cost], 0,
+						bucket, 0, sizes[cost]);
+				buckets[cost] = bucket;
+			}
+			bucket[sizes[cost]++] = value;
+			if(cost < current)
+				current = cost;
+			size++;
+		}
+
+		public final boolean isEmpty() {
+			return size == 0;
+		}
+
+		public final int poll() {
+			while(sizes[current] == 0)
+				current++;
+			size--;
+			return buckets[current][--sizes[current]];
+		}
+
+		public final void decrease(int value, int oldCost, int newCost) {
+			add(value, newCost);
+		}
+	}
+
+	private static final class PriorityQueue implements Queue {
+		private IntArray[] arr;
 		private int size = 0;
 
-		public PriorityQueue() {}
+		public PriorityQueue(int nCosts) {
+			arr = new IntArray[nCosts];
+		}
 
 		public final void add(int value, int cost) {
 			if(arr[cost] == null)
@@ -449,6 +549,11 @@ System.out.println("Propagate");
 			return -1;
 		}
 
+		public final void decrease(int value, int oldCost, int newCost) {
+			removeFromBucket(value, oldCost);
+			add(value, newCost);
+		}
+
 		public final void removeFromBucket(int value, int bucket) {
 			if(arr[bucket] != null)
 				if(arr[bucket].removeValue(value))
@@ -13,7 +13,13 @@ public class Maximum_ implements PlugInFilter {
 	private ImagePlus image;
 
 	public void run(ImageProcessor ip) {
-		MinMaxMedian.convolve(image, MinMaxMedian.MAXIMUM).show();
+		GenericDialog gd = new GenericDialog("Maximum");
+		gd.addNumericField("Radius", 1, 0);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		int radius = (int)gd.getNextNumber();
+		MinMaxMedian.convolve(image, MinMaxMedian.MAXIMUM, radius).show();
 	}
 
 	public int setup(String arg, ImagePlus img) {
@@ -8,20 +8,28 @@ import java.awt.image.ColorModel;
 import ij.process.FloatProcessor;
 import ij.process.ByteProcessor;
 import ij.process.ShortProcessor;
-import ij.process.ImageProcessor;
 
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.IJ;
 
+import util.Threads;
+
 /**
- * This class implements the minimum, maximum and median filter.
- * The kernel size is fixed with a diameter of 3 pixels. This 
- * makes sense since all three filters are computationally very
- * expensive. Computational complexity is related to the third power 
- * of the diameter, so 2-fold diameter means 8-fold computation time.
+ * This class implements the minimum, maximum and median filter over a
+ * cube with a diameter of 2 * radius + 1 voxels (3 by default). The
+ * voxels closer than radius to the border of the stack are set to 0.
+ *
+ * Minimum and maximum are separable: they are computed along x, y and
+ * z in turn, with the van Herk/Gil-Werman algorithm, which needs three
+ * comparisons per voxel and pass, whatever the radius. The median of
+ * 8-bit and 16-bit images is computed with a histogram of the cube
+ * which slides along x, so that moving to the next voxel only adds
+ * and removes one plane of the cube. 16-bit images use a coarse and
+ * a fine histogram to find the median quickly. Only the median of
+ * float images still sorts the whole neighbourhood of each voxel.
  */
-public class MinMaxMedian {
+public class MinMaxMedian extends Filter3D {
 
 	/** Constant representing the minimum filter. */
 	public static final int MINIMUM = 0;
@@ -30,81 +38,87 @@ public class MinMaxMedian {
 	/** Constant representing the median filter. */
 	public static final int MEDIAN  = 2;
 
-	private static int method = MEDIAN;
+	private final int method;
+	private final int radius;
+	private Object[] slices_out;
+
+	/**
+	 * Creates a filter for the given method, which is one of
+	 * MINIMUM, MAXIMUM or MEDIAN, with a radius of 1.
+	 */
+	public MinMaxMedian(int method) {
+		this(method, 1);
+	}
 
-	private static int w, h, d;
-	private static int diameter = 3;
-	private static Slide[] slices_in, slices_out;
-	private static boolean isByte, isShort, isFloat;
+	public MinMaxMedian(int method, int radius) {
+		if(method < 0 || method >= 3)
+			throw new IllegalArgumentException("Neither MINIMUM " +
+				"nor MAXIMUM nor MEDIAN chosen");
+		if(radius < 0)
+			throw new IllegalArgumentException("Negative radius");
+		this.method = method;
+		this.radius = radius;
+	}
 
 	/** 
-	 * Main method which iterates through the stack and calls 
-	 * convolvePoint() for each voxel.
+	 * Filters the image with the given method and a radius of 1.
 	 */
 	public static ImagePlus convolve(ImagePlus image, int method) {
-		
+		return convolve(image, method, 1);
+	}
+
+	public static ImagePlus convolve(ImagePlus image, int method,
+						int radius) {
 		if(method < 0 || method >= 3) {
 			IJ.error("Neither MINIMUM nor MAXIMUM nor MEDIAN chosen");
 			return null;
 		}
+		return new MinMaxMedian(method, radius).filter(image);
+	}
+
+	public ImagePlus filter(ImagePlus image) {
+		init(image);
 
-		// Determine dimensions of the image
-		w = image.getWidth();
-		h = image.getHeight();
-		d = image.getStackSize();
-		
-		// Adjust minimum and maximum indices (because of filter size)
-		int min = diameter/2;
-		int max_x = w - diameter/2;
-		int max_y = h - diameter/2;
-		int max_z = d - diameter/2;
-	
 		// determine image type
-		isByte = image.getProcessor().getPixels() instanceof byte[];
-		isShort = image.getProcessor().getPixels() instanceof short[];
-		isFloat = image.getProcessor().getPixels() instanceof float[];
+		boolean isByte = slices[0] instanceof byte[];
+		boolean isShort = slices[0] instanceof short[];
+		boolean isFloat = slices[0] instanceof float[];
 		ColorModel cm = image.getProcessor().getColorModel();
 		if(!isFloat && !isByte && !isShort) {
 			IJ.error("Float, byte or short image expected");
 			return null;
 		}
 
-		// initialize slices_in and slices_out
-		slices_in = new Slide[d];
-		slices_out = new Slide[d];
+		slices_out = new Object[d];
 		for(int i = 0; i < d; i++) {
 			if(isByte)
-				slices_in[i] = 
-					new ByteSlide((byte[])image.getStack()
-					.getProcessor(i+1).getPixels(), cm);
+				slices_out[i] = new byte[w*h];
 			else if(isShort)
-				slices_in[i] =
-					new ShortSlide((short[])image.getStack()
-					.getProcessor(i+1).getPixels(), cm);
+				slices_out[i] = new short[w*h];
 			else
-				slices_in[i] = 
-					new FloatSlide((float[])image.getStack()
-					.getProcessor(i+1).getPixels(), cm);
-			slices_out[i] = slices_in[i].getEmptySlide();
+				slices_out[i] = new float[w*h];
 		}
 
+		if(method == MEDIAN)
+			filterSlices();
+		else
+			minMax();
 
-		// convolve
-		for(int z = min; z < max_z; z++) {
-			IJ.showProgress(z, max_z);
-			for(int y = min; y < max_y; y++) {
-				for(int x = min; x < max_x; x++) {
-					slices_out[z].setValue(x, y, 
-							       slices_out[z].convolvePoint(z, y, x, method));
-				}
-			}
-		}
-		
 		// create output image
 		ImageStack stack = new ImageStack(w, h);
 		for(int z = 0; z < d; z++) {
-			stack.addSlice("", slices_out[z].getProcessor());
+			if(isByte)
+				stack.addSlice("", new ByteProcessor(w, h,
+					(byte[])slices_out[z], cm));
+			else if(isShort)
+				stack.addSlice("", new ShortProcessor(w, h,
+					(short[])slices_out[z], cm));
+			else
+				stack.addSlice("", new FloatProcessor(w, h,
+					(float[])slices_out[z], cm));
 		}
+		slices_out = null;
+		slices = null;
 
 		String title = "";
 		switch (method) {
@@ -123,171 +137,350 @@ public class MinMaxMedian {
 		result.setCalibration(image.getCalibration());
 		return result;
 	}
-	
-	/**
-	 * Abstract class which warps a byte, short or float array.
+
+	/*
+	 * Minimum and maximum: the x pass goes from the input to the
+	 * output, the y and z passes work on the output in place (each
+	 * line is copied to a buffer first). The values where the cube
+	 * does not fit into the stack are cleared at the end.
 	 */
-	private abstract static class Slide {
-		protected ColorModel cm;
-		/** Constructor */
-		Slide(ColorModel cm) {
-			this.cm = cm;
+	private void minMax() {
+		final int n = Math.max(w, Math.max(h, d));
+		final boolean isFloat = slices[0] instanceof float[];
+		parallel(d, new Threads.Task() {
+			public void run(int z) {
+				Line line = new Line(n, isFloat);
+				for(int y = 0; y < h; y++) {
+					line.get(slices[z], y*w, 1, w);
+					line.minMax(w);
+					line.set(slices_out[z], y*w, 1, w);
+				}
+				for(int x = radius; x < w - radius; x++) {
+					line.get(slices_out[z], x, w, h);
+					line.minMax(h);
+					line.set(slices_out[z], x, w, h);
+				}
+			}
+		});
+		parallel(h, new Threads.Task() {
+			public void run(int y) {
+				Line line = new Line(n, isFloat);
+				for(int x = radius; x < w - radius; x++) {
+					line.get(slices_out, y*w + x, d);
+					line.minMax(d);
+					line.set(slices_out, y*w + x, d);
+				}
+			}
+		});
+		for(int z = 0; z < d; z++)
+			clearBorder(slices_out[z], z);
+	}
+
+	private void clearBorder(Object pixels, int z) {
+		for(int y = 0; y < h; y++) {
+			int from = y*w, to = y*w + w;
+			if(z >= radius && z < d - radius &&
+					y >= radius && y < h - radius) {
+				clear(pixels, from, Math.min(to, from + radius));
+				clear(pixels, Math.max(from, to - radius), to);
+			} else
+				clear(pixels, from, to);
 		}
-		/** Returns the pixel value at x, y */
-		abstract Object getValue(int x, int y);
-		/** Sets the specified value at x, y */
-		abstract void setValue(int x, int y, Object value);
-		/** Retrieve a corresponding empty ImageProcessor. */
-		abstract ImageProcessor getEmptyProcessor();
-		/** Retrieve the ImageProcessor for this slide. */
-		abstract ImageProcessor getProcessor();
-		/** Returns an empty slide of this type */
-		abstract Slide getEmptySlide();
-		/** Convolve the specified point */
-		abstract Object convolvePoint(int z, int y, int x, int method);
+	}
+
+	private static void clear(Object pixels, int from, int to) {
+		if(from >= to)
+			return;
+		if(pixels instanceof byte[])
+			Arrays.fill((byte[])pixels, from, to, (byte)0);
+		else if(pixels instanceof short[])
+			Arrays.fill((short[])pixels, from, to, (short)0);
+		else
+			Arrays.fill((float[])pixels, from, to, 0f);
 	}
 
 	/**
-	 * Class which warps a float array representing one slide.
+	 * A buffer for one line of voxels, as int values (bytes and
+	 * shorts are unsigned) or float values.
 	 */
-	private static class FloatSlide extends Slide {
-		float[] slide;
-		FloatSlide(float[] slide, ColorModel cm) {
-			super(cm);
-			this.slide = slide;
+	private final class Line {
+		final int[] f, g, hg;
+		final float[] ff, gf, hgf;
+
+		Line(int n, boolean isFloat) {
+			if(isFloat) {
+				ff = new float[n]; gf = new float[n]; hgf = new float[n];
+				f = g = hg = null;
+			} else {
+				f = new int[n]; g = new int[n]; hg = new int[n];
+				ff = gf = hgf = null;
+			}
 		}
-		void setValue(int x, int y, Object value) {
-			Float v = (Float)value;
-			slide[y*w+x] = v;
+
+		/* reads n values from pixels, starting at offs */
+		void get(Object pixels, int offs, int stride, int n) {
+			if(pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for(int i = 0; i < n; i++, offs += stride)
+					f[i] = p[offs] & 0xff;
+			} else if(pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for(int i = 0; i < n; i++, offs += stride)
+					f[i] = p[offs] & 0xffff;
+			} else {
+				float[] p = (float[])pixels;
+				for(int i = 0; i < n; i++, offs += stride)
+					ff[i] = p[offs];
+			}
 		}
-		Float getValue(int x, int y) {
-			return slide[y*w+x];
+
+		/* reads the values at index i of the first n planes */
+		void get(Object[] planes, int i, int n) {
+			if(planes[0] instanceof byte[]) {
+				for(int z = 0; z < n; z++)
+					f[z] = ((byte[])planes[z])[i] & 0xff;
+			} else if(planes[0] instanceof short[]) {
+				for(int z = 0; z < n; z++)
+					f[z] = ((short[])planes[z])[i] & 0xffff;
+			} else {
+				for(int z = 0; z < n; z++)
+					ff[z] = ((float[])planes[z])[i];
+			}
 		}
-		ImageProcessor getEmptyProcessor() {
-			return new FloatProcessor(w, h, new float[w*h], cm);
+
+		/* writes the values for which the cube fits into the line */
+		void set(Object pixels, int offs, int stride, int n) {
+			offs += radius * stride;
+			if(pixels instanceof byte[]) {
+				byte[] p = (byte[])pixels;
+				for(int i = radius; i < n - radius; i++, offs += stride)
+					p[offs] = (byte)f[i];
+			} else if(pixels instanceof short[]) {
+				short[] p = (short[])pixels;
+				for(int i = radius; i < n - radius; i++, offs += stride)
+					p[offs] = (short)f[i];
+			} else {
+				float[] p = (float[])pixels;
+				for(int i = radius; i < n - radius; i++, offs += stride)
+					p[offs] = ff[i];
+			}
 		}
-		ImageProcessor getProcessor() {
-			return new FloatProcessor(w, h, slide, cm);
+
+		void set(Object[] planes, int i, int n) {
+			if(planes[0] instanceof byte[]) {
+				for(int z = radius; z < n - radius; z++)
+					((byte[])planes[z])[i] = (byte)f[z];
+			} else if(planes[0] instanceof short[]) {
+				for(int z = radius; z < n - radius; z++)
+					((short[])planes[z])[i] = (short)f[z];
+			} else {
+				for(int z = radius; z < n - radius; z++)
+					((float[])planes[z])[i] = ff[z];
+			}
 		}
-		Slide getEmptySlide() {
-			return new FloatSlide(new float[w*h], cm);
+
+		/*
+		 * van Herk/Gil-Werman: the line is cut into blocks of
+		 * k = 2 * radius + 1 values; g holds the running minimum
+		 * (or maximum) from the start of each block, hg the one
+		 * from its end. Each window of k values covers the end of
+		 * one block and the start of the next (or exactly one
+		 * block), so its minimum is that of two values of hg and g.
+		 * The result replaces the values from radius to
+		 * n - radius - 1.
+		 */
+		void minMax(int n) {
+			if(ff != null)
+				minMaxFloat(n);
+			else if(method == MINIMUM)
+				minInt(n);
+			else {
+				// the maximum is the negated minimum of the negated values
+				for(int i = 0; i < n; i++)
+					f[i] = -f[i];
+				minInt(n);
+				for(int i = 0; i < n; i++)
+					f[i] = -f[i];
+			}
 		}
-		static int size = diameter*diameter*diameter;
-		static float[] values = new float[size];
-		Float convolvePoint(int z, int y, int x, int method) {
-			int index = 0;
-			int r = diameter/2;
-			for(int k=-r; k<=+r; k++) {
-				for(int j=-r; j<=+r; j++) {
-					for(int i=-r; i<=+r; i++) {
-						values[index++] = 
-							(Float)slices_in[z+k].
-							getValue(x+i,y+j);
-					}
-				}
+
+		private void minInt(int n) {
+			int k = 2 * radius + 1;
+			for(int start = 0; start < n; start += k) {
+				int end = Math.min(n, start + k);
+				g[start] = f[start];
+				for(int i = start + 1; i < end; i++)
+					g[i] = f[i] < g[i - 1] ? f[i] : g[i - 1];
+				hg[end - 1] = f[end - 1];
+				for(int i = end - 2; i >= start; i--)
+					hg[i] = f[i] < hg[i + 1] ? f[i] : hg[i + 1];
+			}
+			for(int i = radius; i < n - radius; i++) {
+				int a = hg[i - radius], b = g[i + radius];
+				f[i] = a < b ? a : b;
+			}
+		}
+
+		/*
+		 * The same for floats, ordered like Arrays.sort() orders
+		 * them: -0.0 before 0.0, and NaN last.
+		 */
+		private void minMaxFloat(int n) {
+			int sign = method == MINIMUM ? 1 : -1;
+			int k = 2 * radius + 1;
+			for(int start = 0; start < n; start += k) {
+				int end = Math.min(n, start + k);
+				gf[start] = ff[start];
+				for(int i = start + 1; i < end; i++)
+					gf[i] = sign * Float.compare(ff[i], gf[i - 1]) < 0 ?
+						ff[i] : gf[i - 1];
+				hgf[end - 1] = ff[end - 1];
+				for(int i = end - 2; i >= start; i--)
+					hgf[i] = sign * Float.compare(ff[i], hgf[i + 1]) < 0 ?
+						ff[i] : hgf[i + 1];
+			}
+			for(int i = radius; i < n - radius; i++) {
+				float a = hgf[i - radius], b = gf[i + radius];
+				ff[i] = sign * Float.compare(a, b) < 0 ? a : b;
 			}
-			Arrays.sort(values);
-			if(method == MAXIMUM)
-				return values[size-1];
-			if(method == MINIMUM)
-				return values[0];
-			return values[size/2];
 		}
 	}
 
-	/**
-	 * Class which warps a short array representing one slide.
+	/*
+	 * The median of slice z.
 	 */
-	private static class ShortSlide extends Slide {
-		short[] slide;
-		ShortSlide(short[] slide, ColorModel cm) {
-			super(cm);
-			this.slide = slide;
-		}
-		void setValue(int x, int y, Object value) {
-			Short v = (Short)value;
-			slide[y*w+x] = v;
-		}
-		Short getValue(int x, int y) {
-			return slide[y*w+x];
-		}
-		ImageProcessor getEmptyProcessor() {
-			return new ShortProcessor(w, h, new short[w*h], cm);
-		}
-		ImageProcessor getProcessor() {
-			return new ShortProcessor(w, h, slide, cm);
-		}
-		Slide getEmptySlide() {
-			return new ShortSlide(new short[w*h], cm);
-		}
-		static int size = diameter*diameter*diameter;
-		static short[] values = new short[size];
-		Short convolvePoint(int z, int y, int x, int method) {
-			int index = 0;
-			int r = diameter/2;
-			for(int k=-r; k<=+r; k++) {
-				for(int j=-r; j<=+r; j++) {
-					for(int i=-r; i<=+r; i++) {
-						values[index++] =
-							(Short)slices_in[z+k].
-							getValue(x+i,y+j);
+	protected void filterSlice(int z) {
+		if(z < radius || z >= d - radius)
+			return;
+		if(slices_out[z] instanceof byte[])
+			medianByte(z, (byte[])slices_out[z]);
+		else if(slices_out[z] instanceof short[])
+			medianShort(z, (short[])slices_out[z]);
+		else
+			medianFloat(z, (float[])slices_out[z]);
+	}
+
+	/*
+	 * Each row is done with a histogram of the cube around the
+	 * current voxel. When moving to the next voxel, the values of
+	 * the plane x - radius are removed and the ones of the plane
+	 * x + radius + 1 added. The median m is updated incrementally
+	 * (as in Huang's 2D median filter) together with the number of
+	 * values less than m.
+	 */
+	private void medianByte(int z, byte[] out) {
+		int k = 2 * radius + 1;
+		int half = k * k * k / 2;
+		byte[][] planes = new byte[k][];
+		for(int i = 0; i < k; i++)
+			planes[i] = (byte[])slices[z - radius + i];
+		int[] hist = new int[256];
+		for(int y = radius; y < h - radius; y++) {
+			if(w < k)
+				break;
+			Arrays.fill(hist, 0);
+			int rowStart = (y - radius) * w;
+			for(int x = 0; x < k; x++)
+				for(int j = 0; j < k; j++)
+					for(int i = 0; i < k; i++)
+						hist[planes[i][rowStart + j*w + x] & 0xff]++;
+			int m = 0, less = 0;
+			while(less + hist[m] <= half)
+				less += hist[m++];
+			out[y*w + radius] = (byte)m;
+
+			for(int x = radius + 1; x < w - radius; x++) {
+				int xOut = rowStart + x - radius - 1;
+				int xIn = rowStart + x + radius;
+				for(int j = 0; j < k; j++) {
+					for(int i = 0; i < k; i++) {
+						int v = planes[i][xOut + j*w] & 0xff;
+						hist[v]--;
+						if(v < m)
+							less--;
+						v = planes[i][xIn + j*w] & 0xff;
+						hist[v]++;
+						if(v < m)
+							less++;
 					}
 				}
+				while(less > half)
+					less -= hist[--m];
+				while(less + hist[m] <= half)
+					less += hist[m++];
+				out[y*w + x] = (byte)m;
 			}
-			Arrays.sort(values);
-			if(method == MAXIMUM)
-				return values[size-1];
-			if(method == MINIMUM)
-				return values[0];
-			return values[size/2];
 		}
 	}
 
-	/**
-	 * Class warping a byte array representing one slide.
+	/*
+	 * Like medianByte(), but with 65536 fine and 256 coarse bins
+	 * (for the upper 8 bits of the values, which are unsigned like
+	 * everywhere else in ImageJ). The median is found by going through
+	 * the coarse bins and then through the fine bins of one of them.
+	 * Instead of clearing the histograms for each row, the values
+	 * of the last cube are removed again.
 	 */
-	private static class ByteSlide extends Slide {
-		byte[] slide;
-		ByteSlide(byte[] slide, ColorModel cm) {
-			super(cm);
-			this.slide = slide;
-		}
-		void setValue(int x, int y, Object value) {
-			Byte v = (Byte)value;
-			slide[y*w+x] = v;
-		}
-		Byte getValue(int x, int y) {
-			return slide[y*w+x];
-		}
-		ImageProcessor getEmptyProcessor() {
-			return new ByteProcessor(w, h, new byte[w*h], cm);
-		}
-		ImageProcessor getProcessor() {
-			return new ByteProcessor(w, h, slide, cm);
+	private void medianShort(int z, short[] out) {
+		int k = 2 * radius + 1;
+		int half = k * k * k / 2;
+		short[][] planes = new short[k][];
+		for(int i = 0; i < k; i++)
+			planes[i] = (short[])slices[z - radius + i];
+		int[] fine = new int[65536];
+		int[] coarse = new int[256];
+		for(int y = radius; y < h - radius; y++) {
+			if(w < k)
+				break;
+			int rowStart = (y - radius) * w;
+			for(int x = 0; x < k; x++)
+				addPlane(planes, rowStart + x, k, fine, coarse, 1);
+			for(int x = radius; x < w - radius; x++) {
+				if(x > radius) {
+					addPlane(planes, rowStart + x - radius - 1,
+						k, fine, coarse, -1);
+					addPlane(planes, rowStart + x + radius,
+						k, fine, coarse, 1);
+				}
+				int c = 0, less = 0;
+				while(less + coarse[c] <= half)
+					less += coarse[c++];
+				int f = c << 8;
+				while(less + fine[f] <= half)
+					less += fine[f++];
+				out[y*w + x] = (short)f;
+			}
+			for(int x = w - k; x < w; x++)
+				addPlane(planes, rowStart + x, k, fine, coarse, -1);
 		}
-		Slide getEmptySlide() {
-			return new ByteSlide(new byte[w*h], cm);
+	}
+
+	private void addPlane(short[][] planes, int offs, int k,
+			int[] fine, int[] coarse, int count) {
+		for(int j = 0; j < k; j++) {
+			for(int i = 0; i < k; i++) {
+				int v = planes[i][offs + j*w] & 0xffff;
+				fine[v] += count;
+				coarse[v >> 8] += count;
+			}
 		}
-		static int size = diameter * diameter * diameter;
-		static int[] values = new int[size];
-		Byte convolvePoint(int z, int y, int x, int method) {
-			int index = 0;
-			int r = diameter/2;
-			for(int k=-r; k<=+r; k++) {
-				for(int j=-r; j<=+r; j++) {
-					for(int i=-r; i<=+r; i++) {
-						values[index++] = 
-							(Byte)slices_in[z+k].
-							getValue(x+i,y+j)&0xff;
-					}
+	}
+
+	private void medianFloat(int z, float[] out) {
+		int k = 2 * radius + 1;
+		float[] values = new float[k * k * k];
+		for(int y = radius; y < h - radius; y++) {
+			for(int x = radius; x < w - radius; x++) {
+				int index = 0;
+				for(int l = z - radius; l <= z + radius; l++) {
+					float[] p = (float[])slices[l];
+					for(int j = y - radius; j <= y + radius; j++)
+						for(int i = x - radius; i <= x + radius; i++)
+							values[index++] = p[j*w + i];
 				}
+				Arrays.sort(values);
+				out[y*w + x] = values[values.length / 2];
 			}
-			Arrays.sort(values);
-			if(method == MAXIMUM)
-				return (byte)values[size-1];
-			if(method == MINIMUM)
-				return (byte)values[0];
-			return (byte)values[size/2];
 		}
 	}
 }
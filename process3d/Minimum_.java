@@ -13,7 +13,13 @@ public class Minimum_ implements PlugInFilter {
 	private ImagePlus image;
 
 	public void run(ImageProcessor ip) {
-		MinMaxMedian.convolve(image, MinMaxMedian.MINIMUM).show();
+		GenericDialog gd = new GenericDialog("Minimum");
+		gd.addNumericField("Radius", 1, 0);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		int radius = (int)gd.getNextNumber();
+		MinMaxMedian.convolve(image, MinMaxMedian.MINIMUM, radius).show();
 	}
 
 	public int setup(String arg, ImagePlus img) {
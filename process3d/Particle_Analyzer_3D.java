@@ -12,13 +12,7 @@ import ij.process.ImageProcessor;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.Map;
-import java.util.HashMap;
 
 public class Particle_Analyzer_3D implements PlugInFilter {
 
@@ -109,17 +103,14 @@ public class Particle_Analyzer_3D implements PlugInFilter {
 			cls[i] = new Cl(classes[i], sizes[i], intensities[i]);
 		}
 		Arrays.sort(cls);
+		int[] rank = new int[cls.length];
+		for(int c = 0; c < cls.length; c++)
+			rank[cls[c].cl] = c;
 		for(int z = 0; z < result.getStackSize(); z++) {
-			ImageProcessor ip = result.getStack().getProcessor(z+1);
+			int[] p = (int[])result.getStack().getPixels(z+1);
 			for(int i = 0; i < w * h; i++) {
-				if(ip.get(i) == -1)
-					continue;
-				for(int c = 0; c < cls.length; c++) {
-					if(ip.get(i) == cls[c].cl) {
-						ip.set(i, c);
-						break;
-					}
-				}
+				if(p[i] != -1)
+					p[i] = rank[p[i]];
 			}
 		}
 		for(int c = 0; c < classes.length; c++) {
@@ -287,57 +278,25 @@ public class Particle_Analyzer_3D implements PlugInFilter {
 	private ImagePlus classify(ImagePlus image){
 		if(showStatus)
 			IJ.showStatus("classify...");
-		MergedClasses mergedClasses = new MergedClasses();
+		ConnectedComponents3D components = new ConnectedComponents3D(6);
+		int n = components.label(image, threshold - 1);
+		int[][] labels = components.getLabels();
 		ImageStack resStack = new ImageStack(w,h);
-		for(int d=1;d<=z;d++){
-			byte[] pixels = 
-				(byte[])image.getStack().getProcessor(d).getPixels();
-			int[] classes = new int[w * h];
-			int[] classesBefore = d > 1 ? 
-				(int[])resStack.getProcessor(d-1).getPixels() : null;
-			for(int i=0;i<h;i++){
-				for(int j=0;j<w;j++){
-					int index = i*w+j;
-					byte current = pixels[index];
-					int upper_c   = i > 0 ? classes[index-w] : -1;
-					int left_c    = j > 0 ? classes[index-1] : -1;
-					int before_c  = d > 1 ? classesBefore[index] : -1;
-					classes[index] = classifyPixel(mergedClasses,
-							current, upper_c, left_c, before_c);
-				}
-			}
-			if(showStatus)
-				IJ.showProgress(d,z);
-			resStack.addSlice("",new ColorProcessor(w,h,classes));
+		for(int d=0;d<z;d++){
+			// the background becomes -1, the classes start at 0
+			int[] pixels = labels[d];
+			for(int i=0;i<pixels.length;i++)
+				pixels[i]--;
+			resStack.addSlice("",new ColorProcessor(w,h,pixels));
+		}
+		classes = new int[n];
+		for(int i=0;i<n;i++) {
+			classes[i] = i;
 		}
-		correctMergedClasses(mergedClasses, resStack);
 		ImagePlus tmp = new ImagePlus("Classified", resStack);
 		tmp.setCalibration(image.getCalibration());
 		return tmp;
 	}
-		
-	private void correctMergedClasses(MergedClasses mergedClasses, ImageStack resStack){
-
-		if(showStatus)
-			IJ.showStatus("correct merged classes...");
-		Map<Integer,Integer> map = mergedClasses.mapToRealClasses();
-		for(int d=1;d<=z;d++){
-			int[] res_pixels = (int[])resStack.getProcessor(d).getPixels();
-			for(int i=0;i<res_pixels.length;i++){
-				if(res_pixels[i] != -1){
-					int realClass = map.get(res_pixels[i]);
-					res_pixels[i] = realClass;
-				}
-			}
-			if(showStatus)
-				IJ.showProgress(d,z);
-		}
-		int n_classes = mergedClasses.classes.size();
-		classes = new int[n_classes];
-		for(int i=0;i<n_classes;i++) {
-			classes[i] = i;
-		}
-	}
 
 	public void calculateSizes(){
 		if(showStatus)
@@ -376,96 +335,4 @@ public class Particle_Analyzer_3D implements PlugInFilter {
 				IJ.showProgress(d,z);
 		}
 	}
-
-	private int max(int[] array){
-		int max = array[0];
-		for(int i=1;i<array.length;i++)
-			if(array[i] > max)
-				max = array[i];
-		return max;
-	}
-			
-	private int classifyPixel(MergedClasses mergedClasses, byte cur, 
-			int upper_c, int left_c, int before_c){
-		if(((int)(cur & 0xff)) < threshold) // bg
-			return -1;
-		boolean connected = (upper_c != -1 || left_c != -1 || before_c != -1);
-		int classl = -1;
-		if(connected){
-			classl = Math.max( Math.max(upper_c,left_c),before_c);
-			if(upper_c != classl && upper_c != -1)
-				mergedClasses.mergeIfNecessary(upper_c,classl);
-			if(left_c != classl && left_c != -1)
-				mergedClasses.mergeIfNecessary(left_c,classl);
-			if(before_c != classl && before_c != -1)
-				mergedClasses.mergeIfNecessary(before_c,classl);
-		} else {
-			classl = mergedClasses.addNewClass();
-		}
-		return classl;
-	}
-
-	private class MergedClasses{
-		private List<Set<Integer>> classes = new ArrayList<Set<Integer>>();
-		private int n_entries = 0;
-		
-		int addNewClass(){
-			Set<Integer> newset = new HashSet<Integer>();
-			newset.add(n_entries);
-			classes.add(newset);
-			n_entries++;
-			return n_entries-1;
-		}
-
-		void mergeIfNecessary(int a, int b){
-			Set<Integer> aSet = getClassWhichContains(a);
-			Set<Integer> bSet = getClassWhichContains(b);
-			if(aSet == null || bSet == null)
-				IJ.error("Expected that both classes a and b already exist");
-			if(aSet == bSet)
-				return;
-			aSet.addAll(bSet);
-			classes.remove(bSet);
-		}
-
-		Set<Integer> getClassWhichContains(int n){
-			int index = getClassIndexWhichContains(n);
-			if(index != -1)
-				return classes.get(index);
-			return null;
-		}
-
-		int getClassIndexWhichContains(int n){
-			int i = 0;
-			for(Set<Integer> set : classes){
-				if(set.contains(n))
-					return i;
-				i++;
-			}
-			return -1;
-		}
-
-		Map<Integer,Integer> mapToRealClasses(){
-			Map<Integer,Integer> map = new HashMap<Integer,Integer>();
-			for(int i=0;i<n_entries;i++){
-				map.put(i,getClassIndexWhichContains(i));
-			}
-			return map;
-		}
-
-		void print(){
-			for(int i=0;i<classes.size();i++){
-				Set<Integer> set = classes.get(i);
-				System.out.println(i + " --> [" + asString(set) + "]");
-			}
-		}
-
-		String asString(Set<Integer> set){
-			StringBuffer buf = new StringBuffer();
-			for(Integer i : set)
-				buf.append(i + "  ");
-			return buf.toString();
-		}
-	}
 }
-
@@ -0,0 +1,103 @@
+package process3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class TestConnectedComponents3D {
+
+	static ImagePlus createImage(int w, int h, int d, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++) {
+			byte[] p = new byte[w * h];
+			for(int i = 0; i < p.length; i++)
+				p[i] = (byte)random.nextInt(4);
+			stack.addSlice("", new ByteProcessor(w, h, p, null));
+		}
+		return new ImagePlus("random", stack);
+	}
+
+	/* labels by flood filling from each voxel in scan order */
+	static int[][] floodFill(ImagePlus image, int connectivity,
+			boolean sameValue, int threshold) {
+		int w = image.getWidth(), h = image.getHeight();
+		int d = image.getStackSize();
+		int[][] labels = new int[d][w * h];
+		int[] stack = new int[w * h * d];
+		int n = 0;
+		for(int z = 0; z < d; z++)
+			for(int i = 0; i < w * h; i++) {
+				int v = value(image, z, i);
+				if(v <= threshold || labels[z][i] != 0)
+					continue;
+				labels[z][i] = ++n;
+				int sp = 0;
+				stack[sp++] = z * w * h + i;
+				while(sp > 0) {
+					int index = stack[--sp];
+					int z0 = index / (w * h), x0 = index % w;
+					int y0 = (index % (w * h)) / w;
+					for(int k = -1; k <= 1; k++)
+						for(int j = -1; j <= 1; j++)
+							for(int l = -1; l <= 1; l++) {
+								int dist = k * k + j * j + l * l;
+								if(dist == 0 || (connectivity == 6 && dist > 1) || (connectivity == 18 && dist > 2))
+									continue;
+								int x1 = x0 + l, y1 = y0 + j, z1 = z0 + k;
+								if(x1 < 0 || y1 < 0 || z1 < 0 || x1 >= w || y1 >= h || z1 >= d)
+									continue;
+								int i1 = y1 * w + x1;
+								int v1 = value(image, z1, i1);
+								if(labels[z1][i1] != 0 || v1 <= threshold || (sameValue && v1 != v))
+									continue;
+								labels[z1][i1] = n;
+								stack[sp++] = z1 * w * h + i1;
+							}
+				}
+			}
+		return labels;
+	}
+
+	static int value(ImagePlus image, int z, int i) {
+		return ((byte[])image.getStack().getPixels(z + 1))[i] & 0xff;
+	}
+
+	@Test
+	public void testAgainstFloodFill() {
+		int w = 23, h = 17, d = 11;
+		for(int connectivity : new int[] { 6, 18, 26 }) {
+			for(int same = 0; same < 2; same++) {
+				ImagePlus image = createImage(w, h, d, connectivity + same);
+				ConnectedComponents3D components =
+					new ConnectedComponents3D(connectivity);
+				components.setSameValue(same == 1);
+				int n = components.label(image, 0);
+				int[][] labels = components.getLabels();
+				int[][] expect = floodFill(image, connectivity, same == 1, 0);
+				int[] count = new int[n + 1];
+				long[] sumX = new long[n + 1];
+				int[] maxZ = new int[n + 1];
+				for(int z = 0; z < d; z++)
+					for(int i = 0; i < w * h; i++) {
+						assertEquals(expect[z][i], labels[z][i]);
+						int l = labels[z][i];
+						count[l]++;
+						sumX[l] += i % w;
+						maxZ[l] = z;
+					}
+				for(int l = 1; l <= n; l++) {
+					assertEquals(count[l], components.getVoxelCount(l));
+					assertEquals(sumX[l] / (double)count[l],
+						components.getCentroid(l)[0], 1e-9);
+					assertEquals(maxZ[l], components.getBoundingBox(l)[5]);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package process3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class TestDistanceTransform3D {
+
+	static ImagePlus createImage(int w, int h, int d, int n, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(w, h);
+		byte[][] pixels = new byte[d][w * h];
+		for(int i = 0; i < n; i++)
+			pixels[random.nextInt(d)][random.nextInt(w * h)] = (byte)255;
+		for(int z = 0; z < d; z++)
+			stack.addSlice("", new ByteProcessor(w, h, pixels[z], null));
+		return new ImagePlus("points", stack);
+	}
+
+	/* the distances by looking at all foreground voxels */
+	static double[][] bruteForce(ImagePlus image, double pw, double ph, double pd) {
+		int w = image.getWidth(), h = image.getHeight();
+		int d = image.getStackSize();
+		double[][] ret = new double[d][w * h];
+		for(int z = 0; z < d; z++)
+			for(int i = 0; i < w * h; i++)
+				ret[z][i] = Double.MAX_VALUE;
+		for(int z1 = 0; z1 < d; z1++) {
+			byte[] p = (byte[])image.getStack().getPixels(z1 + 1);
+			for(int i1 = 0; i1 < w * h; i1++) {
+				if(p[i1] == 0)
+					continue;
+				for(int z = 0; z < d; z++)
+					for(int i = 0; i < w * h; i++) {
+						double dx = pw * (i % w - i1 % w);
+						double dy = ph * (i / w - i1 / w);
+						double dz = pd * (z - z1);
+						double dist = dx * dx + dy * dy + dz * dz;
+						if(dist < ret[z][i])
+							ret[z][i] = dist;
+					}
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void testExact() {
+		ImagePlus image = createImage(23, 17, 11, 12, 3);
+		image.getCalibration().pixelWidth = 0.7;
+		image.getCalibration().pixelHeight = 1.3;
+		image.getCalibration().pixelDepth = 2.5;
+		double[][] expected = bruteForce(image, 0.7, 1.3, 2.5);
+		double[][] expectedSq = bruteForce(image, 1, 1, 1);
+
+		for(int nThreads = 1; nThreads <= 3; nThreads++) {
+			Distance_Transform_3D dt = new Distance_Transform_3D();
+			dt.setNumberOfThreads(nThreads);
+			float[][] dist = dt.getDistances(image, 255);
+			int[][] sq = dt.getSquaredDistances(image, 255);
+			for(int z = 0; z < expected.length; z++)
+				for(int i = 0; i < expected[z].length; i++) {
+					assertEquals(Math.sqrt(expected[z][i]),
+						dist[z][i], 1e-4);
+					assertEquals((int)expectedSq[z][i], sq[z][i]);
+				}
+		}
+	}
+
+	@Test
+	public void testNoForeground() {
+		ImagePlus image = createImage(5, 4, 3, 0, 1);
+		float[][] dist = new Distance_Transform_3D().getDistances(image, 255);
+		assertEquals(Math.sqrt(25 + 16 + 9), dist[2][7], 1e-5);
+	}
+}
@@ -0,0 +1,143 @@
+package process3d;
+
+import ij.ImagePlus;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Checks that the Filter3D-based filters give exactly the same results
+ * as the per-voxel implementations they replaced (which are kept in
+ * Filter3DBenchmark), with one and with several threads.
+ */
+public class TestFilter3D {
+
+	static void assertSame(float[][] expect, ImagePlus result) {
+		assertEquals(expect.length, result.getStackSize());
+		for(int z = 0; z < expect.length; z++) {
+			float[] p = (float[])result.getStack().getPixels(z + 1);
+			for(int i = 0; i < p.length; i++)
+				assertEquals("voxel " + i + " of slice " + z,
+					Float.floatToIntBits(expect[z][i]),
+					Float.floatToIntBits(p[i]));
+		}
+	}
+
+	static void assertSame(byte[][] expect, ImagePlus result) {
+		assertEquals(expect.length, result.getStackSize());
+		for(int z = 0; z < expect.length; z++) {
+			byte[] p = (byte[])result.getStack().getPixels(z + 1);
+			for(int i = 0; i < p.length; i++)
+				assertEquals("voxel " + i + " of slice " + z,
+					expect[z][i], p[i]);
+		}
+	}
+
+	@Test
+	public void testConvolve() {
+		int[][] sizes = { { 1, 1, 1 }, { 3, 5, 3 }, { 5, 1, 3 },
+			{ 1, 7, 1 }, { 9, 9, 9 } };
+		int[] types = { 8, 16, 32 };
+		for(int s = 0; s < sizes.length; s++)
+			for(int t = 0; t < types.length; t++) {
+				ImagePlus image = Filter3DBenchmark.createImage(
+					23, 17, 11, types[t],
+					types[t] == 8 ? 255 : 65535, s * 3 + t);
+				float[][][] H = Filter3DBenchmark.randomKernel(
+					sizes[s][0], sizes[s][1], sizes[s][2], s);
+				float[][] expect = Filter3DBenchmark
+					.convolvePerVoxel(image, H);
+				for(int threads = 1; threads <= 3; threads += 2) {
+					Convolve_3d convolve = new Convolve_3d(H);
+					convolve.setMethod(Convolve_3d.SPATIAL);
+					convolve.setNumberOfThreads(threads);
+					assertSame(expect, convolve.filter(image));
+				}
+			}
+	}
+
+	/*
+	 * The static convolve() stays with the spatial convolution, even
+	 * for a kernel for which the Fourier transform would be faster.
+	 */
+	@Test
+	public void testStaticConvolveIsSpatial() {
+		ImagePlus image = Filter3DBenchmark.createImage(
+			23, 17, 11, 32, 65535, 20);
+		float[][][] H = Filter3DBenchmark.randomKernel(11, 11, 11, 3);
+		assertSame(Filter3DBenchmark.convolvePerVoxel(image, H),
+			Convolve_3d.convolve(image, H));
+	}
+
+	/*
+	 * The spatial and the Fourier convolution must agree up to
+	 * rounding errors relative to the largest values, also for
+	 * 16-bit values of 32768 and above, which are unsigned.
+	 */
+	@Test
+	public void testSpatialAndFourier() {
+		int[][] sizes = { { 3, 5, 3 }, { 7, 1, 5 } };
+		int[] types = { 8, 16, 32 };
+		for(int s = 0; s < sizes.length; s++)
+			for(int t = 0; t < types.length; t++) {
+				int maxValue = types[t] == 8 ? 255 : 65535;
+				ImagePlus image = Filter3DBenchmark.createImage(
+					19, 14, 9, types[t], maxValue, 10 + t);
+				float[][][] H = Filter3DBenchmark.randomKernel(
+					sizes[s][0], sizes[s][1], sizes[s][2], s);
+				float sum = 0;
+				for(int k = 0; k < H.length; k++)
+					for(int j = 0; j < H[k].length; j++)
+						for(int i = 0; i < H[k][j].length; i++)
+							sum += Math.abs(H[k][j][i]);
+				Convolve_3d spatial = new Convolve_3d(H);
+				spatial.setMethod(Convolve_3d.SPATIAL);
+				ImagePlus expect = spatial.filter(image);
+				Convolve_3d fourier = new Convolve_3d(H);
+				fourier.setMethod(Convolve_3d.FOURIER);
+				ImagePlus result = fourier.filter(image);
+				for(int z = 0; z < image.getStackSize(); z++) {
+					float[] e = (float[])expect.getStack()
+						.getPixels(z + 1);
+					float[] p = (float[])result.getStack()
+						.getPixels(z + 1);
+					for(int i = 0; i < p.length; i++)
+						assertEquals(types[t] + "-bit, voxel "
+							+ i + " of slice " + z, e[i],
+							p[i], 1e-5 * maxValue * sum);
+				}
+			}
+	}
+
+	static ImagePlus createBinary(int w, int h, int d, long seed) {
+		ImagePlus image = Filter3DBenchmark.createImage(w, h, d,
+			8, 3, seed);
+		for(int z = 0; z < d; z++) {
+			byte[] p = (byte[])image.getStack().getPixels(z + 1);
+			for(int i = 0; i < p.length; i++)
+				p[i] = p[i] != 0 ? (byte)255 : 0;
+		}
+		return image;
+	}
+
+	@Test
+	public void testDilateErode() {
+		int[][] sizes = { { 1, 1, 1 }, { 1, 9, 4 }, { 21, 13, 8 } };
+		for(int s = 0; s < sizes.length; s++) {
+			ImagePlus image = createBinary(sizes[s][0],
+				sizes[s][1], sizes[s][2], s);
+			byte[][] dilated = Filter3DBenchmark
+				.dilatePerVoxel(image, 255);
+			byte[][] eroded = Filter3DBenchmark
+				.erodePerVoxel(image, 255);
+			for(int threads = 1; threads <= 3; threads += 2) {
+				Dilate_ dilate = new Dilate_();
+				dilate.setNumberOfThreads(threads);
+				assertSame(dilated, dilate.dilate(image, 255, true));
+				Erode_ erode = new Erode_();
+				erode.setNumberOfThreads(threads);
+				assertSame(eroded, erode.erode(image, 255, true));
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package process3d;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class TestMinMaxMedian {
+
+	static ImagePlus createImage(int w, int h, int d, boolean isShort,
+			long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(w, h);
+		for(int z = 0; z < d; z++) {
+			if(isShort) {
+				short[] p = new short[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = (short)random.nextInt(65536);
+				stack.addSlice("", new ShortProcessor(w, h, p, null));
+			} else {
+				byte[] p = new byte[w * h];
+				for(int i = 0; i < p.length; i++)
+					p[i] = (byte)random.nextInt(256);
+				stack.addSlice("", new ByteProcessor(w, h, p, null));
+			}
+		}
+		return new ImagePlus("random", stack);
+	}
+
+	static int get(ImagePlus image, int x, int y, int z) {
+		Object p = image.getStack().getPixels(z + 1);
+		int i = y * image.getWidth() + x;
+		if(p instanceof byte[])
+			return ((byte[])p)[i] & 0xff;
+		return ((short[])p)[i] & 0xffff;
+	}
+
+	/* sorts the cube around each voxel */
+	static void check(ImagePlus image, int method, int radius,
+			ImagePlus result) {
+		int w = image.getWidth(), h = image.getHeight();
+		int d = image.getStackSize(), k = 2 * radius + 1;
+		int[] values = new int[k * k * k];
+		for(int z = 0; z < d; z++)
+			for(int y = 0; y < h; y++)
+				for(int x = 0; x < w; x++) {
+					int expect = 0;
+					if(x >= radius && x < w - radius &&
+							y >= radius && y < h - radius &&
+							z >= radius && z < d - radius) {
+						int n = 0;
+						for(int l = -radius; l <= radius; l++)
+							for(int j = -radius; j <= radius; j++)
+								for(int i = -radius; i <= radius; i++)
+									values[n++] = get(image, x + i, y + j, z + l);
+						Arrays.sort(values);
+						expect = values[method == MinMaxMedian.MINIMUM ? 0 :
+							method == MinMaxMedian.MAXIMUM ? n - 1 : n / 2];
+					}
+					assertEquals(expect, get(result, x, y, z));
+				}
+	}
+
+	@Test
+	public void testAgainstSorting() {
+		for(int method = 0; method < 3; method++)
+			for(int radius = 0; radius <= 3; radius++)
+				for(int type = 0; type < 2; type++) {
+					ImagePlus image = createImage(19, 14, 10,
+						type == 1, 17 * radius + method);
+					MinMaxMedian filter =
+						new MinMaxMedian(method, radius);
+					filter.setNumberOfThreads(1 + radius % 2);
+					check(image, method, radius, filter.filter(image));
+				}
+	}
+}
@@ -27,6 +27,7 @@ import ij.ImagePlus;
 
 import java.util.PriorityQueue;
 import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
 
 public class AutoSearchThread extends SearchThread {
 
@@ -43,6 +44,39 @@ public class AutoSearchThread extends SearchThread {
 
 	int start_x, start_y, start_z;
 
+	AutoPoint startPoint;
+
+	/* When the search was started, and the largest cost (g) of
+	   any point that it reached: */
+
+	long startedAt;
+	float maximumCost;
+
+	/* If set, the thread adds itself to this queue once run()
+	   has returned, however the search ended. */
+
+	BlockingQueue<AutoSearchThread> finishedQueue;
+
+	@Override
+	public void run( ) {
+		startedAt = System.currentTimeMillis();
+		try {
+			super.run();
+		} finally {
+			if( finishedQueue != null )
+				finishedQueue.add( this );
+		}
+	}
+
+	/* Whether the search regions of this thread and other
+	   overlap: */
+
+	boolean regionOverlaps( AutoSearchThread other ) {
+		return regionMinX <= other.regionMaxX && other.regionMinX <= regionMaxX &&
+			regionMinY <= other.regionMaxY && other.regionMinY <= regionMaxY &&
+			regionMinZ <= other.regionMaxZ && other.regionMinZ <= regionMaxZ;
+	}
+
 	public AutoSearchThread(ImagePlus image,
 				float [][] tubeValues,
 				AutoPoint startPoint,
@@ -60,12 +94,14 @@ public class AutoSearchThread extends SearchThread {
 			1000 ); // reportEveryMilliseconds
 		
 		this.verbose = false;
+		this.reportAddingNode = true;
 		
 		this.tubeValues = tubeValues;
 		this.tubenessThreshold = tubenessThreshold;
 
 		this.previousPathGraph = previousPathGraph;
 
+		this.startPoint = startPoint;
 		this.start_x = startPoint.x;
 		this.start_y = startPoint.y;
 		this.start_z = startPoint.z;
@@ -91,6 +127,8 @@ public class AutoSearchThread extends SearchThread {
 	}
 
 	protected void addingNode( SearchNode n ) {
+		if( n.g > maximumCost )
+			maximumCost = n.g;
 		if( tubeValues[n.z][n.y*width+n.x] > tubenessThreshold ) {
 			AutoPoint p=new AutoPoint(n.x,n.y,n.z);
 			destinations.add(p);
@@ -109,6 +147,8 @@ public class AutoSearchThread extends SearchThread {
         }
 
 	Path getPathBack( int from_x, int from_y, int from_z ) {
+		if( compactStorage )
+			return compact_from_start.asPath( from_x, from_y, from_z, x_spacing, y_spacing, z_spacing, spacing_units );
 		return nodes_as_image_from_start[from_z][from_y*width+from_x].asPath( x_spacing, y_spacing, z_spacing, spacing_units );
 	}
 
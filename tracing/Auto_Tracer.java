@@ -36,6 +36,7 @@ import java.util.Comparator;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
 import features.TubenessProcessor;
 import util.BatchOpener;
 
@@ -273,214 +274,305 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		int maxLoops = -1;
 		int loopsDone = 0;
 
-		while( mostTubelikePoints.size() > 0 ) {
-
-			long currentTime = System.currentTimeMillis();
-			long secondsSinceStart = (currentTime - totalTimeStarted) / 1000;
-			if( secondsSinceStart > totalTimeLimitSeconds )
-				break;
+		/* Up to maxConcurrentSearches searches run at the same
+		   time.  Each one is restricted to a box around its
+		   start point which doesn't overlap the boxes of the
+		   others; start points whose box would overlap are
+		   put back into the queue until a search finishes.
+		   The finished searches are merged into completePaths
+		   one at a time, on this thread. */
+
+		int concurrent = Math.max( 1, maxConcurrentSearches );
+		ArrayList<AutoSearchThread> running = new ArrayList<AutoSearchThread>();
+		ArrayList<AutoPoint> blocked = new ArrayList<AutoPoint>();
+		LinkedBlockingQueue<AutoSearchThread> finishedSearches = new LinkedBlockingQueue<AutoSearchThread>();
+
+		double [] regionRadius = new double[3];
+		regionRadius[0] = searchRegionRadius;
+		regionRadius[1] = searchRegionRadius * Math.abs(calibration.pixelWidth / calibration.pixelHeight);
+		regionRadius[2] = searchRegionRadius * Math.abs(calibration.pixelWidth / calibration.pixelDepth);
+
+		while( true ) {
+
+			boolean outOfTime = (System.currentTimeMillis() - totalTimeStarted) / 1000 > totalTimeLimitSeconds;
+
+			while( ! outOfTime &&
+			       running.size() < concurrent &&
+			       (maxLoops < 0 || loopsDone + running.size() < maxLoops) ) {
+
+				AutoSearchThread ast = null;
+
+				int skipped = 0;
+				while( skipped < maxSeedsSkipped && mostTubelikePoints.size() > 0 ) {
+
+					// Now get the most tubelike point:
+					AutoPoint startPoint=mostTubelikePoints.poll();
+
+					/* Points which are already on a path are
+					   dropped; only the ones which are blocked
+					   by running searches count as skipped. */
+					if( done.contains(startPoint) )
+						continue;
+
+					AutoSearchThread candidate = new AutoSearchThread(
+						image, /* original image */
+						tubeValues, /* the "tubeness" filtered image */
+						startPoint, /* the point to start the search from */
+						tubenessThreshold,
+						completePaths );
+
+					if( concurrent > 1 )
+						candidate.setRegion( (int)Math.floor( startPoint.x - regionRadius[0] ),
+								     (int)Math.floor( startPoint.y - regionRadius[1] ),
+								     (int)Math.floor( startPoint.z - regionRadius[2] ),
+								     (int)Math.ceil( startPoint.x + regionRadius[0] ),
+								     (int)Math.ceil( startPoint.y + regionRadius[1] ),
+								     (int)Math.ceil( startPoint.z + regionRadius[2] ) );
+
+					boolean overlaps = false;
+					for( AutoSearchThread other : running )
+						if( candidate.regionOverlaps( other ) ) {
+							overlaps = true;
+							break;
+						}
 
-			if( maxLoops >= 0 && loopsDone >= maxLoops )
-				break;
+					if( overlaps ) {
+						blocked.add( startPoint );
+						++skipped;
+						continue;
+					}
 
-			// Now get the most tubelike point:
-			AutoPoint startPoint=mostTubelikePoints.poll();
+					ast = candidate;
+					break;
+				}
 
-			if( done.contains(startPoint) ) {
-				continue;
-			}
+				if( ast == null )
+					break;
 
-			System.out.println("=== Done size is: "+done.size());
-			System.out.println("=== Priority queue now has: "+mostTubelikePoints.size());
-			System.out.println("=== Loops done: "+loopsDone);
+				AutoPoint startPoint = ast.startPoint;
 
-			System.out.println("  Got point "+startPoint+" with tubeness: "+tubeValues[startPoint.z][startPoint.y*width+startPoint.x]);
+				System.out.println("=== Done size is: "+done.size());
+				System.out.println("=== Priority queue now has: "+mostTubelikePoints.size());
+				System.out.println("=== Loops done: "+loopsDone+", searches running: "+(running.size() + 1));
 
-			// Move to that slice, just for presentation purposes:
-			if( liveDisplay )
-				image.setSlice(startPoint.z+1);
+				System.out.println("  Got point "+startPoint+" with tubeness: "+tubeValues[startPoint.z][startPoint.y*width+startPoint.x]);
 
-			ast = new AutoSearchThread( image, /* original image */
-						    tubeValues, /* the "tubeness" filtered image */
-						    startPoint, /* the point to start the search from */
-						    tubenessThreshold,
-						    completePaths );
+				// Move to that slice, just for presentation purposes:
+				if( liveDisplay )
+					image.setSlice(startPoint.z+1);
 
-			threadTimeStarted = currentTime;
+				ast.setDrawingColors( Color.BLUE, Color.CYAN );
+				ast.setDrawingThreshold( -1 );
 
-			ast.setDrawingColors( Color.BLUE, Color.CYAN );
-			ast.setDrawingThreshold( -1 );
+				ast.addProgressListener(this);
+				ast.finishedQueue = finishedSearches;
 
-			ast.addProgressListener(this);
+				if( liveDisplay )
+					canvas.addSearchThread(ast);
 
-			if( liveDisplay )
-				canvas.addSearchThread(ast);
+				running.add( ast );
+				ast.start();
+			}
 
-			ast.start();
+			if( running.size() == 0 )
+				break;
 
+			AutoSearchThread ast;
 			try {
-				ast.join();
-			} catch( InterruptedException e ) { }
+				ast = finishedSearches.take();
+			} catch( InterruptedException e ) {
+				for( AutoSearchThread r : running )
+					r.requestStop();
+				break;
+			}
+			running.remove( ast );
 
 			if( liveDisplay )
 				canvas.removeSearchThread(ast);
 
-			// Now start the pruning:
+			long milliseconds = System.currentTimeMillis() - ast.startedAt;
+			int pointsAdded = addSearchResults( ast, completePaths );
 
-			ArrayList<AutoPoint> destinations = ast.getDestinations();
-			System.out.println("  === Destinations: "+destinations.size());
-			if ( verbose ) System.out.print("  === Destinations: "+destinations.size()+" ");
-			if ( verbose ) System.out.flush();
+			System.out.println("  Seed "+ast.startPoint+": cost "+ast.maximumCost+
+					   ", "+milliseconds+" ms, "+
+					   ast.pointsConsideredInSearch()+" points explored, "+
+					   ast.getDestinations().size()+" destinations, "+
+					   pointsAdded+" points on paths");
 
-			for( Iterator<AutoPoint> it = destinations.iterator(); it.hasNext(); ) {
+			// The blocked start points may be usable now:
+			mostTubelikePoints.addAll( blocked );
+			blocked.clear();
 
-				if ( verbose ) System.out.print("    ");
+			/* Check the memory usage, and recreate the
+			 * PriorityQueue if it's going too high (and
+			 * every 50 loops in any case).  It's not
+			 * clear how trustworthy these memory
+			 * statistics are, unfortunately. */
 
-				AutoPoint d = it.next();
-				Path path = ast.getPathBack(d.x,d.y,d.z);
+			long freeMem = Runtime.getRuntime().freeMemory();
+			long totMem = Runtime.getRuntime().totalMemory();
+			int percentUsed = (int)(((totMem-freeMem)*100) / totMem);
 
-				float [] rollingTubeness = new float[rollingLength];
-				int nextRollingAt = 0;
-				int slotsFilled = 0;
+			System.out.println("=== Memory usage: "+percentUsed+"%");
+			if( (percentUsed > 95) || ((loopsDone % 50) == 49) ) {
+				recreatePriorityQueue(true);
+			}
 
-				int lastIndex = path.size() - 1;
+			++loopsDone;
+		}
 
-				if( minimumPointsOnPath >= 0 && path.size() < minimumPointsOnPath ) {
+		File outputFile=new File(originalFileInfo.directory,outputFileName);
 
-					lastIndex = -1;
+		try {
+			completePaths.writeWavefrontObj(outputFile.getAbsolutePath());
+		} catch( IOException e ) {
+			IJ.error("Writing the Wavefront OBJ file '"+outputFile.getAbsolutePath()+"' failed");
+			return;
+		}
+	}
 
-				} else {
+	/* Adds the paths from the start point of a finished search
+	   to its destinations to completePaths, as far as their
+	   rolling mean tubeness stays high enough, and marks the
+	   above-threshold points on them as done.  Returns the
+	   number of path points added. */
 
-					for( int i = 0; i < path.size(); ++i  ) {
+	int addSearchResults( AutoSearchThread ast, SinglePathsGraph completePaths ) {
 
-						if ( verbose ) System.out.print(".");
-						if ( verbose ) System.out.flush();
+		int pointsAdded = 0;
 
-						int pax = path.getXUnscaled(i);
-						int pay = path.getYUnscaled(i);
-						int paz = path.getZUnscaled(i);
+		// Now start the pruning:
 
-						float tubenessThere = tubeValues[paz][pay*width+pax];
+		ArrayList<AutoPoint> destinations = ast.getDestinations();
+		System.out.println("  === Destinations: "+destinations.size());
+		if ( verbose ) System.out.print("  === Destinations: "+destinations.size()+" ");
+		if ( verbose ) System.out.flush();
 
-						rollingTubeness[nextRollingAt] = tubenessThere;
+		for( Iterator<AutoPoint> it = destinations.iterator(); it.hasNext(); ) {
 
-						if( slotsFilled < nextRollingAt + 1 )
-							slotsFilled = nextRollingAt + 1;
+			if ( verbose ) System.out.print("    ");
 
-						// Now calculate the mean...
+			AutoPoint d = it.next();
+			Path path = ast.getPathBack(d.x,d.y,d.z);
 
-						float mean = 0;
-						for( int s = 0; s < slotsFilled; ++s ) {
-							mean += rollingTubeness[s];
-						}
-						mean /= slotsFilled;
+			float [] rollingTubeness = new float[rollingLength];
+			int nextRollingAt = 0;
+			int slotsFilled = 0;
 
-						if( mean < minimumRollingMean ) {
-							lastIndex = (i + 1) - slotsFilled;
-							break;
-						}
+			int lastIndex = path.size() - 1;
 
-						if( nextRollingAt == rollingLength - 1 )
-							nextRollingAt = 0;
-						else
-							++ nextRollingAt;
-					}
-				}
+			if( minimumPointsOnPath >= 0 && path.size() < minimumPointsOnPath ) {
 
-				AutoPoint current = null;
-				AutoPoint last = null;
+				lastIndex = -1;
 
-				HashSet<AutoPoint> destinationsToPrune = new HashSet<AutoPoint>();
+			} else {
 
-				for( int i = 0; i <= lastIndex; ++i ) {
+				for( int i = 0; i < path.size(); ++i  ) {
 
-					if ( verbose ) System.out.print("#");
+					if ( verbose ) System.out.print(".");
 					if ( verbose ) System.out.flush();
 
-					// If the tubeness is above threshold, add this to the list to prune:
-
 					int pax = path.getXUnscaled(i);
 					int pay = path.getYUnscaled(i);
 					int paz = path.getZUnscaled(i);
 
 					float tubenessThere = tubeValues[paz][pay*width+pax];
 
-					current = new AutoPoint(pax,pay,paz);
+					rollingTubeness[nextRollingAt] = tubenessThere;
 
-					if( tubenessThere > tubenessThreshold ) {
-						destinationsToPrune.add(current);
-					}
+					if( slotsFilled < nextRollingAt + 1 )
+						slotsFilled = nextRollingAt + 1;
+
+					// Now calculate the mean...
 
-					// And add it to the full graph:
+					float mean = 0;
+					for( int s = 0; s < slotsFilled; ++s ) {
+						mean += rollingTubeness[s];
+					}
+					mean /= slotsFilled;
 
-					completePaths.addPoint( current, last );
+					if( mean < minimumRollingMean ) {
+						lastIndex = (i + 1) - slotsFilled;
+						break;
+					}
 
-					last = current;
+					if( nextRollingAt == rollingLength - 1 )
+						nextRollingAt = 0;
+					else
+						++ nextRollingAt;
 				}
+			}
 
-				// Now remove all the destinations
-				// genuinely found in this search:
+			AutoPoint current = null;
+			AutoPoint last = null;
 
-				for( Iterator<AutoPoint> itRemove = destinationsToPrune.iterator();
-				     itRemove.hasNext(); ) {
+			HashSet<AutoPoint> destinationsToPrune = new HashSet<AutoPoint>();
 
-					AutoPoint toRemove = itRemove.next();
+			for( int i = 0; i <= lastIndex; ++i ) {
 
-					if ( verbose ) System.out.flush();
+				if ( verbose ) System.out.print("#");
+				if ( verbose ) System.out.flush();
+
+				// If the tubeness is above threshold, add this to the list to prune:
 
-					done.add( toRemove );
+				int pax = path.getXUnscaled(i);
+				int pay = path.getYUnscaled(i);
+				int paz = path.getZUnscaled(i);
+
+				float tubenessThere = tubeValues[paz][pay*width+pax];
+
+				current = new AutoPoint(pax,pay,paz);
+
+				if( tubenessThere > tubenessThreshold ) {
+					destinationsToPrune.add(current);
 				}
 
-				if (verbose) System.out.println("");
+				// And add it to the full graph:
+
+				completePaths.addPoint( current, last );
+				++ pointsAdded;
+
+				last = current;
 			}
 
-			ast = null;
+			// Now remove all the destinations
+			// genuinely found in this search:
 
-			System.gc();
+			for( Iterator<AutoPoint> itRemove = destinationsToPrune.iterator();
+			     itRemove.hasNext(); ) {
 
-			/* Check the memory usage, and recreate the
-			 * PriorityQueue if it's going too high (and
-			 * every 50 loops in any case).  It's not
-			 * clear how trustworthy these memory
-			 * statistics are, unfortunately. */
+				AutoPoint toRemove = itRemove.next();
 
-			long freeMem = Runtime.getRuntime().freeMemory();
-			long totMem = Runtime.getRuntime().totalMemory();
-			int percentUsed = (int)(((totMem-freeMem)*100) / totMem);
+				if ( verbose ) System.out.flush();
 
-			System.out.println("=== Memory usage: "+percentUsed+"%");
-			if( (percentUsed > 95) || ((loopsDone % 50) == 49) ) {
-				recreatePriorityQueue(true);
-				if( mostTubelikePoints.size() == 0 )
-					break;
+				done.add( toRemove );
 			}
 
-			++loopsDone;
+			if (verbose) System.out.println("");
 		}
 
-		File outputFile=new File(originalFileInfo.directory,outputFileName);
-
-		try {
-			completePaths.writeWavefrontObj(outputFile.getAbsolutePath());
-		} catch( IOException e ) {
-			IJ.error("Writing the Wavefront OBJ file '"+outputFile.getAbsolutePath()+"' failed");
-			return;
-		}
+		return pointsAdded;
 	}
 
-	AutoSearchThread ast;
-
 	long totalTimeLimitSeconds = 1 * 60;
 	long totalTimeStarted;
 
-	long threadTimeStarted;
-
 	int maxNodes = 22000; // Takes about 10 seconds to do this on a 1.8GHz Duron
 	int maxSeconds = 120;
 	float tubenessThreshold = 18f;
 	float minimumRollingMean = 5.0f;
 	int rollingLength = 4;
 
+	// How many searches may run at the same time, and how far
+	// (in voxels along x) each may get from its start point when
+	// there's more than one:
+	int maxConcurrentSearches = Runtime.getRuntime().availableProcessors();
+	double searchRegionRadius = 64;
+
+	// How many start points to try before waiting for a search
+	// to finish, if all of them are too close to running searches:
+	int maxSeedsSkipped = 2000;
+
 	// If you only want to add paths that have more than a certain
 	// number of points in them, change this...
 	int minimumPointsOnPath = -1;
@@ -607,10 +699,10 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 		// Also check whether we're over the requested number
 		// of iterations or time:
 		long currentTime = System.currentTimeMillis();
-		long timeSinceStarted = currentTime - threadTimeStarted;
+		long timeSinceStarted = currentTime - ((AutoSearchThread)source).startedAt;
 		if( (inOpen + inClosed) > maxNodes || (timeSinceStarted / 1000) > maxSeconds ) {
 			if ( verbose ) System.out.println("### Requesting stop...");
-			ast.requestStop();
+			source.requestStop();
 		}
 	}
 
@@ -620,9 +712,9 @@ public class Auto_Tracer extends ThreePanes implements PlugIn, PaneOwner, Search
 
 	public void finished( SearchThread source, boolean success ) {
 		long currentTime = System.currentTimeMillis();
-		long secondsSinceThreadStarted = (currentTime - threadTimeStarted) / 1000;
+		long secondsSinceThreadStarted = (currentTime - ((AutoSearchThread)source).startedAt) / 1000;
 		// Just log how many nodes were explored in that time:
-		System.out.println("  "+(source.open_from_start.size()+source.closed_from_start.size())+" nodes in "+secondsSinceThreadStarted+" seconds");
+		System.out.println("  "+source.pointsConsideredInSearch()+" nodes in "+secondsSinceThreadStarted+" seconds");
 	}
 
 	/* This reports the current status of the thread, which may be:
@@ -0,0 +1,276 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/* This is the storage for one direction of a search when
+   SearchThread is used with compact storage.  Instead of a
+   SearchNode object per voxel, g, h, the search status, the
+   position in the open heap and the direction to the predecessor
+   are kept in primitive arrays.  These arrays are only allocated
+   for the blocks of the image that the search has actually
+   touched, so a long trace through a huge stack only pays for the
+   sausage of voxels around the path.
+
+   Voxels are identified by "keys", which pack x, y and z into a
+   long so that ordering keys numerically is the same as ordering
+   by x, then y, then z - that's the tie-breaking order used by
+   SearchNode.compareTo, which NodeHeap relies on to pop nodes in
+   the same order as the PriorityQueue-based search. */
+
+public class CompactNodeStore {
+
+	static final int COORDINATE_BITS = 21;
+	static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+	public static long key( int x, int y, int z ) {
+		return ( ((long)x) << (2 * COORDINATE_BITS) ) |
+			( ((long)y) << COORDINATE_BITS ) |
+			z;
+	}
+
+	public static int keyX( long key ) {
+		return (int)( key >>> (2 * COORDINATE_BITS) );
+	}
+
+	public static int keyY( long key ) {
+		return (int)( (key >>> COORDINATE_BITS) & COORDINATE_MASK );
+	}
+
+	public static int keyZ( long key ) {
+		return (int)( key & COORDINATE_MASK );
+	}
+
+	/* The predecessor of a node is always one of its 26
+	   neighbours, so we just store which one as a byte: */
+
+	public static final byte NO_PREDECESSOR = 0;
+
+	public static byte direction( int xdiff, int ydiff, int zdiff ) {
+		return (byte)( 1 + (xdiff + 1) + 3 * (ydiff + 1) + 9 * (zdiff + 1) );
+	}
+
+	static int directionX( byte d ) {
+		return (d - 1) % 3 - 1;
+	}
+
+	static int directionY( byte d ) {
+		return ((d - 1) / 3) % 3 - 1;
+	}
+
+	static int directionZ( byte d ) {
+		return (d - 1) / 9 - 1;
+	}
+
+	static class Block {
+		float [] g;
+		float [] h;
+		byte [] status;
+		byte [] predecessor;
+		int [] heapIndex;
+		Block( int size ) {
+			g = new float[size];
+			h = new float[size];
+			status = new byte[size];
+			predecessor = new byte[size];
+			heapIndex = new int[size];
+		}
+	}
+
+	/* Each block is 2^xyShift by 2^xyShift by 2^zShift voxels */
+
+	int xyShift;
+	int zShift;
+	int xyMask;
+	int zMask;
+
+	int width, height, depth;
+	int blocksX, blocksY, blocksZ;
+	int blockSize;
+
+	Block [] blocks;
+	int blocksAllocated;
+
+	/* These counts are kept up to date by setStatus: */
+	int open;
+	int closed;
+
+	public CompactNodeStore( int width, int height, int depth ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		xyShift = 4;
+		zShift = 0;
+		while( zShift < 4 && (1 << zShift) < depth )
+			++ zShift;
+		xyMask = (1 << xyShift) - 1;
+		zMask = (1 << zShift) - 1;
+		blocksX = (width + xyMask) >> xyShift;
+		blocksY = (height + xyMask) >> xyShift;
+		blocksZ = (depth + zMask) >> zShift;
+		blockSize = 1 << (2 * xyShift + zShift);
+		blocks = new Block[blocksX * blocksY * blocksZ];
+	}
+
+	int blockIndex( int x, int y, int z ) {
+		return ((z >> zShift) * blocksY + (y >> xyShift)) * blocksX + (x >> xyShift);
+	}
+
+	int indexInBlock( int x, int y, int z ) {
+		return (((z & zMask) << xyShift) + (y & xyMask)) << xyShift | (x & xyMask);
+	}
+
+	/* Returns null if no node in that block has been touched: */
+	Block getBlock( int x, int y, int z ) {
+		return blocks[blockIndex(x,y,z)];
+	}
+
+	Block getOrCreateBlock( int x, int y, int z ) {
+		int i = blockIndex(x,y,z);
+		Block b = blocks[i];
+		if( b == null ) {
+			b = new Block(blockSize);
+			blocks[i] = b;
+			++ blocksAllocated;
+		}
+		return b;
+	}
+
+	/* Returns 0 if the search has never reached this point,
+	   otherwise one of SearchThread.OPEN_FROM_START, etc. */
+	public byte getStatus( int x, int y, int z ) {
+		Block b = getBlock(x,y,z);
+		if( b == null )
+			return 0;
+		return b.status[indexInBlock(x,y,z)];
+	}
+
+	public float getG( int x, int y, int z ) {
+		Block b = getBlock(x,y,z);
+		return b.g[indexInBlock(x,y,z)];
+	}
+
+	public float getH( int x, int y, int z ) {
+		Block b = getBlock(x,y,z);
+		return b.h[indexInBlock(x,y,z)];
+	}
+
+	public byte getPredecessor( int x, int y, int z ) {
+		Block b = getBlock(x,y,z);
+		return b.predecessor[indexInBlock(x,y,z)];
+	}
+
+	/* Set everything about a node except for its status: */
+	public void set( int x, int y, int z, float g, float h, byte predecessor ) {
+		Block b = getOrCreateBlock(x,y,z);
+		int i = indexInBlock(x,y,z);
+		b.g[i] = g;
+		b.h[i] = h;
+		b.predecessor[i] = predecessor;
+	}
+
+	public void setStatus( int x, int y, int z, byte status ) {
+		Block b = getOrCreateBlock(x,y,z);
+		int i = indexInBlock(x,y,z);
+		updateCounts( b.status[i], -1 );
+		updateCounts( status, 1 );
+		b.status[i] = status;
+	}
+
+	void updateCounts( byte status, int change ) {
+		if( status == SearchThread.OPEN_FROM_START || status == SearchThread.OPEN_FROM_GOAL )
+			open += change;
+		else if( status == SearchThread.CLOSED_FROM_START || status == SearchThread.CLOSED_FROM_GOAL )
+			closed += change;
+	}
+
+	int getHeapIndex( long key ) {
+		int x = keyX(key), y = keyY(key), z = keyZ(key);
+		return getBlock(x,y,z).heapIndex[indexInBlock(x,y,z)];
+	}
+
+	void setHeapIndex( long key, int heapIndex ) {
+		int x = keyX(key), y = keyY(key), z = keyZ(key);
+		getBlock(x,y,z).heapIndex[indexInBlock(x,y,z)] = heapIndex;
+	}
+
+	public int openCount( ) {
+		return open;
+	}
+
+	public int closedCount( ) {
+		return closed;
+	}
+
+	public long bytesAllocated( ) {
+		return (long)blocksAllocated * blockSize * (4 + 4 + 1 + 1 + 4);
+	}
+
+	/* Calls back for every node that has been reached, in block
+	   order; this is only used for things like saving fills, so
+	   the interface is deliberately simple. */
+
+	public interface NodeVisitor {
+		public void visit( int x, int y, int z, float g, byte status, byte predecessor );
+	}
+
+	public void visitNodes( NodeVisitor visitor ) {
+		for( int bz = 0; bz < blocksZ; ++bz )
+			for( int by = 0; by < blocksY; ++by )
+				for( int bx = 0; bx < blocksX; ++bx ) {
+					Block b = blocks[(bz * blocksY + by) * blocksX + bx];
+					if( b == null )
+						continue;
+					int x0 = bx << xyShift, y0 = by << xyShift, z0 = bz << zShift;
+					int x1 = Math.min( width, x0 + (1 << xyShift) );
+					int y1 = Math.min( height, y0 + (1 << xyShift) );
+					int z1 = Math.min( depth, z0 + (1 << zShift) );
+					for( int z = z0; z < z1; ++z )
+						for( int y = y0; y < y1; ++y )
+							for( int x = x0; x < x1; ++x ) {
+								int i = indexInBlock(x,y,z);
+								if( b.status[i] != 0 )
+									visitor.visit( x, y, z, b.g[i], b.status[i], b.predecessor[i] );
+							}
+				}
+	}
+
+	/* The equivalent of SearchNode.asPathReversed: the path from
+	   this point back to the one that started the search. */
+
+	public Path asPathReversed( int x, int y, int z, double x_spacing, double y_spacing, double z_spacing, String spacing_units ) {
+		Path result = new Path(x_spacing, y_spacing, z_spacing, spacing_units);
+		while( true ) {
+			result.addPointDouble( x * x_spacing, y * y_spacing, z * z_spacing );
+			byte d = getPredecessor(x,y,z);
+			if( d == NO_PREDECESSOR )
+				break;
+			x += directionX(d);
+			y += directionY(d);
+			z += directionZ(d);
+		}
+		return result;
+	}
+
+	public Path asPath( int x, int y, int z, double x_spacing, double y_spacing, double z_spacing, String spacing_units ) {
+		return asPathReversed(x,y,z,x_spacing,y_spacing,z_spacing,spacing_units).reversed();
+	}
+}
@@ -48,6 +48,12 @@ public class FillerThread extends SearchThread {
 		int y = (int)Math.round( yd );
 		int z = (int)Math.round( zd );
 
+		if( compactStorage ) {
+			if( compact_from_start.getStatus(x,y,z) == 0 )
+				return -1.0f;
+			return compact_from_start.getG(x,y,z);
+		}
+
                 SearchNode [] slice = nodes_as_image_from_start[z];
                 if( slice == null )
 			return -1.0f;
@@ -62,6 +68,9 @@ public class FillerThread extends SearchThread {
         // FIXME: may be buggy, synchronization issues
 	
         Fill getFill( ) {
+
+		if( compactStorage )
+			return getFillFromCompactStorage();
 		
                 Hashtable< SearchNode, Integer > h =
                         new Hashtable< SearchNode, Integer >();
@@ -76,7 +85,10 @@ public class FillerThread extends SearchThread {
 		
                 int i = 0;
 		
-                for( Iterator<SearchNode> j = closed_from_start.iterator();
+		ArrayList< SearchNode > closed = new ArrayList< SearchNode >();
+		collectNodes( nodes_as_image_from_start, CLOSED_FROM_START, closed );
+
+                for( Iterator<SearchNode> j = closed.iterator();
                      j.hasNext(); ) {
                         SearchNode current = j.next();
                         /* if( current.g <= threshold ) { */
@@ -100,18 +112,7 @@ public class FillerThread extends SearchThread {
 			/* } */
                 }
 		
-                Fill fill = new Fill();
-		
-                fill.setThreshold( threshold );
-                if( reciprocal )
-                        fill.setMetric( "reciprocal-intensity-scaled" );
-                else
-                        fill.setMetric( "256-minus-intensity-scaled" );
-		
-                fill.setSpacing( x_spacing,
-                                 y_spacing,
-                                 z_spacing,
-                                 spacing_units );
+                Fill fill = createEmptyFill();
 		
 		if (verbose) System.out.println("... out of a.size() "+a.size()+" entries");
 		
@@ -135,6 +136,78 @@ public class FillerThread extends SearchThread {
                 return fill;
         }
 	
+        Fill createEmptyFill( ) {
+
+                Fill fill = new Fill();
+
+                fill.setThreshold( threshold );
+                if( reciprocal )
+                        fill.setMetric( "reciprocal-intensity-scaled" );
+                else
+                        fill.setMetric( "256-minus-intensity-scaled" );
+
+                fill.setSpacing( x_spacing,
+                                 y_spacing,
+                                 z_spacing,
+                                 spacing_units );
+
+		return fill;
+	}
+
+	/* The equivalent of getFill() when the search is using
+	   CompactNodeStore: the closed nodes are numbered first,
+	   then the open ones, and each node's predecessor is looked
+	   up from its position. */
+
+	Fill getFillFromCompactStorage( ) {
+
+		final HashMap< Long, Integer > indices = new HashMap< Long, Integer >();
+		final ArrayList< Long > keys = new ArrayList< Long >();
+
+		int openAtOrAbove = 0;
+
+		for( int pass = 0; pass < 2; ++pass ) {
+			final byte wanted = (pass == 0) ? CLOSED_FROM_START : OPEN_FROM_START;
+			compact_from_start.visitNodes( new CompactNodeStore.NodeVisitor() {
+				public void visit( int x, int y, int z, float g, byte status, byte predecessor ) {
+					if( status != wanted )
+						return;
+					Long key = new Long( CompactNodeStore.key(x,y,z) );
+					indices.put( key, new Integer(keys.size()) );
+					keys.add( key );
+				}
+			} );
+			if( pass == 0 )
+				openAtOrAbove = keys.size();
+		}
+
+		Fill fill = createEmptyFill();
+
+		for( int i = 0; i < keys.size(); ++i ) {
+			long key = keys.get(i).longValue();
+			int x = CompactNodeStore.keyX(key);
+			int y = CompactNodeStore.keyY(key);
+			int z = CompactNodeStore.keyZ(key);
+			int previousIndex = -1;
+			byte predecessor = compact_from_start.getPredecessor(x,y,z);
+			if( predecessor != CompactNodeStore.NO_PREDECESSOR ) {
+				Integer p = indices.get( new Long( CompactNodeStore.key(
+					x + CompactNodeStore.directionX(predecessor),
+					y + CompactNodeStore.directionY(predecessor),
+					z + CompactNodeStore.directionZ(predecessor) ) ) );
+				if( p != null )
+					previousIndex = p.intValue();
+			}
+			fill.add( x, y, z, compact_from_start.getG(x,y,z), previousIndex, i >= openAtOrAbove );
+		}
+
+                if( sourcePaths != null ) {
+                        fill.setSourcePaths( sourcePaths );
+                }
+
+		return fill;
+	}
+
         Set< Path > sourcePaths;
 	
 	public static FillerThread fromFill( ImagePlus imagePlus,
@@ -280,11 +353,18 @@ public class FillerThread extends SearchThread {
 		
                 for( int z = 0; z < depth; ++z ) {
 			SearchNode [] nodes_this_slice=nodes_as_image_from_start[z];
-			if( nodes_this_slice != null )
+			if( nodes_this_slice != null || compactStorage )
 				for( int y = 0; y < height; ++y ) {
 					for( int x = 0; x < width; ++x ) {
-						SearchNode s = nodes_as_image_from_start[z][y*width+x];
-						if( (s != null) && (s.g <= threshold) ) {	
+						boolean inFill;
+						if( compactStorage ) {
+							inFill = compact_from_start.getStatus(x,y,z) != 0 &&
+								compact_from_start.getG(x,y,z) <= threshold;
+						} else {
+							SearchNode s = nodes_as_image_from_start[z][y*width+x];
+							inFill = (s != null) && (s.g <= threshold);
+						}
+						if( inFill ) {	
 							switch( imageType ) {
 							case ImagePlus.GRAY8:
 							case ImagePlus.COLOR_256:
@@ -339,11 +419,20 @@ public class FillerThread extends SearchThread {
 		super.reportPointsInSearch();
 		
 		// Find the minimum distance in the open list.
-		SearchNode p = open_from_start.peek();
-		if( p == null )
-			return;
-		
-		float minimumDistanceInOpen = p.g;
+		float minimumDistanceInOpen;
+		if( compactStorage ) {
+			if( open_heap_from_start.size() == 0 )
+				return;
+			long key = open_heap_from_start.peek();
+			minimumDistanceInOpen = compact_from_start.getG( CompactNodeStore.keyX(key),
+									 CompactNodeStore.keyY(key),
+									 CompactNodeStore.keyZ(key) );
+		} else {
+			SearchNode p = open_from_start.peek();
+			if( p == null )
+				return;
+			minimumDistanceInOpen = p.g;
+		}
 		
 		for (Iterator<SearchProgressCallback> j = progressListeners.iterator(); j.hasNext();) {
 			SearchProgressCallback progress = j.next();
@@ -0,0 +1,145 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/* A binary min-heap of voxel keys (see CompactNodeStore.key)
+   ordered by f and then by the key itself, which gives the same
+   order as SearchNode.compareTo.  The position of each key in the
+   heap is recorded in the CompactNodeStore, so that when a better
+   route to an open node is found its priority can be decreased in
+   O(log n) rather than with the linear scan that
+   PriorityQueue.remove() needs. */
+
+public class NodeHeap {
+
+	long [] keys;
+	float [] f;
+	int size;
+
+	CompactNodeStore store;
+
+	public NodeHeap( CompactNodeStore store ) {
+		this( store, 1024 );
+	}
+
+	public NodeHeap( CompactNodeStore store, int initialCapacity ) {
+		this.store = store;
+		keys = new long[initialCapacity];
+		f = new float[initialCapacity];
+	}
+
+	public int size( ) {
+		return size;
+	}
+
+	public long peek( ) {
+		return keys[0];
+	}
+
+	public float peekF( ) {
+		return f[0];
+	}
+
+	boolean less( int i, int j ) {
+		if( f[i] < f[j] )
+			return true;
+		if( f[i] > f[j] )
+			return false;
+		return keys[i] < keys[j];
+	}
+
+	void swap( int i, int j ) {
+		long k = keys[i];
+		keys[i] = keys[j];
+		keys[j] = k;
+		float t = f[i];
+		f[i] = f[j];
+		f[j] = t;
+		store.setHeapIndex( keys[i], i );
+		store.setHeapIndex( keys[j], j );
+	}
+
+	void siftUp( int i ) {
+		while( i > 0 ) {
+			int parent = (i - 1) >> 1;
+			if( ! less( i, parent ) )
+				break;
+			swap( i, parent );
+			i = parent;
+		}
+	}
+
+	void siftDown( int i ) {
+		while( true ) {
+			int left = 2 * i + 1;
+			if( left >= size )
+				break;
+			int smallest = left;
+			int right = left + 1;
+			if( right < size && less( right, left ) )
+				smallest = right;
+			if( ! less( smallest, i ) )
+				break;
+			swap( i, smallest );
+			i = smallest;
+		}
+	}
+
+	public void add( long key, float priority ) {
+		if( size == keys.length ) {
+			int newCapacity = keys.length * 2;
+			long [] newKeys = new long[newCapacity];
+			float [] newF = new float[newCapacity];
+			System.arraycopy( keys, 0, newKeys, 0, size );
+			System.arraycopy( f, 0, newF, 0, size );
+			keys = newKeys;
+			f = newF;
+		}
+		keys[size] = key;
+		f[size] = priority;
+		store.setHeapIndex( key, size );
+		++ size;
+		siftUp( size - 1 );
+	}
+
+	/* The key must already be in the heap and the new priority
+	   must not be greater than its current one: */
+
+	public void decreasePriority( long key, float priority ) {
+		int i = store.getHeapIndex( key );
+		f[i] = priority;
+		siftUp( i );
+	}
+
+	public long poll( ) {
+		long result = keys[0];
+		-- size;
+		if( size > 0 ) {
+			keys[0] = keys[size];
+			f[0] = f[size];
+			store.setHeapIndex( keys[0], 0 );
+			siftDown( 0 );
+		}
+		store.setHeapIndex( result, -1 );
+		return result;
+	}
+}
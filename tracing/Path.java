@@ -50,8 +50,10 @@ import java.util.Iterator;
 import java.util.HashSet;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import util.CMTK_Transformation;
+import util.Threads;
 
 /* This class represents a list of points, and has methods for drawing
  * them onto ThreePanes-style image canvases. */
@@ -367,6 +369,10 @@ public class Path implements Comparable {
 	public int points;
 	public int maxPoints;
 
+	/* Counts the changes to the points, so that a PathPointIndex
+	   can tell which paths it has to index again: */
+	int pointsModified = 0;
+
 	public int size( ) {
 		return points;
 	}
@@ -613,6 +619,7 @@ public class Path implements Comparable {
 		}
 
 		points = points + (other.points - toSkip);
+		++ pointsModified;
 	}
 
 	void unsetPrimaryForConnected( HashSet<Path> pathsExplored ) {
@@ -646,6 +653,7 @@ public class Path implements Comparable {
 		precise_x_positions[points] = x;
 		precise_y_positions[points] = y;
 		precise_z_positions[points++] = z;
+		++ pointsModified;
 	}
 
 	public void drawPathAsPoints( TracerCanvas canvas, Graphics g, java.awt.Color c, int plane ) {
@@ -995,6 +1003,47 @@ public class Path implements Comparable {
 
 		byte [] result = new byte[side*side];
 
+		squareNormalToVector( side, step, ox, oy, oz, nx, ny, nz,
+				      x_basis_vector, y_basis_vector,
+				      slicePixels( image ), image.getWidth(), image.getHeight(),
+				      result );
+
+		return result;
+	}
+
+	/* The pixel arrays of each slice of an 8 bit image, so that
+	   they only have to be fetched from the stack once when
+	   sampling many normal planes: */
+
+	static byte [][] slicePixels( ImagePlus image ) {
+		// FIXME: do other image types too...
+		int depth = image.getStackSize();
+		byte [][] v = new byte[depth][];
+		ImageStack s = image.getStack();
+		for( int z = 0; z < depth; ++z )
+			v[z] = (byte []) s.getPixels( z + 1 );
+		return v;
+	}
+
+	/* As above, but sampling from slice pixel arrays that have
+	   already been fetched, and writing into the supplied result
+	   array (of side * side bytes) so that it can be reused: */
+
+	void squareNormalToVector( int side,
+				   double step,
+				   double ox,
+				   double oy,
+				   double oz,
+				   double nx,
+				   double ny,
+				   double nz,
+				   double [] x_basis_vector,
+				   double [] y_basis_vector,
+				   byte [][] v,
+				   int width,
+				   int height,
+				   byte [] result ) {
+
 		double epsilon = 0.000001;
 
 		/* To find an arbitrary vector in the normal plane, do
@@ -1063,14 +1112,7 @@ public class Path implements Comparable {
 
 		}
 
-		// FIXME: do other image types too...
-		int width = image.getWidth();
-		int height = image.getHeight();
-		int depth = image.getStackSize();
-		byte [][] v = new byte[depth][];
-		ImageStack s = image.getStack();
-		for( int z = 0; z < depth; ++z )
-			v[z] = (byte []) s.getPixels( z + 1 );
+		int depth = v.length;
 
 		for( int grid_i = 0; grid_i < side; ++grid_i ) {
 			for( int grid_j = 0; grid_j < side; ++grid_j ) {
@@ -1172,8 +1214,6 @@ public class Path implements Comparable {
 		y_basis_vector[0] = bx_s;
 		y_basis_vector[1] = by_s;
 		y_basis_vector[2] = bz_s;
-
-		return result;
 	}
 
 	public Path fitCircles( int side, ImagePlus image, boolean display ) {
@@ -1181,195 +1221,253 @@ public class Path implements Comparable {
 	}
 
 	public Path fitCircles( int side, ImagePlus image, boolean display, Simple_Neurite_Tracer plugin ) {
+		return fitCircles( side, image, display, plugin, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public Path fitCircles( int side, ImagePlus image, boolean display, Simple_Neurite_Tracer plugin, int numberOfThreads ) {
+		int totalPoints = size();
+		try {
+			return fitCircles( side, slicePixels( image ), image.getWidth(), image.getHeight(), display, plugin,
+					   numberOfThreads, new AtomicInteger( 0 ), totalPoints );
+		} finally {
+			IJ.showProgress( 1.0 );
+		}
+	}
+
+	/* The circle fitting for each point is independent of the
+	   others, so the points are shared out between
+	   numberOfThreads threads, each with its own scratch buffers.
+	   The slice pixel arrays, v, are fetched by the caller so
+	   that they can be shared between several paths.  Each point
+	   fitted increments pointsDone, which is reported as a
+	   proportion of progressTotal. */
+
+	Path fitCircles( final int side,
+			 final byte [][] v,
+			 final int width,
+			 final int height,
+			 boolean display,
+			 Simple_Neurite_Tracer plugin,
+			 int numberOfThreads,
+			 final AtomicInteger pointsDone,
+			 final int progressTotal ) {
 
 		Path fitted = new Path( x_spacing, y_spacing, z_spacing, spacing_units );
 
 		// if (verbose) System.out.println("Generating normal planes stack.");
 
-		int totalPoints = size();
+		final int totalPoints = size();
 
 		if( verbose )
 			System.out.println("There are: "+totalPoints+ " in the stack.");
 
-		int pointsEitherSide = 4;
+		final int pointsEitherSide = 4;
 
 		if( verbose )
 			System.out.println("Using spacing: "+x_spacing+","+y_spacing+","+z_spacing);
 
-		int width = image.getWidth();
-		int height = image.getHeight();
-		int depth = image.getStackSize();
+		final int depth = v.length;
 
 		ImageStack stack = new ImageStack( side, side );
 
 		// We assume that the first and the last in the stack are fine;
 
-		double [] centre_x_positionsUnscaled = new double[totalPoints];
-		double [] centre_y_positionsUnscaled = new double[totalPoints];
-		double [] rs = new double[totalPoints];
-		double [] rsUnscaled = new double[totalPoints];
+		final double [] centre_x_positionsUnscaled = new double[totalPoints];
+		final double [] centre_y_positionsUnscaled = new double[totalPoints];
+		final double [] rs = new double[totalPoints];
+		final double [] rsUnscaled = new double[totalPoints];
 
-		double [] ts_x = new double[totalPoints];
-		double [] ts_y = new double[totalPoints];
-		double [] ts_z = new double[totalPoints];
+		final double [] ts_x = new double[totalPoints];
+		final double [] ts_y = new double[totalPoints];
+		final double [] ts_z = new double[totalPoints];
 
-		double [] optimized_x = new double[totalPoints];
-		double [] optimized_y = new double[totalPoints];
-		double [] optimized_z = new double[totalPoints];
+		final double [] optimized_x = new double[totalPoints];
+		final double [] optimized_y = new double[totalPoints];
+		final double [] optimized_z = new double[totalPoints];
 
-		double [] scores = new double[totalPoints];
+		final double [] scores = new double[totalPoints];
 
-		double [] moved = new double[totalPoints];
+		final double [] moved = new double[totalPoints];
 
 		boolean [] valid = new boolean[totalPoints];
 
-		int [] xs_in_image = new int[totalPoints];
-		int [] ys_in_image = new int[totalPoints];
-		int [] zs_in_image = new int[totalPoints];
+		final int [] xs_in_image = new int[totalPoints];
+		final int [] ys_in_image = new int[totalPoints];
+		final int [] zs_in_image = new int[totalPoints];
+
+		/* The normal planes are only kept if they're going to
+		   be displayed; otherwise each thread just reuses one
+		   buffer: */
+		final byte [][] normalPlanes = display ? new byte[totalPoints][] : null;
+
+		final double scaleInNormalPlane = getMinimumSeparation();
+
+		final AtomicInteger nextPoint = new AtomicInteger( 0 );
+		final AtomicInteger failures = new AtomicInteger( 0 );
+
+		Runnable fitPoints = new Runnable() {
+			public void run() {
+
+				double [] tangent = new double[3];
+				double [] x_basis_in_plane = new double[3];
+				double [] y_basis_in_plane = new double[3];
+				double [] startValues = new double[3];
+				byte [] scratchPlane = new byte[side*side];
+
+				for( int i = nextPoint.getAndIncrement(); i < totalPoints; i = nextPoint.getAndIncrement() ) {
+
+					if( failures.get() > 0 )
+						return;
+
+					getTangent( i, pointsEitherSide, tangent );
+
+					double x_world = precise_x_positions[i];
+					double y_world = precise_y_positions[i];
+					double z_world = precise_z_positions[i];
+
+					byte [] normalPlane = scratchPlane;
+					if( normalPlanes != null )
+						normalPlane = normalPlanes[i] = new byte[side*side];
+
+					squareNormalToVector(
+						side,
+						scaleInNormalPlane,   // This is in the same units as the _spacing, etc. variables.
+						x_world,      // These are scaled now
+						y_world,
+						z_world,
+						tangent[0],
+						tangent[1],
+						tangent[2],
+						x_basis_in_plane,
+						y_basis_in_plane,
+						v,
+						width,
+						height,
+						normalPlane );
+
+					/* Now at this stage, try to optimize
+					   a circle in there... */
+
+					// n.b. thes aren't normalized
+					ts_x[i] = tangent[0];
+					ts_y[i] = tangent[1];
+					ts_z[i] = tangent[2];
+
+					ConjugateDirectionSearch optimizer = new ConjugateDirectionSearch();
+					// optimizer.prin = 2; // debugging information on
+					optimizer.step = side / 4.0;
+
+					startValues[0] = side / 2.0;
+					startValues[1] = side / 2.0;
+					startValues[2] = 3;
+
+					if( verbose )
+						System.out.println("start search at: "+startValues[0]+","+startValues[1]+" with radius: "+startValues[2]);
+
+					int minValueInSquare = Integer.MAX_VALUE;
+					int maxValueInSquare = Integer.MIN_VALUE;
+					for( int j = 0; j < (side * side); ++j ) {
+						int value = normalPlane[j]&0xFF;
+						if( value > maxValueInSquare )
+							maxValueInSquare = value;
+						if( value < minValueInSquare )
+							minValueInSquare = value;
+					}
 
-		double scaleInNormalPlane = getMinimumSeparation();
+					CircleAttempt attempt = new CircleAttempt(
+						startValues,
+						normalPlane,
+						minValueInSquare,
+						maxValueInSquare,
+						side );
+
+					try {
+						optimizer.optimize( attempt, startValues, 2, 2 );
+					} catch( ConjugateDirectionSearch.OptimizationError e ) {
+						failures.incrementAndGet();
+						return;
+					}
 
-		double [] tangent = new double[3];
+					if( verbose )
+						// System.out.println("u is: "+u[0]+","+u[1]+","+u[2]);
+						System.out.println("search optimized to: "+startValues[0]+","+startValues[1]+" with radius: "+startValues[2]);
 
-		for( int i = 0; i < totalPoints; ++i ) {
+					centre_x_positionsUnscaled[i] = startValues[0];
+					centre_y_positionsUnscaled[i] = startValues[1];
+					rsUnscaled[i] = startValues[2];
+					rs[i] = scaleInNormalPlane * rsUnscaled[i];
 
-			getTangent( i, pointsEitherSide, tangent );
+					scores[i] = attempt.min;
 
-			IJ.showProgress( i / (float)totalPoints );
-
-			double x_world = precise_x_positions[i];
-			double y_world = precise_y_positions[i];
-			double z_world = precise_z_positions[i];
-
-			double [] x_basis_in_plane = new double[3];
-			double [] y_basis_in_plane = new double[3];
-
-			byte [] normalPlane = squareNormalToVector(
-				side,
-				scaleInNormalPlane,   // This is in the same units as the _spacing, etc. variables.
-				x_world,      // These are scaled now
-				y_world,
-				z_world,
-				tangent[0],
-				tangent[1],
-				tangent[2],
-				x_basis_in_plane,
-				y_basis_in_plane,
-				image );
-
-			/* Now at this stage, try to optimize
-			   a circle in there... */
-
-			// n.b. thes aren't normalized
-			ts_x[i] = tangent[0];
-			ts_y[i] = tangent[1];
-			ts_z[i] = tangent[2];
-
-			ConjugateDirectionSearch optimizer = new ConjugateDirectionSearch();
-			// optimizer.prin = 2; // debugging information on
-			optimizer.step = side / 4.0;
-
-			double [] startValues = new double[3];
-			startValues[0] = side / 2.0;
-			startValues[1] = side / 2.0;
-			startValues[2] = 3;
+					// Now we calculate the real co-ordinates of the new centre:
 
-			if( verbose )
-				System.out.println("start search at: "+startValues[0]+","+startValues[1]+" with radius: "+startValues[2]);
-
-			int minValueInSquare = Integer.MAX_VALUE;
-			int maxValueInSquare = Integer.MIN_VALUE;
-			for( int j = 0; j < (side * side); ++j ) {
-				int value = normalPlane[j]&0xFF;
-				if( value > maxValueInSquare )
-					maxValueInSquare = value;
-				if( value < minValueInSquare )
-					minValueInSquare = value;
-			}
+					double x_from_centre_in_plane = startValues[0] - (side / 2.0);
+					double y_from_centre_in_plane = startValues[1] - (side / 2.0);
 
-			CircleAttempt attempt = new CircleAttempt(
-				startValues,
-				normalPlane,
-				minValueInSquare,
-				maxValueInSquare,
-				side );
-
-			try {
-				optimizer.optimize( attempt, startValues, 2, 2 );
-			} catch( ConjugateDirectionSearch.OptimizationError e ) {
-				return null;
-			}
-
-			if( verbose )
-				// System.out.println("u is: "+u[0]+","+u[1]+","+u[2]);
-				System.out.println("search optimized to: "+startValues[0]+","+startValues[1]+" with radius: "+startValues[2]);
+					moved[i] = scaleInNormalPlane * Math.sqrt( x_from_centre_in_plane * x_from_centre_in_plane +
+										   y_from_centre_in_plane * y_from_centre_in_plane );
 
-			centre_x_positionsUnscaled[i] = startValues[0];
-			centre_y_positionsUnscaled[i] = startValues[1];
-			rsUnscaled[i] = startValues[2];
-			rs[i] = scaleInNormalPlane * rsUnscaled[i];
+					if( verbose )
+						System.out.println("vector to new centre from original: "+x_from_centre_in_plane+","+y_from_centre_in_plane);
 
-			scores[i] = attempt.min;
+					double centre_real_x = x_world;
+					double centre_real_y = y_world;
+					double centre_real_z = z_world;
 
-			// Now we calculate the real co-ordinates of the new centre:
+					if( verbose )
+						System.out.println("original centre in real co-ordinates: "+centre_real_x+","+centre_real_y+","+centre_real_z);
 
-			double x_from_centre_in_plane = startValues[0] - (side / 2.0);
-			double y_from_centre_in_plane = startValues[1] - (side / 2.0);
+					// FIXME: I really think these should be +=, but it seems clear from the results that I've got a sign wrong somewhere :(
 
-			moved[i] = scaleInNormalPlane * Math.sqrt( x_from_centre_in_plane * x_from_centre_in_plane +
-								   y_from_centre_in_plane * y_from_centre_in_plane );
+					centre_real_x -= x_basis_in_plane[0] * x_from_centre_in_plane + y_basis_in_plane[0] * y_from_centre_in_plane;
+					centre_real_y -= x_basis_in_plane[1] * x_from_centre_in_plane + y_basis_in_plane[1] * y_from_centre_in_plane;
+					centre_real_z -= x_basis_in_plane[2] * x_from_centre_in_plane + y_basis_in_plane[2] * y_from_centre_in_plane;
 
-			if( verbose )
-				System.out.println("vector to new centre from original: "+x_from_centre_in_plane+","+y_from_centre_in_plane);
+					if( verbose )
+						System.out.println("adjusted original centre in real co-ordinates: "+centre_real_x+","+centre_real_y+","+centre_real_z);
 
-			double centre_real_x = x_world;
-			double centre_real_y = y_world;
-			double centre_real_z = z_world;
+					optimized_x[i] = centre_real_x;
+					optimized_y[i] = centre_real_y;
+					optimized_z[i] = centre_real_z;
 
-			if( verbose )
-				System.out.println("original centre in real co-ordinates: "+centre_real_x+","+centre_real_y+","+centre_real_z);
+					int x_in_image = (int)Math.round( centre_real_x / x_spacing );
+					int y_in_image = (int)Math.round( centre_real_y / y_spacing );
+					int z_in_image = (int)Math.round( centre_real_z / z_spacing );
 
-			// FIXME: I really think these should be +=, but it seems clear from the results that I've got a sign wrong somewhere :(
+					if( verbose )
+						System.out.println("gives in image co-ordinates: "+x_in_image+","+y_in_image+","+z_in_image);
 
-			centre_real_x -= x_basis_in_plane[0] * x_from_centre_in_plane + y_basis_in_plane[0] * y_from_centre_in_plane;
-			centre_real_y -= x_basis_in_plane[1] * x_from_centre_in_plane + y_basis_in_plane[1] * y_from_centre_in_plane;
-			centre_real_z -= x_basis_in_plane[2] * x_from_centre_in_plane + y_basis_in_plane[2] * y_from_centre_in_plane;
+					if( x_in_image < 0 ) x_in_image = 0; if( x_in_image >= width) x_in_image = width - 1;
+					if( y_in_image < 0 ) y_in_image = 0; if( y_in_image >= height) y_in_image = height - 1;
+					if( z_in_image < 0 ) z_in_image = 0; if( z_in_image >= depth) z_in_image = depth - 1;
 
-			if( verbose )
-				System.out.println("adjusted original centre in real co-ordinates: "+centre_real_x+","+centre_real_y+","+centre_real_z);
+					if( verbose )
+						System.out.println("addingPoint: "+x_in_image+","+y_in_image+","+z_in_image);
 
-			optimized_x[i] = centre_real_x;
-			optimized_y[i] = centre_real_y;
-			optimized_z[i] = centre_real_z;
+					xs_in_image[i] = x_in_image;
+					ys_in_image[i] = y_in_image;
+					zs_in_image[i] = z_in_image;
 
-			int x_in_image = (int)Math.round( centre_real_x / x_spacing );
-			int y_in_image = (int)Math.round( centre_real_y / y_spacing );
-			int z_in_image = (int)Math.round( centre_real_z / z_spacing );
-
-			if( verbose )
-				System.out.println("gives in image co-ordinates: "+x_in_image+","+y_in_image+","+z_in_image);
-
-			if( x_in_image < 0 ) x_in_image = 0; if( x_in_image >= width) x_in_image = width - 1;
-			if( y_in_image < 0 ) y_in_image = 0; if( y_in_image >= height) y_in_image = height - 1;
-			if( z_in_image < 0 ) z_in_image = 0; if( z_in_image >= depth) z_in_image = depth - 1;
+					IJ.showProgress( pointsDone.incrementAndGet() / (float)progressTotal );
+				}
+			}
+		};
 
-			if( verbose )
-				System.out.println("addingPoint: "+x_in_image+","+y_in_image+","+z_in_image);
+		Threads.run( fitPoints, Math.min( numberOfThreads, totalPoints ) );
 
-			xs_in_image[i] = x_in_image;
-			ys_in_image[i] = y_in_image;
-			zs_in_image[i] = z_in_image;
+		if( failures.get() > 0 )
+			return null;
 
+		if( display ) {
 			if( verbose )
-				System.out.println("Adding a real slice.");
-
-			ByteProcessor bp = new ByteProcessor( side, side );
-			bp.setPixels(normalPlane);
-			stack.addSlice(null,bp);
+				System.out.println("Adding the real slices.");
+			for( int i = 0; i < totalPoints; ++i ) {
+				ByteProcessor bp = new ByteProcessor( side, side );
+				bp.setPixels(normalPlanes[i]);
+				stack.addSlice(null,bp);
+			}
 		}
 
-		IJ.showProgress( 1.0 );
-
 		/* Now at each point along the path we calculate the
 		   mode of the radiuses in the nearby region: */
 
@@ -1806,6 +1904,7 @@ public class Path implements Comparable {
 		this.precise_x_positions = optimized_x.clone();
 		this.precise_y_positions = optimized_y.clone();
 		this.precise_z_positions = optimized_z.clone();
+		++ pointsModified;
 	}
 
 	@Override
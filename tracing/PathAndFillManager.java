@@ -33,6 +33,9 @@ import java.util.HashSet;
 import java.util.TreeSet;
 import java.util.PriorityQueue;
 import java.util.LinkedList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 
 import java.io.*;
 
@@ -55,6 +58,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.awt.Color;
 
@@ -64,6 +68,7 @@ import ij3d.Content;
 import ij3d.UniverseListener;
 
 import util.CMTK_Transformation;
+import util.Threads;
 
 class TracesFileFormatException extends SAXException {
 	public TracesFileFormatException(String message) {
@@ -233,6 +238,84 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		return selectedPathsSet.size() > 0;
 	}
 
+	/* Fit circles along each of the currently selected paths
+	   that doesn't already have a fitted version, adding the
+	   results as new paths.  Returns the number of paths that
+	   were successfully fitted. */
+
+	public int fitSelectedPaths( int side, ImagePlus image, boolean display ) {
+		ArrayList< Path > selectedPaths;
+		synchronized( this ) {
+			selectedPaths = new ArrayList< Path >( selectedPathsSet );
+		}
+		return fitPaths( selectedPaths, side, image, display );
+	}
+
+	/* The slice pixel arrays are fetched once and shared between
+	   all the paths.  Whole paths are shared out between one
+	   thread per processor, with any spare processors used to
+	   split up the points of each path; the longest paths are
+	   started first so that one isn't left running on its own at
+	   the end.  (If the normal planes are to be displayed, the
+	   paths are fitted one at a time instead, since each of them
+	   opens a window.)  The fitted paths are only added once they
+	   have all been found. */
+
+	public int fitPaths( Collection< Path > paths, final int side, ImagePlus image, final boolean display ) {
+
+		final ArrayList< Path > toFit = new ArrayList< Path >();
+		for( Path p : paths )
+			if( p.fitted == null && p.size() > 0 )
+				toFit.add( p );
+		Collections.sort( toFit, new Comparator< Path >() {
+			public int compare( Path a, Path b ) {
+				return b.size() - a.size();
+			}
+		} );
+
+		final byte [][] v = Path.slicePixels( image );
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+
+		int totalPoints = 0;
+		for( Path p : toFit )
+			totalPoints += p.size();
+		final int progressTotal = totalPoints;
+		final AtomicInteger pointsDone = new AtomicInteger( 0 );
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		int pathThreads = display ? 1 : Math.min( processors, toFit.size() );
+		final int threadsPerPath = Math.max( 1, processors / Math.max( 1, pathThreads ) );
+
+		final Path [] results = new Path[toFit.size()];
+		final AtomicInteger nextPath = new AtomicInteger( 0 );
+		Runnable fitEach = new Runnable() {
+			public void run() {
+				for( int i = nextPath.getAndIncrement(); i < results.length; i = nextPath.getAndIncrement() )
+					results[i] = toFit.get( i ).fitCircles( side, v, width, height, display, plugin,
+										threadsPerPath, pointsDone, progressTotal );
+			}
+		};
+
+		try {
+			Threads.run( fitEach, pathThreads );
+		} finally {
+			IJ.showProgress( 1.0 );
+		}
+
+		int fittedPaths = 0;
+		for( int i = 0; i < results.length; ++i ) {
+			if( results[i] == null )
+				continue;
+			Path p = toFit.get( i );
+			p.setFitted( results[i] );
+			p.setUseFitted( true, plugin );
+			addPath( results[i] );
+			++ fittedPaths;
+		}
+		return fittedPaths;
+	}
+
 	/* This method returns an array of the "primary paths", which
 	   should be displayed at the top of a tree-like hierarchy.
 
@@ -429,6 +512,8 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 			p.addTo3DViewer( plugin.univ, plugin.deselectedColor3f );
 		}
 		allPaths.add(p);
+		if( pathPointIndex != null )
+			pathPointIndex.addPath( p );
 		resetListeners( p );
 	}
 
@@ -479,6 +564,11 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		allPaths.remove(unfittedPathToDelete);
 		if( fittedPathToDelete != null )
 			allPaths.remove(fittedPathToDelete);
+		if( pathPointIndex != null ) {
+			pathPointIndex.removePath( unfittedPathToDelete );
+			if( fittedPathToDelete != null )
+				pathPointIndex.removePath( fittedPathToDelete );
+		}
 
 		// We don't just delete; have to fix up the references
 		// in other paths (for start and end joins):
@@ -1195,6 +1285,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		if( qName.equals("path") ) {
 
 			allPaths.add( current_path );
+			pathPointIndex = null;
 
 		} else if( qName.equals("fill") ) {
 
@@ -1364,6 +1455,7 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		}
 		allPaths.clear();
 		allFills.clear();
+		pathPointIndex = null;
 		resetListeners( null );
 	}
 
@@ -1825,41 +1917,36 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 		return sb.toString();
 	}
 
-	public NearPoint nearestPointOnAnyPath( double x, double y, double z, double distanceLimit ) {
-
-		/* Order all points in all paths by their euclidean
-		   distance to (x,y,z): */
-
-		PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
-
-		for( Iterator< Path > i = allPaths.iterator();
-		     i.hasNext(); ) {
-			Path path = i.next();
-			if( ! path.versionInUse() )
-				continue;
-			for( int j = 0; j < path.size(); ++j ) {
-				pq.add( new NearPoint( x, y, z, path, j ) );
-			}
-		}
-
-		while( true ) {
-
-			NearPoint np = pq.poll();
-			if( np == null )
-				return null;
+	/* The spatial index used for nearestPointOnAnyPath; it's
+	   created the first time it's needed and after that kept up
+	   to date by addPath and deletePath.  Paths whose points
+	   were changed through Path's methods (fitting, extending,
+	   ...) since they were indexed are indexed again each time
+	   it's used.  (Loading or clearing the paths just discards
+	   it.) */
+
+	PathPointIndex pathPointIndex;
+
+	synchronized PathPointIndex getPathPointIndex( ) {
+		if( pathPointIndex == null )
+			pathPointIndex = PathPointIndex.forPaths( allPaths );
+		pathPointIndex.update( allPaths );
+		return pathPointIndex;
+	}
 
-			/* Don't bother looking at points that are
-			   more than distanceLimit away.  Since we get
-			   them in the order closest to furthest away,
-			   if we exceed this limit returned: */
+	/* Anything that changes the point arrays of a path directly,
+	   after it has been added, should call this, so that the
+	   path is indexed again: */
 
-			if( np.distanceToPathPointSquared() > (distanceLimit * distanceLimit) )
-				return null;
+	public synchronized void pathModified( Path p ) {
+		if( pathPointIndex == null || getPathIndex( p ) < 0 )
+			return;
+		pathPointIndex.removePath( p );
+		pathPointIndex.addPath( p );
+	}
 
-			double distanceToPath = np.distanceToPathNearPoint();
-			if( distanceToPath >= 0 )
-				return np;
-		}
+	public NearPoint nearestPointOnAnyPath( double x, double y, double z, double distanceLimit ) {
+		return getPathPointIndex().nearestPoint( x, y, z, distanceLimit );
 	}
 
 	public AllPointsIterator allPointsIterator() {
@@ -1941,21 +2028,29 @@ public class PathAndFillManager extends DefaultHandler implements UniverseListen
 	   corresponding point on the other one.  If there's no
 	   corresponding one, include a null instead. */
 
-	public ArrayList< NearPoint > getCorrespondences( PathAndFillManager other, double maxDistance ) {
-
-		ArrayList< NearPoint > result = new ArrayList< NearPoint >();
+	public ArrayList< NearPoint > getCorrespondences( PathAndFillManager other, final double maxDistance ) {
 
+		final ArrayList< PointInImage > points = new ArrayList< PointInImage >();
 		AllPointsIterator i = allPointsIterator();
-		int numberFromIterator = 0;
-		while( i.hasNext() ) {
-			PointInImage p = i.next();
-			NearPoint np = other.nearestPointOnAnyPath(
-				p.x,
-				p.y,
-				p.z,
-				maxDistance );
-			result.add(np);
-		}
+		while( i.hasNext() )
+			points.add( i.next() );
+
+		final PathPointIndex index = other.getPathPointIndex();
+		final NearPoint [] nearPoints = new NearPoint[points.size()];
+
+		/* The lookups are independent, so share them out
+		   between one thread per processor: */
+
+		Threads.forEachIndex( nearPoints.length, Runtime.getRuntime().availableProcessors(), new Threads.Task() {
+			public void run( int j ) {
+				PointInImage p = points.get( j );
+				nearPoints[j] = index.nearestPoint( p.x, p.y, p.z, maxDistance );
+			}
+		} );
+
+		ArrayList< NearPoint > result = new ArrayList< NearPoint >( nearPoints.length );
+		for( int j = 0; j < nearPoints.length; ++j )
+			result.add( nearPoints[j] );
 		return result;
 	}
 
@@ -0,0 +1,291 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/* A uniform grid over the points of a set of paths, so that
+   nearestPoint can look at the path points in order of increasing
+   distance from the query point (as the old implementation of
+   PathAndFillManager.nearestPointOnAnyPath did by putting every
+   point in a PriorityQueue) while only ever looking at the grid
+   cells around it.
+
+   Paths are indexed with addPath and dropped with removePath (a
+   path whose points change has to be removed and added again);
+   update() indexes a whole list of paths at once, and indexes
+   again those whose points were changed through Path's methods
+   since they were added.  Changing the grid takes the write lock,
+   and nearestPoint the read lock, so several threads can look up
+   points at once, but never in a grid that is being changed. */
+
+public class PathPointIndex {
+
+	static class Entry {
+		Path path;
+		int indexInPath;
+		Entry( Path path, int indexInPath ) {
+			this.path = path;
+			this.indexInPath = indexInPath;
+		}
+	}
+
+	static final int CELL_BITS = 21;
+	static final int CELL_OFFSET = 1 << (CELL_BITS - 1);
+
+	double cellSize;
+
+	HashMap< Long, ArrayList< Entry > > cells = new HashMap< Long, ArrayList< Entry > >();
+
+	/* The modification count of each path when it was indexed
+	   (see Path.pointsModified), and the cells its points went
+	   into: */
+	IdentityHashMap< Path, Integer > indexedVersions = new IdentityHashMap< Path, Integer >();
+	IdentityHashMap< Path, long [] > cellsOfPath = new IdentityHashMap< Path, long [] >();
+
+	/* The bounding box of all the cells that have ever had
+	   points added: */
+	int minCX = Integer.MAX_VALUE, minCY = Integer.MAX_VALUE, minCZ = Integer.MAX_VALUE;
+	int maxCX = Integer.MIN_VALUE, maxCY = Integer.MIN_VALUE, maxCZ = Integer.MIN_VALUE;
+
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	public PathPointIndex( double cellSize ) {
+		this.cellSize = cellSize;
+	}
+
+	/* Pick a cell size so that each cell has a few points from
+	   each path that goes through it: */
+
+	public static PathPointIndex forPaths( List< Path > paths ) {
+		double totalLength = 0;
+		int segments = 0;
+		for( Iterator< Path > i = paths.iterator(); i.hasNext(); ) {
+			Path p = i.next();
+			for( int j = 1; j < p.size(); ++j ) {
+				double xd = p.precise_x_positions[j] - p.precise_x_positions[j-1];
+				double yd = p.precise_y_positions[j] - p.precise_y_positions[j-1];
+				double zd = p.precise_z_positions[j] - p.precise_z_positions[j-1];
+				totalLength += Math.sqrt( xd * xd + yd * yd + zd * zd );
+				++ segments;
+			}
+		}
+		double cellSize = 1;
+		if( segments > 0 && totalLength > 0 )
+			cellSize = 4 * totalLength / segments;
+		return new PathPointIndex( cellSize );
+	}
+
+	int cellCoordinate( double v ) {
+		return (int)Math.floor( v / cellSize );
+	}
+
+	static long cellKey( int cx, int cy, int cz ) {
+		return ( ((long)(cx + CELL_OFFSET)) << (2 * CELL_BITS) ) |
+			( ((long)(cy + CELL_OFFSET)) << CELL_BITS ) |
+			(cz + CELL_OFFSET);
+	}
+
+	public void addPath( Path p ) {
+		lock.writeLock().lock();
+		try {
+			addPathLocked( p );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void addPathLocked( Path p ) {
+		int n = p.size();
+		long [] keys = new long[n];
+		for( int j = 0; j < n; ++j ) {
+			int cx = cellCoordinate( p.precise_x_positions[j] );
+			int cy = cellCoordinate( p.precise_y_positions[j] );
+			int cz = cellCoordinate( p.precise_z_positions[j] );
+			minCX = Math.min( minCX, cx ); maxCX = Math.max( maxCX, cx );
+			minCY = Math.min( minCY, cy ); maxCY = Math.max( maxCY, cy );
+			minCZ = Math.min( minCZ, cz ); maxCZ = Math.max( maxCZ, cz );
+			Long key = new Long( cellKey( cx, cy, cz ) );
+			ArrayList< Entry > cell = cells.get( key );
+			if( cell == null ) {
+				cell = new ArrayList< Entry >();
+				cells.put( key, cell );
+			}
+			cell.add( new Entry( p, j ) );
+			keys[j] = key.longValue();
+		}
+		indexedVersions.put( p, new Integer( p.pointsModified ) );
+		cellsOfPath.put( p, keys );
+	}
+
+	public void removePath( Path p ) {
+		lock.writeLock().lock();
+		try {
+			removePathLocked( p );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void removePathLocked( Path p ) {
+		long [] keys = cellsOfPath.remove( p );
+		indexedVersions.remove( p );
+		if( keys == null )
+			return;
+		for( int j = 0; j < keys.length; ++j ) {
+			Long key = new Long( keys[j] );
+			ArrayList< Entry > cell = cells.get( key );
+			if( cell == null )
+				continue;
+			for( Iterator< Entry > i = cell.iterator(); i.hasNext(); )
+				if( i.next().path == p )
+					i.remove();
+			if( cell.isEmpty() )
+				cells.remove( key );
+		}
+	}
+
+	/* Make the index match this list of paths: */
+
+	public void update( List< Path > paths ) {
+		lock.writeLock().lock();
+		try {
+			updateLocked( paths );
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	void updateLocked( List< Path > paths ) {
+		IdentityHashMap< Path, Path > current = new IdentityHashMap< Path, Path >();
+		for( Iterator< Path > i = paths.iterator(); i.hasNext(); ) {
+			Path p = i.next();
+			current.put( p, p );
+		}
+		ArrayList< Path > toRemove = new ArrayList< Path >();
+		for( Iterator< Path > i = indexedVersions.keySet().iterator(); i.hasNext(); ) {
+			Path p = i.next();
+			if( ! current.containsKey( p ) )
+				toRemove.add( p );
+		}
+		for( Iterator< Path > i = toRemove.iterator(); i.hasNext(); )
+			removePathLocked( i.next() );
+		for( Iterator< Path > i = paths.iterator(); i.hasNext(); ) {
+			Path p = i.next();
+			Integer indexedVersion = indexedVersions.get( p );
+			if( indexedVersion != null && indexedVersion.intValue() == p.pointsModified )
+				continue;
+			if( indexedVersion != null )
+				removePathLocked( p );
+			addPathLocked( p );
+		}
+	}
+
+	/* Adds the points in use from cells at a Chebyshev distance
+	   of exactly r (in cells) from (qx,qy,qz): */
+
+	void addRing( int qx, int qy, int qz, int r, double x, double y, double z, PriorityQueue< NearPoint > pq ) {
+		for( int cz = Math.max( qz - r, minCZ ); cz <= Math.min( qz + r, maxCZ ); ++cz )
+			for( int cy = Math.max( qy - r, minCY ); cy <= Math.min( qy + r, maxCY ); ++cy ) {
+				boolean onFace = Math.abs( cz - qz ) == r || Math.abs( cy - qy ) == r;
+				int step = onFace ? 1 : 2 * r;
+				for( int cx = qx - r; cx <= qx + r; cx += step ) {
+					if( cx < minCX || cx > maxCX )
+						continue;
+					ArrayList< Entry > cell = cells.get( new Long( cellKey( cx, cy, cz ) ) );
+					if( cell == null )
+						continue;
+					for( int i = 0; i < cell.size(); ++i ) {
+						Entry e = cell.get( i );
+						if( e.path.versionInUse() )
+							pq.add( new NearPoint( x, y, z, e.path, e.indexInPath ) );
+					}
+				}
+			}
+	}
+
+	/* This has the same semantics as
+	   PathAndFillManager.nearestPointOnAnyPath: the path points
+	   are considered in order of distance from (x,y,z), and the
+	   first one for which NearPoint.distanceToPathNearPoint finds
+	   a corresponding point on the path is returned.  Returns
+	   null if there is no such point within distanceLimit. */
+
+	public NearPoint nearestPoint( double x, double y, double z, double distanceLimit ) {
+		lock.readLock().lock();
+		try {
+			return nearestPointLocked( x, y, z, distanceLimit );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	NearPoint nearestPointLocked( double x, double y, double z, double distanceLimit ) {
+
+		if( cells.isEmpty() )
+			return null;
+
+		double limitSquared = distanceLimit * distanceLimit;
+
+		int qx = cellCoordinate( x );
+		int qy = cellCoordinate( y );
+		int qz = cellCoordinate( z );
+
+		/* Once the rings reach this far, every cell with points
+		   in has been looked at: */
+		int maxRing = Math.max( Math.max( Math.max( qx - minCX, maxCX - qx ),
+						  Math.max( qy - minCY, maxCY - qy ) ),
+					Math.max( qz - minCZ, maxCZ - qz ) );
+
+		PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
+
+		for( int r = 0; ; ++r ) {
+
+			addRing( qx, qy, qz, r, x, y, z, pq );
+
+			/* Any point that we haven't added yet is at
+			   least this far away: */
+			double safe = r * cellSize;
+			boolean exhausted = r >= maxRing;
+
+			while( ! pq.isEmpty() &&
+			       (exhausted || pq.peek().distanceToPathPointSquared() < safe * safe) ) {
+
+				NearPoint np = pq.poll();
+				if( np.distanceToPathPointSquared() > limitSquared )
+					return null;
+
+				if( np.distanceToPathNearPoint() >= 0 )
+					return np;
+			}
+
+			if( exhausted || safe > distanceLimit )
+				return null;
+		}
+	}
+}
@@ -46,6 +46,7 @@ import java.awt.event.ActionEvent;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.ArrayList;
 
 public class PathWindow extends JFrame implements PathAndFillListener, TreeSelectionListener, ActionListener {
 
@@ -126,6 +127,7 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 				return;
 			}
 			boolean allAlreadyFitted = allUsingFittedVersion( selectedPaths );
+			ArrayList<Path> pathsToFit = new ArrayList<Path>();
 			for( Path p : selectedPaths ) {
 				if( allAlreadyFitted ) {
 					p.setUseFitted(false, plugin);
@@ -135,18 +137,16 @@ public class PathWindow extends JFrame implements PathAndFillListener, TreeSelec
 					}
 					if( p.fitted == null ) {
 						// There's not already a fitted version:
-						Path fitted = p.fitCircles( 40, plugin.getImagePlus(), (e.getModifiers() & ActionEvent.SHIFT_MASK) > 0, plugin );
-						if( fitted == null )
-							continue;
-						p.setFitted(fitted);
-						p.setUseFitted(true, plugin);
-						pathAndFillManager.addPath( fitted );
+						pathsToFit.add( p );
 					} else {
 						// Just use the existing fitted version:
 						p.setUseFitted(true, plugin);
 					}
 				}
 			}
+			// Fit all the new ones together:
+			if( pathsToFit.size() > 0 )
+				pathAndFillManager.fitPaths( pathsToFit, 40, plugin.getImagePlus(), (e.getModifiers() & ActionEvent.SHIFT_MASK) > 0 );
 			pathAndFillManager.resetListeners(null);
 		} else if( source == renameButton ) {
 			if( selectedPaths.size() != 1 ) {
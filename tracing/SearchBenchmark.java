@@ -0,0 +1,117 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+/* A simple benchmark for the search threads: this generates
+   volumes with a bright tube winding through noise, and times
+   tracing from one end of the tube to the other with the
+   SearchNode-based and the compact search storage.  Run it with:
+
+     java -cp ... tracing.SearchBenchmark [width height depth]
+*/
+
+public class SearchBenchmark {
+
+	/* The tube follows a helix around the z axis while moving
+	   along x, so the search has to follow it in all three
+	   dimensions. */
+
+	public static ImagePlus makeTubeVolume( int width, int height, int depth, double radius, long seed ) {
+		Random random = new Random( seed );
+		ImageStack stack = new ImageStack( width, height );
+		double turns = 3;
+		double amplitudeY = height / 4.0;
+		double amplitudeZ = depth / 4.0;
+		for( int z = 0; z < depth; ++z ) {
+			byte [] pixels = new byte[width*height];
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					double t = x / (double)width;
+					double cy = height / 2.0 + amplitudeY * Math.sin( 2 * Math.PI * turns * t );
+					double cz = depth / 2.0 + amplitudeZ * Math.cos( 2 * Math.PI * turns * t );
+					double dy = y - cy, dz = z - cz;
+					double d = Math.sqrt( dy * dy + dz * dz );
+					int value = 5 + random.nextInt( 40 );
+					if( d < radius )
+						value += (int)( 180 * (1 - d / radius) );
+					pixels[y*width+x] = (byte)Math.min( value, 255 );
+				}
+			stack.addSlice( null, new ByteProcessor( width, height, pixels, null ) );
+		}
+		return new ImagePlus( "tube", stack );
+	}
+
+	static int tubeY( int x, int width, int height ) {
+		return (int)Math.round( height / 2.0 + height / 4.0 * Math.sin( 2 * Math.PI * 3 * x / (double)width ) );
+	}
+
+	static int tubeZ( int x, int width, int depth ) {
+		return (int)Math.round( depth / 2.0 + depth / 4.0 * Math.cos( 2 * Math.PI * 3 * x / (double)width ) );
+	}
+
+	static void time( ImagePlus image, boolean compact ) {
+		int width = image.getWidth(), height = image.getHeight(), depth = image.getStackSize();
+		int startX = 2, endX = width - 3;
+		TracerThread tracer = new TracerThread( image, 0, 255,
+							-1, // timeoutSeconds
+							1000, // reportEveryMilliseconds
+							startX, tubeY( startX, width, height ), tubeZ( startX, width, depth ),
+							endX, tubeY( endX, width, height ), tubeZ( endX, width, depth ),
+							true, // reciprocal
+							depth == 1, // singleSlice
+							null, // hessian
+							1, // multiplier
+							null, // tubeness
+							false ); // useHessian
+		tracer.setCompactStorage( compact );
+		System.gc();
+		long started = System.currentTimeMillis();
+		tracer.run();
+		long took = System.currentTimeMillis() - started;
+		Path result = tracer.getResult();
+		System.out.println( "  " + (compact ? "compact storage:    " : "SearchNode storage: ") +
+				    took + "ms, " +
+				    tracer.pointsConsideredInSearch() + " points explored, " +
+				    ((result == null) ? "no path found" : ("path of " + result.size() + " points")) );
+	}
+
+	public static void main( String [] args ) {
+		int [][] sizes;
+		if( args.length == 3 )
+			sizes = new int[][] { { Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]) } };
+		else
+			sizes = new int[][] { { 64, 64, 16 }, { 128, 128, 32 }, { 192, 192, 48 } };
+		for( int i = 0; i < sizes.length; ++i ) {
+			int width = sizes[i][0], height = sizes[i][1], depth = sizes[i][2];
+			System.out.println( "Tube volume of " + width + "x" + height + "x" + depth + ":" );
+			ImagePlus image = makeTubeVolume( width, height, depth, 3, 1 );
+			time( image, false );
+			time( image, true );
+		}
+	}
+}
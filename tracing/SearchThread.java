@@ -93,15 +93,26 @@ public abstract class SearchThread extends Thread {
 	protected void reportPointsInSearch( ) {
 		for (Iterator<SearchProgressCallback> j = progressListeners.iterator(); j.hasNext();) {
 			SearchProgressCallback progress = j.next();
-			progress.pointsInSearch(this, open_from_start.size() + (bidirectional ? open_from_goal.size() : 0), closed_from_start.size() + (bidirectional ? closed_from_goal.size() : 0));
+			progress.pointsInSearch(this, pointsInOpen(), pointsInClosed());
 		}
 	}
 
+	int pointsInOpen( ) {
+		if( compactStorage )
+			return compact_from_start.openCount() +
+				(bidirectional ? compact_from_goal.openCount() : 0);
+		return open_from_start.size() + (bidirectional ? open_from_goal.size() : 0);
+	}
+
+	int pointsInClosed( ) {
+		if( compactStorage )
+			return compact_from_start.closedCount() +
+				(bidirectional ? compact_from_goal.closedCount() : 0);
+		return closed_from_start_count + (bidirectional ? closed_from_goal_count : 0);
+	}
+
 	public int pointsConsideredInSearch( ) {
-		return open_from_start.size() +
-			(bidirectional ? open_from_goal.size() : 0) +
-			closed_from_start.size() +
-			(bidirectional ? closed_from_goal.size() : 0);
+		return pointsInOpen() + pointsInClosed();
 	}
 
 	/* This is a factory method for creating specialized search
@@ -166,6 +177,21 @@ public abstract class SearchThread extends Thread {
 	int height;
 	int depth;
 
+	/* The search never leaves this box (inclusive, in voxels);
+	   by default it is the whole image. */
+
+	int regionMinX, regionMinY, regionMinZ;
+	int regionMaxX, regionMaxY, regionMaxZ;
+
+	public void setRegion( int minX, int minY, int minZ, int maxX, int maxY, int maxZ ) {
+		regionMinX = Math.max( 0, minX );
+		regionMinY = Math.max( 0, minY );
+		regionMinZ = Math.max( 0, minZ );
+		regionMaxX = Math.min( width - 1, maxX );
+		regionMaxY = Math.min( height - 1, maxY );
+		regionMaxZ = Math.min( depth - 1, maxZ );
+	}
+
 	/* The search may only be bidirectional if definedGoal is true */
 
 	boolean bidirectional;
@@ -225,7 +251,8 @@ public abstract class SearchThread extends Thread {
 	}
 
 	/** Override this method if you want to find out when a point
-	 * was first discovered:
+	 * was first discovered (and set reportAddingNode, so that it is
+	 * also called with compact storage):
 	 */
 	protected void addingNode( SearchNode n ) { }
 
@@ -300,6 +327,8 @@ public abstract class SearchThread extends Thread {
 		height = imagePlus.getHeight();
 		depth = imagePlus.getStackSize();
 
+		setRegion( 0, 0, 0, width - 1, height - 1, depth - 1 );
+
 		{
 			ImageStack s = imagePlus.getStack();
 			switch(imageType) {
@@ -342,10 +371,8 @@ public abstract class SearchThread extends Thread {
 		this.timeoutSeconds = timeoutSeconds;
 		this.reportEveryMilliseconds = reportEveryMilliseconds;
 
-		closed_from_start = new PriorityQueue<SearchNode>();
 		open_from_start = new PriorityQueue<SearchNode>();
 		if( bidirectional ) {
-			closed_from_goal = new PriorityQueue<SearchNode>();
 			open_from_goal = new PriorityQueue<SearchNode>();
 		}
 
@@ -358,26 +385,198 @@ public abstract class SearchThread extends Thread {
 		progressListeners = new ArrayList< SearchProgressCallback >();
 	}
 
-	PriorityQueue<SearchNode> closed_from_start;
 	PriorityQueue<SearchNode> open_from_start;
 
-	// The next two are null if the search is not bidirectional
-	PriorityQueue<SearchNode> closed_from_goal;
+	// This is null if the search is not bidirectional
 	PriorityQueue<SearchNode> open_from_goal;
 
+	/* Nothing ever needs to take nodes from the closed lists in
+	   order, so we don't keep them in a queue: whether a node is
+	   closed is just its searchStatus in the nodes_as_image arrays
+	   below, and these are the number of closed nodes: */
+
+	int closed_from_start_count;
+	int closed_from_goal_count;
+
 	SearchNode [][] nodes_as_image_from_start;
 	SearchNode [][] nodes_as_image_from_goal;
 
+	/* Add every node in nodes_as_image that has the given status
+	   to the list. */
+
+	void collectNodes( SearchNode [][] nodes_as_image, byte searchStatus, List<SearchNode> result ) {
+		if( nodes_as_image == null )
+			return;
+		for( int z = 0; z < depth; ++z ) {
+			SearchNode [] slice = nodes_as_image[z];
+			if( slice == null )
+				continue;
+			for( int i = 0; i < slice.length; ++i ) {
+				SearchNode n = slice[i];
+				if( n != null && n.searchStatus == searchStatus )
+					result.add( n );
+			}
+		}
+	}
+
+	/* If compactStorage is true, the search keeps its state in
+	   CompactNodeStore and NodeHeap rather than in SearchNode
+	   objects, the PriorityQueues and the nodes_as_image arrays
+	   above.  The results are the same, but it uses a small
+	   fraction of the memory.  This has to be switched on with
+	   setCompactStorage before the thread is started. */
+
+	boolean compactStorage = false;
+
+	CompactNodeStore compact_from_start;
+	CompactNodeStore compact_from_goal;
+
+	NodeHeap open_heap_from_start;
+	NodeHeap open_heap_from_goal;
+
+	/* Subclasses that override addingNode (e.g. AutoSearchThread)
+	   have to set this to true in their constructor; runCompact
+	   only creates a SearchNode for each new point to pass to
+	   addingNode if it is set. */
+
+	protected boolean reportAddingNode = false;
+
+	/* Any nodes that have already been added (e.g. the start and
+	   goal points added by the TracerThread constructor) are
+	   moved into the compact representation. */
+
+	public void setCompactStorage( boolean compactStorage ) {
+		if( compactStorage == this.compactStorage )
+			return;
+		if( ! compactStorage )
+			throw new IllegalArgumentException( "Can't switch back from compact storage" );
+		compact_from_start = new CompactNodeStore( width, height, depth );
+		open_heap_from_start = new NodeHeap( compact_from_start );
+		if( bidirectional ) {
+			compact_from_goal = new CompactNodeStore( width, height, depth );
+			open_heap_from_goal = new NodeHeap( compact_from_goal );
+		}
+		this.compactStorage = true;
+		ArrayList<SearchNode> existing = new ArrayList<SearchNode>();
+		collectNodes( nodes_as_image_from_start, CLOSED_FROM_START, existing );
+		existing.addAll( open_from_start );
+		if( bidirectional ) {
+			collectNodes( nodes_as_image_from_goal, CLOSED_FROM_GOAL, existing );
+			existing.addAll( open_from_goal );
+		}
+		for( SearchNode n : existing ) {
+			boolean fromStart = n.searchStatus == OPEN_FROM_START || n.searchStatus == CLOSED_FROM_START;
+			addCompactNode( n, fromStart );
+		}
+		closed_from_start_count = 0;
+		open_from_start.clear();
+		nodes_as_image_from_start = new SearchNode[depth][];
+		if( bidirectional ) {
+			closed_from_goal_count = 0;
+			open_from_goal.clear();
+			nodes_as_image_from_goal = new SearchNode[depth][];
+		}
+	}
+
+	public boolean getCompactStorage( ) {
+		return compactStorage;
+	}
+
+	void addCompactNode( SearchNode n, boolean fromStart ) {
+		CompactNodeStore store = fromStart ? compact_from_start : compact_from_goal;
+		if( store.getStatus( n.x, n.y, n.z ) != 0 )
+			return;
+		byte predecessor = CompactNodeStore.NO_PREDECESSOR;
+		SearchNode p = n.getPredecessor();
+		if( p != null ) {
+			int xdiff = p.x - n.x, ydiff = p.y - n.y, zdiff = p.z - n.z;
+			if( Math.abs(xdiff) <= 1 && Math.abs(ydiff) <= 1 && Math.abs(zdiff) <= 1 )
+				predecessor = CompactNodeStore.direction( xdiff, ydiff, zdiff );
+		}
+		store.set( n.x, n.y, n.z, n.g, n.h, predecessor );
+		store.setStatus( n.x, n.y, n.z, n.searchStatus );
+		if( n.searchStatus == OPEN_FROM_START || n.searchStatus == OPEN_FROM_GOAL ) {
+			NodeHeap heap = fromStart ? open_heap_from_start : open_heap_from_goal;
+			heap.add( CompactNodeStore.key( n.x, n.y, n.z ), n.f );
+		}
+	}
+
 	public void printStatus() {
+		if( compactStorage ) {
+			System.out.println("... with " + compact_from_start.openCount() + " open nodes at the start" );
+			System.out.println(" ... and " + compact_from_start.closedCount() + " closed nodes at the start" );
+			if( bidirectional ) {
+				System.out.println("... with " + compact_from_goal.openCount() + " open nodes at the goal" );
+				System.out.println(" ... and " + compact_from_goal.closedCount() + " closed nodes at the goal" );
+			}
+			return;
+		}
 		System.out.println("... with " + open_from_start.size() + " open nodes at the start" );
-		System.out.println(" ... and " + closed_from_start.size() + " closed nodes at the start" );
+		System.out.println(" ... and " + closed_from_start_count + " closed nodes at the start" );
 		if( bidirectional ) {
 			System.out.println("... with " + open_from_goal.size() + " open nodes at the goal" );
-			System.out.println(" ... and " + closed_from_goal.size() + " closed nodes at the goal" );
+			System.out.println(" ... and " + closed_from_goal_count + " closed nodes at the goal" );
 		} else
 			System.out.println(" ... unidirectional search");
 	}
 
+	int loops_at_last_report;
+
+	/* This is called at the start of each iteration of the search
+	   loop to deal with pausing, stopping, timeouts and progress
+	   reports.  If it returns false then the search should finish
+	   immediately - the listeners have already been told. */
+
+	boolean continueSearching( long started_at, int loops ) {
+
+		if( threadStatus == STOPPING ) {
+			reportThreadStatus();
+			setExitReason(CANCELLED);
+			reportFinished(false);
+			return false;
+		} else if( threadStatus == PAUSED ) {
+			try {
+				reportThreadStatus();
+				Thread.sleep(4000);
+			} catch( InterruptedException e ) {
+			}
+		}
+
+		// We only check every thousandth loop for
+		// whether we should report the progress, etc.
+
+		if( 0 == (loops % 1000) ) {
+
+			long currentMilliseconds = System.currentTimeMillis();
+
+			long millisecondsSinceStart = currentMilliseconds - started_at;
+
+			if( (timeoutSeconds > 0) && (millisecondsSinceStart > (1000 * timeoutSeconds)) ) {
+				if (verbose) System.out.println("Timed out...");
+				setExitReason(TIMED_OUT);
+				reportFinished( false );
+				return false;
+			}
+
+			long since_last_report = currentMilliseconds - lastReportMilliseconds;
+
+			if( (reportEveryMilliseconds > 0) && (since_last_report > reportEveryMilliseconds ) ) {
+
+				int loops_since_last_report = loops - loops_at_last_report;
+				if (verbose) System.out.println( "milliseconds per loop: " +
+								 ( since_last_report / (double)loops_since_last_report ) );
+
+				if (verbose) printStatus();
+
+				reportPointsInSearch();
+
+				loops_at_last_report = loops;
+			}
+		}
+
+		return true;
+	}
+
 	@Override
 	public void run( ) {
 
@@ -394,9 +593,14 @@ public abstract class SearchThread extends Thread {
 
 			long started_at = lastReportMilliseconds = System.currentTimeMillis();
 
-			int loops_at_last_report = 0;
+			loops_at_last_report = 0;
 			int loops = 0;
 
+			if( compactStorage ) {
+				runCompact( started_at );
+				return;
+			}
+
 			/*
 			  We maintain the list of nodes in the search in a
 			  couple of different data structures here, which is
@@ -411,57 +615,14 @@ public abstract class SearchThread extends Thread {
 			while( (open_from_start.size() > 0) ||
 			       (bidirectional && (open_from_goal.size() > 0)) ) {
 
-				if( threadStatus == STOPPING ) {
-					reportThreadStatus();
-					setExitReason(CANCELLED);
-					reportFinished(false);
+				if( ! continueSearching( started_at, loops ) )
 					return;
-				} else if( threadStatus == PAUSED ) {
-					try {
-						reportThreadStatus();
-						Thread.sleep(4000);
-					} catch( InterruptedException e ) {
-					}
-				}
-
-				// We only check every thousandth loop for
-				// whether we should report the progress, etc.
-
-				if( 0 == (loops % 1000) ) {
-
-					long currentMilliseconds = System.currentTimeMillis();
-
-					long millisecondsSinceStart = currentMilliseconds - started_at;
-
-					if( (timeoutSeconds > 0) && (millisecondsSinceStart > (1000 * timeoutSeconds)) ) {
-						if (verbose) System.out.println("Timed out...");
-						setExitReason(TIMED_OUT);
-						reportFinished( false );
-						return;
-					}
-
-					long since_last_report = currentMilliseconds - lastReportMilliseconds;
-
-					if( (reportEveryMilliseconds > 0) && (since_last_report > reportEveryMilliseconds ) ) {
-
-						int loops_since_last_report = loops - loops_at_last_report;
-						if (verbose) System.out.println( "milliseconds per loop: " +
-										 ( since_last_report / (double)loops_since_last_report ) );
-
-						if (verbose) printStatus();
-
-						reportPointsInSearch();
-
-						loops_at_last_report = loops;
-					}
-				}
 
 				boolean fromStart = true;
 				if( bidirectional )
 					fromStart = open_from_goal.size() > open_from_start.size();
 
 				PriorityQueue<SearchNode> open_queue = fromStart ? open_from_start : open_from_goal;
-				PriorityQueue<SearchNode> closed_queue = fromStart ? closed_from_start : closed_from_goal;
 
 				SearchNode [][] nodes_as_image_this_search = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
 				SearchNode [][] nodes_as_image_other_search = fromStart ? nodes_as_image_from_goal : nodes_as_image_from_start;
@@ -489,7 +650,10 @@ public abstract class SearchThread extends Thread {
 				}
 
 				p.searchStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
-				closed_queue.add( p );
+				if( fromStart )
+					++ closed_from_start_count;
+				else
+					++ closed_from_goal_count;
 				nodes_as_image_this_search[p.z][p.y*width+p.x] = p;
 
 				// Now look at the neighbours of p.  We're going to consider
@@ -498,7 +662,7 @@ public abstract class SearchThread extends Thread {
 				for( int zdiff = -1; zdiff <= 1; zdiff++ ) {
 
 					int new_z = p.z + zdiff;
-					if( new_z < 0 || new_z >= depth )
+					if( new_z < regionMinZ || new_z > regionMaxZ )
 						continue;
 
 					if( nodes_as_image_this_search[new_z] == null ) {
@@ -514,10 +678,10 @@ public abstract class SearchThread extends Thread {
 							int new_x = p.x + xdiff;
 							int new_y = p.y + ydiff;
 
-							if( new_x < 0 || new_x >= width )
+							if( new_x < regionMinX || new_x > regionMaxX )
 								continue;
 
-							if( new_y < 0 || new_y >= height )
+							if( new_y < regionMinY || new_y > regionMaxY )
 								continue;
 
 							double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
@@ -566,7 +730,10 @@ public abstract class SearchThread extends Thread {
 
 									} else if( alreadyThereInThisSearch.searchStatus == (fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL) ) {
 
-										closed_queue.remove( alreadyThereInThisSearch );
+										if( fromStart )
+											-- closed_from_start_count;
+										else
+											-- closed_from_goal_count;
 										alreadyThereInThisSearch.setFrom( newNode );
 										alreadyThereInThisSearch.searchStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
 										open_queue.add( alreadyThereInThisSearch );
@@ -644,6 +811,159 @@ public abstract class SearchThread extends Thread {
 
 	}
 
+	/* This is the same search as in run(), but using
+	   CompactNodeStore and NodeHeap instead of SearchNode objects.
+	   Nodes come out of the heaps in exactly the same order as
+	   from the PriorityQueues, so the paths found are identical. */
+
+	void runCompact( long started_at ) {
+
+		int loops = 0;
+
+		while( (open_heap_from_start.size() > 0) ||
+		       (bidirectional && (open_heap_from_goal.size() > 0)) ) {
+
+			if( ! continueSearching( started_at, loops ) )
+				return;
+
+			boolean fromStart = true;
+			if( bidirectional )
+				fromStart = open_heap_from_goal.size() > open_heap_from_start.size();
+
+			NodeHeap open_heap = fromStart ? open_heap_from_start : open_heap_from_goal;
+			if( open_heap.size() == 0 ) {
+				// Then just carry on from the other end:
+				fromStart = ! fromStart;
+				open_heap = fromStart ? open_heap_from_start : open_heap_from_goal;
+			}
+
+			CompactNodeStore this_search = fromStart ? compact_from_start : compact_from_goal;
+			CompactNodeStore other_search = fromStart ? compact_from_goal : compact_from_start;
+
+			byte openStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
+			byte closedStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
+
+			long p = open_heap.poll();
+			int p_x = CompactNodeStore.keyX( p );
+			int p_y = CompactNodeStore.keyY( p );
+			int p_z = CompactNodeStore.keyZ( p );
+			float p_g = this_search.getG( p_x, p_y, p_z );
+
+			// Has the route from the start found the goal?
+			if( definedGoal && atGoal( p_x, p_y, p_z, fromStart ) ) {
+				if (verbose) System.out.println( "Found the goal!" );
+				if( fromStart )
+					foundGoal( this_search.asPath( p_x, p_y, p_z, x_spacing, y_spacing, z_spacing, spacing_units ) );
+				else
+					foundGoal( this_search.asPathReversed( p_x, p_y, p_z, x_spacing, y_spacing, z_spacing, spacing_units ) );
+				setExitReason(SUCCESS);
+				reportFinished( true );
+				return;
+			}
+
+			this_search.setStatus( p_x, p_y, p_z, closedStatus );
+
+			// Now look at the neighbours of p.  We're going to consider
+			// the 26 neighbours in 3D.
+
+			for( int zdiff = -1; zdiff <= 1; zdiff++ ) {
+
+				int new_z = p_z + zdiff;
+				if( new_z < regionMinZ || new_z > regionMaxZ )
+					continue;
+
+				for( int xdiff = -1; xdiff <= 1; xdiff++ )
+					for( int ydiff = -1; ydiff <= 1; ydiff++ ) {
+
+						if( (xdiff == 0) && (ydiff == 0) && (zdiff == 0) )
+							continue;
+
+						int new_x = p_x + xdiff;
+						int new_y = p_y + ydiff;
+
+						if( new_x < regionMinX || new_x > regionMaxX )
+							continue;
+
+						if( new_y < regionMinY || new_y > regionMaxY )
+							continue;
+
+						double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
+						double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
+						double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+
+						float h_for_new_point = estimateCostToGoal( new_x, new_y, new_z, fromStart );
+
+						double cost_moving_to_new_point = costMovingTo( new_x, new_y, new_z );
+						if( cost_moving_to_new_point < minimum_cost_per_unit_distance ) {
+							cost_moving_to_new_point = minimum_cost_per_unit_distance;
+						}
+
+						float g_for_new_point = (float) ( p_g + Math.sqrt( xdiffsq + ydiffsq + zdiffsq ) * cost_moving_to_new_point );
+
+						float f_for_new_point = h_for_new_point + g_for_new_point;
+
+						byte predecessor = CompactNodeStore.direction( -xdiff, -ydiff, -zdiff );
+
+						byte status = this_search.getStatus( new_x, new_y, new_z );
+
+						if( status == 0 ) {
+
+							this_search.set( new_x, new_y, new_z, g_for_new_point, h_for_new_point, predecessor );
+							this_search.setStatus( new_x, new_y, new_z, openStatus );
+							open_heap.add( CompactNodeStore.key( new_x, new_y, new_z ), f_for_new_point );
+							if( reportAddingNode )
+								addingNode( createNewNode( new_x, new_y, new_z,
+											   g_for_new_point, h_for_new_point,
+											   null, openStatus ) );
+
+						} else if( (status == openStatus || status == closedStatus) &&
+							   this_search.getG( new_x, new_y, new_z ) + this_search.getH( new_x, new_y, new_z ) > f_for_new_point ) {
+
+							// There's a better way of getting to a
+							// point that we'd already reached:
+
+							this_search.set( new_x, new_y, new_z, g_for_new_point, h_for_new_point, predecessor );
+							long key = CompactNodeStore.key( new_x, new_y, new_z );
+							if( status == openStatus ) {
+								open_heap.decreasePriority( key, f_for_new_point );
+							} else {
+								this_search.setStatus( new_x, new_y, new_z, openStatus );
+								open_heap.add( key, f_for_new_point );
+							}
+						}
+
+						if( bidirectional ) {
+
+							byte otherStatus = other_search.getStatus( new_x, new_y, new_z );
+
+							if( otherStatus == CLOSED_FROM_START || otherStatus == CLOSED_FROM_GOAL ) {
+
+								Path result = null;
+
+								if( fromStart ) {
+									result = this_search.asPath( p_x, p_y, p_z, x_spacing, y_spacing, z_spacing, spacing_units );
+									result.add( other_search.asPathReversed( new_x, new_y, new_z, x_spacing, y_spacing, z_spacing, spacing_units ) );
+								} else {
+									result = other_search.asPath( new_x, new_y, new_z, x_spacing, y_spacing, z_spacing, spacing_units );
+									result.add( this_search.asPathReversed( p_x, p_y, p_z, x_spacing, y_spacing, z_spacing, spacing_units ) );
+								}
+								if (verbose) System.out.println("Searches met!");
+								foundGoal( result );
+								setExitReason(SUCCESS);
+								reportFinished( true );
+								return;
+							}
+						}
+					}
+			}
+			++ loops;
+		}
+
+		if (verbose) System.out.println( "FAILED to find a route.  Shouldn't happen..." );
+		setExitReason(POINTS_EXHAUSTED);
+		reportFinished( false );
+	}
+
 	/* This is the heuristic value for the A* search.  There's no
 	 * defined goal in this default superclass implementation, so
 	 * always return 0 so we end up with Dijkstra's algorithm. */
@@ -697,6 +1017,27 @@ public abstract class SearchThread extends Thread {
 		return n;
 	}
 
+	/* Returns the status of the node at (x,y,z) if the search has
+	   reached it with a g no greater than threshold (or at all, if
+	   threshold is negative), or 0 otherwise.  This works with
+	   either kind of storage. */
+
+	byte statusUnderThreshold( int x, int y, int z, double threshold ) {
+		if( ! compactStorage ) {
+			SearchNode n = anyNodeUnderThreshold(x,y,z,threshold);
+			return (n == null) ? 0 : n.searchStatus;
+		}
+		byte status = compact_from_start.getStatus(x,y,z);
+		if( status != 0 && threshold >= 0 && compact_from_start.getG(x,y,z) > threshold )
+			status = 0;
+		if( status == 0 && compact_from_goal != null ) {
+			status = compact_from_goal.getStatus(x,y,z);
+			if( status != 0 && threshold >= 0 && compact_from_goal.getG(x,y,z) > threshold )
+				status = 0;
+		}
+		return status;
+	}
+
 	/* This draws over the Graphics object the current progress of
 	   the search at this slice.  If openColor or closedColor are
 	   null then that means "don't bother to draw that list". */
@@ -728,10 +1069,7 @@ public abstract class SearchThread extends Thread {
 				int z = currentSliceInPlane;
 				for( int y = 0; y < height; ++y )
 					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -739,10 +1077,7 @@ public abstract class SearchThread extends Thread {
 				int y = currentSliceInPlane;
 				for( int z = 0; z < depth; ++ z )
 					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(z) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -750,10 +1085,7 @@ public abstract class SearchThread extends Thread {
 				int x = currentSliceInPlane;
 				for( int y = 0; y < height; ++y )
 					for( int z = 0; z < depth; ++z ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
-							continue;
-						byte status = n.searchStatus;
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(z) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -765,6 +1097,11 @@ public abstract class SearchThread extends Thread {
 
 	public void addNode( SearchNode n, boolean fromStart ) {
 
+		if( compactStorage ) {
+			addCompactNode( n, fromStart );
+			return;
+		}
+
 		SearchNode [][] nodes_as_image = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
 
 		if( nodes_as_image[n.z] == null ) {
@@ -789,13 +1126,13 @@ public abstract class SearchThread extends Thread {
 
 		} else if( n.searchStatus == CLOSED_FROM_START ) {
 
-			closed_from_start.add( n );
+			++ closed_from_start_count;
 			nodes_as_image[n.z][n.y*width+n.x] = n;
 
 		} else if( n.searchStatus == CLOSED_FROM_GOAL ) {
 			assert( ! (bidirectional && definedGoal ) );
 
-			closed_from_goal.add( n );
+			++ closed_from_goal_count;
 			nodes_as_image[n.z][n.y*width+n.x] = n;
 
 		}
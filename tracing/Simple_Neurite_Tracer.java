@@ -679,6 +679,12 @@ public class Simple_Neurite_Tracer extends ThreePanes
 			tubeness,
 			hessianEnabled );
 
+		currentSearchThread.setCompactStorage( compactSearchStorage );
+
+		if( hessianEnabled && tubeness == null )
+			currentSearchThread.setTubenessCache(
+				getTubenessCache( resultsDialog.getMultiplier() ) );
+
 		addThreadToDraw( currentSearchThread );
 
 		currentSearchThread.setDrawingColors( Color.CYAN, null );
@@ -1383,6 +1389,8 @@ public class Simple_Neurite_Tracer extends ThreePanes
 
 		this.filler = filler;
 
+		filler.setCompactStorage( compactSearchStorage );
+
 		filler.addProgressListener(this);
 		filler.addProgressListener(resultsDialog.fw);
 
@@ -1398,6 +1406,12 @@ public class Simple_Neurite_Tracer extends ThreePanes
 	// (FIXME: check that that is true)
 	FillerThread filler = null;
 
+	/* If true, the tracer and filler threads keep their search
+	   state in primitive arrays (see CompactNodeStore) rather than
+	   one SearchNode object per voxel reached. */
+
+	boolean compactSearchStorage = true;
+
 	synchronized public void startFillingPaths( Set<Path> fromPaths ) {
 
 		// currentlyFilling = true;
@@ -1411,6 +1425,8 @@ public class Simple_Neurite_Tracer extends ThreePanes
 					   0.03f, // Initial threshold to display
 					   5000 ); // reportEveryMilliseconds
 
+		filler.setCompactStorage( compactSearchStorage );
+
 		addThreadToDraw(filler);
 
 		filler.addProgressListener( this );
@@ -1473,6 +1489,23 @@ public class Simple_Neurite_Tracer extends ThreePanes
 
 	float [][] tubeness;
 
+	/* Without a "tubeness" file, the costs calculated from the
+	   Hessian are kept in this cache between searches, so that
+	   retracing in the same part of the image is quick.  It's
+	   replaced if the sigma or the multiplier changes. */
+
+	TubenessCache tubenessCache;
+
+	synchronized TubenessCache getTubenessCache( double multiplier ) {
+		if( tubenessCache != null && ! tubenessCache.matches( hessian, multiplier, singleSlice ) ) {
+			tubenessCache.dispose();
+			tubenessCache = null;
+		}
+		if( tubenessCache == null )
+			tubenessCache = new TubenessCache( hessian, xy, multiplier, singleSlice, IJ.maxMemory() / 4 );
+		return tubenessCache;
+	}
+
 	public synchronized void enableHessian( boolean enable ) {
 		hessianEnabled = enable;
 		if( enable ) {
@@ -0,0 +1,128 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that the compact search storage finds exactly the same
+   paths as the SearchNode-based search. */
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import util.BatchOpener;
+
+import features.ComputeCurvatures;
+
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TestCompactStorage {
+
+	ImagePlus image;
+
+	double startX = 56.524; double startY = 43.258; double startZ = 18;
+	double endX = 0; double endY = 17.015; double endZ = 22.8;
+
+	@Before public void setUp() {
+		image = BatchOpener.openFirstChannel("test-images/c061AG-small-section.tif" );
+		assertNotNull("Couldn't open the 3D test image",image);
+	}
+
+	@After
+	public void tearDown() {
+		image.close();
+	}
+
+	TracerThread trace( ComputeCurvatures hessian, boolean compact ) {
+		Calibration calibration = image.getCalibration();
+		TracerThread tracer = new TracerThread(image,
+						       0,
+						       255,
+						       -1, // timeoutSeconds
+						       100, // reportEveryMilliseconds
+						       (int)( startX / calibration.pixelWidth ),
+						       (int)( startY / calibration.pixelHeight ),
+						       (int)( startZ / calibration.pixelDepth ),
+						       (int)( endX / calibration.pixelWidth ),
+						       (int)( endY / calibration.pixelHeight ),
+						       (int)( endZ / calibration.pixelDepth ),
+						       true, // reciprocal
+						       false, // singleSlice
+						       hessian,
+						       19.69, // multiplier
+						       null,
+						       hessian != null);
+		tracer.setCompactStorage( compact );
+		tracer.run();
+		return tracer;
+	}
+
+	void assertSamePaths( Path expected, Path actual ) {
+		assertNotNull("No path found",expected);
+		assertNotNull("No path found with compact storage",actual);
+		assertEquals( expected.size(), actual.size() );
+		double [] e = new double[3];
+		double [] a = new double[3];
+		for( int i = 0; i < expected.size(); ++i ) {
+			expected.getPointDouble( i, e );
+			actual.getPointDouble( i, a );
+			for( int j = 0; j < 3; ++j )
+				assertEquals( e[j], a[j], 0 );
+		}
+	}
+
+	@Test
+	public void testSamePathsFound() {
+
+		ComputeCurvatures hessian = new ComputeCurvatures(image, 0.721, null, true);
+		hessian.run();
+
+		TracerThread normal = trace( hessian, false );
+		TracerThread compact = trace( hessian, true );
+
+		assertSamePaths( normal.getResult(), compact.getResult() );
+		assertEquals( normal.pointsConsideredInSearch(), compact.pointsConsideredInSearch() );
+
+		normal = trace( null, false );
+		compact = trace( null, true );
+
+		assertSamePaths( normal.getResult(), compact.getResult() );
+		assertEquals( normal.pointsConsideredInSearch(), compact.pointsConsideredInSearch() );
+	}
+
+	/* AutoSearchThread relies on the addingNode hook, which has
+	   to be called in the same way with compact storage: */
+
+	@Test
+	public void testAutoSearch() {
+		int width = image.getWidth(), height = image.getHeight();
+		int depth = image.getStackSize();
+		float [][] tubeValues = new float[depth][width * height];
+		for( int z = 0; z < depth; ++z ) {
+			byte [] pixels = (byte [])image.getStack().getPixels( z + 1 );
+			for( int i = 0; i < pixels.length; ++i )
+				tubeValues[z][i] = (pixels[i] & 0xff) / 255f;
+		}
+		Calibration calibration = image.getCalibration();
+
+		AutoSearchThread [] searches = new AutoSearchThread[2];
+		for( int i = 0; i < 2; ++i ) {
+			searches[i] = new AutoSearchThread( image, tubeValues,
+				new AutoPoint( width / 2, height / 2, depth / 2 ), 0.5f,
+				new SinglePathsGraph( width, height, depth,
+						      calibration.pixelWidth,
+						      calibration.pixelHeight,
+						      calibration.pixelDepth ) );
+			searches[i].setCompactStorage( i == 1 );
+			searches[i].run();
+		}
+
+		assertEquals( searches[0].maximumCost, searches[1].maximumCost, 0 );
+		assertEquals( searches[0].getDestinations(), searches[1].getDestinations() );
+		AutoPoint last = searches[0].getDestinations().get( searches[0].getDestinations().size() - 1 );
+		assertSamePaths( searches[0].getPathBack( last.x, last.y, last.z ),
+				 searches[1].getPathBack( last.x, last.y, last.z ) );
+	}
+}
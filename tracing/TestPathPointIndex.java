@@ -0,0 +1,140 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that nearestPointOnAnyPath with the spatial index finds
+   the same points as looking at every point of every path. */
+
+package tracing;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotNull;
+
+public class TestPathPointIndex {
+
+	/* The original implementation of nearestPointOnAnyPath: */
+
+	NearPoint bruteForce( PathAndFillManager pafm, double x, double y, double z, double distanceLimit ) {
+		PriorityQueue< NearPoint > pq = new PriorityQueue< NearPoint >();
+		for( int i = 0; i < pafm.size(); ++i ) {
+			Path path = pafm.getPath( i );
+			if( ! path.versionInUse() )
+				continue;
+			for( int j = 0; j < path.size(); ++j )
+				pq.add( new NearPoint( x, y, z, path, j ) );
+		}
+		while( true ) {
+			NearPoint np = pq.poll();
+			if( np == null )
+				return null;
+			if( np.distanceToPathPointSquared() > (distanceLimit * distanceLimit) )
+				return null;
+			if( np.distanceToPathNearPoint() >= 0 )
+				return np;
+		}
+	}
+
+	Path randomWalk( Random random, int points ) {
+		Path p = new Path( 0.5, 0.5, 1.5, "um" );
+		double x = random.nextDouble() * 100, y = random.nextDouble() * 100, z = random.nextDouble() * 30;
+		for( int i = 0; i < points; ++i ) {
+			p.addPointDouble( x, y, z );
+			x += random.nextGaussian();
+			y += random.nextGaussian();
+			z += random.nextGaussian() * 0.5;
+		}
+		return p;
+	}
+
+	void assertSameNearPoint( NearPoint expected, NearPoint actual ) {
+		if( expected == null ) {
+			assertNull( actual );
+			return;
+		}
+		assertNotNull( actual );
+		assertEquals( expected.distanceToPathNearPoint(), actual.distanceToPathNearPoint(), 1e-12 );
+		assertEquals( expected.distanceToPathPointSquared(), actual.distanceToPathPointSquared(), 1e-12 );
+	}
+
+	@Test
+	public void testSameAsBruteForce() {
+
+		Random random = new Random( 42 );
+		PathAndFillManager pafm = new PathAndFillManager( 200, 200, 20, 0.5f, 0.5f, 1.5f, "um" );
+		for( int i = 0; i < 20; ++i )
+			pafm.addPath( randomWalk( random, 200 ) );
+
+		for( int q = 0; q < 500; ++q ) {
+			double x = random.nextDouble() * 120 - 10;
+			double y = random.nextDouble() * 120 - 10;
+			double z = random.nextDouble() * 40 - 5;
+			double limit = (q % 2 == 0) ? 5 : Double.MAX_VALUE;
+			assertSameNearPoint( bruteForce( pafm, x, y, z, limit ),
+					     pafm.nearestPointOnAnyPath( x, y, z, limit ) );
+		}
+
+		/* The index must follow paths being added and deleted: */
+
+		pafm.deletePath( 3 );
+		pafm.deletePath( 7 );
+		pafm.addPath( randomWalk( random, 300 ) );
+
+		for( int q = 0; q < 200; ++q ) {
+			double x = random.nextDouble() * 100;
+			double y = random.nextDouble() * 100;
+			double z = random.nextDouble() * 30;
+			assertSameNearPoint( bruteForce( pafm, x, y, z, 10 ),
+					     pafm.nearestPointOnAnyPath( x, y, z, 10 ) );
+		}
+
+		/* A path whose points are moved has to be indexed
+		   again, even though its size stays the same: */
+
+		Path moved = pafm.getPath( 0 );
+		for( int j = 0; j < moved.size(); ++j )
+			moved.precise_x_positions[j] += 30;
+		pafm.pathModified( moved );
+
+		for( int q = 0; q < 200; ++q ) {
+			double x = random.nextDouble() * 130;
+			double y = random.nextDouble() * 100;
+			double z = random.nextDouble() * 30;
+			assertSameNearPoint( bruteForce( pafm, x, y, z, 10 ),
+					     pafm.nearestPointOnAnyPath( x, y, z, 10 ) );
+		}
+
+		/* Points added through Path's methods are picked up
+		   without telling the manager: */
+
+		Path extended = pafm.getPath( 1 );
+		PointInImage last = extended.lastPoint();
+		for( int j = 1; j <= 50; ++j )
+			extended.addPointDouble( last.x + j, last.y, last.z );
+
+		for( int q = 0; q < 200; ++q ) {
+			double x = random.nextDouble() * 160;
+			double y = random.nextDouble() * 100;
+			double z = random.nextDouble() * 30;
+			assertSameNearPoint( bruteForce( pafm, x, y, z, 10 ),
+					     pafm.nearestPointOnAnyPath( x, y, z, 10 ) );
+		}
+
+		/* ... and getCorrespondences should give a result for
+		   every point, in order: */
+
+		PathAndFillManager other = new PathAndFillManager( 200, 200, 20, 0.5f, 0.5f, 1.5f, "um" );
+		for( int i = 0; i < 5; ++i )
+			other.addPath( randomWalk( random, 100 ) );
+		ArrayList< NearPoint > correspondences = other.getCorrespondences( pafm, 5 );
+		assertEquals( other.pointsInAllPaths(), correspondences.size() );
+		PathAndFillManager.AllPointsIterator i = other.allPointsIterator();
+		for( int j = 0; i.hasNext(); ++j ) {
+			PointInImage p = i.next();
+			assertSameNearPoint( bruteForce( pafm, p.x, p.y, p.z, 5 ), correspondences.get( j ) );
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that tracing with the cached Hessian-based costs finds
+   exactly the same path as calculating them point by point, even
+   when the cache is too small to hold all the blocks. */
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import util.BatchOpener;
+
+import features.ComputeCurvatures;
+
+import org.junit.Test;
+import org.junit.After;
+import org.junit.Before;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTubenessCache {
+
+	ImagePlus image;
+
+	double startX = 56.524; double startY = 43.258; double startZ = 18;
+	double endX = 0; double endY = 17.015; double endZ = 22.8;
+
+	@Before public void setUp() {
+		image = BatchOpener.openFirstChannel("test-images/c061AG-small-section.tif" );
+		assertNotNull("Couldn't open the 3D test image",image);
+	}
+
+	@After
+	public void tearDown() {
+		image.close();
+	}
+
+	Path trace( ComputeCurvatures hessian, TubenessCache cache ) {
+		Calibration calibration = image.getCalibration();
+		TracerThread tracer = new TracerThread(image,
+						       0,
+						       255,
+						       -1, // timeoutSeconds
+						       100, // reportEveryMilliseconds
+						       (int)( startX / calibration.pixelWidth ),
+						       (int)( startY / calibration.pixelHeight ),
+						       (int)( startZ / calibration.pixelDepth ),
+						       (int)( endX / calibration.pixelWidth ),
+						       (int)( endY / calibration.pixelHeight ),
+						       (int)( endZ / calibration.pixelDepth ),
+						       true, // reciprocal
+						       false, // singleSlice
+						       hessian,
+						       19.69, // multiplier
+						       null,
+						       true);
+		tracer.setTubenessCache( cache );
+		tracer.run();
+		return tracer.getResult();
+	}
+
+	@Test
+	public void testSamePathFound() {
+
+		ComputeCurvatures hessian = new ComputeCurvatures(image, 0.721, null, true);
+		hessian.run();
+
+		Path expected = trace( hessian, null );
+
+		// Only enough room for a couple of blocks:
+		long budget = 2 * 4L * TubenessCache.BLOCK_XY * TubenessCache.BLOCK_XY * TubenessCache.BLOCK_Z;
+		TubenessCache cache = new TubenessCache( hessian, image, 19.69, false, budget );
+		Path actual = trace( hessian, cache );
+		assertTrue( cache.getBlocksEvicted() > 0 );
+		assertTrue( cache.getBytesUsed() <= budget );
+		cache.dispose();
+
+		assertNotNull("No path found",expected);
+		assertNotNull("No path found with the cache",actual);
+		assertEquals( expected.size(), actual.size() );
+		double [] e = new double[3];
+		double [] a = new double[3];
+		for( int i = 0; i < expected.size(); ++i ) {
+			expected.getPointDouble( i, e );
+			actual.getPointDouble( i, a );
+			for( int j = 0; j < 3; ++j )
+				assertEquals( e[j], a[j], 0 );
+		}
+	}
+}
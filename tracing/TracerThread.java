@@ -162,6 +162,94 @@ public class TracerThread extends SearchThread {
 
         static final double RECIPROCAL_FUDGE = 0.5;
 
+	/* If this is set, the Hessian-based costs are looked up in
+	   (and calculated in blocks by) the cache rather than being
+	   calculated for each point as it's visited. */
+
+	TubenessCache tubenessCache;
+
+	public void setTubenessCache( TubenessCache tubenessCache ) {
+		this.tubenessCache = tubenessCache;
+	}
+
+	/* The cost of moving to a point based on the eigenvalues of
+	   the Hessian there.  This is static so that TubenessCache
+	   can calculate exactly the same values, and it is a float
+	   since that is what the cache stores;
+	   hessianEigenValues is just scratch space and should have
+	   at least 3 elements. */
+
+	static float hessianCost( ComputeCurvatures hessian,
+				   int x,
+				   int y,
+				   int z,
+				   boolean singleSlice,
+				   double multiplier,
+				   float x_spacing,
+				   float y_spacing,
+				   float z_spacing,
+				   double [] hessianEigenValues ) {
+
+		if( singleSlice ) {
+
+			boolean real = hessian.hessianEigenvaluesAtPoint2D( x, y,
+									    true, hessianEigenValues, false, true, x_spacing, y_spacing );
+
+			// Just use the absolute value
+			// of the largest eigenvalue
+			// (if it's < 0)
+
+			if( real && (hessianEigenValues[1] < 0) ) {
+
+				double measure = Math.abs( hessianEigenValues[1] );
+				if( measure == 0 ) // This should never happen in practice...
+					measure = 0.2;
+
+				measure *= multiplier;
+				if( measure > 256 )
+					measure = 256;
+
+				return (float)(1 / measure);
+
+			} else {
+
+				return (float)(1 / 0.2);
+
+			}
+
+		} else {
+
+			boolean real = hessian.hessianEigenvaluesAtPoint3D( x, y, z,
+									    true, hessianEigenValues, false, true, x_spacing, y_spacing, z_spacing );
+
+			/* FIXME: there's lots of literature on how to
+			   pick this rule (see Sato et al,
+			   "Three-dimensional multi-scale line filter
+			   for segmentation and visualization of
+			   curvilinear structures in medical images".
+			   The rule I'm using here probably isn't optimal. */
+
+			if( real && (hessianEigenValues[1] < 0) && (hessianEigenValues[2] < 0) ) {
+
+				double measure = Math.sqrt( hessianEigenValues[1] * hessianEigenValues[2] );
+
+				if( measure == 0 ) // This should never happen in practice...
+					measure = 0.2;
+
+				measure *= multiplier;
+				if( measure > 256 )
+					measure = 256;
+
+				return (float)(1 / measure);
+
+			} else {
+
+				return (float)(1 / 0.2);
+
+			}
+		}
+	}
+
         /* This cost doesn't take into account the distance between
          * the points - it will be post-multiplied by that value.
          *
@@ -199,74 +287,13 @@ public class TracerThread extends SearchThread {
 
 			if( tubeness == null ) {
 
-				if( singleSlice ) {
-
-					double [] hessianEigenValues = new double[2];
-
-					boolean real = hessian.hessianEigenvaluesAtPoint2D( new_x, new_y,
-											    true, hessianEigenValues, false, true, x_spacing, y_spacing );
-
-					// Just use the absolute value
-					// of the largest eigenvalue
-					// (if it's < 0)
-
-					if( real && (hessianEigenValues[1] < 0) ) {
-
-						double measure = Math.abs( hessianEigenValues[1] );
-						if( measure == 0 ) // This should never happen in practice...
-							measure = 0.2;
-
-						measure *= multiplier;
-						if( measure > 256 )
-							measure = 256;
-
-						cost = 1 / measure;
-
-					} else {
-
-						cost = 1 / 0.2;
-
-					}
-
-				} else {
-
-					double [] hessianEigenValues = new double[3];
-
-					boolean real = hessian.hessianEigenvaluesAtPoint3D( new_x, new_y, new_z,
-											    true, hessianEigenValues, false, true, x_spacing, y_spacing, z_spacing );
-
-					/* FIXME: there's lots of literature on how to
-					   pick this rule (see Sato et al,
-					   "Three-dimensional multi-scale line filter
-					   for segmentation and visualization of
-					   curvilinear structures in medical images".
-					   The rule I'm using here probably isn't optimal. */
-
-					double e0 = hessianEigenValues[0];
-					double e1 = hessianEigenValues[1];
-					double e2 = hessianEigenValues[2];
-
-					if( real && (hessianEigenValues[1] < 0) && (hessianEigenValues[2] < 0) ) {
-
-						double measure = Math.sqrt( hessianEigenValues[1] * hessianEigenValues[2] );
-
-						if( measure == 0 ) // This should never happen in practice...
-							measure = 0.2;
-
-						measure *= multiplier;
-						if( measure > 256 )
-							measure = 256;
-
-						cost = 1 / measure;
-
-					} else {
-
-						cost = 1 / 0.2;
-
-					}
-
-				}
-
+				if( tubenessCache != null )
+					cost = tubenessCache.getCost( new_x, new_y, new_z );
+				else
+					cost = hessianCost( hessian, new_x, new_y, new_z,
+							    singleSlice, multiplier,
+							    x_spacing, y_spacing, z_spacing,
+							    new double[3] );
 
 			} else {
 
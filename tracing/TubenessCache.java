@@ -0,0 +1,224 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import features.ComputeCurvatures;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* When tracing with the Hessian-based cost but without a
+   precomputed tubeness image, TracerThread would otherwise find the
+   Hessian and its eigenvalues at a voxel every time the search looks
+   at it, which can be up to 26 times.  This caches the resulting
+   costs in blocks of the image: the first time the search asks for
+   a voxel in a block, the costs for the whole block are calculated
+   using all the available cores.  Only as many blocks as fit in
+   maximumBytes are kept - after that the least recently used block
+   is thrown away.  The blocks are kept in a LinkedHashMap in access
+   order, so the least recently used one is always the first.
+
+   The costs are exactly those that TracerThread.hessianCost would
+   return, so the paths found are the same as without the cache. */
+
+public class TubenessCache {
+
+	static final int BLOCK_XY = 32;
+	static final int BLOCK_Z = 8;
+
+	ComputeCurvatures hessian;
+	double multiplier;
+	boolean singleSlice;
+	float x_spacing, y_spacing, z_spacing;
+
+	int width, height, depth;
+	int blockDepth;
+	int blocksX, blocksY, blocksZ;
+
+	LinkedHashMap<Integer, float []> blocks;
+
+	/* The block of the previous lookup, which is already the most
+	   recently used one; the search mostly stays in the same
+	   block, so this saves most lookups in the map. */
+	int lastBlock = -1;
+	float [] last;
+
+	long maximumBytes;
+	long bytesUsed;
+
+	int blocksComputed;
+	int blocksEvicted;
+
+	int threads;
+	ExecutorService executor;
+
+	public TubenessCache( ComputeCurvatures hessian,
+			      ImagePlus imagePlus,
+			      double multiplier,
+			      boolean singleSlice,
+			      long maximumBytes ) {
+		this.hessian = hessian;
+		this.multiplier = multiplier;
+		this.singleSlice = singleSlice;
+		this.maximumBytes = maximumBytes;
+
+		width = imagePlus.getWidth();
+		height = imagePlus.getHeight();
+		depth = imagePlus.getStackSize();
+
+		// The same spacings as SearchThread uses:
+		Calibration calibration = imagePlus.getCalibration();
+		x_spacing = (float)calibration.pixelWidth;
+		y_spacing = (float)calibration.pixelHeight;
+		z_spacing = (float)calibration.pixelDepth;
+
+		blockDepth = singleSlice ? 1 : Math.min( BLOCK_Z, depth );
+		blocksX = (width + BLOCK_XY - 1) / BLOCK_XY;
+		blocksY = (height + BLOCK_XY - 1) / BLOCK_XY;
+		blocksZ = (depth + blockDepth - 1) / blockDepth;
+		blocks = new LinkedHashMap<Integer, float []>( 16, 0.75f, true );
+
+		threads = Runtime.getRuntime().availableProcessors();
+		executor = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+			public Thread newThread( Runnable r ) {
+				Thread t = new Thread( r, "TubenessCache" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+	}
+
+	/* Whether this cache can be reused for a search with these
+	   parameters: */
+
+	public boolean matches( ComputeCurvatures hessian, double multiplier, boolean singleSlice ) {
+		return hessian == this.hessian &&
+			multiplier == this.multiplier &&
+			singleSlice == this.singleSlice;
+	}
+
+	public synchronized float getCost( int x, int y, int z ) {
+		int bx = x / BLOCK_XY, by = y / BLOCK_XY, bz = z / blockDepth;
+		int b = (bz * blocksY + by) * blocksX + bx;
+		float [] block = last;
+		if( b != lastBlock ) {
+			block = blocks.get( b );
+			if( block == null )
+				block = computeBlock( b, bx, by, bz );
+			lastBlock = b;
+			last = block;
+		}
+		return block[((z - bz * blockDepth) * BLOCK_XY + (y - by * BLOCK_XY)) * BLOCK_XY + (x - bx * BLOCK_XY)];
+	}
+
+	float [] computeBlock( int b, int bx, int by, int bz ) {
+
+		final long blockBytes = 4L * BLOCK_XY * BLOCK_XY * blockDepth;
+		while( bytesUsed + blockBytes > maximumBytes && evictLeastRecentlyUsed() )
+			;
+
+		final float [] block = new float[BLOCK_XY * BLOCK_XY * blockDepth];
+		final int x0 = bx * BLOCK_XY, y0 = by * BLOCK_XY, z0 = bz * blockDepth;
+		final int x1 = Math.min( width, x0 + BLOCK_XY );
+		final int y1 = Math.min( height, y0 + BLOCK_XY );
+		final int z1 = Math.min( depth, z0 + blockDepth );
+		final int rows = (z1 - z0) * (y1 - y0);
+		final AtomicInteger nextRow = new AtomicInteger( 0 );
+
+		ArrayList< Callable<Object> > tasks = new ArrayList< Callable<Object> >();
+		for( int t = 0; t < threads; ++t )
+			tasks.add( new Callable<Object>() {
+				public Object call() {
+					double [] hessianEigenValues = new double[3];
+					for( int row = nextRow.getAndIncrement(); row < rows; row = nextRow.getAndIncrement() ) {
+						int z = z0 + row / (y1 - y0);
+						int y = y0 + row % (y1 - y0);
+						int offset = ((z - z0) * BLOCK_XY + (y - y0)) * BLOCK_XY - x0;
+						for( int x = x0; x < x1; ++x )
+							block[offset + x] = TracerThread.hessianCost( hessian, x, y, z,
+												      singleSlice, multiplier,
+												      x_spacing, y_spacing, z_spacing,
+												      hessianEigenValues );
+					}
+					return null;
+				}
+			} );
+
+		try {
+			for( Future<Object> f : executor.invokeAll( tasks ) )
+				f.get();
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "Interrupted while calculating tubeness", e );
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( "Calculating tubeness failed", e.getCause() );
+		}
+
+		blocks.put( b, block );
+		bytesUsed += blockBytes;
+		++ blocksComputed;
+		return block;
+	}
+
+	/* Returns false if there was nothing to evict: */
+
+	boolean evictLeastRecentlyUsed( ) {
+		Iterator<float []> oldest = blocks.values().iterator();
+		if( ! oldest.hasNext() )
+			return false;
+		bytesUsed -= 4L * oldest.next().length;
+		oldest.remove();
+		++ blocksEvicted;
+		return true;
+	}
+
+	public int getBlocksComputed( ) {
+		return blocksComputed;
+	}
+
+	public int getBlocksEvicted( ) {
+		return blocksEvicted;
+	}
+
+	public long getBytesUsed( ) {
+		return bytesUsed;
+	}
+
+	/* Stop the worker threads; the cache can't be used after
+	   this. */
+
+	public void dispose( ) {
+		executor.shutdown();
+		blocks = null;
+		last = null;
+	}
+}
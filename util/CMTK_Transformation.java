@@ -17,6 +17,9 @@ import util.FileCreation;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nrrd.NrrdHeader;
 import nrrd.NrrdInfo;
@@ -36,6 +39,12 @@ public class CMTK_Transformation {
 
 	public CMTK_Transformation( ) { }
 
+	int nThreads = Runtime.getRuntime().availableProcessors();
+
+	public void setNumberOfThreads( int nThreads ) {
+		this.nThreads = Math.max( 1, nThreads );
+	}
+
 	int dimsx = -1, dimsy = -1, dimsz = -1;
 	double domainx = Double.MIN_VALUE, domainy = Double.MIN_VALUE, domainz = Double.MIN_VALUE;
 	double originx = Double.MIN_VALUE, originy = Double.MIN_VALUE, originz = Double.MIN_VALUE;
@@ -166,36 +175,50 @@ public class CMTK_Transformation {
 
 		IJ.showProgress( 0 );
 
-		double [] result = new double[3];
-		byte [][] imageBytes = new byte[templateDepth][templateWidth*templateHeight];
+		final byte [][] imageBytes = new byte[templateDepth][templateWidth*templateHeight];
 
 		ImageStack modelStack = modelImage.getStack();
-		byte [][] modelBytes = new byte[modelDepth][];
+		final byte [][] modelBytes = new byte[modelDepth][];
 		for( int z = 0; z < modelDepth; ++z )
 			modelBytes[z] = (byte[])modelStack.getPixels( z + 1 );
 
-		for( int zi = 0; zi < templateDepth; ++zi ) {
-			for( int yi = 0; yi < templateHeight; ++yi )
-				for( int xi = 0; xi < templateWidth; ++xi ) {
-					double x = xi * templateXSpacing;
-					double y = yi * templateYSpacing;
-					double z = zi * templateZSpacing;
-					transformPoint( x, y, z, result );
-					double xt = result[0];
-					double yt = result[1];
-					double zt = result[2];
-					byte value = trilinearInterpolateByte(
-						xt/modelXSpacing,
-						yt/modelYSpacing,
-						zt/modelZSpacing,
-						modelWidth,
-						modelHeight,
-						modelDepth,
-						modelBytes );
-					imageBytes[zi][yi*templateWidth+xi] = value;
+		final AxisWeights xWeights = new AxisWeights( templateWidth, templateXSpacing, deltax, dimsx );
+		final AxisWeights yWeights = new AxisWeights( templateHeight, templateYSpacing, deltay, dimsy );
+		final AxisWeights zWeights = new AxisWeights( templateDepth, templateZSpacing, deltaz, dimsz );
+
+		final int mw = modelWidth, mh = modelHeight, md = modelDepth;
+		final double mxs = modelXSpacing, mys = modelYSpacing, mzs = modelZSpacing;
+		final int tw = templateWidth, th = templateHeight, td = templateDepth;
+
+		/* Each thread takes the next template slice which is
+		   not done yet. */
+		final AtomicInteger nextSlice = new AtomicInteger( 0 );
+		final AtomicInteger slicesDone = new AtomicInteger( 0 );
+		runInThreads( td, new Runnable() {
+			public void run() {
+				double [] partial = new double[ 3 * dimsx ];
+				double [] row = new double[ 3 * tw ];
+				int zi;
+				while( (zi = nextSlice.getAndIncrement()) < td ) {
+					for( int yi = 0; yi < th; ++yi ) {
+						transformRow( xWeights, yWeights.cell[yi], yWeights.weights, 4 * yi, zWeights.cell[zi], zWeights.weights, 4 * zi, partial, row );
+						for( int xi = 0; xi < tw; ++xi ) {
+							byte value = trilinearInterpolateByte(
+								row[3*xi]/mxs,
+								row[3*xi+1]/mys,
+								row[3*xi+2]/mzs,
+								mw,
+								mh,
+								md,
+								modelBytes );
+							imageBytes[zi][yi*tw+xi] = value;
+						}
+					}
+					IJ.showProgress( slicesDone.incrementAndGet() / (double)( td + 1 ) );
 				}
-			IJ.showProgress( zi / (double)( templateDepth + 1 ) );
-		}
+			}
+		} );
+
 		ImageStack newStack = new ImageStack( templateWidth, templateHeight );
 		for( int z = 0; z < templateDepth; ++z ) {
 			ByteProcessor bp = new ByteProcessor( templateWidth, templateHeight );
@@ -229,6 +252,84 @@ public class CMTK_Transformation {
 		}
 	}
 
+	private static void bSplineWeights( double u, double [] weights, int offset ) {
+		double oneMinusU = 1 - u;
+		weights[offset] = (oneMinusU * oneMinusU * oneMinusU) / 6.0;
+		weights[offset+1] = ( 3 * u * u * u
+				      - 6 * u * u
+				      + 4 ) / 6.0;
+		weights[offset+2] = ( -3 * u * u * u
+				      + 3 * u * u
+				      + 3 * u
+				      + 1 ) / 6.0;
+		weights[offset+3] = ( u * u * u ) / 6.0;
+	}
+
+	/* For the points i * spacing (i = 0, ..., n - 1) along one
+	   axis, the first control point of the 4x4x4 block which
+	   influences them (the same as in transformPoint) and the four
+	   B-spline weights. */
+
+	static class AxisWeights {
+		int [] cell;
+		double [] weights;
+		AxisWeights( int n, double spacing, double delta, int dims ) {
+			cell = new int[n];
+			weights = new double[4*n];
+			for( int i = 0; i < n; ++i ) {
+				double cellD = (i * spacing) / delta;
+				cell[i] = Math.min( (int)cellD, dims - 4 );
+				bSplineWeights( cellD - cell[i], weights, 4 * i );
+			}
+		}
+	}
+
+	/* Transforms a whole row of template points, i.e. the points
+	   with the x coordinates in xWeights and the given y and z
+	   cells and weights, and stores the results as x, y, z triples
+	   in result.  The control points of the row are first summed
+	   over y and z into partial, which needs 3 * dimsx entries, so
+	   that each point only needs to combine four of those sums. */
+
+	void transformRow( AxisWeights xWeights,
+			   int gridj, double [] yWeights, int yOffset,
+			   int gridk, double [] zWeights, int zOffset,
+			   double [] partial, double [] result ) {
+
+		int n = xWeights.cell.length;
+		int first = xWeights.cell[0];
+		int last = xWeights.cell[n-1] + 3;
+		for( int i = 3 * first; i < 3 * (last + 1); ++i )
+			partial[i] = 0;
+
+		for( int m = 0; m < 4; ++m )
+			for( int o = 0; o < 4; ++o ) {
+				double weight = yWeights[yOffset+m] * zWeights[zOffset+o];
+				int c = dimsx * ((gridj+m) + dimsy * (gridk+o));
+				for( int i = first; i <= last; ++i ) {
+					double [] coeff = coeffs[c+i];
+					partial[3*i] += weight * coeff[0];
+					partial[3*i+1] += weight * coeff[1];
+					partial[3*i+2] += weight * coeff[2];
+				}
+			}
+
+		double [] weights = xWeights.weights;
+		for( int xi = 0; xi < n; ++xi ) {
+			int p = 3 * xWeights.cell[xi];
+			double x = 0, y = 0, z = 0;
+			for( int l = 0; l < 4; ++l, p += 3 ) {
+				double weight = weights[4*xi+l];
+				x += weight * partial[p];
+				y += weight * partial[p+1];
+				z += weight * partial[p+2];
+			}
+			result[3*xi] = x;
+			result[3*xi+1] = y;
+			result[3*xi+2] = z;
+		}
+	}
+
 	public void transformPoint( double x, double y, double z, double [] result ) {
 
 		double cellxD = x / deltax;
@@ -561,6 +662,7 @@ public class CMTK_Transformation {
 		File xFile = new File( directoryOfOriginalFile, "inverse_x.gz" );
 		File yFile = new File( directoryOfOriginalFile, "inverse_y.gz" );
 		File zFile = new File( directoryOfOriginalFile, "inverse_z.gz" );
+		File indexFile = new File( directoryOfOriginalFile, "inverse.index" );
 		if( headerFile.exists() && xFile.exists() && yFile.exists() && zFile.exists() ) {
 			inverse = Inverse.load( headerFile, xFile, yFile, zFile,
 						template, model );
@@ -600,108 +702,233 @@ public class CMTK_Transformation {
 		template.close();
 		model.close();
 
-		int pointsEitherSide = 3;
-
-		short [][] templateX;
-		short [][] templateY;
-		short [][] templateZ;
-		float [][] distanceSquared;
+		final int pointsEitherSide = 3;
+
+		final AxisWeights xWeights = new AxisWeights( templateWidth, templatePixelWidth, deltax, dimsx );
+		final AxisWeights yWeights = new AxisWeights( templateHeight, templatePixelHeight, deltay, dimsy );
+		final AxisWeights zWeights = new AxisWeights( templateDepth, templatePixelDepth, deltaz, dimsz );
+
+		final int mw = modelWidth, mh = modelHeight, md = modelDepth;
+		final double mpw = modelPixelWidth, mph = modelPixelHeight, mpd = modelPixelDepth;
+		final int tw = templateWidth, th = templateHeight, td = templateDepth;
+
+		/* First find, for each template row, the range of model
+		   slices that its points map to, so that each block of
+		   model slices only needs to revisit the rows which can
+		   reach it. */
+
+		final int [] rowMinZ = new int[ td * th ];
+		final int [] rowMaxZ = new int[ td * th ];
+		final AtomicInteger nextSlice = new AtomicInteger( 0 );
+		runInThreads( td, new Runnable() {
+			public void run() {
+				double [] partial = new double[ 3 * dimsx ];
+				double [] row = new double[ 3 * tw ];
+				int tiz;
+				while( (tiz = nextSlice.getAndIncrement()) < td )
+					for( int tiy = 0; tiy < th; ++tiy ) {
+						transformRow( xWeights, yWeights.cell[tiy], yWeights.weights, 4 * tiy, zWeights.cell[tiz], zWeights.weights, 4 * tiz, partial, row );
+						int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE;
+						for( int tix = 0; tix < tw; ++tix ) {
+							int miz = (int)Math.round( row[3*tix+2] / mpd );
+							minZ = Math.min( minZ, miz );
+							maxZ = Math.max( maxZ, miz );
+						}
+						rowMinZ[tiz*th+tiy] = minZ;
+						rowMaxZ[tiz*th+tiy] = maxZ;
+					}
+			}
+		} );
+
+		/* Then the model is split into blocks of whole slices,
+		   which are filled in by several threads at once.
+		   Each finished block is compressed by the thread
+		   that made it and appended to the data files in
+		   order of z, so at most one block per thread is in
+		   memory at any time. */
+
+		long bytesPerSlice = 10L * mw * mh;
+		final int blockDepth = inverseBlockDepth > 0 ?
+			Math.min( inverseBlockDepth, md ) :
+			(int)Math.max( 1, Math.min( md, (64L << 20) / bytesPerSlice ) );
+		final int nBlocks = (md + blockDepth - 1) / blockDepth;
+
+		final File [] dataFiles = { xFile, yFile, zFile };
+		final File [] partFiles = new File[3];
+		final OutputStream [] outputs = new OutputStream[3];
+		final long [][] offsets = new long[3][md + 1];
 
 		try {
-
-			templateX = new short[modelDepth][modelWidth*modelHeight];
-			templateY = new short[modelDepth][modelWidth*modelHeight];
-			templateZ = new short[modelDepth][modelWidth*modelHeight];
-
-			distanceSquared = new float[modelDepth][modelWidth*modelHeight];
-
-		} catch( OutOfMemoryError oome ) {
-			System.out.println("Got an OOME with: "+model+" - trying to struggle on");
+			for( int a = 0; a < 3; ++a ) {
+				partFiles[a] = new File( directoryOfOriginalFile, dataFiles[a].getName() + ".part" );
+				System.out.println("  Writing to "+dataFiles[a].getAbsolutePath());
+				outputs[a] = new BufferedOutputStream( new FileOutputStream( partFiles[a] ) );
+			}
+		} catch( IOException e ) {
+			IJ.error( "Writing the inverse to disk failed: "+e);
+			e.printStackTrace();
+			closeQuietly( outputs );
 			return null;
 		}
 
-		double [] transformed = new double[3];
-
-		for( int z = 0; z < modelDepth; ++z ) {
-			for( int p = 0; p < (modelWidth * modelHeight); ++p ) {
-				distanceSquared[z][p] = Float.MAX_VALUE;
-				templateX[z][p] = Short.MIN_VALUE;
-				templateY[z][p] = Short.MIN_VALUE;
-				templateZ[z][p] = Short.MIN_VALUE;
-			}
-		}
+		final AtomicInteger nextBlock = new AtomicInteger( 0 );
+		final int [] nextBlockToWrite = { 0 };
+		final Throwable [] writeError = { null };
+		final Object writeLock = new Object();
+
+		/* Whatever happens to a block, its thread waits for
+		   the block's turn and then passes the turn on, so that
+		   the other threads never wait forever; the first
+		   failure is kept in writeError, and once there is one,
+		   nothing more is written. */
+
+		runInThreads( nBlocks, new Runnable() {
+			public void run() {
+				double [] partial = new double[ 3 * dimsx ];
+				double [] row = new double[ 3 * tw ];
+				int block;
+				while( (block = nextBlock.getAndIncrement()) < nBlocks ) {
+					int z0 = block * blockDepth;
+					int z1 = Math.min( md, z0 + blockDepth );
+					int depth = z1 - z0;
+
+					byte [][][] compressed = null;
+					Throwable error = null;
+					boolean failed = false;
+					try {
+						short [][][] templateXYZ = new short[3][depth][mw * mh];
+						float [][] distanceSquared = new float[depth][mw * mh];
+						for( int z = 0; z < depth; ++z ) {
+							Arrays.fill( distanceSquared[z], Float.MAX_VALUE );
+							for( int a = 0; a < 3; ++a )
+								Arrays.fill( templateXYZ[a][z], Short.MIN_VALUE );
+						}
 
-		for( int tiz = 0; tiz < templateDepth; ++tiz ) {
-			System.out.println("New template z: "+tiz);
-			for( int tiy = 0; tiy < templateHeight; ++tiy ) {
-				// System.out.println("New template y: "+tiy);
-				for( int tix = 0; tix < templateWidth; ++tix ) {
-/*
-					if( true ) {
-						int indexOfMaximum = 0;
-						int pi = (tiy * templateWidth + tix) % (modelWidth * modelHeight);
-						int pz = tiz % modelDepth;
-						distanceSquared[indexOfMaximum][pz][pi] = 3.4f;
-						templateX[indexOfMaximum][pz][pi] = (short)(templateWidth - tix);
-						templateY[indexOfMaximum][pz][pi] = (short)(templateHeight - tiy);
-						templateZ[indexOfMaximum][pz][pi] = (short)(templateDepth - tiz);
-						continue;
-					}
-*/
-					double tx = tix * templatePixelWidth;
-					double ty = tiy * templatePixelHeight;
-					double tz = tiz * templatePixelDepth;
-					transformPoint( tx, ty, tz, transformed );
-					double mx = transformed[0];
-					double my = transformed[1];
-					double mz = transformed[2];
-					int mix = (int)Math.round( mx / modelPixelWidth );
-					int miy = (int)Math.round( my / modelPixelHeight );
-					int miz = (int)Math.round( mz / modelPixelDepth );
-					for( int nearmiz = miz - pointsEitherSide;
-					     nearmiz <= miz + pointsEitherSide;
-					     ++nearmiz )
-						for( int nearmiy = miy - pointsEitherSide;
-						     nearmiy <= miy + pointsEitherSide;
-						     ++nearmiy )
-							for( int nearmix = mix - pointsEitherSide;
-							     nearmix <= mix + pointsEitherSide;
-							     ++nearmix ) {
-								if( nearmix < 0 || nearmiy < 0 || nearmiz < 0 ||
-								    nearmix >= modelWidth ||
-								    nearmiy >= modelHeight ||
-								    nearmiz >= modelDepth )
+						/* The template is visited in the same
+						   order as a single pass would, so
+						   ties go to the same point. */
+						for( int tiz = 0; tiz < td; ++tiz )
+							for( int tiy = 0; tiy < th; ++tiy ) {
+								int r = tiz * th + tiy;
+								if( rowMaxZ[r] + pointsEitherSide < z0 ||
+								    rowMinZ[r] - pointsEitherSide >= z1 )
 									continue;
-								double nearmx = nearmix * modelPixelWidth;
-								double nearmy = nearmiy * modelPixelHeight;
-								double nearmz = nearmiz * modelPixelDepth;
-								double xdiff = nearmx - mx;
-								double ydiff = nearmy - my;
-								double zdiff = nearmz - mz;
-								double doubleDistanceSquared =
-									xdiff * xdiff + ydiff * ydiff + zdiff * zdiff;
-								float ds = (float)doubleDistanceSquared;
-								int pi = nearmiy * modelWidth + nearmix;
-								if( ds < distanceSquared[nearmiz][pi] ) {
-									distanceSquared[nearmiz][pi] = ds;
-									templateX[nearmiz][pi] = (short)tix;
-									templateY[nearmiz][pi] = (short)tiy;
-									templateZ[nearmiz][pi] = (short)tiz;
+								transformRow( xWeights, yWeights.cell[tiy], yWeights.weights, 4 * tiy, zWeights.cell[tiz], zWeights.weights, 4 * tiz, partial, row );
+								for( int tix = 0; tix < tw; ++tix ) {
+									double mx = row[3*tix];
+									double my = row[3*tix+1];
+									double mz = row[3*tix+2];
+									int mix = (int)Math.round( mx / mpw );
+									int miy = (int)Math.round( my / mph );
+									int miz = (int)Math.round( mz / mpd );
+									int fromZ = Math.max( z0, miz - pointsEitherSide );
+									int toZ = Math.min( z1 - 1, miz + pointsEitherSide );
+									for( int nearmiz = fromZ; nearmiz <= toZ; ++nearmiz )
+										for( int nearmiy = miy - pointsEitherSide;
+										     nearmiy <= miy + pointsEitherSide;
+										     ++nearmiy )
+											for( int nearmix = mix - pointsEitherSide;
+											     nearmix <= mix + pointsEitherSide;
+											     ++nearmix ) {
+												if( nearmix < 0 || nearmiy < 0 ||
+												    nearmix >= mw ||
+												    nearmiy >= mh )
+													continue;
+												double xdiff = nearmix * mpw - mx;
+												double ydiff = nearmiy * mph - my;
+												double zdiff = nearmiz * mpd - mz;
+												float ds = (float)( xdiff * xdiff + ydiff * ydiff + zdiff * zdiff );
+												int pi = nearmiy * mw + nearmix;
+												int bz = nearmiz - z0;
+												if( ds < distanceSquared[bz][pi] ) {
+													distanceSquared[bz][pi] = ds;
+													templateXYZ[0][bz][pi] = (short)tix;
+													templateXYZ[1][bz][pi] = (short)tiy;
+													templateXYZ[2][bz][pi] = (short)tiz;
+												}
+											}
+								}
+							}
+						distanceSquared = null;
+
+						compressed = new byte[3][depth][];
+						for( int a = 0; a < 3; ++a )
+							for( int z = 0; z < depth; ++z ) {
+								compressed[a][z] = compressSlice( templateXYZ[a][z] );
+								templateXYZ[a][z] = null;
+							}
+					} catch( Throwable e ) {
+						error = e;
+					} finally {
+						synchronized( writeLock ) {
+							boolean interrupted = false;
+							while( nextBlockToWrite[0] != block )
+								try {
+									writeLock.wait();
+								} catch( InterruptedException e ) {
+									interrupted = true;
 								}
+							if( interrupted ) {
+								Thread.currentThread().interrupt();
+								if( error == null )
+									error = new IOException( "Interrupted while writing the inverse" );
 							}
+							if( error != null && writeError[0] == null )
+								writeError[0] = error;
+							if( writeError[0] == null )
+								try {
+									for( int a = 0; a < 3; ++a )
+										for( int z = 0; z < depth; ++z ) {
+											outputs[a].write( compressed[a][z] );
+											offsets[a][z0+z+1] = offsets[a][z0+z] + compressed[a][z].length;
+										}
+								} catch( Throwable e ) {
+									writeError[0] = e;
+								}
+							failed = writeError[0] != null;
+							++nextBlockToWrite[0];
+							writeLock.notifyAll();
+						}
+					}
+					if( failed )
+						break;
+					System.out.println("Finished inverse block "+(block+1)+" of "+nBlocks);
 				}
 			}
+		} );
+
+		Throwable failure = writeError[0];
+		if( failure != null && ! (failure instanceof IOException) ) {
+			closeQuietly( outputs );
+			for( int a = 0; a < 3; ++a )
+				partFiles[a].delete();
+			if( failure instanceof Error )
+				throw (Error)failure;
+			if( failure instanceof RuntimeException )
+				throw (RuntimeException)failure;
+			throw new RuntimeException( failure );
 		}
 
-		/* I'm so short of memory on my desktop machine that I
-		   have to write this straight out to disk and then
-		   read it in again.  It'd so tedious to calculate
-		   that this probably isn't a bad thing anyway... */
-
 		try {
-			System.out.println("Writing to "+headerFile.getAbsolutePath());
+			for( int a = 0; a < 3; ++a ) {
+				outputs[a].close();
+				outputs[a] = null;
+			}
+			if( failure != null )
+				throw (IOException)failure;
+
+			writeIndex( indexFile, offsets );
 
-			// Write the header file first:
+			for( int a = 0; a < 3; ++a ) {
+				dataFiles[a].delete();
+				if( ! partFiles[a].renameTo( dataFiles[a] ) )
+					throw new IOException( "Failed to rename "+partFiles[a]+" to "+dataFiles[a] );
+			}
+
+			/* The header is written last, so that
+			   precalculatedInverseExists() is only true for a
+			   complete inverse. */
+			System.out.println("Writing to "+headerFile.getAbsolutePath());
 			PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(headerFile),"UTF-8"));
 			pw.println("NRRD0005");
 			pw.println("type: short");
@@ -716,49 +943,103 @@ public class CMTK_Transformation {
 			// FIXME: how do we output the model calibration in NRRD?  Or not bother?
 			pw.close();
 
-			System.out.println("  Writing to "+xFile.getAbsolutePath());
-			System.out.println("  Writing to "+yFile.getAbsolutePath());
-			System.out.println("  Writing to "+zFile.getAbsolutePath());
-
-			DataOutputStream dosX = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(xFile)));
-			DataOutputStream dosY = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(yFile)));
-			DataOutputStream dosZ = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(zFile)));
-
-			for( int miz = 0; miz < modelDepth; ++miz )
-				for( int miy = 0; miy < modelHeight; ++miy )
-					for( int mix = 0; mix < modelWidth; ++mix ) {
-						int pi = ((int)miy) * modelWidth + (int)mix;
-						if( distanceSquared[miz][pi] < Float.MAX_VALUE ) {
-							dosX.writeShort( templateX[miz][pi] );
-							dosY.writeShort( templateY[miz][pi] );
-							dosZ.writeShort( templateZ[miz][pi] );
-						} else {
-							dosX.writeShort( Short.MIN_VALUE );
-							dosY.writeShort( Short.MIN_VALUE );
-							dosZ.writeShort( Short.MIN_VALUE );
-						}
-					}
-
-			dosX.close();
-			dosY.close();
-			dosZ.close();
-
 		} catch( IOException e ) {
 			IJ.error( "Writing the inverse to disk failed: "+e);
 			e.printStackTrace();
+			closeQuietly( outputs );
+			for( int a = 0; a < 3; ++a )
+				partFiles[a].delete();
+			indexFile.delete();
+			return null;
 		}
 
-		templateX = null;
-		templateY = null;
-		templateZ = null;
-		distanceSquared = null;
+		System.out.println("Loading back in now:");
+		inverse = Inverse.load( headerFile, xFile, yFile, zFile, template, model );
+		return inverse;
+	}
 
-		// Shouldn't make a difference, but maybe it does on some old or broken VMs...
-		System.gc();
+	/* The size in model slices of the blocks in which inverse()
+	   builds the inverse; if not set, blocks of about 64MB are
+	   used. */
 
-		System.out.println("Loading back in now:");
-		Inverse result = Inverse.load( headerFile, xFile, yFile, zFile, template, model );
-		return result;
+	int inverseBlockDepth = -1;
+
+	public void setInverseBlockDepth( int inverseBlockDepth ) {
+		this.inverseBlockDepth = inverseBlockDepth;
+	}
+
+	/* Runs 'body' in (at most) nThreads threads and waits for
+	   them; 'work' is the number of work items, so that no more
+	   threads than items are started.  If 'body' throws in any
+	   of the threads, the first such exception (or error) is
+	   rethrown once all of them have finished. */
+
+	void runInThreads( int work, Runnable body ) {
+		Threads.run( body, Math.min( nThreads, work ) );
+	}
+
+	/* Each model slice of the inverse is written as a separate
+	   gzip member.  The concatenation is still an ordinary gzip
+	   file, but with the offsets of the members, which are
+	   stored in inverse.index, a single slice can be read without
+	   decompressing the ones before it. */
+
+	static byte [] compressSlice( short [] slice ) throws IOException {
+		byte [] bytes = new byte[ 2 * slice.length ];
+		for( int i = 0; i < slice.length; ++i ) {
+			bytes[2*i] = (byte)( slice[i] >> 8 );
+			bytes[2*i+1] = (byte)slice[i];
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream( bytes.length / 4 );
+		GZIPOutputStream gos = new GZIPOutputStream( baos );
+		gos.write( bytes );
+		gos.close();
+		return baos.toByteArray();
+	}
+
+	static void writeIndex( File indexFile, long [][] offsets ) throws IOException {
+		DataOutputStream dos = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( indexFile ) ) );
+		dos.writeInt( offsets[0].length - 1 );
+		for( int a = 0; a < offsets.length; ++a )
+			for( int z = 0; z < offsets[a].length; ++z )
+				dos.writeLong( offsets[a][z] );
+		dos.close();
+	}
+
+	/* Returns null if the index is missing or doesn't match the
+	   data files, in which case they have to be read in full. */
+
+	static long [][] readIndex( File indexFile, File [] dataFiles, int modelDepth ) {
+		if( ! indexFile.exists() )
+			return null;
+		try {
+			DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ) ) );
+			try {
+				if( dis.readInt() != modelDepth )
+					return null;
+				long [][] offsets = new long[3][modelDepth + 1];
+				for( int a = 0; a < 3; ++a ) {
+					for( int z = 0; z <= modelDepth; ++z )
+						offsets[a][z] = dis.readLong();
+					if( offsets[a][modelDepth] != dataFiles[a].length() )
+						return null;
+				}
+				return offsets;
+			} finally {
+				dis.close();
+			}
+		} catch( IOException e ) {
+			System.out.println("Ignoring the inverse index: "+e);
+			return null;
+		}
+	}
+
+	static void closeQuietly( OutputStream [] outputs ) {
+		for( int a = 0; a < outputs.length; ++a )
+			if( outputs[a] != null )
+				try {
+					outputs[a].close();
+				} catch( IOException e ) { }
 	}
 
 	static public class Inverse {
@@ -766,9 +1047,17 @@ public class CMTK_Transformation {
 		int modelWidth, modelHeight, modelDepth;
 		int templateWidth, templateHeight, templateDepth;
 
-		short templateX [][];
-		short templateY [][];
-		short templateZ [][];
+		/* For each model slice, the template x, y and z
+		   co-ordinates, if the data files were read in full. */
+		short slices [][][];
+
+		/* Otherwise, if the data files have an index, slices
+		   are only read when they're first used, and the
+		   maxLoadedSlices most recently used ones are kept. */
+		File [] dataFiles;
+		long [][] sliceOffsets;
+		LinkedHashMap<Integer,short[][]> loadedSlices;
+		int maxLoadedSlices = 64;
 
 		Calibration templateCalibration;
 		Calibration modelCalibration;
@@ -795,9 +1084,11 @@ public class CMTK_Transformation {
 				templatePixelHeight = templateCalibration.pixelHeight;
 				templatePixelDepth = templateCalibration.pixelDepth;
 			}
-			templateX = new short[modelDepth][modelWidth*modelHeight];
-			templateY = new short[modelDepth][modelWidth*modelHeight];
-			templateZ = new short[modelDepth][modelWidth*modelHeight];
+			slices = new short[modelDepth][][];
+		}
+
+		public void setMaximumLoadedSlices( int maxLoadedSlices ) {
+			this.maxLoadedSlices = Math.max( 1, maxLoadedSlices );
 		}
 
 		public static Inverse load( File headerFile, File xFile, File yFile, File zFile, ImagePlus template, ImagePlus model ) {
@@ -853,31 +1144,35 @@ public class CMTK_Transformation {
 
 				// Then create the object and read in the data files:
 				result = new Inverse( template, model );
+				result.dataFiles = ni.dataFiles;
+
+				File indexFile = new File( headerFile.getParentFile(), "inverse.index" );
+				result.sliceOffsets = readIndex( indexFile, ni.dataFiles, modelDepth );
+				if( result.sliceOffsets != null ) {
+					final Inverse inverse = result;
+					result.loadedSlices = new LinkedHashMap<Integer,short[][]>( 16, 0.75f, true ) {
+						protected boolean removeEldestEntry( Map.Entry<Integer,short[][]> e ) {
+							return size() > inverse.maxLoadedSlices;
+						}
+					};
+					System.out.println("Reading the inverse's slices when needed");
+					return result;
+				}
+
+				for( int z = 0; z < modelDepth; ++z )
+					result.slices[z] = new short[3][modelWidth*modelHeight];
 
 				for( int i = 0; i < ni.dataFiles.length; ++i ) {
 					File f = ni.dataFiles[i];
-					short [][] target = null;
-					switch( i ) {
-					case 0:
-						target = result.templateX;
-						break;
-					case 1:
-						target = result.templateY;
-						break;
-					case 2:
-						target = result.templateZ;
-						break;
-					default:
-						throw new RuntimeException( "BUG: i is surprising (" + i + ")" );
-					}
 					DataInputStream dis = new DataInputStream( new BufferedInputStream( new GZIPInputStream(new FileInputStream(f)) ));
 					long expectedShorts = modelWidth * modelHeight * modelDepth;
 					for( p = 0; p < expectedShorts; ++p ) {
 						int modelX = (int)( p % modelWidth );
 						int modelY = (int)( (p / modelWidth) % modelHeight );
 						int modelZ = (int)( (p / (modelWidth * modelHeight)) % modelDepth );
-						target[modelZ][modelY*modelWidth+modelX] = dis.readShort();
+						result.slices[modelZ][i][modelY*modelWidth+modelX] = dis.readShort();
 					}
+					dis.close();
 				}
 
 			} catch( Exception e ) {
@@ -890,6 +1185,45 @@ public class CMTK_Transformation {
 			return result;
 		}
 
+		/* Returns the template x, y and z co-ordinates for
+		   model slice z, reading them from the data files if
+		   necessary. */
+
+		short [][] getSlice( int z ) {
+			if( loadedSlices == null )
+				return slices[z];
+			synchronized( this ) {
+				short [][] slice = loadedSlices.get( z );
+				if( slice != null )
+					return slice;
+				slice = new short[3][];
+				try {
+					for( int a = 0; a < 3; ++a )
+						slice[a] = readSlice( dataFiles[a], sliceOffsets[a][z], modelWidth * modelHeight );
+				} catch( IOException e ) {
+					throw new RuntimeException( "Failed to read slice "+z+" of the CMTK inverse: "+e );
+				}
+				loadedSlices.put( z, slice );
+				return slice;
+			}
+		}
+
+		static short [] readSlice( File f, long offset, int n ) throws IOException {
+			FileInputStream fis = new FileInputStream( f );
+			try {
+				fis.getChannel().position( offset );
+				DataInputStream dis = new DataInputStream( new GZIPInputStream( new BufferedInputStream( fis ), 65536 ) );
+				byte [] bytes = new byte[ 2 * n ];
+				dis.readFully( bytes );
+				short [] result = new short[n];
+				for( int i = 0; i < n; ++i )
+					result[i] = (short)( (bytes[2*i] << 8) | (bytes[2*i+1] & 0xff) );
+				return result;
+			} finally {
+				fis.close();
+			}
+		}
+
 		public void transformPoint( double modelX, double modelY, double modelZ, double [] transformed ) {
 			int mix = (int)Math.round( modelX / modelPixelWidth );
 			int miy = (int)Math.round( modelY / modelPixelHeight );
@@ -900,9 +1234,10 @@ public class CMTK_Transformation {
 				transformed[1] = Double.NaN;
 				transformed[2] = Double.NaN;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short [][] slice = getSlice( miz );
+				short transformedX = slice[0][ miy * modelWidth + mix ];
+				short transformedY = slice[1][ miy * modelWidth + mix ];
+				short transformedZ = slice[2][ miy * modelWidth + mix ];
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -927,9 +1262,10 @@ public class CMTK_Transformation {
 				transformed[1] = Integer.MIN_VALUE;
 				transformed[2] = Integer.MIN_VALUE;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short [][] slice = getSlice( miz );
+				short transformedX = slice[0][ miy * modelWidth + mix ];
+				short transformedY = slice[1][ miy * modelWidth + mix ];
+				short transformedZ = slice[2][ miy * modelWidth + mix ];
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -954,9 +1290,10 @@ public class CMTK_Transformation {
 				transformed[1] = Integer.MIN_VALUE;
 				transformed[2] = Integer.MIN_VALUE;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short [][] slice = getSlice( miz );
+				short transformedX = slice[0][ miy * modelWidth + mix ];
+				short transformedY = slice[1][ miy * modelWidth + mix ];
+				short transformedZ = slice[2][ miy * modelWidth + mix ];
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
@@ -981,9 +1318,10 @@ public class CMTK_Transformation {
 				transformed[1] = Double.NaN;
 				transformed[2] = Double.NaN;
 			} else {
-				short transformedX = templateX[miz][ miy * modelWidth + mix ];
-				short transformedY = templateY[miz][ miy * modelWidth + mix ];
-				short transformedZ = templateZ[miz][ miy * modelWidth + mix ];
+				short [][] slice = getSlice( miz );
+				short transformedX = slice[0][ miy * modelWidth + mix ];
+				short transformedY = slice[1][ miy * modelWidth + mix ];
+				short transformedZ = slice[2][ miy * modelWidth + mix ];
 				if( transformedX == Short.MIN_VALUE ||
 				    transformedY == Short.MIN_VALUE ||
 				    transformedZ == Short.MIN_VALUE ) {
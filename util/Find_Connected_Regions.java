@@ -51,6 +51,7 @@ import java.awt.Button;
 import java.awt.Polygon;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import process3d.ConnectedComponents3D;
 
 class CancelDialog extends Dialog implements ActionListener {
 	Button cancel;
@@ -103,6 +104,7 @@ public class Find_Connected_Regions implements PlugIn {
 		String materialName;
 		int value;
 		boolean sameValue;
+		int label;
 
 		public int compareTo(Object otherRegion) {
 			Region o = (Region) otherRegion;
@@ -148,6 +150,7 @@ public class Find_Connected_Regions implements PlugIn {
 		gd.addCheckbox("Regions_must have the same value?", true);
 		gd.addCheckbox("Start_from_point selection?", false);
 		gd.addCheckbox("Autosubtract discovered regions from original image?", false);
+		gd.addCheckbox("Label_all regions in one pass?", false);
 		gd.addNumericField("Regions_for_values_over: ", 0, 0);
 		gd.addNumericField("Minimum_number_of_points in a region", 1, 0);
 		gd.addNumericField("Stop_after this number of regions are found: ", 1, 0);
@@ -163,6 +166,7 @@ public class Find_Connected_Regions implements PlugIn {
 		boolean mustHaveSameValue = gd.getNextBoolean();
 		boolean startFromPointROI = gd.getNextBoolean();
 		boolean autoSubtract = gd.getNextBoolean();
+		boolean onePass = gd.getNextBoolean();
 		double valuesOverDouble = gd.getNextNumber();
 		double minimumPointsInRegionDouble = gd.getNextNumber();
 		int stopAfterNumberOfRegions = (int) gd.getNextNumber();
@@ -240,6 +244,15 @@ public class Find_Connected_Regions implements PlugIn {
 			materialList = parameters.getMaterialList();
 		}
 
+		if (onePass) {
+			if (startFromPointROI || autoSubtract) {
+				IJ.error("Starting from a point selection and subtracting the regions are not possible when labelling all regions in one pass.");
+				return;
+			}
+			labelAllRegions(imagePlus, diagonal, display, showResults, mustHaveSameValue, valuesOverDouble, minimumPointsInRegionDouble, stopAfterNumberOfRegions, materialList);
+			return;
+		}
+
 		ArrayList<Region> results = new ArrayList<Region>();
 
 		ImageStack stack = imagePlus.getStack();
@@ -400,104 +413,8 @@ public class Find_Connected_Regions implements PlugIn {
 			if (materialList != null) {
 				materialName = materialList[vint];
 			}
-			int pointsInQueue = 0;
-			int queueArrayLength = 1024;
-			int[] queue = new int[queueArrayLength];
-
 			byte[] pointState = new byte[depth * width * height];
-			int i = width * (initial_z * height + initial_y) + initial_x;
-			pointState[i] = IN_QUEUE;
-			queue[pointsInQueue++] = i;
-
-			int pointsInThisRegion = 0;
-
-			while (pointsInQueue > 0) {
-
-				if(pleaseStop)
-					break;
-
-				int nextIndex = queue[--pointsInQueue];
-
-				int currentPointStateIndex = nextIndex;
-				int pz = nextIndex / (width * height);
-				int currentSliceIndex = nextIndex % (width * height);
-				int py = currentSliceIndex / width;
-				int px = currentSliceIndex % width;
-
-				pointState[currentPointStateIndex] = ADDED;
-
-				if (byteImage) {
-					sliceDataBytes[pz][currentSliceIndex] = 0;
-				} else {
-					sliceDataFloats[pz][currentSliceIndex] = Float.MIN_VALUE;
-				}
-				++pointsInThisRegion;
-
-				int x_unchecked_min = px - 1;
-				int y_unchecked_min = py - 1;
-				int z_unchecked_min = pz - 1;
-
-				int x_unchecked_max = px + 1;
-				int y_unchecked_max = py + 1;
-				int z_unchecked_max = pz + 1;
-
-				int x_min = (x_unchecked_min < 0) ? 0 : x_unchecked_min;
-				int y_min = (y_unchecked_min < 0) ? 0 : y_unchecked_min;
-				int z_min = (z_unchecked_min < 0) ? 0 : z_unchecked_min;
-
-				int x_max = (x_unchecked_max >= width) ? width - 1 : x_unchecked_max;
-				int y_max = (y_unchecked_max >= height) ? height - 1 : y_unchecked_max;
-				int z_max = (z_unchecked_max >= depth) ? depth - 1 : z_unchecked_max;
-
-				for (int z = z_min; z <= z_max; ++z) {
-					for (int y = y_min; y <= y_max; ++y) {
-						for (int x = x_min; x <= x_max; ++x) {
-
-							// If we're not including diagonals,
-							// skip those points.
-							if ((!diagonal) && (x == x_unchecked_min || x == x_unchecked_max) && (y == y_unchecked_min || y == y_unchecked_max) && (z == z_unchecked_min || z == z_unchecked_max)) {
-								continue;
-							}
-							int newSliceIndex = y * width + x;
-							int newPointStateIndex = width * (z * height + y) + x;
-
-							if (byteImage) {
-
-								int neighbourValue = sliceDataBytes[z][newSliceIndex] & 0xFF;
-
-								if (mustHaveSameValue) {
-									if (neighbourValue != vint) {
-										continue;
-									}
-								} else {
-									if (neighbourValue <= valuesOverDouble) {
-										continue;
-									}
-								}
-							} else {
-
-								float neighbourValue = sliceDataFloats[z][newSliceIndex];
-
-								if (neighbourValue <= valuesOverDouble) {
-									continue;
-								}
-							}
-
-							if (0 == pointState[newPointStateIndex]) {
-								pointState[newPointStateIndex] = IN_QUEUE;
-								if (pointsInQueue == queueArrayLength) {
-									int newArrayLength = (int) (queueArrayLength * 1.2);
-									int[] newArray = new int[newArrayLength];
-									System.arraycopy(queue, 0, newArray, 0, pointsInQueue);
-									queue = newArray;
-									queueArrayLength = newArrayLength;
-								}
-								queue[pointsInQueue++] = newPointStateIndex;
-							}
-						}
-					}
-				}
-			}
+			int pointsInThisRegion = fillRegion(sliceDataBytes, sliceDataFloats, width, height, depth, initial_x, initial_y, initial_z, diagonal, mustHaveSameValue, vint, valuesOverDouble, pointState);
 
 			if(pleaseStop)
 				break;
@@ -598,4 +515,172 @@ public class Find_Connected_Regions implements PlugIn {
 			rt.show("Results");
 		
 	}
+
+	/* Flood fills the region which contains the initial point: its
+	 * points are marked as ADDED in pointState and cleared in the
+	 * slice data (which is null for the type that is not used).
+	 * Returns the number of points in the region. */
+	int fillRegion(byte[][] sliceDataBytes, float[][] sliceDataFloats, int width, int height, int depth, int initial_x, int initial_y, int initial_z, boolean diagonal, boolean mustHaveSameValue, int vint, double valuesOverDouble, byte[] pointState) {
+
+		boolean byteImage = sliceDataBytes != null;
+
+		int pointsInQueue = 0;
+		int queueArrayLength = 1024;
+		int[] queue = new int[queueArrayLength];
+
+		int i = width * (initial_z * height + initial_y) + initial_x;
+		pointState[i] = IN_QUEUE;
+		queue[pointsInQueue++] = i;
+
+		int pointsInThisRegion = 0;
+
+		while (pointsInQueue > 0) {
+
+			if(pleaseStop)
+				break;
+
+			int nextIndex = queue[--pointsInQueue];
+
+			int currentPointStateIndex = nextIndex;
+			int pz = nextIndex / (width * height);
+			int currentSliceIndex = nextIndex % (width * height);
+			int py = currentSliceIndex / width;
+			int px = currentSliceIndex % width;
+
+			pointState[currentPointStateIndex] = ADDED;
+
+			if (byteImage) {
+				sliceDataBytes[pz][currentSliceIndex] = 0;
+			} else {
+				sliceDataFloats[pz][currentSliceIndex] = Float.MIN_VALUE;
+			}
+			++pointsInThisRegion;
+
+			int x_unchecked_min = px - 1;
+			int y_unchecked_min = py - 1;
+			int z_unchecked_min = pz - 1;
+
+			int x_unchecked_max = px + 1;
+			int y_unchecked_max = py + 1;
+			int z_unchecked_max = pz + 1;
+
+			int x_min = (x_unchecked_min < 0) ? 0 : x_unchecked_min;
+			int y_min = (y_unchecked_min < 0) ? 0 : y_unchecked_min;
+			int z_min = (z_unchecked_min < 0) ? 0 : z_unchecked_min;
+
+			int x_max = (x_unchecked_max >= width) ? width - 1 : x_unchecked_max;
+			int y_max = (y_unchecked_max >= height) ? height - 1 : y_unchecked_max;
+			int z_max = (z_unchecked_max >= depth) ? depth - 1 : z_unchecked_max;
+
+			for (int z = z_min; z <= z_max; ++z) {
+				for (int y = y_min; y <= y_max; ++y) {
+					for (int x = x_min; x <= x_max; ++x) {
+
+						// If we're not including diagonals,
+						// skip those points.
+						if ((!diagonal) && (x == x_unchecked_min || x == x_unchecked_max) && (y == y_unchecked_min || y == y_unchecked_max) && (z == z_unchecked_min || z == z_unchecked_max)) {
+							continue;
+						}
+						int newSliceIndex = y * width + x;
+						int newPointStateIndex = width * (z * height + y) + x;
+
+						if (byteImage) {
+
+							int neighbourValue = sliceDataBytes[z][newSliceIndex] & 0xFF;
+
+							if (mustHaveSameValue) {
+								if (neighbourValue != vint) {
+									continue;
+								}
+							} else {
+								if (neighbourValue <= valuesOverDouble) {
+									continue;
+								}
+							}
+						} else {
+
+							float neighbourValue = sliceDataFloats[z][newSliceIndex];
+
+							if (neighbourValue <= valuesOverDouble) {
+								continue;
+							}
+						}
+
+						if (0 == pointState[newPointStateIndex]) {
+							pointState[newPointStateIndex] = IN_QUEUE;
+							if (pointsInQueue == queueArrayLength) {
+								int newArrayLength = (int) (queueArrayLength * 1.2);
+								int[] newArray = new int[newArrayLength];
+								System.arraycopy(queue, 0, newArray, 0, pointsInQueue);
+								queue = newArray;
+								queueArrayLength = newArrayLength;
+							}
+							queue[pointsInQueue++] = newPointStateIndex;
+						}
+					}
+				}
+			}
+		}
+		return pointsInThisRegion;
+	}
+
+	/* Labels the same regions as fillRegion() finds: without
+	 * diagonal connections, only the corners of the 3x3x3
+	 * neighbourhood are skipped, so that is 18-connectivity. */
+	ConnectedComponents3D labelRegions(ImagePlus imagePlus, boolean diagonal, boolean mustHaveSameValue, double valuesOverDouble) {
+		ConnectedComponents3D components = new ConnectedComponents3D(diagonal ? 26 : 18);
+		components.setSameValue(mustHaveSameValue);
+		components.label(imagePlus, valuesOverDouble);
+		return components;
+	}
+
+	/* Labels all regions with a single scan of the image instead of
+	 * flood filling them one after the other.  One image with the
+	 * labels of all regions is shown, and the table lists the largest
+	 * regions with their bounding boxes and centroids. */
+	void labelAllRegions(ImagePlus imagePlus, boolean diagonal, boolean display, boolean showResults, boolean mustHaveSameValue, double valuesOverDouble, double minimumPointsInRegionDouble, int stopAfterNumberOfRegions, String[] materialList) {
+
+		ConnectedComponents3D components = labelRegions(imagePlus, diagonal, mustHaveSameValue, valuesOverDouble);
+		int n = components.getRegionCount();
+
+		boolean byteImage = imagePlus.getBitDepth() == 8;
+		ArrayList<Region> results = new ArrayList<Region>();
+		for (int label = 1; label <= n; ++label) {
+			int points = components.getVoxelCount(label);
+			if (points < minimumPointsInRegionDouble)
+				continue;
+			Region region;
+			if (byteImage) {
+				int value = (int) components.getValue(label);
+				String materialName = materialList == null ? null : materialList[value];
+				region = new Region(value, materialName, points, mustHaveSameValue);
+			} else {
+				region = new Region(points, mustHaveSameValue);
+			}
+			region.label = label;
+			results.add(region);
+		}
+
+		Collections.sort(results, Collections.reverseOrder());
+		if (stopAfterNumberOfRegions > 0 && results.size() > stopAfterNumberOfRegions)
+			results.subList(stopAfterNumberOfRegions, results.size()).clear();
+
+		if (display) {
+			ImagePlus labels = components.getLabelImage("Regions of " + imagePlus.getTitle());
+			labels.setCalibration(imagePlus.getCalibration());
+			labels.show();
+		}
+
+		if (showResults) {
+			ResultsTable rt = ResultsTable.getResultsTable();
+			rt.reset();
+			Calibration calibration = imagePlus.getCalibration();
+			for (Region r : results) {
+				components.addRow(rt, r.label, calibration);
+				if (r.materialName != null)
+					rt.addLabel("Material Name", r.materialName);
+			}
+			rt.show("Results");
+		}
+	}
 }
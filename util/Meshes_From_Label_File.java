@@ -14,12 +14,12 @@ import amira.AmiraMeshEncoder;
 import amira.AmiraParameters;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.Macro;
 import ij.plugin.PlugIn;
-import ij.process.ByteProcessor;
+import isosurface.IndexedTriangleMesh;
 import java.io.File;
 import marchingcubes.ExportMesh_;
+import marchingcubes.MCTriangulator;
 
 public class Meshes_From_Label_File implements PlugIn {
 
@@ -77,42 +77,30 @@ public class Meshes_From_Label_File implements PlugIn {
 			return;
 		}		
 
-		int width = imagePlus.getWidth();
-		int height = imagePlus.getHeight();
-		int depth = imagePlus.getStackSize();
-		
+		/* All the materials are triangulated in one pass over the
+		   label field.  The meshes are the same as the ones for a
+		   binary image (255 inside the material) of each
+		   material; as before, that image has no calibration: */
+
+		ImagePlus uncalibrated = new ImagePlus( "", imagePlus.getStack() );
+
+		MCTriangulator triangulator = new MCTriangulator();
+		IndexedTriangleMesh [] meshes = triangulator.getLabelTriangles( uncalibrated, 128, 2 );
+
+		ExportMesh_ exporter=new ExportMesh_();
+
 		for( int m = 1; m < materialList.length; ++m ) {
 			
 			double [] c = parameters.getMaterialColor(m);
 			String materialName = materialList[m];
 
-			ImageStack newStack = new ImageStack(width,height);
-			
-			ImageStack stack = imagePlus.getStack();
-			
-			for( int z = 0; z < depth; ++z ) {
-				byte [] newPixels=new byte[width*height];
-				byte [] pixels = (byte[]) stack.getPixels(z+1);
-				for( int p = 0; p < width * height; ++p ) {
-					int value = pixels[p] & 0xFF;
-					if( value == m )
-						newPixels[p] = (byte)255;
-				}
-				ByteProcessor bp=new ByteProcessor(width,height);
-				bp.setPixels(newPixels);
-				newStack.addSlice("",bp);
-			}
-
-			ImagePlus newImagePlus=new ImagePlus("",newStack);
-
-			ExportMesh_ exporter=new ExportMesh_();
-			boolean channels[] = { true, true, true };
-			
+			IndexedTriangleMesh mesh = m < meshes.length ? meshes[m] : null;
+			if( mesh == null )
+				mesh = new IndexedTriangleMesh();
+
 			String outputFilename = outputDirectory + File.separator +
 				c[0] + "_" + c[1] + "_" + c[2] + "_" + materialName + ".obj";
-			exporter.exportToMesh( newImagePlus, 128, 2, channels, outputFilename );
-
-			newImagePlus.close();
+			exporter.exportToMesh( mesh, outputFilename );
 		}			
 	}
 }
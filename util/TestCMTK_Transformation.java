@@ -0,0 +1,185 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/* Checks the row-wise evaluation of CMTK warps (AxisWeights and
+   transformRow) against transformPoint, which sums the 4x4x4
+   control points of each point separately, and that inverse()
+   copes with a failing block. */
+
+public class TestCMTK_Transformation {
+
+	static CMTK_Transformation randomWarp( int dimsx, int dimsy, int dimsz, long seed ) {
+		Random random = new Random( seed );
+		double domainx = 40, domainy = 30, domainz = 20;
+		double [][] coeffs = new double[dimsx*dimsy*dimsz][3];
+		for( int k = 0; k < dimsz; ++k )
+			for( int j = 0; j < dimsy; ++j )
+				for( int i = 0; i < dimsx; ++i ) {
+					double [] c = coeffs[i + dimsx * (j + dimsy * k)];
+					c[0] = (i - 1) * domainx / (dimsx - 3) + 3 * random.nextGaussian();
+					c[1] = (j - 1) * domainy / (dimsy - 3) + 3 * random.nextGaussian();
+					c[2] = (k - 1) * domainz / (dimsz - 3) + 3 * random.nextGaussian();
+				}
+		return new CMTK_Transformation( dimsx, dimsy, dimsz,
+						domainx, domainy, domainz,
+						0, 0, 0, coeffs );
+	}
+
+	@Test
+	public void testTransformRow() {
+		CMTK_Transformation t = randomWarp( 7, 6, 5, 1 );
+		/* The last spacings make the template reach beyond the
+		   domain, where the cells are capped. */
+		double [][] spacings = { { 1, 1, 1 }, { 0.7, 1.3, 2.1 }, { 1.9, 1.4, 1.6 } };
+		int tw = 31, th = 23, td = 13;
+		double [] partial = new double[ 3 * t.dimsx ];
+		double [] row = new double[ 3 * tw ];
+		double [] expected = new double[3];
+		for( int s = 0; s < spacings.length; ++s ) {
+			double xs = spacings[s][0], ys = spacings[s][1], zs = spacings[s][2];
+			CMTK_Transformation.AxisWeights xWeights = new CMTK_Transformation.AxisWeights( tw, xs, t.deltax, t.dimsx );
+			CMTK_Transformation.AxisWeights yWeights = new CMTK_Transformation.AxisWeights( th, ys, t.deltay, t.dimsy );
+			CMTK_Transformation.AxisWeights zWeights = new CMTK_Transformation.AxisWeights( td, zs, t.deltaz, t.dimsz );
+			for( int zi = 0; zi < td; ++zi )
+				for( int yi = 0; yi < th; ++yi ) {
+					t.transformRow( xWeights, yWeights.cell[yi], yWeights.weights, 4 * yi, zWeights.cell[zi], zWeights.weights, 4 * zi, partial, row );
+					for( int xi = 0; xi < tw; ++xi ) {
+						t.transformPoint( xi * xs, yi * ys, zi * zs, expected );
+						for( int d = 0; d < 3; ++d )
+							assertEquals( "point " + xi + ", " + yi + ", " + zi,
+								      expected[d], row[3*xi+d],
+								      1e-9 * (1 + Math.abs( expected[d] )) );
+					}
+				}
+		}
+	}
+
+	static ImagePlus randomImage( int w, int h, int d, double spacing, long seed ) {
+		Random random = new Random( seed );
+		ImageStack stack = new ImageStack( w, h );
+		for( int z = 0; z < d; ++z ) {
+			byte [] pixels = new byte[w*h];
+			random.nextBytes( pixels );
+			stack.addSlice( "", new ByteProcessor( w, h, pixels, null ) );
+		}
+		ImagePlus image = new ImagePlus( "random", stack );
+		Calibration calibration = new Calibration();
+		calibration.pixelWidth = calibration.pixelHeight = calibration.pixelDepth = spacing;
+		image.setCalibration( calibration );
+		return image;
+	}
+
+	/* The old transform(): transformPoint and interpolate for each
+	   template voxel. */
+
+	static byte [][] transformPerVoxel( CMTK_Transformation t, ImagePlus template, ImagePlus model ) {
+		int tw = template.getWidth(), th = template.getHeight(), td = template.getStackSize();
+		int mw = model.getWidth(), mh = model.getHeight(), md = model.getStackSize();
+		Calibration tc = template.getCalibration(), mc = model.getCalibration();
+		byte [][] modelBytes = new byte[md][];
+		for( int z = 0; z < md; ++z )
+			modelBytes[z] = (byte[])model.getStack().getPixels( z + 1 );
+		byte [][] result = new byte[td][tw*th];
+		double [] transformed = new double[3];
+		for( int z = 0; z < td; ++z )
+			for( int y = 0; y < th; ++y )
+				for( int x = 0; x < tw; ++x ) {
+					t.transformPoint( x * tc.pixelWidth, y * tc.pixelHeight, z * tc.pixelDepth, transformed );
+					result[z][y*tw+x] = t.trilinearInterpolateByte(
+						transformed[0] / mc.pixelWidth,
+						transformed[1] / mc.pixelHeight,
+						transformed[2] / mc.pixelDepth,
+						mw, mh, md, modelBytes );
+				}
+		return result;
+	}
+
+	@Test
+	public void testTransform() {
+		CMTK_Transformation t = randomWarp( 8, 7, 6, 2 );
+		ImagePlus template = randomImage( 37, 29, 17, 1.2, 3 );
+		ImagePlus model = randomImage( 41, 33, 21, 1.0, 4 );
+		byte [][] expected = transformPerVoxel( t, template, model );
+		for( int threads = 1; threads <= 3; threads += 2 ) {
+			t.setNumberOfThreads( threads );
+			ImagePlus result = t.transform( template, model );
+			assertEquals( expected.length, result.getStackSize() );
+			int differing = 0;
+			for( int z = 0; z < expected.length; ++z ) {
+				byte [] pixels = (byte[])result.getStack().getPixels( z + 1 );
+				for( int i = 0; i < pixels.length; ++i ) {
+					/* Rounding may differ where the
+					   interpolated value is very close to
+					   n + 0.5 */
+					int difference = Math.abs( (expected[z][i] & 0xff) - (pixels[i] & 0xff) );
+					assertTrue( "voxel " + i + " of slice " + z, difference <= 1 );
+					if( difference != 0 )
+						++differing;
+				}
+			}
+			assertTrue( differing + " voxels differ", differing * 1000 < expected.length * expected[0].length );
+		}
+	}
+
+	/* A failure in one block of inverse() must neither leave the
+	   threads with later blocks waiting for their turn, nor get
+	   lost. */
+
+	@Test(timeout=60000)
+	public void testInverseFailure() throws Exception {
+		final CMTK_Transformation warp = randomWarp( 8, 7, 6, 5 );
+		final int tw = 19, th = 15, td = 9;
+		final AtomicInteger rows = new AtomicInteger( 0 );
+		CMTK_Transformation t = new CMTK_Transformation( warp.dimsx, warp.dimsy, warp.dimsz,
+								 40, 30, 20, 0, 0, 0, warp.coeffs ) {
+			void transformRow( AxisWeights xWeights,
+					   int gridj, double [] yWeights, int yOffset,
+					   int gridk, double [] zWeights, int zOffset,
+					   double [] partial, double [] result ) {
+				/* The first td * th rows only find the
+				   range of model slices of each row. */
+				if( rows.incrementAndGet() == td * th + 2 * th )
+					throw new IllegalStateException( "test failure" );
+				super.transformRow( xWeights, gridj, yWeights, yOffset, gridk, zWeights, zOffset, partial, result );
+			}
+		};
+		File directory = File.createTempFile( "cmtk", "" );
+		directory.delete();
+		directory.mkdir();
+		try {
+			t.setOriginalFile( new File( directory, "registration" ) );
+			t.setNumberOfThreads( 3 );
+			t.setInverseBlockDepth( 2 );
+			try {
+				t.inverse( randomImage( tw, th, td, 1.5, 6 ),
+					   randomImage( 27, 21, 13, 1.0, 7 ) );
+				fail( "The failure in a block was lost" );
+			} catch( IllegalStateException e ) {
+				assertEquals( "test failure", e.getMessage() );
+			}
+			assertFalse( t.precalculatedInverseExists() );
+			assertEquals( 0, directory.list().length );
+		} finally {
+			File [] files = directory.listFiles();
+			for( int i = 0; i < files.length; ++i )
+				files[i].delete();
+			directory.delete();
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import process3d.ConnectedComponents3D;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/* Checks that labelling all regions in one pass finds the same
+ * regions as flood filling them one after the other. */
+
+public class TestFind_Connected_Regions {
+
+	static final int WIDTH = 19, HEIGHT = 15, DEPTH = 9;
+
+	static ImagePlus createImage(boolean byteImage, long seed) {
+		Random random = new Random(seed);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int z = 0; z < DEPTH; ++z) {
+			if (byteImage) {
+				byte[] pixels = new byte[WIDTH * HEIGHT];
+				for (int i = 0; i < pixels.length; ++i)
+					pixels[i] = (byte) random.nextInt(4);
+				stack.addSlice("", new ByteProcessor(WIDTH, HEIGHT, pixels, null));
+			} else {
+				float[] pixels = new float[WIDTH * HEIGHT];
+				for (int i = 0; i < pixels.length; ++i)
+					pixels[i] = random.nextInt(3) == 0 ? 0 : random.nextFloat() + 0.5f;
+				stack.addSlice("", new FloatProcessor(WIDTH, HEIGHT, pixels, null));
+			}
+		}
+		return new ImagePlus("random", stack);
+	}
+
+	void check(ImagePlus image, boolean diagonal, boolean mustHaveSameValue, double valuesOver) {
+		String what = (diagonal ? "diagonal" : "no diagonal") + (mustHaveSameValue ? ", same value" : "");
+		Find_Connected_Regions plugin = new Find_Connected_Regions();
+		ConnectedComponents3D components = plugin.labelRegions(image, diagonal, mustHaveSameValue, valuesOver);
+		int[][] labels = components.getLabels();
+
+		boolean byteImage = image.getBitDepth() == 8;
+		byte[][] bytes = byteImage ? new byte[DEPTH][] : null;
+		float[][] floats = byteImage ? null : new float[DEPTH][];
+		for (int z = 0; z < DEPTH; ++z) {
+			Object pixels = image.getStack().getPixels(z + 1);
+			if (byteImage)
+				bytes[z] = (byte[]) ((byte[]) pixels).clone();
+			else
+				floats[z] = (float[]) ((float[]) pixels).clone();
+		}
+
+		// Fill from each point which is not part of a filled region yet:
+		boolean[] seen = new boolean[components.getRegionCount() + 1];
+		int regions = 0;
+		for (int z = 0; z < DEPTH; ++z)
+			for (int y = 0; y < HEIGHT; ++y)
+				for (int x = 0; x < WIDTH; ++x) {
+					int i = y * WIDTH + x;
+					int value = byteImage ? bytes[z][i] & 0xFF : 0;
+					if (byteImage ? value <= valuesOver : floats[z][i] <= valuesOver)
+						continue;
+					byte[] pointState = new byte[WIDTH * HEIGHT * DEPTH];
+					int points = plugin.fillRegion(bytes, floats, WIDTH, HEIGHT, DEPTH, x, y, z, diagonal, mustHaveSameValue, value, valuesOver, pointState);
+					++regions;
+
+					int label = labels[z][i];
+					assertEquals(what + ": a second region with label " + label, false, seen[label]);
+					seen[label] = true;
+					assertEquals(what + ": points of region " + label, components.getVoxelCount(label), points);
+					for (int j = 0; j < pointState.length; ++j)
+						if (pointState[j] != 0)
+							assertEquals(what + ": label of point " + j, label, labels[j / (WIDTH * HEIGHT)][j % (WIDTH * HEIGHT)]);
+				}
+		assertEquals(what + ": number of regions", components.getRegionCount(), regions);
+	}
+
+	@Test
+	public void testOnePassAgainstFloodFill() {
+		for (int d = 0; d < 2; ++d) {
+			boolean diagonal = d == 1;
+			check(createImage(true, 1), diagonal, false, 0);
+			check(createImage(true, 2), diagonal, false, 1);
+			check(createImage(true, 3), diagonal, true, 0);
+			check(createImage(false, 4), diagonal, false, 0.25);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestThreads {
+
+	@Test
+	public void testEveryIndexOnce() {
+		final int [] counts = new int[1000];
+		Threads.forEachIndex( counts.length, 4, new Threads.Task() {
+			public void run( int i ) {
+				synchronized( counts ) {
+					++ counts[i];
+				}
+			}
+		} );
+		for( int i = 0; i < counts.length; ++i )
+			assertEquals( "index " + i, 1, counts[i] );
+	}
+
+	@Test
+	public void testErrorIsRethrown() {
+		final OutOfMemoryError error = new OutOfMemoryError( "worker" );
+		final AtomicInteger calls = new AtomicInteger( 0 );
+		try {
+			Threads.forEachIndex( 100000, 4, new Threads.Task() {
+				public void run( int i ) {
+					calls.incrementAndGet();
+					if( i == 10 )
+						throw error;
+				}
+			} );
+			fail( "the worker's error was swallowed" );
+		} catch( OutOfMemoryError e ) {
+			assertSame( error, e );
+		}
+		// the other threads stop taking new indices:
+		assertTrue( calls.get() < 100000 );
+	}
+
+	@Test
+	public void testExceptionIsRethrown() {
+		final IllegalStateException exception = new IllegalStateException( "worker" );
+		final AtomicInteger calls = new AtomicInteger( 0 );
+		try {
+			Threads.run( new Runnable() {
+				public void run() {
+					if( calls.incrementAndGet() == 2 )
+						throw exception;
+				}
+			}, 3 );
+			fail( "the worker's exception was swallowed" );
+		} catch( IllegalStateException e ) {
+			assertSame( exception, e );
+		}
+		assertEquals( 3, calls.get() );
+	}
+}
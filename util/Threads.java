@@ -0,0 +1,85 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Helpers for running work on a few short-lived worker threads and
+    waiting for them.  Whatever a worker throws (including Errors
+    such as OutOfMemoryError) is rethrown in the calling thread once
+    all the workers have finished, so that a failure can't be mistaken
+    for a (partial) result. */
+
+public class Threads {
+
+	/** Something which is done for each of n indices (slices, rows,
+	    ...); run() is called from several threads at the same time. */
+	public interface Task {
+		void run( int index );
+	}
+
+	/** Calls task.run(i) for i = 0, ..., n - 1 on at most
+	    numberOfThreads threads and waits until all are done.  If
+	    one call fails, the remaining indices are skipped and the
+	    failure is rethrown. */
+	public static void forEachIndex( final int n, int numberOfThreads, final Task task ) {
+		final AtomicInteger next = new AtomicInteger( 0 );
+		run( new Runnable() {
+			public void run() {
+				try {
+					int i;
+					while( ( i = next.getAndIncrement() ) < n )
+						task.run( i );
+				} catch( RuntimeException e ) {
+					next.set( n );
+					throw e;
+				} catch( Error e ) {
+					next.set( n );
+					throw e;
+				}
+			}
+		}, Math.min( numberOfThreads, n ) );
+	}
+
+	/** Runs body on numberOfThreads threads at the same time (or
+	    in this thread if numberOfThreads is at most 1) and waits
+	    until all have returned.  The first failure of any of them
+	    is rethrown. */
+	public static void run( final Runnable body, int numberOfThreads ) {
+		if( numberOfThreads <= 1 ) {
+			body.run();
+			return;
+		}
+		final Throwable [] failure = { null };
+		Thread [] threads = new Thread[numberOfThreads];
+		for( int t = 0; t < threads.length; ++t ) {
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						body.run();
+					} catch( Throwable e ) {
+						synchronized( failure ) {
+							if( failure[0] == null )
+								failure[0] = e;
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		try {
+			for( int t = 0; t < threads.length; ++t )
+				threads[t].join();
+		} catch( InterruptedException e ) {
+			throw new RuntimeException( "Interrupted while waiting for the worker threads", e );
+		}
+		synchronized( failure ) {
+			if( failure[0] instanceof Error )
+				throw (Error)failure[0];
+			if( failure[0] instanceof RuntimeException )
+				throw (RuntimeException)failure[0];
+			if( failure[0] != null )
+				throw new RuntimeException( failure[0] );
+		}
+	}
+}
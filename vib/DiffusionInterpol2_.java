@@ -272,7 +272,19 @@ public class DiffusionInterpol2_ implements PlugInFilter {
 		displace[dk][3 * (dj * template.w + di) + 2] = displace[k][3 * (j * template.w + i) + 2];
 	}
 
+	/*
+	 * If set, the diffusion is solved with V-cycles on several grids
+	 * (see DiffusionMultigrid); otherwise with the original sweeps
+	 * from level 16 down to level 1.
+	 */
+	boolean multigrid = true;
+
 	void iterate(float tolerance, boolean fine) {
+		if (multigrid) {
+			iterateMultigrid(tolerance, fine);
+			return;
+		}
+
 		VIB.showStatus("diffusion in progress");
 
 		level = fine ? 1 : 16;
@@ -283,8 +295,11 @@ public class DiffusionInterpol2_ implements PlugInFilter {
 
 				VIB.showStatus("Level " + level + ", Iteration " + i + " (delta was "+mdelta+")");
 
-				if (iterateNormal() < tol)
+				if (iterateNormal() < tol) {
+					VIB.println("Level " + level + ": " + i
+						+ " iterations, delta " + mdelta);
 					break;
+				}
 
 			}
 
@@ -308,6 +323,23 @@ public class DiffusionInterpol2_ implements PlugInFilter {
 		}
 	}
 
+	void iterateMultigrid(float tolerance, boolean fine) {
+		VIB.showStatus("diffusion in progress (multigrid)");
+
+		boolean[][] fixed = new boolean[template.d][template.w * template.h];
+		for (int k = 0; k < template.d; k++)
+			for (int j = 0; j < template.h; j++)
+				for (int i = 0; i < template.w; i++)
+					fixed[k][j * template.w + i] =
+						templateLabels.getNoInterpol(i, j, k) != 0;
+
+		DiffusionMultigrid solver = new DiffusionMultigrid(displace,
+				fixed, template.w, template.h, template.d,
+				fine ? 1 : 5);
+		solver.solve(tolerance);
+		solver.report();
+	}
+
 	void apply() {
 		VIB.showStatus("Applying displacement");
 
@@ -0,0 +1,491 @@
+/***************************************************************
+ *
+ * DiffusionMultigrid
+ *
+ * multigrid solver for the diffusion in DiffusionInterpol2_
+ *
+ ***************************************************************/
+
+package vib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import util.Threads;
+
+/*
+ * Relaxes a displacement field (3 floats per voxel, one array per
+ * slice, like DiffusionInterpol2_.displace) so that each free voxel
+ * is the average of its 6 neighbours, while the fixed voxels keep
+ * their values.  At the borders of the volume the neighbours are
+ * mirrored.
+ *
+ * This is done with V-cycles: a red-black Gauss-Seidel smoother runs
+ * on each grid, and the residual is restricted (full weighting) to a
+ * grid with half the resolution, where the correction is computed
+ * and then prolongated (trilinearly) back.  The voxels of one colour
+ * only depend on voxels of the other colour, so each half-sweep is
+ * done in parallel over the slices, and the result does not depend
+ * on the number of threads.
+ */
+public class DiffusionMultigrid {
+
+	/* One grid of the hierarchy; grid 0 is the field itself. */
+	static class Grid {
+		int w, h, d;
+		float[][] u;
+		float[][] f; // right hand side; null on grid 0
+		boolean[][] fixed;
+		int[] prevX, nextX, prevY, nextY, prevZ, nextZ;
+
+		int sweeps;
+		float firstResidual = -1, lastResidual;
+
+		Grid(int w, int h, int d, float[][] u, float[][] f,
+				boolean[][] fixed) {
+			this.w = w;
+			this.h = h;
+			this.d = d;
+			this.u = u;
+			this.f = f;
+			this.fixed = fixed;
+			prevX = new int[w]; nextX = new int[w];
+			prevY = new int[h]; nextY = new int[h];
+			prevZ = new int[d]; nextZ = new int[d];
+			mirror(w, prevX, nextX);
+			mirror(h, prevY, nextY);
+			mirror(d, prevZ, nextZ);
+		}
+
+		static void mirror(int n, int[] prev, int[] next) {
+			for (int i = 0; i < n; i++) {
+				prev[i] = i > 0 ? i - 1 : Math.min(i + 1, n - 1);
+				next[i] = i + 1 < n ? i + 1 : Math.max(i - 1, 0);
+			}
+		}
+
+		void residual(float value) {
+			if (firstResidual < 0)
+				firstResidual = value;
+			lastResidual = value;
+		}
+	}
+
+	Grid[] grids;
+
+	int nThreads = Runtime.getRuntime().availableProcessors();
+	int preSmoothing = 2, postSmoothing = 2;
+	int maxCoarsestSweeps = 100;
+	int maxCycles = 500;
+
+	int cycles;
+	float lastDelta, lastResidual;
+
+	/*
+	 * displace is changed in place; fixed[k][j * w + i] says whether
+	 * the voxel (i, j, k) keeps its value.  At most maxLevels grids
+	 * are used, and none with a dimension smaller than 3 voxels
+	 * (unless it is the first one) or without fixed voxels.
+	 */
+	public DiffusionMultigrid(float[][] displace, boolean[][] fixed,
+			int w, int h, int d, int maxLevels) {
+		int n = 1;
+		for (int w1 = w, h1 = h, d1 = d; n < maxLevels; n++) {
+			w1 = (w1 + 1) / 2;
+			h1 = (h1 + 1) / 2;
+			d1 = (d1 + 1) / 2;
+			if (w1 < 3 || h1 < 3 || d1 < 3)
+				break;
+		}
+
+		ArrayList<Grid> list = new ArrayList<Grid>();
+		list.add(new Grid(w, h, d, displace, null, fixed));
+		while (list.size() < n) {
+			Grid fine = list.get(list.size() - 1);
+			int w1 = (fine.w + 1) / 2;
+			int h1 = (fine.h + 1) / 2;
+			int d1 = (fine.d + 1) / 2;
+			boolean[][] fixed1 = coarsen(fine, w1, h1, d1);
+			if (fixed1 == null)
+				break;
+			float[][] u = new float[d1][3 * w1 * h1];
+			float[][] f = new float[d1][3 * w1 * h1];
+			list.add(new Grid(w1, h1, d1, u, f, fixed1));
+		}
+		grids = list.toArray(new Grid[list.size()]);
+	}
+
+	/*
+	 * A coarse voxel is fixed if at least half of the fine voxels it
+	 * is restricted from (with the restriction weights) are fixed.
+	 * Returns null if no coarse voxel would be fixed, since then the
+	 * coarse problem has no unique solution.
+	 */
+	static boolean[][] coarsen(Grid fine, int w1, int h1, int d1) {
+		boolean[][] fixed = new boolean[d1][w1 * h1];
+		float[] weights = { 0.25f, 0.5f, 0.25f };
+		boolean any = false;
+		for (int k = 0; k < d1; k++)
+			for (int j = 0; j < h1; j++)
+				for (int i = 0; i < w1; i++) {
+					int[] zs = { fine.prevZ[2 * k], 2 * k, fine.nextZ[2 * k] };
+					int[] ys = { fine.prevY[2 * j], 2 * j, fine.nextY[2 * j] };
+					int[] xs = { fine.prevX[2 * i], 2 * i, fine.nextX[2 * i] };
+					float sum = 0;
+					for (int z = 0; z < 3; z++)
+						for (int y = 0; y < 3; y++)
+							for (int x = 0; x < 3; x++)
+								if (fine.fixed[zs[z]][ys[y] * fine.w + xs[x]])
+									sum += weights[z] * weights[y] * weights[x];
+					if (sum >= 0.5f)
+						any = fixed[k][j * w1 + i] = true;
+				}
+		return any ? fixed : null;
+	}
+
+	public void setNumberOfThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/*
+	 * Runs V-cycles until the largest change (the sum of the
+	 * absolute changes of the three components) in the last sweep
+	 * on the finest grid is below tolerance.
+	 */
+	public void solve(float tolerance) {
+		for (cycles = 1; cycles <= maxCycles; cycles++) {
+			lastDelta = vCycle(0);
+			lastResidual = residual(grids[0]);
+			grids[0].residual(lastResidual);
+			VIB.showStatus("V-cycle " + cycles + ": residual "
+					+ lastResidual + ", delta " + lastDelta);
+			if (lastDelta < tolerance)
+				break;
+		}
+	}
+
+	float vCycle(int l) {
+		Grid g = grids[l];
+		if (l == grids.length - 1) {
+			// the coarsest grid is small, so just relax it well
+			float delta = 0;
+			for (int i = 0; i < maxCoarsestSweeps; i++) {
+				delta = sweep(g);
+				if (delta < 1e-4f)
+					break;
+			}
+			g.residual(delta);
+			return delta;
+		}
+
+		for (int i = 0; i < preSmoothing; i++)
+			sweep(g);
+
+		Grid coarse = grids[l + 1];
+		float r = restrict(g, coarse);
+		if (l > 0)
+			g.residual(r);
+		for (int k = 0; k < coarse.d; k++)
+			Arrays.fill(coarse.u[k], 0);
+		vCycle(l + 1);
+		prolongate(coarse, g);
+
+		float delta = 0;
+		for (int i = 0; i < postSmoothing; i++)
+			delta = sweep(g);
+		return delta;
+	}
+
+	/* One red-black Gauss-Seidel sweep; returns the largest change. */
+	float sweep(final Grid g) {
+		final float[] maxDelta = new float[g.d];
+		for (int colour = 0; colour < 2; colour++) {
+			final int c = colour;
+			Threads.forEachIndex(g.d, nThreads, new Threads.Task() {
+				public void run(int k) {
+					float m = relaxSlice(g, k, c);
+					if (m > maxDelta[k])
+						maxDelta[k] = m;
+				}
+			});
+		}
+		g.sweeps++;
+		float result = 0;
+		for (int k = 0; k < g.d; k++)
+			result = Math.max(result, maxDelta[k]);
+		return result;
+	}
+
+	float relaxSlice(Grid g, int k, int colour) {
+		int w = g.w;
+		float[] u = g.u[k];
+		float[] prevZ = g.u[g.prevZ[k]];
+		float[] nextZ = g.u[g.nextZ[k]];
+		float[] f = g.f == null ? null : g.f[k];
+		boolean[] fixed = g.fixed[k];
+		float maxDelta = 0;
+		for (int j = 0; j < g.h; j++) {
+			int prevY = 3 * g.prevY[j] * w;
+			int nextY = 3 * g.nextY[j] * w;
+			for (int i = (j + k + colour) & 1; i < w; i += 2) {
+				if (fixed[j * w + i])
+					continue;
+				int index = 3 * (j * w + i);
+				int prevX = 3 * (j * w + g.prevX[i]);
+				int nextX = 3 * (j * w + g.nextX[i]);
+				float delta = 0;
+				for (int c = 0; c < 3; c++) {
+					float sum = prevZ[index + c] + nextZ[index + c]
+						+ u[prevY + 3 * i + c]
+						+ u[nextY + 3 * i + c]
+						+ u[prevX + c] + u[nextX + c];
+					if (f != null)
+						sum += f[index + c];
+					sum /= 6;
+					delta += Math.abs(sum - u[index + c]);
+					u[index + c] = sum;
+				}
+				if (delta > maxDelta)
+					maxDelta = delta;
+			}
+		}
+		return maxDelta;
+	}
+
+	/*
+	 * Writes the residual f - A u of the voxels (0..w-1, 0..h-1, k)
+	 * into r and returns its largest absolute value; the residual
+	 * of fixed voxels is 0.
+	 */
+	float residualSlice(Grid g, int k, float[] r) {
+		int w = g.w;
+		float[] u = g.u[k];
+		float[] prevZ = g.u[g.prevZ[k]];
+		float[] nextZ = g.u[g.nextZ[k]];
+		float[] f = g.f == null ? null : g.f[k];
+		boolean[] fixed = g.fixed[k];
+		float max = 0;
+		for (int j = 0; j < g.h; j++) {
+			int prevY = 3 * g.prevY[j] * w;
+			int nextY = 3 * g.nextY[j] * w;
+			for (int i = 0; i < w; i++) {
+				int index = 3 * (j * w + i);
+				if (fixed[j * w + i]) {
+					r[index] = r[index + 1] = r[index + 2] = 0;
+					continue;
+				}
+				int prevX = 3 * (j * w + g.prevX[i]);
+				int nextX = 3 * (j * w + g.nextX[i]);
+				for (int c = 0; c < 3; c++) {
+					float value = prevZ[index + c]
+						+ nextZ[index + c]
+						+ u[prevY + 3 * i + c]
+						+ u[nextY + 3 * i + c]
+						+ u[prevX + c] + u[nextX + c]
+						- 6 * u[index + c];
+					if (f != null)
+						value += f[index + c];
+					r[index + c] = value;
+					if (Math.abs(value) > max)
+						max = Math.abs(value);
+				}
+			}
+		}
+		return max;
+	}
+
+	/* Returns the largest absolute residual of the grid. */
+	float residual(final Grid g) {
+		final float[] max = new float[g.d];
+		Threads.forEachIndex(g.d, nThreads, new Threads.Task() {
+			public void run(int k) {
+				max[k] = residualSlice(g, k, new float[3 * g.w * g.h]);
+			}
+		});
+		float result = 0;
+		for (int k = 0; k < g.d; k++)
+			result = Math.max(result, max[k]);
+		return result;
+	}
+
+	/*
+	 * Sets coarse.f to the residual of fine, restricted with the
+	 * weights 1/4, 1/2, 1/4 along each axis.  The residual is scaled
+	 * by 4, since the coarse grid spacing is twice the fine one.
+	 * Returns the largest absolute residual of fine.
+	 */
+	float restrict(final Grid fine, final Grid coarse) {
+		final float[] max = new float[coarse.d];
+		Threads.forEachIndex(coarse.d, nThreads, new Threads.Task() {
+			public void run(int k) {
+				int w = fine.w, h = fine.h;
+				int z = 2 * k;
+				float[] r = new float[3 * w * h];
+				float[] plane = new float[3 * w * h];
+				int[] zs = { fine.prevZ[z], z, fine.nextZ[z] };
+				float[] zWeights = { 0.25f, 0.5f, 0.25f };
+				for (int n = 0; n < 3; n++) {
+					float m = residualSlice(fine, zs[n], r);
+					if (m > max[k])
+						max[k] = m;
+					for (int p = 0; p < plane.length; p++)
+						plane[p] += zWeights[n] * r[p];
+				}
+
+				float[] f = coarse.f[k];
+				for (int j = 0; j < coarse.h; j++) {
+					int y = 2 * j;
+					int y0 = 3 * fine.prevY[y] * w;
+					int y1 = 3 * y * w;
+					int y2 = 3 * fine.nextY[y] * w;
+					for (int i = 0; i < coarse.w; i++) {
+						int x = 2 * i;
+						int x0 = 3 * fine.prevX[x];
+						int x1 = 3 * x;
+						int x2 = 3 * fine.nextX[x];
+						int index = 3 * (j * coarse.w + i);
+						for (int c = 0; c < 3; c++) {
+							float value =
+								0.25f * (0.25f * plane[y0 + x0 + c] + 0.5f * plane[y0 + x1 + c] + 0.25f * plane[y0 + x2 + c])
+								+ 0.5f * (0.25f * plane[y1 + x0 + c] + 0.5f * plane[y1 + x1 + c] + 0.25f * plane[y1 + x2 + c])
+								+ 0.25f * (0.25f * plane[y2 + x0 + c] + 0.5f * plane[y2 + x1 + c] + 0.25f * plane[y2 + x2 + c]);
+							f[index + c] = 4 * value;
+						}
+					}
+				}
+			}
+		});
+		float result = 0;
+		for (int k = 0; k < coarse.d; k++)
+			result = Math.max(result, max[k]);
+		return result;
+	}
+
+	/*
+	 * Writes the trilinearly interpolated correction coarse.u for the
+	 * fine slice k into e; it is 0 at fixed voxels.
+	 */
+	void interpolateSlice(Grid coarse, Grid fine, int k, float[] e) {
+		int k0 = k / 2;
+		int k1 = (k & 1) == 0 ? k0 : Math.min(k0 + 1, coarse.d - 1);
+		float[] u0 = coarse.u[k0], u1 = coarse.u[k1];
+		boolean[] fixed = fine.fixed[k];
+		for (int j = 0; j < fine.h; j++) {
+			int j0 = j / 2;
+			int j1 = (j & 1) == 0 ? j0 : Math.min(j0 + 1, coarse.h - 1);
+			for (int i = 0; i < fine.w; i++) {
+				int index = 3 * (j * fine.w + i);
+				if (fixed[j * fine.w + i]) {
+					e[index] = e[index + 1] = e[index + 2] = 0;
+					continue;
+				}
+				int i0 = i / 2;
+				int i1 = (i & 1) == 0 ? i0 : Math.min(i0 + 1, coarse.w - 1);
+				int a = 3 * (j0 * coarse.w + i0);
+				int b = 3 * (j0 * coarse.w + i1);
+				int c = 3 * (j1 * coarse.w + i0);
+				int d = 3 * (j1 * coarse.w + i1);
+				for (int n = 0; n < 3; n++)
+					e[index + n] = 0.125f * (u0[a + n] + u0[b + n]
+						+ u0[c + n] + u0[d + n]
+						+ u1[a + n] + u1[b + n]
+						+ u1[c + n] + u1[d + n]);
+			}
+		}
+	}
+
+	/*
+	 * Adds the correction coarse.u to fine, scaled so that the error
+	 * in the energy norm becomes as small as possible: with the
+	 * residual r and the interpolated correction e, the factor is
+	 * (r . W e) / (e . W A e).  W halves the weight of a voxel for
+	 * each border of the volume it lies on; this makes W A symmetric
+	 * in spite of the mirrored neighbours.
+	 *
+	 * Near small labels the coarse grids cannot represent the fixed
+	 * voxels well, and the unscaled correction would overshoot.
+	 * Returns the factor.
+	 */
+	float prolongate(final Grid coarse, final Grid fine) {
+		final double[] rWe = new double[fine.d];
+		final double[] eWAe = new double[fine.d];
+		Threads.forEachIndex(fine.d, nThreads, new Threads.Task() {
+			public void run(int k) {
+				int w = fine.w;
+				float[] r = new float[3 * w * fine.h];
+				float[] prev = new float[r.length];
+				float[] e = new float[r.length];
+				float[] next = new float[r.length];
+				residualSlice(fine, k, r);
+				interpolateSlice(coarse, fine, fine.prevZ[k], prev);
+				interpolateSlice(coarse, fine, k, e);
+				interpolateSlice(coarse, fine, fine.nextZ[k], next);
+				boolean[] fixed = fine.fixed[k];
+				float weightZ = border(k, fine.d);
+				double sum1 = 0, sum2 = 0;
+				for (int j = 0; j < fine.h; j++) {
+					int prevY = 3 * fine.prevY[j] * w;
+					int nextY = 3 * fine.nextY[j] * w;
+					float weightYZ = weightZ * border(j, fine.h);
+					for (int i = 0; i < w; i++) {
+						if (fixed[j * w + i])
+							continue;
+						float weight = weightYZ * border(i, w);
+						int index = 3 * (j * w + i);
+						int prevX = 3 * (j * w + fine.prevX[i]);
+						int nextX = 3 * (j * w + fine.nextX[i]);
+						for (int c = 0; c < 3; c++) {
+							float Ae = 6 * e[index + c]
+								- prev[index + c]
+								- next[index + c]
+								- e[prevY + 3 * i + c]
+								- e[nextY + 3 * i + c]
+								- e[prevX + c]
+								- e[nextX + c];
+							sum1 += weight * r[index + c] * e[index + c];
+							sum2 += weight * e[index + c] * Ae;
+						}
+					}
+				}
+				rWe[k] = sum1;
+				eWAe[k] = sum2;
+			}
+		});
+		double sum1 = 0, sum2 = 0;
+		for (int k = 0; k < fine.d; k++) {
+			sum1 += rWe[k];
+			sum2 += eWAe[k];
+		}
+		if (sum2 <= 0)
+			return 0;
+		final float factor = (float)(sum1 / sum2);
+
+		Threads.forEachIndex(fine.d, nThreads, new Threads.Task() {
+			public void run(int k) {
+				float[] u = fine.u[k];
+				float[] e = new float[u.length];
+				interpolateSlice(coarse, fine, k, e);
+				for (int i = 0; i < u.length; i++)
+					u[i] += factor * e[i];
+			}
+		});
+		return factor;
+	}
+
+	static float border(int i, int n) {
+		return n > 1 && (i == 0 || i == n - 1) ? 0.5f : 1;
+	}
+
+	/* Prints the sweeps and residuals of each grid. */
+	public void report() {
+		VIB.println("Diffusion: " + cycles + " V-cycles, residual "
+				+ lastResidual + ", last delta " + lastDelta);
+		for (int l = 0; l < grids.length; l++) {
+			Grid g = grids[l];
+			VIB.println("  grid " + l + " (" + g.w + "x" + g.h + "x"
+					+ g.d + "): " + g.sweeps + " sweeps, "
+					+ (l == grids.length - 1 ? "delta " : "residual ")
+					+ g.firstResidual + " -> " + g.lastResidual);
+		}
+	}
+}
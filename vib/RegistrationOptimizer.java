@@ -8,6 +8,12 @@ import ij.IJ;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import util.StupidLog;
 
 public abstract class RegistrationOptimizer {
@@ -37,6 +43,31 @@ public abstract class RegistrationOptimizer {
 	 */
 	public abstract double calculateBadness(FastMatrix matrix);
 
+	/*
+	 * Subclasses whose calculateBadness() can be called from several
+	 * threads at once should return true here; then the 24 initial
+	 * orientations are refined in parallel (see setNumberOfThreads()).
+	 */
+	public boolean canCalculateBadnessConcurrently() {
+		return false;
+	}
+
+	/*
+	 * While the orientations are refined in parallel, this is called
+	 * instead of calculateBadness(); the refinements already keep all
+	 * the processors busy, so subclasses should not start threads of
+	 * their own here.
+	 */
+	public double calculateBadnessConcurrently(FastMatrix matrix) {
+		return calculateBadness(matrix);
+	}
+
+	int numberOfThreads = 1;
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
 	/*
 	 * refines the given registration (or tries extensively when
 	 * matrix == null)
@@ -168,7 +199,9 @@ public abstract class RegistrationOptimizer {
 
 		ArrayList refinements = new ArrayList();
 		double[][] x = new double[24][6];
-		for (int i = 0; i < 24; i++) {
+		if (numberOfThreads > 1 && canCalculateBadnessConcurrently())
+			refinements.addAll(refineConcurrently(p, x));
+		else for (int i = 0; i < 24; i++) {
 			if(verbose) 
 			VIB.showStatus("Trying orientation " + 
 						(i + 1) + " of 24...");
@@ -193,6 +226,60 @@ public abstract class RegistrationOptimizer {
 		return orderedEulerParams;
 	}
 
+	/*
+	 * Refine each of the starting parameters in p on its own thread from
+	 * a pool of numberOfThreads; the refinements are returned in the
+	 * same order as p.
+	 */
+	ArrayList refineConcurrently(final double[][] p, final double[][] x) {
+		ExecutorService pool = Executors.newFixedThreadPool(
+				Math.min(numberOfThreads, p.length));
+		final AtomicInteger done = new AtomicInteger(0);
+		ArrayList<Future<Refinement>> futures =
+			new ArrayList<Future<Refinement>>();
+		if(verbose)
+			VIB.showStatus("Trying " + p.length + " orientations...");
+		try {
+			for (int i = 0; i < p.length; i++) {
+				final int index = i;
+				/*
+				 * Each search needs its own optimizer, since
+				 * ConjugateDirectionSearch keeps its state in
+				 * fields.
+				 */
+				final ConjugateDirectionSearch CG =
+					new ConjugateDirectionSearch();
+				CG.step = 10;
+				futures.add(pool.submit(new Callable<Refinement>() {
+					public Refinement call() {
+						Refinement refinement =
+							new Refinement(p[index],
+									true);
+						CG.optimize(refinement, x[index],
+								5, 5);
+						if(verbose)
+							VIB.showProgress(
+								done.incrementAndGet(),
+								p.length);
+						return refinement;
+					}
+				}));
+			}
+			ArrayList result = new ArrayList();
+			for (int i = 0; i < futures.size(); i++)
+				result.add(futures.get(i).get());
+			return result;
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while trying "
+					+ "the initial orientations", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Trying the initial "
+					+ "orientations failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
 	public final static FastMatrix getEulerMatrix(double[] x) {
 		return getEulerMatrix(x[0], x[1], x[2],
 				x[3], x[4], x[5], x[6], x[7], x[8]);
@@ -213,6 +300,7 @@ public abstract class RegistrationOptimizer {
 	class Refinement implements MultivariateFunction, Comparable {
 		// TODO: static class Refinement implements MFWithGradient {
 		public boolean showStatus = false;
+		boolean concurrent;
 		double min;
 		double[] best;
 		double[] initial;
@@ -220,6 +308,11 @@ public abstract class RegistrationOptimizer {
 		double angleFactor;
 
 		public Refinement(double[] start) {
+			this(start, false);
+		}
+
+		public Refinement(double[] start, boolean concurrent) {
+			this.concurrent = concurrent;
 			if(verbose)
 				VIB.println("translateMax: " + 
 				translateMax + ", angleMax: " + angleMax);
@@ -255,7 +348,9 @@ public abstract class RegistrationOptimizer {
 		}
 
 		public double evaluate(double[] x) {
-			double result = calculateBadness(getMatrix(x));
+			double result = concurrent ?
+				calculateBadnessConcurrently(getMatrix(x)) :
+				calculateBadness(getMatrix(x));
 			if (result < min) {
 				best = (double[])x.clone();
 				min = result;
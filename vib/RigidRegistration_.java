@@ -148,6 +148,8 @@ public class RigidRegistration_ implements PlugInFilter {
 		ImagePlus templ = WindowManager.getImage(gd.getNextChoice());
 		int mat2 = (isLabels ? gd.getNextChoiceIndex() : -1);
 		TransformedImage trans = new TransformedImage(templ, image);
+		trans.setNumberOfThreads(
+			Runtime.getRuntime().availableProcessors());
                 ArrayList<ImagePlus> alsoTransform = new ArrayList<ImagePlus>();
 
 		int templType = templ.getType();
@@ -328,6 +330,8 @@ public class RigidRegistration_ implements PlugInFilter {
 				? new FastOptimizer(trans, level, stopLevel, tolerance, verbose)
 				: new Optimizer(trans, level, stopLevel, tolerance, verbose);
 			opt.eulerParameters = params;
+			opt.setNumberOfThreads(
+				Runtime.getRuntime().availableProcessors());
 
 			if(opt.eulerParameters == null){
 				FastMatrix [] results = 
@@ -593,9 +597,19 @@ public class RigidRegistration_ implements PlugInFilter {
 		}
 
 		public double calculateBadness(FastMatrix matrix) {
+			if (t.measure instanceof MergeablePixelPairs)
+				return t.getDistance(matrix);
 			t.setTransformation(matrix);
 			return t.getDistance();
 		}
+
+		public boolean canCalculateBadnessConcurrently() {
+			return t.measure instanceof MergeablePixelPairs;
+		}
+
+		public double calculateBadnessConcurrently(FastMatrix matrix) {
+			return t.getDistance(matrix, 1);
+		}
 	}
 	
 	static class FastOptimizer extends Optimizer {
@@ -637,6 +651,12 @@ public class RigidRegistration_ implements PlugInFilter {
 			current.z = start.z + i * stop.z / total;
 		}
 			
+		/* This shares start, stop and current between calls. */
+		@Override
+		public boolean canCalculateBadnessConcurrently() {
+			return false;
+		}
+
 		@Override
 		public double calculateBadness(FastMatrix matrix) {
 			t.setTransformation(matrix);
@@ -0,0 +1,108 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package vib;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+
+/* Checks that the multigrid solver relaxes a displacement field to
+   the same result as the original Gauss-Seidel sweeps of
+   DiffusionInterpol2_ on a small volume. */
+
+public class TestDiffusionMultigrid {
+
+	static final int WIDTH = 21, HEIGHT = 17, DEPTH = 13;
+
+	/* Two boxes and a few single voxels are fixed, each with its
+	   own displacement; everything else is free. */
+	ImagePlus createLabels(boolean[][] fixed, float[][] displace) {
+		Random random = new Random(7);
+		ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+		for (int k = 0; k < DEPTH; k++) {
+			byte[] pixels = new byte[WIDTH * HEIGHT];
+			displace[k] = new float[3 * WIDTH * HEIGHT];
+			fixed[k] = new boolean[WIDTH * HEIGHT];
+			for (int j = 0; j < HEIGHT; j++)
+				for (int i = 0; i < WIDTH; i++) {
+					int index = j * WIDTH + i;
+					float[] value = null;
+					if (i >= 2 && i < 6 && j >= 3 && j < 8 && k >= 2 && k < 5)
+						value = new float[] { 3, -1, 0.5f };
+					else if (i >= 14 && i < 19 && j >= 10 && j < 14 && k >= 7 && k < 11)
+						value = new float[] { -2, 4, -3 };
+					else if (random.nextInt(200) == 0)
+						value = new float[] { random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2 };
+					if (value == null)
+						continue;
+					pixels[index] = 1;
+					fixed[k][index] = true;
+					for (int c = 0; c < 3; c++)
+						displace[k][3 * index + c] = value[c];
+				}
+			stack.addSlice("", new ByteProcessor(WIDTH, HEIGHT, pixels, null));
+		}
+		return new ImagePlus("labels", stack);
+	}
+
+	static float[][] copy(float[][] field) {
+		float[][] result = new float[field.length][];
+		for (int k = 0; k < field.length; k++)
+			result[k] = (float[])field[k].clone();
+		return result;
+	}
+
+	@Test
+	public void testAgainstGaussSeidel() {
+		// both solvers report their progress with VIB.showStatus()
+		boolean showWindow = BatchLog_.alwaysShowWindow;
+		BatchLog_.alwaysShowWindow = false;
+		try {
+			compareWithGaussSeidel();
+		} finally {
+			BatchLog_.alwaysShowWindow = showWindow;
+		}
+	}
+
+	void compareWithGaussSeidel() {
+		boolean[][] fixed = new boolean[DEPTH][];
+		float[][] displace = new float[DEPTH][];
+		ImagePlus labels = createLabels(fixed, displace);
+
+		DiffusionInterpol2_ interpol = new DiffusionInterpol2_();
+		interpol.template = new InterpolatedImage(labels);
+		interpol.templateLabels = new InterpolatedImage(labels);
+		interpol.displace = copy(displace);
+		interpol.multigrid = false;
+		interpol.iterate(1e-5f, true);
+		float[][] expected = interpol.displace;
+
+		for (int threads = 1; threads <= 3; threads += 2) {
+			float[][] field = copy(displace);
+			DiffusionMultigrid solver = new DiffusionMultigrid(field,
+					fixed, WIDTH, HEIGHT, DEPTH, 5);
+			solver.setNumberOfThreads(threads);
+			solver.solve(1e-5f);
+			assertTrue("multigrid needed " + solver.cycles + " V-cycles",
+					solver.cycles < 50);
+
+			float maxDifference = 0;
+			for (int k = 0; k < DEPTH; k++)
+				for (int i = 0; i < field[k].length; i++) {
+					if (fixed[k][i / 3])
+						assertTrue("fixed voxel changed",
+							field[k][i] == displace[k][i]);
+					maxDifference = Math.max(maxDifference,
+						Math.abs(field[k][i] - expected[k][i]));
+				}
+			// the displacements range from -3 to 4
+			assertTrue(threads + " threads: largest difference to Gauss-Seidel " + maxDifference,
+					maxDifference < 0.01f);
+		}
+	}
+}
@@ -6,9 +6,11 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import distance.MergeablePixelPairs;
 import distance.PixelPairs;
 import java.util.StringTokenizer;
 import math3d.Point3d;
+import util.Threads;
 
 public class TransformedImage {
 	InterpolatedImage orig, transform;
@@ -145,6 +147,7 @@ public class TransformedImage {
 		TransformedImage res = new TransformedImage(resOrig, resTran);
 		res.transformation = transformation;
 		res.measure = measure;
+		res.numberOfThreads = numberOfThreads;
 		res.x0 = x0 / factor;
 		res.y0 = y0 / factor;
 		res.z0 = z0 / factor;
@@ -163,15 +166,28 @@ public class TransformedImage {
 		public boolean showProgress;
 		int x0, y0, z0, x1, y1, z1, xd, zd;
 		private boolean isIdentity;
+		/*
+		 * apply() keeps its result in the matrix, so each
+		 * iterator has its own copy; that way several iterators
+		 * can be used from different threads at once.
+		 */
+		private FastMatrix matrix;
 
 		public Iterator(boolean showProgress, int x0, int y0, int z0,
 				int x1, int y1, int z1) {
+			this(showProgress, x0, y0, z0, x1, y1, z1,
+				TransformedImage.this.matrix);
+		}
+
+		Iterator(boolean showProgress, int x0, int y0, int z0,
+				int x1, int y1, int z1, FastMatrix matrix) {
 			this.showProgress = showProgress;
 			this.x0 = x0; this.y0 = y0; this.z0 = z0;
 			this.x1 = x1; this.y1 = y1; this.z1 = z1;
 			xd = x1 - x0; zd = z1 - z0;
 			i = x1; j = y0 - 1; k = z0;
-			isIdentity = matrix.isIdentity();
+			this.matrix = new FastMatrix(matrix);
+			isIdentity = this.matrix.isIdentity();
 		}
 
                 public boolean hasNext() {
@@ -237,9 +253,93 @@ public class TransformedImage {
 	// the bounding box for the distance calculation
 	int x0, y0, z0, x1, y1, z1;
 
+	/*
+	 * If this is more than 1 (and the measure is a
+	 * MergeablePixelPairs) getDistance() splits the bounding box into
+	 * this many slabs in z and works on them in parallel.
+	 */
+	int numberOfThreads = 1;
+
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
 	public float getDistance() {
+		int slabs = Math.min(numberOfThreads, z1 - z0);
+		if (slabs > 1 && measure instanceof MergeablePixelPairs) {
+			MergeablePixelPairs mergeable =
+				(MergeablePixelPairs)measure;
+			mergeable.reset();
+			addPairsInSlabs(mergeable, matrix, slabs);
+			return mergeable.distance();
+		}
 		measure.reset();
-		Iterator iter = new Iterator(false, x0, y0, z0, x1, y1, z1);
+		addPairs(measure, matrix, z0, z1);
+		return measure.distance();
+	}
+
+	/*
+	 * This gives the same result as setTransformation(transformation)
+	 * followed by getDistance(), but it changes neither this object nor
+	 * its measure (the pairs are added to measure.newEmpty()), so it can
+	 * be called from several threads at once.  The measure must be a
+	 * MergeablePixelPairs.
+	 */
+	public float getDistance(FastMatrix transformation) {
+		return getDistance(transformation, numberOfThreads);
+	}
+
+	/*
+	 * The same, but using at most maxSlabs threads; callers which are
+	 * themselves running on several threads should pass 1.
+	 */
+	public float getDistance(FastMatrix transformation, int maxSlabs) {
+		FastMatrix matrix = toTransform.times(
+			transformation.inverse().times(fromOrig));
+		MergeablePixelPairs result =
+			((MergeablePixelPairs)measure).newEmpty();
+		int slabs = Math.min(maxSlabs, z1 - z0);
+		if (slabs > 1)
+			addPairsInSlabs(result, matrix, slabs);
+		else
+			addPairs(result, matrix, z0, z1);
+		return result.distance();
+	}
+
+	/*
+	 * Each slab is added to its own copy of the measure, and the
+	 * copies are merged in z order at the end, so the result does not
+	 * depend on how the threads were scheduled.
+	 */
+	void addPairsInSlabs(MergeablePixelPairs measure,
+			final FastMatrix matrix, int slabs) {
+		final MergeablePixelPairs[] partial =
+			new MergeablePixelPairs[slabs];
+		final int[] slabStart = new int[slabs + 1];
+		for (int s = 0; s <= slabs; s++)
+			slabStart[s] = z0 + (int)((long)(z1 - z0) * s / slabs);
+
+		for (int s = 0; s < slabs; s++)
+			partial[s] = measure.newEmpty();
+		Threads.forEachIndex(slabs, slabs, new Threads.Task() {
+			public void run(int slab) {
+				addPairs(partial[slab], matrix,
+					slabStart[slab], slabStart[slab + 1]);
+			}
+		});
+
+		for (int s = 0; s < slabs; s++)
+			measure.merge(partial[s]);
+	}
+
+	void addPairs(PixelPairs measure, FastMatrix matrix,
+			int zStart, int zEnd) {
+		Iterator iter = new Iterator(false, x0, y0, zStart,
+				x1, y1, zEnd, matrix);
 		while (iter.next() != null) {
 			float v1 = -1;
 			switch(imageType) {
@@ -255,7 +355,6 @@ public class TransformedImage {
 								 iter.y, iter.z);
 			measure.add(v1, v2);
 		}
-		return measure.distance();
 	}
 
 	public ImagePlus getTransformed() {